@@ -0,0 +1,25 @@
+-- Rebuilds geo_trip_rollups from the trips already in orgn_dst_geo_trips, e.g. after the table was added to an
+-- existing database. Subscribers may keep running: their writes to orgn_dst_geo_trips wait until the rollups have been
+-- rebuilt, so every trip is counted exactly once. The buckets must be as long as the subscriber's, one hour.
+
+BEGIN;
+
+LOCK TABLE orgn_dst_geo_trips IN SHARE MODE;
+
+TRUNCATE geo_trip_rollups;
+
+INSERT INTO geo_trip_rollups (geohash, bucket, start_count, end_count, fare_total)
+SELECT geohash, bucket, sum(start_count), sum(end_count), sum(fare_total) FROM (
+    SELECT left(g.geohash_start, n) AS geohash, g.start_time - g.start_time % 3600000 AS bucket,
+           1 AS start_count, 0 AS end_count, 0 AS fare_total
+    FROM orgn_dst_geo_trips g, generate_series(1, length(g.geohash_start)) AS n
+    UNION ALL
+    SELECT left(g.geohash_end, n), t.end_time - t.end_time % 3600000,
+           0, 1, coalesce(g.fare, 0)
+    FROM orgn_dst_geo_trips g JOIN time_trips t ON t.trip_id = g.trip_id AND t.start_time = g.start_time,
+         generate_series(1, length(g.geohash_end)) AS n
+    WHERE g.geohash_end IS NOT NULL AND t.end_time IS NOT NULL
+) AS events
+GROUP BY geohash, bucket;
+
+COMMIT;
@@ -3,18 +3,52 @@ create schema public;
 
 
 
+-- The trip tables are partitioned by month of their start time (UNIX epoch millis). The subscriber creates the
+-- partitions of the coming months as time_trips_pYYYY_MM and orgn_dst_geo_trips_pYYYY_MM, and detaches those older
+-- than its retention period. A row which falls outside every monthly partition goes to the default partition, and is
+-- moved out of it when the partition of its month is created.
 CREATE TABLE time_trips (trip_id varchar not null,
-                         start_time bigint,
+                         start_time bigint not null,
                          end_time bigint,
-                         primary key(trip_id));
+                         primary key(trip_id, start_time)) PARTITION BY RANGE (start_time);
+CREATE TABLE time_trips_default PARTITION OF time_trips DEFAULT;
 
 CREATE TABLE orgn_dst_geo_trips (trip_id text not null,
+                                 start_time bigint not null,
                                  geohash_start text not null,
                                  geohash_end text,
                                  fare numeric,
-                                 primary key (trip_id));
+                                 primary key (trip_id, start_time)) PARTITION BY RANGE (start_time);
+CREATE TABLE orgn_dst_geo_trips_default PARTITION OF orgn_dst_geo_trips DEFAULT;
 
+-- The start time of every trip, which keeps the trip ids of the partitioned tables unique and lets the end updates find
+-- the partition of a trip. The subscriber deletes the trips older than its retention period.
+CREATE TABLE trip_starts (trip_id text not null,
+                          start_time bigint not null,
+                          primary key (trip_id));
+CREATE INDEX trip_starts_start_idx on trip_starts (start_time);
 
-CREATE INDEX orgn_dst_geo_trips_idx on orgn_dst_geo_trips (geohash_start, geohash_end);
+-- The number of trips which started and ended in every geohash prefix per hour, and the fares of those which ended
+CREATE TABLE geo_trip_rollups (geohash text not null,
+                               bucket bigint not null,
+                               start_count bigint not null,
+                               end_count bigint not null,
+                               fare_total numeric not null,
+                               primary key (geohash, bucket));
+
+-- The number of every trip, which the subscribers put in the geo_trip_bitmaps of the geohashes the trip passed through.
+-- Every subscriber reserves a block of numbers at a time, numbering its trips from nextval * 1024.
+CREATE TABLE trip_numbers (trip_id text not null,
+                           trip_number integer not null,
+                           primary key (trip_id));
+CREATE SEQUENCE trip_number_blocks MINVALUE 0 START WITH 0;
+
+
+-- Indexes created on the partitioned tables are created on every partition
+-- Geohashes are looked up by prefix ranges, which the "C" collation orders by byte
+CREATE INDEX orgn_dst_geo_trips_start_idx on orgn_dst_geo_trips (geohash_start COLLATE "C");
+CREATE INDEX orgn_dst_geo_trips_end_idx on orgn_dst_geo_trips (geohash_end COLLATE "C");
 CREATE INDEX time_trips_idx on time_trips (start_time, end_time);
+-- The API reads the trips which finished since it last read them, to keep its time index up to date
+CREATE INDEX time_trips_end_idx on time_trips (end_time);
 
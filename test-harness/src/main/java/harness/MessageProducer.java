@@ -1,69 +1,112 @@
 package harness;
 
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import redis.clients.jedis.Jedis;
-import java.util.Random;
+import redis.clients.jedis.StreamEntryID;
+import util.StreamShards;
 
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
-public class MessageProducer implements Runnable {
-
-    private static final int MAX_REQUESTS = 100;
-
-    private static final String BEGIN_UPDATE_MSG = "{\"event\":\"%s\", \"tripId\":%s, \"lat\":37.79947, \"lng\":122.511635, \"epoch\":%d}";
-    private static final String END_MSG = "{\"event\":\"%s\", \"tripId\":%s, \"lat\":37.79947, \"lng\":122.511635, \"epoch\":%d, \"fare\":%.2f}";
+import static com.codahale.metrics.MetricRegistry.name;
 
+/**
+ * Sends the messages of a {@link VehicleFleet} to Redis at its share of the rate of a {@link RateSchedule}.
+ *
+ * The producer is open-loop: every message has a time it is due to be sent, which follows from the schedule and not
+ * from how long the previous send took. When a send stalls, the messages due meanwhile are sent straight after it,
+ * and the send latency is measured from the time each message was due. A closed-loop producer would wait out the
+ * stall before sending the next message, sending fewer messages exactly when the system is slow and hiding the delay
+ * from its latencies.
+ */
+public class MessageProducer implements Runnable {
 
+    // The number of messages kept in every shard of the stream, trimmed approximately
+    private static final long MAX_STREAM_LENGTH = 1000000;
 
     private final Jedis jedis;
-    private final Random random = new Random();
     private final String channelName;
+    private final int streamShards;
+    private final VehicleFleet fleet;
+    private final RateSchedule schedule;
+    private final int senders;
+    private final long durationNanos;
+    private final Timer sendLatency;
+    private final Meter sent;
+
+    private volatile boolean running = true;
 
-    public MessageProducer(Jedis jedis, String channelName) {
+    /**
+     * @param streamShards the number of shards of the stream named after the channel to add the messages to, or 0
+     *                     to publish them to the channel
+     * @param senders the number of producers sharing the schedule's rate
+     * @param durationSeconds how long to send messages for, or 0 to send them until stopped
+     */
+    public MessageProducer(Jedis jedis, String channelName, int streamShards, VehicleFleet fleet,
+                           RateSchedule schedule, int senders, long durationSeconds, MetricRegistry metrics) {
         this.jedis = jedis;
         this.channelName = channelName;
+        this.streamShards = streamShards;
+        this.fleet = fleet;
+        this.schedule = schedule;
+        this.senders = senders;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        this.sendLatency = metrics.timer(name(MessageProducer.class, "send-latency"));
+        this.sent = metrics.meter(name(MessageProducer.class, "sent"));
     }
 
+    /**
+     * Sends messages until the run is over or {@link #stop()} is called, then ends the trips in progress.
+     */
     @Override
     public void run() {
-        long count = 0;
-        long startTime = System.currentTimeMillis();
-        while (true) {
-            while (System.currentTimeMillis() - startTime < 1000) {
-                if (count <= MAX_REQUESTS) {
-                    jedis.publish(channelName, getMessage());
-                    try {
-                        Thread.sleep(random.nextInt(11));
-                    } catch (InterruptedException ie) {
-                        ie.printStackTrace();
-                        Thread.currentThread().interrupt();
-                    }
-                    count++;
-                }
+        long start = System.nanoTime();
+        long due = start;
+        while (running && (durationNanos == 0 || due - start < durationNanos)) {
+            waitUntil(due);
+            if (schedule.rateAt(due - start) > 0) {
+                send(fleet.nextMessage(System.currentTimeMillis()));
+                sendLatency.update(System.nanoTime() - due, TimeUnit.NANOSECONDS);
             }
-            count = 0;
-            startTime = System.currentTimeMillis();
+            due += schedule.intervalNanos(due - start, senders);
+        }
+        for (String message : fleet.endTrips(System.currentTimeMillis())) {
+            send(message);
         }
     }
 
+    public void stop() {
+        running = false;
+    }
+
+    private void send(String message) {
+        if (streamShards == 0) {
+            jedis.publish(channelName, message);
+        } else {
+            String shard = StreamShards.key(channelName, StreamShards.shardOf(tripIdOf(message), streamShards));
+            jedis.xadd(shard, StreamEntryID.NEW_ENTRY, Collections.singletonMap(StreamShards.MESSAGE_FIELD, message),
+                    MAX_STREAM_LENGTH, true);
+        }
+        sent.mark();
+    }
+
     /**
-     * Randomly generates a message. Attempts to send more
-     * update messages than other messages. No significant statistical or probability
-     * analysis here, just something to exercise the subscriber and get messages into the
-     * data stores.
-     *
-     * @return
+     * @return the trip id as it appears in a message written by the fleet
      */
-    private String getMessage() {
-        int rnd = random.nextInt(100);
-        if (rnd == 0) {
-            return String.format(BEGIN_UPDATE_MSG, "begin", random.nextInt(Integer.MAX_VALUE), System.currentTimeMillis());
-        } else if (rnd == 99) {
-            return String.format(END_MSG, "end", random.nextInt(Integer.MAX_VALUE), System.currentTimeMillis(),
-                    random.nextInt(50) * random.nextFloat());
-        } else {
-            return String.format(BEGIN_UPDATE_MSG, "update", random.nextInt(Integer.MAX_VALUE), System.currentTimeMillis());
+    static CharSequence tripIdOf(String message) {
+        int start = message.indexOf("\"tripId\":") + "\"tripId\":".length();
+        return message.subSequence(start, message.indexOf(',', start));
+    }
+
+    private void waitUntil(long due) {
+        long wait;
+        while (running && (wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
         }
     }
 
 }
-
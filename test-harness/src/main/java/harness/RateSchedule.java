@@ -0,0 +1,117 @@
+package harness;
+
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How many messages per second the harness sends over the course of a run, one of:
+ * <ul>
+ *     <li>{@code steady:<rate>}, the same rate throughout</li>
+ *     <li>{@code ramp:<from>:<to>:<seconds>}, from one rate to another over the seconds, then the second rate</li>
+ *     <li>{@code spike:<base>:<peak>:<start seconds>:<seconds>}, the base rate apart from the peak rate for the
+ *     seconds from the start</li>
+ * </ul>
+ */
+public final class RateSchedule {
+
+    // How long a sender waits before looking at the schedule again while the rate is zero
+    private static final long IDLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private enum Shape {
+        STEADY, RAMP, SPIKE
+    }
+
+    private final Shape shape;
+    private final double baseRate;
+    private final double peakRate;
+    private final long startNanos;
+    private final long lengthNanos;
+
+    private RateSchedule(Shape shape, double baseRate, double peakRate, long startNanos, long lengthNanos) {
+        if (baseRate < 0 || peakRate < 0) {
+            throw new IllegalArgumentException(String.format("Rates must not be negative: %s and %s", baseRate, peakRate));
+        }
+        this.shape = shape;
+        this.baseRate = baseRate;
+        this.peakRate = peakRate;
+        this.startNanos = startNanos;
+        this.lengthNanos = lengthNanos;
+    }
+
+    public static RateSchedule steady(double rate) {
+        return new RateSchedule(Shape.STEADY, rate, rate, 0, 0);
+    }
+
+    public static RateSchedule ramp(double fromRate, double toRate, long rampSeconds) {
+        return new RateSchedule(Shape.RAMP, fromRate, toRate, 0, TimeUnit.SECONDS.toNanos(rampSeconds));
+    }
+
+    public static RateSchedule spike(double baseRate, double peakRate, long startSeconds, long spikeSeconds) {
+        return new RateSchedule(Shape.SPIKE, baseRate, peakRate, TimeUnit.SECONDS.toNanos(startSeconds),
+                TimeUnit.SECONDS.toNanos(spikeSeconds));
+    }
+
+    /**
+     * @param schedule a schedule in one of the forms described above, e.g. {@code spike:500:5000:60:10}
+     */
+    public static RateSchedule fromString(String schedule) {
+        String[] parts = schedule.trim().split(":");
+        try {
+            switch (parts[0].toLowerCase()) {
+                case "steady":
+                    if (parts.length == 2) {
+                        return steady(Double.parseDouble(parts[1]));
+                    }
+                    break;
+                case "ramp":
+                    if (parts.length == 4) {
+                        return ramp(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]), Long.parseLong(parts[3]));
+                    }
+                    break;
+                case "spike":
+                    if (parts.length == 5) {
+                        return spike(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]),
+                                Long.parseLong(parts[3]), Long.parseLong(parts[4]));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Invalid rate schedule: %s", schedule), ex);
+        }
+        throw new IllegalArgumentException(String.format("Invalid rate schedule: %s", schedule));
+    }
+
+    /**
+     * @param elapsedNanos the time since the start of the run
+     * @return the messages per second to send at that time
+     */
+    public double rateAt(long elapsedNanos) {
+        switch (shape) {
+            case RAMP:
+                if (elapsedNanos >= lengthNanos) {
+                    return peakRate;
+                }
+                return baseRate + (peakRate - baseRate) * elapsedNanos / lengthNanos;
+            case SPIKE:
+                return elapsedNanos >= startNanos && elapsedNanos < startNanos + lengthNanos ? peakRate : baseRate;
+            default:
+                return baseRate;
+        }
+    }
+
+    /**
+     * @param elapsedNanos the time since the start of the run at which a message was due to be sent
+     * @param senders the number of senders sharing the rate
+     * @return how long after that one of the senders sends its next message
+     */
+    public long intervalNanos(long elapsedNanos, int senders) {
+        double rate = rateAt(elapsedNanos) / senders;
+        if (rate <= 0) {
+            return IDLE_INTERVAL_NANOS;
+        }
+        return Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+    }
+
+}
@@ -1,33 +1,124 @@
 package harness;
 
+import com.codahale.metrics.ConsoleReporter;
+import com.codahale.metrics.MetricRegistry;
 import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
 /**
- * Basic test harness which starts 5 threads, each of which publishes 100 messages
- * per second to Redis pub/sub channel. This is to simulate the 500 concurrent connections
- * the system needs to deal with.
+ * Load generator which simulates a fleet of vehicles driving trips across a city, see {@link VehicleFleet}, and sends
+ * their messages to the Redis pub/sub channel at the rate of a {@link RateSchedule}, see {@link MessageProducer}.
+ * The vehicles are split between {@code HARNESS_SENDERS} producers, each with a connection of its own, so all the
+ * messages of a trip are sent in order by one producer.
+ *
+ * Given a number of shards, e.g. {@code TestHarness 4}, the messages are added to the shards of the trip_updates
+ * stream instead. The rate and latency of the sends are reported every {@code HARNESS_REPORT_INTERVAL_SECONDS} and
+ * at the end of the run.
  */
 public class TestHarness {
 
     private static final org.slf4j.Logger logger = LoggerFactory.getLogger(TestHarness.class);
 
+    private static final String REDIS_HOST =          "REDIS_HOST";
+    private static final String REDIS_PORT =          "REDIS_PORT";
+    private static final String REDIS_CHANNEL =       "REDIS_CHANNEL";
+    private static final String STREAM_SHARDS =       "REDIS_STREAM_SHARDS";
+    private static final String VEHICLES =            "HARNESS_VEHICLES";
+    private static final String SENDERS =             "HARNESS_SENDERS";
+    private static final String RATE_SCHEDULE =       "HARNESS_RATE_SCHEDULE";
+    private static final String DURATION_SECONDS =    "HARNESS_DURATION_SECONDS";
+    private static final String BOUNDING_BOX =        "HARNESS_BOUNDING_BOX";
+    private static final String SEED =                "HARNESS_SEED";
+    private static final String REPORT_INTERVAL_SECS = "HARNESS_REPORT_INTERVAL_SECONDS";
+
+    private static final String CONFIG_PROPERTIES = "application.properties";
+
+
+    public static void main(String[] args) throws Exception {
+        Properties props = getAppConfigProperties();
+        int streamShards = args.length > 0 ? Integer.parseInt(args[0])
+                : Integer.valueOf(props.getProperty(STREAM_SHARDS, "0"));
+        int senders = Integer.valueOf(props.getProperty(SENDERS, "5"));
+        int vehicles = Integer.valueOf(props.getProperty(VEHICLES, "500"));
+        RateSchedule schedule = RateSchedule.fromString(props.getProperty(RATE_SCHEDULE, "steady:500"));
+        long durationSeconds = Long.valueOf(props.getProperty(DURATION_SECONDS, "0"));
+        // San Francisco by default
+        String[] box = props.getProperty(BOUNDING_BOX, "37.708,-122.515,37.810,-122.357").split(",");
+        Random seeds = props.containsKey(SEED) ? new Random(Long.valueOf(props.getProperty(SEED))) : new Random();
+        // Not drawn from the seed, so a repeated run sends the same trips under new ids
+        int runId = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+
+        MetricRegistry metrics = new MetricRegistry();
+        ConsoleReporter reporter = ConsoleReporter.forRegistry(metrics)
+                .convertRatesTo(TimeUnit.SECONDS)
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .build();
+        reporter.start(Long.valueOf(props.getProperty(REPORT_INTERVAL_SECS, "10")), TimeUnit.SECONDS);
 
-    public static void main(String[] args) {
         JedisPoolConfig config = new JedisPoolConfig();
-        config.setMaxTotal(10);
-        JedisPool pool = new JedisPool(config, "localhost");
+        config.setMaxTotal(senders);
+        JedisPool pool = new JedisPool(config, props.getProperty(REDIS_HOST, "localhost"),
+                Integer.valueOf(props.getProperty(REDIS_PORT, "6379")));
 
-        try {
-            for (int i = 0; i < 5; i++) {
-                new Thread(new MessageProducer(pool.getResource(), "trip_updates")).start();
-                logger.debug("Created thread number: " + (i + 1));
+        List<Jedis> connections = new ArrayList<>();
+        List<MessageProducer> producers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < senders; i++) {
+            // The vehicles which do not divide evenly go to the first senders
+            int fleetSize = vehicles / senders + (i < vehicles % senders ? 1 : 0);
+            VehicleFleet fleet = new VehicleFleet(fleetSize, Double.parseDouble(box[0]), Double.parseDouble(box[1]),
+                    Double.parseDouble(box[2]), Double.parseDouble(box[3]), runId, i, senders,
+                    new Random(seeds.nextLong()));
+            Jedis jedis = pool.getResource();
+            connections.add(jedis);
+            MessageProducer producer = new MessageProducer(jedis, props.getProperty(REDIS_CHANNEL, "trip_updates"),
+                    streamShards, fleet, schedule, senders, durationSeconds, metrics);
+            producers.add(producer);
+            threads.add(new Thread(producer, "producer-" + i));
+        }
+        logger.info(String.format("Simulating %d vehicles with %d senders at %s, run id: %d", vehicles, senders,
+                props.getProperty(RATE_SCHEDULE, "steady:500"), runId));
+
+        // Stopping the producers ends the trips in progress, so every trip sent has an END
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            producers.forEach(MessageProducer::stop);
+            try {
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
             }
-        } finally {
-            pool.close();
+        }));
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
         }
 
+        reporter.report();
+        reporter.stop();
+        connections.forEach(Jedis::close);
+        pool.close();
+    }
+
+    private static Properties getAppConfigProperties() throws IOException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        Properties props = new Properties();
+        try(InputStream resourceStream = loader.getResourceAsStream(CONFIG_PROPERTIES)) {
+            props.load(resourceStream);
+        }
+        return props;
     }
 
 }
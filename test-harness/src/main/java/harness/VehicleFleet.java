@@ -0,0 +1,206 @@
+package harness;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates vehicles driving trips across a city's bounding box, and describes what each of them does as a message.
+ * A vehicle picks up a passenger where it dropped off the last one, drives to a random destination in the box along a
+ * street grid, north or south first and then east or west, and drops the passenger off, so every trip is a BEGIN,
+ * any number of UPDATEs and an END with the fare. How far a vehicle has driven since its last message depends on its
+ * speed and on the time between the messages.
+ *
+ * The vehicles take turns, each message moving the next one on, so the messages of a trip are in order. Trip ids are
+ * unique across the fleets of a run as long as every fleet has its own index, and start with the run's id in their
+ * upper 32 bits, so they do not collide with the trips of earlier runs already in the databases.
+ */
+public class VehicleFleet {
+
+    private static final String BEGIN_UPDATE_MSG =
+            "{\"event\":\"%s\", \"tripId\":%d, \"lat\":%.6f, \"lng\":%.6f, \"epoch\":%d}";
+    private static final String END_MSG =
+            "{\"event\":\"end\", \"tripId\":%d, \"lat\":%.6f, \"lng\":%.6f, \"epoch\":%d, \"fare\":%.2f}";
+
+    private static final double METERS_PER_DEGREE = 111320;
+    private static final double MIN_SPEED_METERS_PER_SECOND = 6;
+    private static final double MAX_SPEED_METERS_PER_SECOND = 14;
+    private static final double BASE_FARE = 2.5;
+    private static final double FARE_PER_KM = 1.5;
+    private static final double FARE_PER_MINUTE = 0.3;
+
+    private final double minLat;
+    private final double minLng;
+    private final double maxLat;
+    private final double maxLng;
+    private final int runId;
+    private final int fleetIndex;
+    private final int fleetCount;
+    private final Random random;
+    private final List<Vehicle> vehicles = new ArrayList<>();
+
+    private int nextVehicle;
+    private long tripsStarted;
+
+    /**
+     * @param runId the id of the run, shared by its fleets and different for every run
+     * @param fleetIndex the index of this fleet among the fleets of the run
+     * @param fleetCount the number of fleets in the run
+     */
+    public VehicleFleet(int vehicleCount, double minLat, double minLng, double maxLat, double maxLng, int runId,
+                        int fleetIndex, int fleetCount, Random random) {
+        if (vehicleCount < 1) {
+            throw new IllegalArgumentException(String.format("Vehicle count must be positive: %d", vehicleCount));
+        }
+        if (runId < 1) {
+            throw new IllegalArgumentException(String.format("Run id must be positive: %d", runId));
+        }
+        if (minLat >= maxLat || minLng >= maxLng) {
+            throw new IllegalArgumentException(String.format("Invalid bounding box: %s,%s,%s,%s",
+                    minLat, minLng, maxLat, maxLng));
+        }
+        this.minLat = minLat;
+        this.minLng = minLng;
+        this.maxLat = maxLat;
+        this.maxLng = maxLng;
+        this.runId = runId;
+        this.fleetIndex = fleetIndex;
+        this.fleetCount = fleetCount;
+        this.random = random;
+        for (int i = 0; i < vehicleCount; i++) {
+            vehicles.add(new Vehicle(randomLat(), randomLng()));
+        }
+    }
+
+    /**
+     * Moves the next vehicle on to the time of the message: an idle vehicle begins a trip, a vehicle on a trip drives
+     * on and ends the trip if it reaches its destination.
+     *
+     * @param epochMillis the time of the message
+     * @return the message describing what the vehicle did
+     */
+    public String nextMessage(long epochMillis) {
+        Vehicle vehicle = vehicles.get(nextVehicle);
+        nextVehicle = (nextVehicle + 1) % vehicles.size();
+        if (vehicle.tripId == 0) {
+            vehicle.begin(nextTripId(), randomLat(), randomLng(), randomSpeed(), epochMillis);
+            return format(BEGIN_UPDATE_MSG, "begin", vehicle.tripId, vehicle.lat, vehicle.lng, epochMillis);
+        }
+        if (vehicle.drive(epochMillis)) {
+            return end(vehicle, epochMillis);
+        }
+        return format(BEGIN_UPDATE_MSG, "update", vehicle.tripId, vehicle.lat, vehicle.lng, epochMillis);
+    }
+
+    /**
+     * Ends every trip in progress where the vehicle is, e.g. at the end of a run.
+     *
+     * @return the END messages of the trips
+     */
+    public List<String> endTrips(long epochMillis) {
+        List<String> messages = new ArrayList<>();
+        for (Vehicle vehicle : vehicles) {
+            if (vehicle.tripId != 0) {
+                messages.add(end(vehicle, epochMillis));
+            }
+        }
+        return messages;
+    }
+
+    public int getVehicleCount() {
+        return vehicles.size();
+    }
+
+    private String end(Vehicle vehicle, long epochMillis) {
+        double minutes = (epochMillis - vehicle.tripStart) / (double) TimeUnit.MINUTES.toMillis(1);
+        double fare = BASE_FARE + vehicle.tripMeters / 1000 * FARE_PER_KM + minutes * FARE_PER_MINUTE;
+        String message = format(END_MSG, vehicle.tripId, vehicle.lat, vehicle.lng, epochMillis, fare);
+        vehicle.tripId = 0;
+        return message;
+    }
+
+    // Ids are never 0, which marks an idle vehicle, as the run id is positive. The fleets of a run interleave the lower
+    // 32 bits, which last for billions of trips
+    private long nextTripId() {
+        return (long) runId << 32 | (++tripsStarted * fleetCount + fleetIndex);
+    }
+
+    private double randomLat() {
+        return minLat + random.nextDouble() * (maxLat - minLat);
+    }
+
+    private double randomLng() {
+        return minLng + random.nextDouble() * (maxLng - minLng);
+    }
+
+    private double randomSpeed() {
+        return MIN_SPEED_METERS_PER_SECOND + random.nextDouble() * (MAX_SPEED_METERS_PER_SECOND - MIN_SPEED_METERS_PER_SECOND);
+    }
+
+    // Formatted without the default locale, which may use a decimal comma
+    private static String format(String template, Object... args) {
+        return String.format(Locale.ROOT, template, args);
+    }
+
+    private static final class Vehicle {
+
+        private double lat;
+        private double lng;
+        private long tripId;
+        private double destinationLat;
+        private double destinationLng;
+        private double metersPerSecond;
+        private long tripStart;
+        private long lastMoved;
+        private double tripMeters;
+
+        private Vehicle(double lat, double lng) {
+            this.lat = lat;
+            this.lng = lng;
+        }
+
+        private void begin(long tripId, double destinationLat, double destinationLng, double metersPerSecond,
+                           long epochMillis) {
+            this.tripId = tripId;
+            this.destinationLat = destinationLat;
+            this.destinationLng = destinationLng;
+            this.metersPerSecond = metersPerSecond;
+            this.tripStart = epochMillis;
+            this.lastMoved = epochMillis;
+            this.tripMeters = 0;
+        }
+
+        /**
+         * @return whether the vehicle has reached its destination
+         */
+        private boolean drive(long epochMillis) {
+            double meters = metersPerSecond * Math.max(0, epochMillis - lastMoved) / TimeUnit.SECONDS.toMillis(1);
+            lastMoved = epochMillis;
+            // North or south to the destination's latitude first
+            double latMeters = Math.abs(destinationLat - lat) * METERS_PER_DEGREE;
+            if (meters < latMeters) {
+                lat += Math.signum(destinationLat - lat) * meters / METERS_PER_DEGREE;
+                tripMeters += meters;
+                return false;
+            }
+            lat = destinationLat;
+            meters -= latMeters;
+            tripMeters += latMeters;
+            // A degree of longitude gets shorter away from the equator
+            double metersPerLngDegree = METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+            double lngMeters = Math.abs(destinationLng - lng) * metersPerLngDegree;
+            if (meters < lngMeters) {
+                lng += Math.signum(destinationLng - lng) * meters / metersPerLngDegree;
+                tripMeters += meters;
+                return false;
+            }
+            lng = destinationLng;
+            tripMeters += lngMeters;
+            return true;
+        }
+    }
+
+}
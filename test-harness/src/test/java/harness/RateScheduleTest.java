@@ -0,0 +1,58 @@
+package harness;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class RateScheduleTest {
+
+    @Test
+    public void shouldSendAtTheSameRateThroughoutASteadySchedule() {
+        RateSchedule schedule = RateSchedule.fromString("steady:500");
+
+        assertThat(schedule.rateAt(0), is(500.0));
+        assertThat(schedule.rateAt(seconds(3600)), is(500.0));
+        // Shared by 5 senders, each sends every 10ms
+        assertThat(schedule.intervalNanos(0, 5), is(TimeUnit.MILLISECONDS.toNanos(10)));
+    }
+
+    @Test
+    public void shouldRampUpAndThenHoldTheRate() {
+        RateSchedule schedule = RateSchedule.fromString("ramp:100:1100:10");
+
+        assertThat(schedule.rateAt(0), is(100.0));
+        assertThat(schedule.rateAt(seconds(5)), is(600.0));
+        assertThat(schedule.rateAt(seconds(60)), is(1100.0));
+    }
+
+    @Test
+    public void shouldOnlySendAtThePeakRateDuringTheSpike() {
+        RateSchedule schedule = RateSchedule.fromString("spike:500:5000:30:10");
+
+        assertThat(schedule.rateAt(seconds(29)), is(500.0));
+        assertThat(schedule.rateAt(seconds(30)), is(5000.0));
+        assertThat(schedule.rateAt(seconds(39)), is(5000.0));
+        assertThat(schedule.rateAt(seconds(40)), is(500.0));
+    }
+
+    @Test
+    public void shouldLookAtTheScheduleAgainSoonWhileTheRateIsZero() {
+        RateSchedule schedule = RateSchedule.fromString("spike:0:100:10:10");
+
+        assertThat(schedule.intervalNanos(0, 1) <= TimeUnit.MILLISECONDS.toNanos(10), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectAnUnknownSchedule() {
+        RateSchedule.fromString("sine:500");
+    }
+
+    private static long seconds(long seconds) {
+        return TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+}
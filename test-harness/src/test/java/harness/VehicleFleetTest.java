@@ -0,0 +1,94 @@
+package harness;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class VehicleFleetTest {
+
+    private static final double MIN_LAT = 37.708;
+    private static final double MIN_LNG = -122.515;
+    private static final double MAX_LAT = 37.810;
+    private static final double MAX_LNG = -122.357;
+
+    private static final Pattern MESSAGE = Pattern.compile(
+            "\\{\"event\":\"(\\w+)\", \"tripId\":(\\d+), \"lat\":([-\\d.]+), \"lng\":([-\\d.]+), \"epoch\":(\\d+)(, \"fare\":([\\d.]+))?}");
+
+    @Test
+    public void shouldSendEveryTripAsABeginUpdatesAndAnEndWithAFare() {
+        VehicleFleet fleet = newFleet(10, 0, 1);
+        List<String> messages = new ArrayList<>();
+        long epoch = 1392864673040L;
+        // A vehicle moves every 10 seconds, long enough for most trips to end
+        for (int i = 0; i < 10000; i++) {
+            messages.add(fleet.nextMessage(epoch));
+            epoch += 1000;
+        }
+        messages.addAll(fleet.endTrips(epoch));
+
+        Map<String, List<String>> trips = new HashMap<>();
+        for (String message : messages) {
+            Matcher matcher = MESSAGE.matcher(message);
+            assertThat(message, matcher.matches(), is(true));
+            trips.computeIfAbsent(matcher.group(2), id -> new ArrayList<>()).add(matcher.group(1));
+            double lat = Double.parseDouble(matcher.group(3));
+            double lng = Double.parseDouble(matcher.group(4));
+            assertThat(message, lat >= MIN_LAT && lat <= MAX_LAT && lng >= MIN_LNG && lng <= MAX_LNG, is(true));
+            assertThat(message, matcher.group(1).equals("end") == (matcher.group(7) != null), is(true));
+        }
+        assertThat(trips.size() > 10, is(true));
+        for (List<String> events : trips.values()) {
+            assertThat(events.get(0), is("begin"));
+            assertThat(events.get(events.size() - 1), is("end"));
+            assertThat(events.subList(1, events.size() - 1).stream().allMatch("update"::equals), is(true));
+        }
+    }
+
+    @Test
+    public void shouldGiveTheTripsOfEveryFleetDifferentIds() {
+        Set<String> tripIds = new HashSet<>();
+        for (int fleetIndex = 0; fleetIndex < 3; fleetIndex++) {
+            VehicleFleet fleet = newFleet(5, fleetIndex, 3);
+            for (int i = 0; i < 5; i++) {
+                tripIds.add(MessageProducer.tripIdOf(fleet.nextMessage(1392864673040L)).toString());
+            }
+        }
+
+        assertThat(tripIds.size(), is(15));
+    }
+
+    @Test
+    public void shouldGiveTheTripsOfEveryRunDifferentIds() {
+        Set<String> tripIds = new HashSet<>();
+        for (int runId = 1; runId <= 2; runId++) {
+            VehicleFleet fleet = newFleet(5, runId, 0, 1);
+            for (int i = 0; i < 5; i++) {
+                tripIds.add(MessageProducer.tripIdOf(fleet.nextMessage(1392864673040L)).toString());
+            }
+        }
+
+        assertThat(tripIds.size(), is(10));
+    }
+
+    private static VehicleFleet newFleet(int vehicles, int fleetIndex, int fleetCount) {
+        return newFleet(vehicles, 1, fleetIndex, fleetCount);
+    }
+
+    private static VehicleFleet newFleet(int vehicles, int runId, int fleetIndex, int fleetCount) {
+        return new VehicleFleet(vehicles, MIN_LAT, MIN_LNG, MAX_LAT, MAX_LNG, runId, fleetIndex, fleetCount,
+                new Random(42));
+    }
+
+}
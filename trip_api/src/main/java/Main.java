@@ -1,21 +1,44 @@
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.Session;
+import handlers.AdmissionControl;
+import handlers.AsyncRoute;
 import handlers.TripRequestHandler;
 import org.apache.commons.dbcp2.BasicDataSource;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import service.EmbeddedTripDataService;
+import service.TimeTripIndex;
+import service.TripDataService;
 import service.TripDataServiceImpl;
 import spark.ModelAndView;
+import spark.servlet.SparkApplication;
+import spark.servlet.SparkFilter;
 import spark.template.handlebars.HandlebarsTemplateEngine;
+import store.TripStore;
 
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterConfig;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.sql.DataSource;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static spark.Spark.get;
-import static spark.SparkBase.port;
 
 public class Main {
 
@@ -28,30 +51,105 @@ public class Main {
     private static final String DB_CP_SIZE =         "DB_CP_SIZE";
     private static final String CSSNDRA_CONTACT_PT = "CASSANDRA_CONTACT_POINT";
     private static final String CSSNDRA_KEY_SPACE  = "CASSANDRA_KEY_SPACE";
+    private static final String CSSNDRA_FETCH_SIZE = "CASSANDRA_FETCH_SIZE";
     private static final String SPARK_API_PORT     = "SPARK_API_PORT";
-
-    public static void main(String[] args) throws IOException {
+    private static final String SKETCH_MAX_PREFIX  = "SKETCH_MAX_PREFIX_LENGTH";
+    private static final String GEOCOUNT_FROM_BITMAPS = "GEOCOUNT_FROM_BITMAPS";
+    private static final String CELL_CACHE_MAX_TRIPS = "CELL_CACHE_MAX_TRIPS";
+    private static final String GEOVALUE_CACHE_MAX = "GEOVALUE_CACHE_MAX_RESULTS";
+    private static final String CELL_CACHE_TTL_SECS = "CELL_CACHE_TTL_SECONDS";
+    private static final String QUERY_THREADS =      "QUERY_THREADS";
+    private static final String QUERY_MAX_FAN_OUT =  "QUERY_MAX_FAN_OUT";
+    private static final String API_MAX_CONCURRENT = "API_MAX_CONCURRENT_REQUESTS";
+    private static final String API_MAX_QUEUED =     "API_MAX_QUEUED_REQUESTS";
+    private static final String API_MAX_QUEUE_WAIT_MS = "API_MAX_QUEUE_WAIT_MS";
+    private static final String API_DEADLINE_MS =    "API_REQUEST_DEADLINE_MS";
+    private static final String TIME_INDEX_ENABLED = "TIME_INDEX_ENABLED";
+    private static final String TIME_INDEX_LOOKBACK_MS = "TIME_INDEX_LOOKBACK_MS";
+    private static final String TIME_INDEX_POLL_MS = "TIME_INDEX_POLL_INTERVAL_MS";
+    private static final String TIME_INDEX_CHECK_SECS = "TIME_INDEX_CHECK_INTERVAL_SECONDS";
+    private static final String TIME_INDEX_MAX_PENDING = "TIME_INDEX_MAX_PENDING_TRIPS";
+    private static final String STORAGE_ENGINE =     "STORAGE_ENGINE";
+    private static final String STORE_DIR =          "STORE_DIR";
+
+    // The storage engine which reads the trips from the subscriber's embedded store rather than from the databases
+    private static final String EMBEDDED_ENGINE = "embedded";
+
+    public static void main(String[] args) throws Exception {
         Properties properties = getAppConfigProperties();
 
-        DataSource ds = configureDataSource(properties);
-        Cluster cluster = configureCassandraCluster(properties);
-        Session session = cluster.connect(properties.getProperty(CSSNDRA_KEY_SPACE));
+        MetricRegistry metrics = new MetricRegistry();
+        JmxReporter.forRegistry(metrics).build().start();
+
+        TripDataService service;
+        if (EMBEDDED_ENGINE.equalsIgnoreCase(properties.getProperty(STORAGE_ENGINE))) {
+            service = new EmbeddedTripDataService(
+                    TripStore.openForReading(Paths.get(properties.getProperty(STORE_DIR, "trip-store"))), metrics);
+        } else {
+            DataSource ds = configureDataSource(properties);
+            Cluster cluster = configureCassandraCluster(properties);
+            Session session = cluster.connect(properties.getProperty(CSSNDRA_KEY_SPACE));
+            service = configureDataService(properties, ds, session, metrics);
+        }
 
-        TripRequestHandler handler = new TripRequestHandler(new TripDataServiceImpl(ds, session));
+        // Answers the requests which miss their deadline, and rejects the requests which waited too long to be admitted
+        ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor();
+        int maxSketchPrefixLength = Integer.valueOf(properties.getProperty(SKETCH_MAX_PREFIX, "5"));
+        TripRequestHandler handler = new TripRequestHandler(service, maxSketchPrefixLength,
+                configureAdmissionControl(properties, deadlines, metrics));
 
-        port(Integer.valueOf(properties.getProperty(SPARK_API_PORT, "4567")));
+        long deadlineMillis = Long.valueOf(properties.getProperty(API_DEADLINE_MS, "10000"));
 
-        get("/api/trips/geocount", (req, resp) -> handler.getNumberOfTripsInGeo(req, resp));
+        SparkApplication routes = () -> {
+            get("/api/trips/geocount", new AsyncRoute(handler::getNumberOfTripsInGeo, deadlineMillis, deadlines));
 
-        get("/api/trips/geovalue", (req, resp) -> handler.getTripsStartedOrCompletedInGeo(req, resp));
+            get("/api/trips/geovalue",
+                    new AsyncRoute(handler::getTripsStartedOrCompletedInGeo, deadlineMillis, deadlines));
 
-        get("api/trips/timecount", (req, resp) -> handler.getNumberOfTripsAtTime(req, resp));
+            get("api/trips/timecount", new AsyncRoute(handler::getNumberOfTripsAtTime, deadlineMillis, deadlines));
 
-        get("/", (req, resp) -> new ModelAndView(new HashMap<>(), "index.hbs"), new HandlebarsTemplateEngine());
+            get("/", (req, resp) -> new ModelAndView(new HashMap<>(), "index.hbs"), new HandlebarsTemplateEngine());
+        };
+        startServer(Integer.valueOf(properties.getProperty(SPARK_API_PORT, "4567")), routes);
 
         logger.info("API service started, waiting for requests");
     }
 
+    /**
+     * Serves the routes from a Jetty server whose filters and servlets support asynchronous requests, so that the
+     * query routes can give their request thread back while the databases answer. Spark's embedded server answers
+     * every request as soon as its route returns, so Spark runs as a filter instead, and requests which no route
+     * matched fall through to a servlet which answers 404.
+     */
+    private static void startServer(int port, SparkApplication routes) throws Exception {
+        ServletContextHandler context = new ServletContextHandler();
+
+        FilterHolder spark = new FilterHolder(new SparkFilter() {
+            @Override
+            protected SparkApplication getApplication(FilterConfig filterConfig) {
+                return routes;
+            }
+        });
+        spark.setAsyncSupported(true);
+        context.addFilter(spark, "/*", EnumSet.of(DispatcherType.REQUEST));
+
+        ServletHolder notFound = new ServletHolder(new HttpServlet() {
+            @Override
+            protected void service(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                // A query route has started answering the request, which must not be touched here
+                if (!req.isAsyncStarted()) {
+                    resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                }
+            }
+        });
+        notFound.setAsyncSupported(true);
+        context.addServlet(notFound, "/*");
+
+        Server server = new Server(port);
+        server.setHandler(context);
+        server.start();
+    }
+
 
 
     private static Properties getAppConfigProperties() throws IOException {
@@ -64,6 +162,53 @@ public class Main {
         return props;
     }
 
+    /**
+     * The query threads and the requests served at once default to the size of the connection pool, since every
+     * request uses at most one connection at a time. PostgreSQL is queried by one thread per connection, since a JDBC
+     * query holds its thread until it is answered.
+     */
+    private static TripDataService configureDataService(Properties props, DataSource ds, Session session,
+                                                        MetricRegistry metrics) {
+        return new TripDataServiceImpl(ds, session,
+                Integer.valueOf(props.getProperty(QUERY_THREADS, props.getProperty(DB_CP_SIZE))),
+                Integer.valueOf(props.getProperty(DB_CP_SIZE)),
+                Integer.valueOf(props.getProperty(QUERY_MAX_FAN_OUT, "8")),
+                Integer.valueOf(props.getProperty(CSSNDRA_FETCH_SIZE, "5000")),
+                Integer.valueOf(props.getProperty(SKETCH_MAX_PREFIX, "5")),
+                Boolean.valueOf(props.getProperty(GEOCOUNT_FROM_BITMAPS, "false")),
+                Long.valueOf(props.getProperty(CELL_CACHE_MAX_TRIPS, "1000000")),
+                Integer.valueOf(props.getProperty(GEOVALUE_CACHE_MAX, "10000")),
+                TimeUnit.SECONDS.toMillis(Long.valueOf(props.getProperty(CELL_CACHE_TTL_SECS, "30"))),
+                configureTimeIndex(props, ds, metrics));
+    }
+
+    /**
+     * @return the started time index, or null if the timecount query should always query the database
+     */
+    private static TimeTripIndex configureTimeIndex(Properties props, DataSource ds, MetricRegistry metrics) {
+        if (!Boolean.valueOf(props.getProperty(TIME_INDEX_ENABLED, "true"))) {
+            return null;
+        }
+        TimeTripIndex timeIndex = new TimeTripIndex(ds,
+                Long.valueOf(props.getProperty(TIME_INDEX_LOOKBACK_MS, "60000")),
+                Long.valueOf(props.getProperty(TIME_INDEX_POLL_MS, "1000")),
+                TimeUnit.SECONDS.toMillis(Long.valueOf(props.getProperty(TIME_INDEX_CHECK_SECS, "300"))),
+                Integer.valueOf(props.getProperty(TIME_INDEX_MAX_PENDING, "65536")),
+                metrics);
+        timeIndex.start();
+        return timeIndex;
+    }
+
+    private static AdmissionControl configureAdmissionControl(Properties props, ScheduledExecutorService timeouts,
+                                                              MetricRegistry metrics) {
+        return new AdmissionControl(
+                Integer.valueOf(props.getProperty(API_MAX_CONCURRENT, props.getProperty(DB_CP_SIZE))),
+                Integer.valueOf(props.getProperty(API_MAX_QUEUED, "50")),
+                Long.valueOf(props.getProperty(API_MAX_QUEUE_WAIT_MS, "2000")),
+                timeouts,
+                metrics);
+    }
+
     private static Cluster configureCassandraCluster(Properties props) {
         return Cluster.builder().addContactPoint(props.getProperty(CSSNDRA_CONTACT_PT)).build();
     }
@@ -75,6 +220,7 @@ public class Main {
         cp.setDriverClassName(props.getProperty(DB_DRIVER_CLASS));
         cp.setUrl(props.getProperty(DB_URL));
         cp.setInitialSize(Integer.valueOf(props.getProperty(DB_CP_SIZE)));
+        cp.setMaxTotal(Integer.valueOf(props.getProperty(DB_CP_SIZE)));
         return cp;
     }
 
@@ -2,113 +2,176 @@ package geo;
 
 
 import model.BoundingGeoRect;
-import org.locationtech.spatial4j.distance.DistanceUtils;
-import org.locationtech.spatial4j.io.GeohashUtils;
-import org.locationtech.spatial4j.shape.Rectangle;
-import org.locationtech.spatial4j.shape.impl.RectangleImpl;
-import org.vertexium.type.GeoHash;
 import org.vertexium.type.GeoPoint;
-import org.vertexium.type.GeoRect;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-
-import static org.locationtech.spatial4j.context.SpatialContext.GEO;
+import java.util.PriorityQueue;
 
 public class GeoHashHelper {
 
+    // The longest geohash the subscriber writes rows for
+    public static final int STORED_PRECISION = 9;
+
+    public static final int DEFAULT_MAX_CELLS = 32;
+    public static final double DEFAULT_MAX_EXCESS_RATIO = 0.1;
 
     /**
-     * Given a georect (an area bounded by a NW and SE point), find all geohashes that fit within the
-     * area. This function will only look at one precision below the precision of the geohash that encompasses the
-     * georect, thus the alignment of the geohashes with the georect may not be accurate. This accuracy degrades the
-     * larger the georect to search.
+     * Covers a georect with at most {@link #DEFAULT_MAX_CELLS} geohashes, see
+     * {@link #calculateGeohashesWithinSearchArea(BoundingGeoRect, int, double, int)}.
      *
      * @param searchArea a representation of the georect to find geohashes for.
-     * @return a list of geohashes that fit within the search georect area.
+     * @return a list of geohashes which together cover the search georect area.
      */
     public static List<String> calculateGeohashesWithinSearchArea(BoundingGeoRect searchArea) {
+        return calculateGeohashesWithinSearchArea(searchArea, DEFAULT_MAX_CELLS, DEFAULT_MAX_EXCESS_RATIO,
+                STORED_PRECISION);
+    }
+
+    /**
+     * Given a georect (an area bounded by a NW and SE point), find a set of geohashes which together cover the area,
+     * using long geohashes along its boundary and short geohashes for its interior. Starting from the smallest geohash
+     * which encompasses the georect, the geohash with the largest area outside the georect is repeatedly replaced by
+     * those of its 32 sub-geohashes which overlap the georect, while geohashes which lie wholly within the georect are
+     * kept as they are. Areas are measured on the ground, i.e. the width of a geohash shrinks with the cosine of its
+     * latitude, so the covering fits equally well away from the equator.
+     *
+     * The covering stops being refined once the area covered outside the georect is at most {@code maxExcessRatio} of
+     * the georect's own area, or once refining any further would need more than {@code maxCells} geohashes, or once
+     * the boundary is made of geohashes of {@code maxPrecision} characters.
+     *
+     * @param searchArea a representation of the georect to find geohashes for.
+     * @param maxCells the most geohashes to return, unless more than that are needed to cover the georect at all.
+     * @param maxExcessRatio the area covered outside the georect which is good enough, relative to the georect's area.
+     * @param maxPrecision the longest geohash to return.
+     * @return a list of geohashes which together cover the search georect area.
+     */
+    public static List<String> calculateGeohashesWithinSearchArea(BoundingGeoRect searchArea, int maxCells,
+                                                                  double maxExcessRatio, int maxPrecision) {
         GeoPoint northWest = searchArea.getNorthWest();
         GeoPoint southEast = searchArea.getSouthEast();
-        GeoRect boundingBox = new GeoRect(northWest, southEast);
-        GeoPoint center = GeoPoint.calculateCenter(Arrays.asList(northWest, southEast));
-
+        double[] rect = new double[] {
+                Math.min(northWest.getLatitude(), southEast.getLatitude()),
+                Math.max(northWest.getLatitude(), southEast.getLatitude()),
+                Math.min(northWest.getLongitude(), southEast.getLongitude()),
+                Math.max(northWest.getLongitude(), southEast.getLongitude())};
+
+        List<Cell> covering = new ArrayList<>();
+        // The boundary geohashes, the one with the most area outside the georect first
+        PriorityQueue<Cell> boundary = new PriorityQueue<>(Comparator.comparingDouble((Cell c) -> c.excess).reversed());
+
+        int precision = getSmallestEncompassingPrecision(rect, maxPrecision);
+        if (precision == 0) {
+            for (long hash = 0; hash < 32; hash++) {
+                addIfOverlapping(new Cell(hash, 1, rect), covering, boundary);
+            }
+        } else {
+            double[] center = new double[] {(rect[0] + rect[1]) / 2, (rect[2] + rect[3]) / 2};
+            long hash = GeoHashEncoder.encode(center[0], center[1], precision);
+            add(new Cell(hash, precision, rect), covering, boundary);
+        }
 
-        String hashCodeToSearch = GeohashUtils.encodeLatLon(center.getLatitude(), center.getLongitude(),
-                getSmallestEncompassingPrecision(northWest.getLatitude(), northWest.getLongitude(),
-                        southEast.getLatitude(), southEast.getLongitude()));
+        double maxExcess = maxExcessRatio * area(rect);
+        double excess = boundary.stream().mapToDouble(c -> c.excess).sum();
+        while (!boundary.isEmpty() && excess > maxExcess) {
+            Cell cell = boundary.peek();
+            if (cell.precision >= maxPrecision) {
+                covering.add(boundary.poll());
+                continue;
+            }
+            List<Cell> children = new ArrayList<>();
+            for (long child : GeoHashEncoder.children(cell.hash)) {
+                Cell childCell = new Cell(child, cell.precision + 1, rect);
+                if (childCell.overlaps) {
+                    children.add(childCell);
+                }
+            }
+            // A georect without area, e.g. a single point, may only touch the edges of the sub-geohashes
+            if (children.isEmpty()) {
+                covering.add(boundary.poll());
+                continue;
+            }
+            if (covering.size() + boundary.size() - 1 + children.size() > maxCells) {
+                break;
+            }
+            boundary.poll();
+            excess -= cell.excess;
+            for (Cell child : children) {
+                add(child, covering, boundary);
+                excess += child.excess;
+            }
+        }
 
-        return removeOutOfBoundsGeoHashes(hashCodeToSearch, boundingBox);
+        List<String> result = new ArrayList<>(covering.size() + boundary.size());
+        for (Cell cell : covering) {
+            result.add(GeoHashEncoder.toBase32(cell.hash, cell.precision));
+        }
+        for (Cell cell : boundary) {
+            result.add(GeoHashEncoder.toBase32(cell.hash, cell.precision));
+        }
+        Collections.sort(result);
+        return result;
     }
 
     /**
-     * The purpose of this method is to refine the outer boundary of the original geohash we have found.
-     * It only looks at one level of precision less than the original bounding georect.
-     *
-     * @param geoHash the bounding geohash to filter non-overlapping geohashes from.
-     * @param boundingBox the search georect
-     * @return a list of geohashes which are contained within the search geohash
+     * @param rect the georect as {minLat, maxLat, minLng, maxLng}
+     * @param maxPrecision the longest geohash to consider
+     * @return the length of the smallest geohash which wholly encompasses the georect, or 0 if no geohash does.
      */
-    protected static List<String> removeOutOfBoundsGeoHashes(String geoHash, GeoRect boundingBox) {
-        List<String> result = new ArrayList<>();
-
-        // Don't bother if the precision of the geohash length is large (like 7, 8 or 9)
-        if (geoHash.length() >= 7) {
-            return Arrays.asList(geoHash);
+    protected static int getSmallestEncompassingPrecision(double[] rect, int maxPrecision) {
+        long southWest = GeoHashEncoder.encode(rect[0], rect[2], maxPrecision);
+        long northEast = GeoHashEncoder.encode(rect[1], rect[3], maxPrecision);
+        int precision = maxPrecision;
+        while (precision > 0 && GeoHashEncoder.prefix(southWest, maxPrecision, precision)
+                != GeoHashEncoder.prefix(northEast, maxPrecision, precision)) {
+            precision--;
         }
+        return precision;
+    }
 
-        String[] subGeoHashes = GeohashUtils.getSubGeohashes(geoHash);
-        for (String s: subGeoHashes) {
-            GeoHash currHash = new GeoHash(s);
-            GeoRect cell = currHash.toGeoRect();
-            if (cell.intersects(boundingBox)) {
-                result.add(s);
-            }
+    private static void addIfOverlapping(Cell cell, List<Cell> covering, PriorityQueue<Cell> boundary) {
+        if (cell.overlaps) {
+            add(cell, covering, boundary);
         }
-        if (result.size() == 32) {
-            return Arrays.asList(geoHash);
+    }
+
+    private static void add(Cell cell, List<Cell> covering, PriorityQueue<Cell> boundary) {
+        if (cell.inside) {
+            covering.add(cell);
         } else {
-            return result;
+            boundary.add(cell);
         }
     }
 
     /**
-     * This function returns the geohash length of the smallest geohash which wholly
-     * encompasses the NW and SE lat/long values. Note that the values are approximations, taken from
-     * https://en.wikipedia.org/wiki/Geohash and does not take into account variations away from the equator.
-     *
-     * @param nwLat
-     * @param nwLng
-     * @param seLat
-     * @param seLng
-     * @return
+     * @return the area of the bounds on the ground, in square degrees of latitude.
      */
-    protected static int getSmallestEncompassingPrecision(double nwLat, double nwLng, double seLat, double seLng) {
-        Rectangle rect = new RectangleImpl(nwLng, seLng, seLat, nwLat, GEO);
-        double height = DistanceUtils.DEG_TO_KM * rect.getHeight();
-        double width = DistanceUtils.DEG_TO_KM * rect.getWidth();
-
-        if (height <= 4.8d/1000 && width <= 4.8d/1000) {
-            return 9;
-        } else if (height <= 19d/1000 && width <= 38.2d/1000) {
-            return 8;
-        } else if (height <= 152.4d/1000 && width <= 152.9d/1000) {
-            return 7;
-        } else if (height <= 609.4d/1000 && width <= 1.2d) {
-            return 6;
-        } else if (height <= 4.9d && width <= 4.9d) {
-            return 5;
-        } else if (height <= 19.5d && width <= 39.1d) {
-            return 4;
-        } else if (height <= 156d && width <= 156.5d) {
-            return 3;
-        } else if (height <= 624.1d && width <= 1252.3d) {
-            return 2;
-        } else {
-            return 1;
-        }
+    private static double area(double[] bounds) {
+        double midLatitude = Math.toRadians((bounds[0] + bounds[1]) / 2);
+        return (bounds[1] - bounds[0]) * (bounds[3] - bounds[2]) * Math.cos(midLatitude);
     }
 
+    private static final class Cell {
+        private final long hash;
+        private final int precision;
+        private final boolean overlaps;
+        private final boolean inside;
+        // The area of the geohash which lies outside the georect
+        private final double excess;
+
+        private Cell(long hash, int precision, double[] rect) {
+            this.hash = hash;
+            this.precision = precision;
+            double[] bounds = GeoHashEncoder.decodeBounds(hash, precision);
+            double[] overlap = new double[] {
+                    Math.max(bounds[0], rect[0]), Math.min(bounds[1], rect[1]),
+                    Math.max(bounds[2], rect[2]), Math.min(bounds[3], rect[3])};
+            this.overlaps = overlap[0] < overlap[1] && overlap[2] < overlap[3];
+            this.inside = bounds[0] >= rect[0] && bounds[1] <= rect[1] && bounds[2] >= rect[2] && bounds[3] <= rect[3];
+            this.excess = area(bounds) - (overlaps ? area(overlap) : 0);
+        }
+    }
 
 }
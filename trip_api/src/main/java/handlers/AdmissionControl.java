@@ -0,0 +1,179 @@
+package handlers;
+
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Limits the number of requests which query the databases at the same time, so that a burst of requests waits for
+ * its turn or is turned away instead of exhausting the query threads and database connections, which would slow down
+ * every request.
+ *
+ * At most {@code maxConcurrent} requests are served at once. Up to {@code maxQueued} further requests wait for their
+ * turn for at most {@code maxQueueWaitMillis}. A request is rejected with 429 Too Many Requests when the queue is full,
+ * or with 503 Service Unavailable when its turn has not come in time.
+ *
+ * No thread waits for a turn: a request which cannot be served yet is queued with the future of its permit, which is
+ * completed by the thread handing a permit back, in the order the requests were queued, or with the rejection by the
+ * {@code timeouts} executor once the request has waited too long. The route gives that executor the deadlines of the
+ * requests too, see {@link AsyncRoute}.
+ *
+ * The time requests wait, the rejected requests and the number of requests being served and waiting are published.
+ */
+public class AdmissionControl {
+
+    public static final int TOO_MANY_REQUESTS = 429;
+    public static final int SERVICE_UNAVAILABLE = 503;
+
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long maxQueueWaitMillis;
+    private final ScheduledExecutorService timeouts;
+    private final Timer queueWait;
+    private final Meter rejectedQueueFull;
+    private final Meter rejectedTimedOut;
+
+    // Guarded by this
+    private final Deque<Waiter> waiting = new ArrayDeque<>();
+    private int available;
+
+    /**
+     * @param timeouts the executor which rejects the requests which waited too long
+     */
+    public AdmissionControl(int maxConcurrent, int maxQueued, long maxQueueWaitMillis,
+                            ScheduledExecutorService timeouts, MetricRegistry metrics) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.maxQueueWaitMillis = maxQueueWaitMillis;
+        this.timeouts = timeouts;
+        this.available = maxConcurrent;
+        this.queueWait = metrics.timer(name(AdmissionControl.class, "queue-wait"));
+        this.rejectedQueueFull = metrics.meter(name(AdmissionControl.class, "rejected", "queue-full"));
+        this.rejectedTimedOut = metrics.meter(name(AdmissionControl.class, "rejected", "timed-out"));
+        metrics.register(name(AdmissionControl.class, "active"), (Gauge<Integer>) this::getActiveCount);
+        metrics.register(name(AdmissionControl.class, "queued"), (Gauge<Integer>) this::getQueuedCount);
+    }
+
+    /**
+     * Queues the request for its turn to be served, without waiting for it.
+     *
+     * @return the future of the permit to serve the request, which must be closed once the request has been served, or
+     *         which completes exceptionally with a {@link RequestRejectedException} if the request is not admitted
+     */
+    public CompletableFuture<Permit> admit() {
+        Waiter waiter;
+        synchronized (this) {
+            if (available > 0) {
+                available--;
+                queueWait.update(0, TimeUnit.MILLISECONDS);
+                return CompletableFuture.completedFuture(new Permit());
+            }
+            if (waiting.size() >= maxQueued) {
+                rejectedQueueFull.mark();
+                return rejected(new RequestRejectedException(String.format(
+                        "Too many requests: %d are being served and %d are waiting", maxConcurrent, maxQueued),
+                        TOO_MANY_REQUESTS));
+            }
+            waiter = new Waiter();
+            waiting.add(waiter);
+        }
+        waiter.timeout = timeouts.schedule(() -> timeOut(waiter), maxQueueWaitMillis, TimeUnit.MILLISECONDS);
+        return waiter.permit;
+    }
+
+    /**
+     * @return the number of requests being served
+     */
+    public synchronized int getActiveCount() {
+        return maxConcurrent - available;
+    }
+
+    /**
+     * @return the number of requests waiting for their turn
+     */
+    public synchronized int getQueuedCount() {
+        return waiting.size();
+    }
+
+    /**
+     * Hands a permit which was closed to the request which has waited longest, or back to the pool if none is waiting.
+     */
+    private void release() {
+        Waiter next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                available++;
+                return;
+            }
+        }
+        ScheduledFuture<?> timeout = next.timeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        next.queued.stop();
+        next.permit.complete(new Permit());
+    }
+
+    private void timeOut(Waiter waiter) {
+        synchronized (this) {
+            // The request was handed a permit just before it timed out
+            if (!waiting.remove(waiter)) {
+                return;
+            }
+        }
+        waiter.queued.stop();
+        rejectedTimedOut.mark();
+        waiter.permit.completeExceptionally(new RequestRejectedException(String.format(
+                "Service unavailable: the request waited more than %d ms to be served", maxQueueWaitMillis),
+                SERVICE_UNAVAILABLE));
+    }
+
+    private static CompletableFuture<Permit> rejected(RequestRejectedException ex) {
+        CompletableFuture<Permit> permit = new CompletableFuture<>();
+        permit.completeExceptionally(ex);
+        return permit;
+    }
+
+    /**
+     * A request waiting for its turn.
+     */
+    private final class Waiter {
+
+        private final CompletableFuture<Permit> permit = new CompletableFuture<>();
+        private final Timer.Context queued = queueWait.time();
+        private volatile ScheduledFuture<?> timeout;
+    }
+
+    /**
+     * The permission to serve a request, which is handed on when closed. A request may finish on another thread than
+     * the one it was admitted on, so the permit can be closed from any thread, and only the first close hands it on.
+     */
+    public class Permit implements AutoCloseable {
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Permit() {
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release();
+            }
+        }
+    }
+
+}
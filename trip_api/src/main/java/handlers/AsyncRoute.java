@@ -0,0 +1,119 @@
+package handlers;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import parser.InvalidQueryParamsException;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * A route which answers its request once the future of the response body is complete, rather than holding the
+ * request thread until then. The request is put into asynchronous mode, so the thread goes back to the pool as soon as
+ * the query has been started, and the response is written by whichever thread completes the body.
+ *
+ * A request which has not been answered within {@code deadlineMillis} is answered with 504 Gateway Timeout. The query
+ * itself is left to finish, since the databases cannot be told to stop, and its body is thrown away.
+ *
+ * Asynchronous requests need a servlet container whose filters and servlets support them, so the route only works
+ * when Spark runs as a filter of such a container, rather than on its embedded server.
+ */
+public class AsyncRoute implements Route {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncRoute.class);
+
+    public static final int OK = 200;
+    public static final int BAD_REQUEST = 400;
+    public static final int INTERNAL_SERVER_ERROR = 500;
+    public static final int GATEWAY_TIMEOUT = 504;
+
+    private final Function<Request, CompletableFuture<String>> handler;
+    private final long deadlineMillis;
+    private final ScheduledExecutorService deadlines;
+
+    /**
+     * @param handler starts the query of the request, reading the request before it returns
+     * @param deadlines the executor which answers the requests which miss their deadline
+     */
+    public AsyncRoute(Function<Request, CompletableFuture<String>> handler, long deadlineMillis,
+                      ScheduledExecutorService deadlines) {
+        this.handler = handler;
+        this.deadlineMillis = deadlineMillis;
+        this.deadlines = deadlines;
+    }
+
+    @Override
+    public Object handle(Request req, Response resp) {
+        AsyncContext context = req.raw().startAsync();
+        // The deadline is enforced by the route, which answers the request rather than just dropping it
+        context.setTimeout(0);
+        AtomicBoolean answered = new AtomicBoolean();
+
+        CompletableFuture<String> body;
+        try {
+            body = handler.apply(req);
+        } catch (RuntimeException ex) {
+            body = new CompletableFuture<>();
+            body.completeExceptionally(ex);
+        }
+        ScheduledFuture<?> deadline = deadlines.schedule(() -> answer(context, answered, GATEWAY_TIMEOUT,
+                String.format("Gateway timeout: the request was not answered within %d ms", deadlineMillis)),
+                deadlineMillis, TimeUnit.MILLISECONDS);
+        body.whenComplete((result, t) -> {
+            deadline.cancel(false);
+            if (t == null) {
+                answer(context, answered, OK, result);
+            } else {
+                Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                answer(context, answered, statusOf(cause), cause.toString());
+            }
+        });
+        // The response is written once the body is complete
+        return null;
+    }
+
+    /**
+     * @return the HTTP status to answer a request which failed with the exception with
+     */
+    static int statusOf(Throwable t) {
+        if (t instanceof RequestRejectedException) {
+            return ((RequestRejectedException) t).getStatus();
+        }
+        if (t instanceof InvalidQueryParamsException) {
+            return BAD_REQUEST;
+        }
+        logger.error("Exception occurred whilst serving query request", t);
+        return INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * Writes the response, unless the request has already been answered, and completes the request.
+     */
+    private static void answer(AsyncContext context, AtomicBoolean answered, int status, String body) {
+        if (!answered.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            HttpServletResponse response = (HttpServletResponse) context.getResponse();
+            response.setStatus(status);
+            response.getWriter().write(body);
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("Failed to write the response of a query request", ex);
+        } finally {
+            context.complete();
+        }
+    }
+
+}
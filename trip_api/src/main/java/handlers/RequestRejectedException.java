@@ -0,0 +1,23 @@
+package handlers;
+
+
+/**
+ * Thrown when a request is not admitted because the API is already serving as many requests as it can.
+ */
+public class RequestRejectedException extends Exception {
+
+    private final int status;
+
+    public RequestRejectedException(String message, int status) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * @return the HTTP status to answer the request with
+     */
+    public int getStatus() {
+        return status;
+    }
+
+}
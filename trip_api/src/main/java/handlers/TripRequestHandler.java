@@ -3,83 +3,121 @@ package handlers;
 
 import geo.GeoHashHelper;
 import model.BoundingGeoRect;
-import model.GeoTripData;
 import model.TimeRange;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import parser.InvalidQueryParamsException;
 import parser.RequestParser;
 import service.TripDataService;
 import spark.Request;
-import spark.Response;
 
 import java.util.List;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Serves the queries of the API. Each query returns at once with a future of the body of its response, which is
+ * completed once the databases have answered, so that no request thread waits for them. A query which cannot be served
+ * completes exceptionally: with a {@link RequestRejectedException} when it is not admitted, and with an
+ * {@link InvalidQueryParamsException} when its parameters are invalid, in which case it is not queued for admission.
+ *
+ * The request is only read before the query returns, since it may be reused once the response has been sent, which
+ * may happen before a queued request is admitted.
+ */
 public class TripRequestHandler {
 
-    private static final Logger logger = LoggerFactory.getLogger(TripRequestHandler.class);
-
     private final TripDataService service;
-
-    public TripRequestHandler(TripDataService service) {
+    private final int maxSketchPrefixLength;
+    private final AdmissionControl admission;
+
+    /**
+     * @param maxSketchPrefixLength the longest geohash an approximate count can be estimated for
+     * @param admission limits the number of requests served at the same time
+     */
+    public TripRequestHandler(TripDataService service, int maxSketchPrefixLength, AdmissionControl admission) {
         this.service = service;
+        this.maxSketchPrefixLength = maxSketchPrefixLength;
+        this.admission = admission;
     }
 
-    public String getNumberOfTripsAtTime(Request req, Response resp) {
-        try {
+    public CompletableFuture<String> getNumberOfTripsAtTime(Request req) {
+        return admitted(() -> {
             TimeRange timeRange = RequestParser.getTimeRangeForParams(req);
 
-            long numberOfTrips = service.getNumberOfTripsInTimeRange(timeRange);
-
-            return String.format("Number of trips that occurred between the epochs %d and %d is: %d",
-                    timeRange.getFromTime(), timeRange.getUntilTime(), numberOfTrips);
-        } catch (InvalidQueryParamsException ex) {
-            resp.status(400);
-            return ex.toString();
-        } catch (Exception ex) {
-            logger.error("Exception occurred whilst serving query request", ex);
-            resp.status(500);
-            return ex.toString();
-        }
+            return () -> service.getNumberOfTripsInTimeRangeAsync(timeRange).thenApply(numberOfTrips ->
+                    String.format("Number of trips that occurred between the epochs %d and %d is: %d",
+                            timeRange.getFromTime(), timeRange.getUntilTime(), numberOfTrips));
+        });
     }
 
 
-    public String getNumberOfTripsInGeo(Request req, Response resp) {
-        try {
+    public CompletableFuture<String> getNumberOfTripsInGeo(Request req) {
+        return admitted(() -> {
             BoundingGeoRect boundingBox = RequestParser.getGeoRectForParams(req);
 
-            List<String> geoHashesToSearch = GeoHashHelper.calculateGeohashesWithinSearchArea(boundingBox);
-
-            long result = service.getNumberOfTripsInGeoLocation(geoHashesToSearch);
+            if (RequestParser.isApproximate(req)) {
+                List<String> geoHashesToSearch = GeoHashHelper.calculateGeohashesWithinSearchArea(boundingBox,
+                        GeoHashHelper.DEFAULT_MAX_CELLS, GeoHashHelper.DEFAULT_MAX_EXCESS_RATIO, maxSketchPrefixLength);
+                return () -> service.getApproximateNumberOfTripsInGeoLocationAsync(geoHashesToSearch).thenApply(
+                        result -> String.format("Approximate number of trips that have passed through this geo rect " +
+                                "is: %d (+/- %d at 95%% confidence)", result.getEstimate(), result.getErrorBound()));
+            }
 
-            return String.format("Number of trips that have passed through this geo rect is: %d", result);
-        } catch (InvalidQueryParamsException ex) {
-            resp.status(400);
-            return ex.toString();
-        } catch (Exception ex) {
-            logger.error("Exception occurred whilst serving query request", ex);
-            resp.status(500);
-            return ex.toString();
-        }
+            List<String> geoHashesToSearch = GeoHashHelper.calculateGeohashesWithinSearchArea(boundingBox);
+            return () -> service.getNumberOfTripsInGeoLocationAsync(geoHashesToSearch).thenApply(result ->
+                    String.format("Number of trips that have passed through this geo rect is: %d", result));
+        });
     }
 
-    public String getTripsStartedOrCompletedInGeo(Request req, Response resp) {
-        try {
+    public CompletableFuture<String> getTripsStartedOrCompletedInGeo(Request req) {
+        return admitted(() -> {
             BoundingGeoRect boundingBox = RequestParser.getGeoRectForParams(req);
+            TimeRange startedWithin = RequestParser.getOptionalTimeRangeForParams(req);
             List<String> geoHashesToSearch = GeoHashHelper.calculateGeohashesWithinSearchArea(boundingBox);
 
-            GeoTripData data = service.getStartFinishTripDataForGeoLocation(geoHashesToSearch);
-
-            return String.format("Number of trips started or stopped in geo rect is: %d, " +
-                                    "with a total value of $%.2f", data.getTripCount(), data.getFareTotal());
-        } catch (InvalidQueryParamsException ex) {
-            resp.status(400);
-            return ex.toString();
-        } catch (Exception ex) {
-            logger.error("Exception occurred whilst serving query request", ex);
-            resp.status(500);
-            return ex.toString();
+            if (RequestParser.isRollup(req)) {
+                return () -> service.getStartFinishRollupForGeoLocationAsync(geoHashesToSearch, startedWithin)
+                        .thenApply(rollup -> String.format("Number of trips started in geo rect is: %d, " +
+                                "number of trips stopped is: %d, with the stopped trips having a total value of $%.2f",
+                                rollup.getStartedCount(), rollup.getEndedCount(), rollup.getEndedFareTotal()));
+            }
+
+            return () -> service.getStartFinishTripDataForGeoLocationAsync(geoHashesToSearch, startedWithin)
+                    .thenApply(data -> String.format("Number of trips started or stopped in geo rect is: %d, " +
+                                    "with a total value of $%.2f", data.getTripCount(), data.getFareTotal()));
+        });
+    }
+
+    /**
+     * Reads the request straight away, then runs the query once the request is admitted, which may be on the thread
+     * which handed a permit back, and hands its permit back once the query's result is complete.
+     */
+    private CompletableFuture<String> admitted(Query query) {
+        Supplier<CompletableFuture<String>> run;
+        try {
+            run = query.read();
+        } catch (InvalidQueryParamsException | RuntimeException ex) {
+            return failed(ex);
         }
+        return admission.admit().thenCompose(permit -> {
+            CompletableFuture<String> result;
+            try {
+                result = run.get();
+            } catch (RuntimeException ex) {
+                permit.close();
+                return failed(ex);
+            }
+            return result.whenComplete((body, t) -> permit.close());
+        });
+    }
+
+    private static CompletableFuture<String> failed(Throwable t) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        result.completeExceptionally(t);
+        return result;
+    }
+
+    private interface Query {
+        // Reads the request, and returns the query to run once the request is admitted
+        Supplier<CompletableFuture<String>> read() throws InvalidQueryParamsException;
     }
 
 }
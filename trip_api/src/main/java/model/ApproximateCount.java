@@ -0,0 +1,27 @@
+package model;
+
+
+/**
+ * A count estimated from sketches, together with the bound on its error: the true count lies within
+ * {@code estimate - errorBound} and {@code estimate + errorBound} with 95% confidence. An exact count has an error
+ * bound of zero.
+ */
+public class ApproximateCount {
+
+    private long estimate;
+    private long errorBound;
+
+    public ApproximateCount(long estimate, long errorBound) {
+        this.estimate = estimate;
+        this.errorBound = errorBound;
+    }
+
+    public long getEstimate() {
+        return estimate;
+    }
+
+    public long getErrorBound() {
+        return errorBound;
+    }
+
+}
@@ -0,0 +1,28 @@
+package model;
+
+
+public class GeoTripRollup {
+
+    private long startedCount;
+    private long endedCount;
+    private double endedFareTotal;
+
+    public GeoTripRollup(long startedCount, long endedCount, double endedFareTotal) {
+        this.startedCount = startedCount;
+        this.endedCount = endedCount;
+        this.endedFareTotal = endedFareTotal;
+    }
+
+    public long getStartedCount() {
+        return startedCount;
+    }
+
+    public long getEndedCount() {
+        return endedCount;
+    }
+
+    public double getEndedFareTotal() {
+        return endedFareTotal;
+    }
+
+}
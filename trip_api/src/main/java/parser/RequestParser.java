@@ -42,6 +42,20 @@ public class RequestParser {
         }
     }
 
+    /**
+     * Parses the optional request parameters for a from and to time, for queries which may be limited to a time range.
+     *
+     * @param req the HTTP request
+     * @return an object containing the validated time range request parameters, or null if there is no from time
+     * @throws InvalidQueryParamsException if the supplied request parameters are invalid
+     */
+    public static TimeRange getOptionalTimeRangeForParams(Request req) throws InvalidQueryParamsException {
+        if (req.queryParams("from") == null) {
+            return null;
+        }
+        return getTimeRangeForParams(req);
+    }
+
     /**
      * Parses the request parameters for a NW and SE lat/long point.
      *
@@ -75,4 +89,24 @@ public class RequestParser {
                     String.format("Request parameters are missing: nw='%s', se='%s'", nwStr, seStr));
         }
     }
+
+    /**
+     * Parses the optional request parameter asking for an approximate answer rather than an exact one.
+     *
+     * @param req the HTTP request
+     * @return true if the request has the parameter approx=true
+     */
+    public static boolean isApproximate(Request req) {
+        return Boolean.parseBoolean(req.queryParams("approx"));
+    }
+
+    /**
+     * Parses the optional request parameter asking for the answer to be read from the rollups.
+     *
+     * @param req the HTTP request
+     * @return true if the request has the parameter rollup=true
+     */
+    public static boolean isRollup(Request req) {
+        return Boolean.parseBoolean(req.queryParams("rollup"));
+    }
 }
@@ -0,0 +1,131 @@
+package service;
+
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.ToIntFunction;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Caches the result of one type of query for each geohash cell, so that overlapping rectangles, e.g. a dashboard
+ * being refreshed or a map being panned, only query the cells they do not share with a recent request.
+ *
+ * Every result has a weight, e.g. the number of trip ids it holds, and the cache holds results with a total weight of
+ * at most {@code maxWeight}, evicting the least recently used cells once full. A result heavier than the whole cache
+ * is not cached. Results expire {@code ttlMillis} after they were queried, so counts are at most that much out of date.
+ *
+ * The hits, misses and evictions of the cache are published under the name of the query type.
+ *
+ * @param <V> the type of the result of a cell
+ */
+public class CellResultCache<V> {
+
+    private final long maxWeight;
+    private final long ttlMillis;
+    private final ToIntFunction<V> weigher;
+    private final LongSupplier clock;
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter evictions;
+
+    private final LinkedHashMap<String, CachedResult<V>> cells = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+
+    public CellResultCache(String queryType, long maxWeight, long ttlMillis, ToIntFunction<V> weigher,
+                           MetricRegistry metrics) {
+        this(queryType, maxWeight, ttlMillis, weigher, metrics, System::currentTimeMillis);
+    }
+
+    CellResultCache(String queryType, long maxWeight, long ttlMillis, ToIntFunction<V> weigher,
+                    MetricRegistry metrics, LongSupplier clock) {
+        this.maxWeight = maxWeight;
+        this.ttlMillis = ttlMillis;
+        this.weigher = weigher;
+        this.clock = clock;
+        this.hits = metrics.meter(name(CellResultCache.class, queryType, "hits"));
+        this.misses = metrics.meter(name(CellResultCache.class, queryType, "misses"));
+        this.evictions = metrics.meter(name(CellResultCache.class, queryType, "evictions"));
+        metrics.register(name(CellResultCache.class, queryType, "hit-ratio"), new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(hits.getCount(), hits.getCount() + misses.getCount());
+            }
+        });
+        metrics.register(name(CellResultCache.class, queryType, "weight"), (Gauge<Long>) this::getWeight);
+    }
+
+    /**
+     * @param geoHash the cell
+     * @return the cached result of the cell, or null if it has not been queried within the TTL
+     */
+    public synchronized V get(String geoHash) {
+        CachedResult<V> cached = cells.get(geoHash);
+        if (cached != null && clock.getAsLong() < cached.expiresAt) {
+            hits.mark();
+            return cached.value;
+        }
+        if (cached != null) {
+            remove(geoHash);
+        }
+        misses.mark();
+        return null;
+    }
+
+    /**
+     * @param geoHash the cell
+     * @param value the result of the cell, which must not be changed once it has been cached
+     */
+    public synchronized void put(String geoHash, V value) {
+        int valueWeight = weigher.applyAsInt(value);
+        if (valueWeight > maxWeight) {
+            return;
+        }
+        remove(geoHash);
+        cells.put(geoHash, new CachedResult<>(value, valueWeight, clock.getAsLong() + ttlMillis));
+        weight += valueWeight;
+
+        // The map is in access order, so the least recently used cells are always found at the head
+        Iterator<Map.Entry<String, CachedResult<V>>> eldest = cells.entrySet().iterator();
+        while (weight > maxWeight) {
+            weight -= eldest.next().getValue().weight;
+            eldest.remove();
+            evictions.mark();
+        }
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized int size() {
+        return cells.size();
+    }
+
+    private void remove(String geoHash) {
+        CachedResult<V> removed = cells.remove(geoHash);
+        if (removed != null) {
+            weight -= removed.weight;
+        }
+    }
+
+    private static final class CachedResult<V> {
+        private final V value;
+        private final int weight;
+        private final long expiresAt;
+
+        private CachedResult(V value, int weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+package service;
+
+
+import util.Hashing;
+
+/**
+ * Collects the distinct trip ids seen across the result pages of several geohash queries without keeping the ids
+ * themselves. Each id is held as a 64-bit hash together with its 32-bit {@link String#hashCode()}, about 26 bytes per
+ * trip, where a {@code HashSet<String>} needs a boxed entry and the id string. Two different ids are only taken for one
+ * when both hashes are equal. An id whose 64-bit hash collides with another id's is still counted, and the collision
+ * is counted too.
+ *
+ * The set is split into stripes by the top bits of the hash, each with its own lock, so that pages from different
+ * geohashes can be merged in parallel.
+ */
+final class DistinctTripIds {
+
+    private static final int STRIPE_BITS = 4;
+    private static final int MIN_CAPACITY = 64;
+
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+    DistinctTripIds() {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * @return true if the trip id was not seen before
+     */
+    boolean add(String tripId) {
+        return add(Hashing.hash64(tripId), tripId.hashCode());
+    }
+
+    boolean add(long hash, int check) {
+        Stripe stripe = stripes[(int) (hash >>> (64 - STRIPE_BITS))];
+        synchronized (stripe) {
+            return stripe.add(hash, check);
+        }
+    }
+
+    /**
+     * @return the number of distinct trip ids
+     */
+    long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of trip ids whose 64-bit hash was shared with a different trip id
+     */
+    long collisions() {
+        long collisions = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                collisions += stripe.collisions;
+            }
+        }
+        return collisions;
+    }
+
+    /**
+     * An open addressing table of (hash, check) pairs with linear probing.
+     */
+    private static final class Stripe {
+
+        private long[] hashes = new long[MIN_CAPACITY];
+        private int[] checks = new int[MIN_CAPACITY];
+        private boolean[] used = new boolean[MIN_CAPACITY];
+        private int mask = MIN_CAPACITY - 1;
+        private int size;
+        private int collisions;
+
+        boolean add(long hash, int check) {
+            boolean collided = false;
+            int index = (int) hash & mask;
+            while (used[index]) {
+                if (hashes[index] == hash) {
+                    if (checks[index] == check) {
+                        return false;
+                    }
+                    collided = true;
+                }
+                index = (index + 1) & mask;
+            }
+            if (collided) {
+                collisions++;
+            }
+            put(index, hash, check);
+            size++;
+            // Keep the load factor at or below one half so that probe sequences stay short
+            if (size * 2 > hashes.length) {
+                grow();
+            }
+            return true;
+        }
+
+        private void put(int index, long hash, int check) {
+            hashes[index] = hash;
+            checks[index] = check;
+            used[index] = true;
+        }
+
+        private void grow() {
+            long[] oldHashes = hashes;
+            int[] oldChecks = checks;
+            boolean[] oldUsed = used;
+            hashes = new long[oldHashes.length * 2];
+            checks = new int[oldHashes.length * 2];
+            used = new boolean[oldHashes.length * 2];
+            mask = hashes.length - 1;
+            for (int i = 0; i < oldHashes.length; i++) {
+                if (oldUsed[i]) {
+                    int index = (int) oldHashes[i] & mask;
+                    while (used[index]) {
+                        index = (index + 1) & mask;
+                    }
+                    put(index, oldHashes[i], oldChecks[i]);
+                }
+            }
+        }
+    }
+
+}
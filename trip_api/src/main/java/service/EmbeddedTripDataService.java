@@ -0,0 +1,131 @@
+package service;
+
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import model.ApproximateCount;
+import model.GeoTripData;
+import model.GeoTripRollup;
+import model.TimeRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import store.GeoTripTotals;
+import store.TripStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Answers the queries from an embedded {@link TripStore}, which the subscriber appends to, instead of PostgreSQL and
+ * Cassandra. Every query first applies the events the subscriber has appended since the last query, and is answered
+ * from memory, so the futures it returns are already complete.
+ *
+ * Unlike the sketches, the store counts the trips of any geohash exactly, so the approximate count is exact. The
+ * rollups count the trips which started and the trips which ended within the time range, rather than those of the
+ * hourly buckets which overlap it.
+ */
+public class EmbeddedTripDataService implements TripDataService {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddedTripDataService.class);
+
+    private final TripStore store;
+    private final Timer responses;
+
+    public EmbeddedTripDataService(TripStore store, MetricRegistry metrics) {
+        this.store = store;
+        this.responses = metrics.timer(name(EmbeddedTripDataService.class, "responses"));
+    }
+
+    @Override
+    public long getNumberOfTripsInGeoLocation(List<String> geoHashes) {
+        try (Timer.Context ignored = responses.time()) {
+            refresh();
+            return store.countTrips(geoHashes);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Long> getNumberOfTripsInGeoLocationAsync(List<String> geoHashes) {
+        return complete(() -> getNumberOfTripsInGeoLocation(geoHashes));
+    }
+
+    @Override
+    public ApproximateCount getApproximateNumberOfTripsInGeoLocation(List<String> geoHashes) {
+        return new ApproximateCount(getNumberOfTripsInGeoLocation(geoHashes), 0);
+    }
+
+    @Override
+    public CompletableFuture<ApproximateCount> getApproximateNumberOfTripsInGeoLocationAsync(List<String> geoHashes) {
+        return complete(() -> getApproximateNumberOfTripsInGeoLocation(geoHashes));
+    }
+
+    @Override
+    public long getNumberOfTripsInTimeRange(TimeRange timeRange) {
+        try (Timer.Context ignored = responses.time()) {
+            refresh();
+            return store.countTrips(timeRange.getFromTime(), timeRange.getUntilTime());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Long> getNumberOfTripsInTimeRangeAsync(TimeRange timeRange) {
+        return complete(() -> getNumberOfTripsInTimeRange(timeRange));
+    }
+
+    @Override
+    public GeoTripData getStartFinishTripDataForGeoLocation(List<String> geoHashes, TimeRange startedWithin) {
+        GeoTripTotals totals = totals(geoHashes, startedWithin);
+        return new GeoTripData(totals.getTripCount(), totals.getFareTotal());
+    }
+
+    @Override
+    public CompletableFuture<GeoTripData> getStartFinishTripDataForGeoLocationAsync(List<String> geoHashes,
+                                                                                  TimeRange startedWithin) {
+        return complete(() -> getStartFinishTripDataForGeoLocation(geoHashes, startedWithin));
+    }
+
+    @Override
+    public GeoTripRollup getStartFinishRollupForGeoLocation(List<String> geoHashes, TimeRange startedWithin) {
+        GeoTripTotals totals = totals(geoHashes, startedWithin);
+        return new GeoTripRollup(totals.getStartedCount(), totals.getEndedCount(), totals.getEndedFareTotal());
+    }
+
+    @Override
+    public CompletableFuture<GeoTripRollup> getStartFinishRollupForGeoLocationAsync(List<String> geoHashes,
+                                                                                  TimeRange startedWithin) {
+        return complete(() -> getStartFinishRollupForGeoLocation(geoHashes, startedWithin));
+    }
+
+    private GeoTripTotals totals(List<String> geoHashes, TimeRange startedWithin) {
+        TimeRange window = startedWithin != null ? startedWithin : TripDataServiceImpl.ALL_TIME;
+        try (Timer.Context ignored = responses.time()) {
+            refresh();
+            return store.geoTripTotals(geoHashes, window.getFromTime(), window.getUntilTime());
+        }
+    }
+
+    private void refresh() {
+        try {
+            store.refresh();
+        } catch (IOException ex) {
+            logger.error("Failed to read the events appended to the trip store", ex);
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static <T> CompletableFuture<T> complete(Supplier<T> query) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            result.complete(query.get());
+        } catch (RuntimeException ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+}
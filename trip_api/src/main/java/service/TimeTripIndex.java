@@ -0,0 +1,240 @@
+package service;
+
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.handlers.ScalarHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import store.TripIntervalIndex;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Keeps the start and end times of every finished trip in a {@link TripIntervalIndex}, so the timecount query is
+ * answered from memory rather than by counting rows of the time_trips table.
+ *
+ * The index is loaded from the table in the background on start, and the trips which finished since are then read
+ * every {@code pollIntervalMillis}, by reading the trips which finished after a watermark. End messages do not arrive
+ * in the order the trips finished, so the watermark trails the latest end time read by {@code lookback}, and the trips
+ * which finished after the watermark are remembered so that reading them again does not count them twice.
+ *
+ * A trip whose end message arrives more than {@code lookback} late is missed. Every {@code checkIntervalMillis} the
+ * count of a random time range which finished before the watermark is compared with the count of the table, and the
+ * index is loaded again if they differ.
+ */
+public class TimeTripIndex implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimeTripIndex.class);
+
+    private static final String QUERY_LATEST_END_TIME = "SELECT max(end_time) FROM time_trips";
+    private static final String QUERY_TRIPS_FINISHED_BY =
+            "SELECT start_time, end_time FROM time_trips WHERE end_time <= ? AND start_time IS NOT NULL";
+    private static final String QUERY_TRIPS_FINISHED_AFTER =
+            "SELECT trip_id, start_time, end_time FROM time_trips WHERE end_time > ? AND start_time IS NOT NULL";
+    private static final int LOAD_FETCH_SIZE = 10000;
+    private static final int INITIAL_LOAD_CAPACITY = 1 << 16;
+
+    private final DataSource dataSource;
+    private final long lookback;
+    private final long pollIntervalMillis;
+    private final long checkIntervalMillis;
+    private final TripIntervalIndex index;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Random random = new Random();
+
+    private final Timer loads;
+    private final Meter checks;
+    private final Meter mismatches;
+
+    // Only read and written by the scheduler's thread
+    private final Map<String, Long> finishedAfterWatermark = new HashMap<>();
+    private long watermark;
+    private volatile boolean loaded;
+
+    /**
+     * @param lookback how late an end message may arrive and still be read, in the units of the trips' epoch times
+     * @param pollIntervalMillis how often to read the trips which finished since the last read
+     * @param checkIntervalMillis how often to compare a count of the index with a count of the table
+     * @param maxPendingTrips the number of finished trips to add before the index is rebuilt
+     */
+    public TimeTripIndex(DataSource dataSource, long lookback, long pollIntervalMillis, long checkIntervalMillis,
+                         int maxPendingTrips, MetricRegistry metrics) {
+        this.dataSource = dataSource;
+        this.lookback = lookback;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.checkIntervalMillis = checkIntervalMillis;
+        this.index = new TripIntervalIndex(maxPendingTrips);
+        this.loads = metrics.timer(name(TimeTripIndex.class, "loads"));
+        this.checks = metrics.meter(name(TimeTripIndex.class, "consistency-checks"));
+        this.mismatches = metrics.meter(name(TimeTripIndex.class, "consistency-mismatches"));
+        metrics.register(name(TimeTripIndex.class, "trips"), (Gauge<Long>) index::size);
+        metrics.register(name(TimeTripIndex.class, "pending-trips"), (Gauge<Integer>) index::pendingSize);
+        metrics.register(name(TimeTripIndex.class, "memory-bytes"), (Gauge<Long>) index::estimateMemoryBytes);
+    }
+
+    /**
+     * Loads the index in the background, then keeps it up to date.
+     */
+    public void start() {
+        scheduler.execute(() -> run("load", this::load));
+        scheduler.scheduleWithFixedDelay(() -> run("poll", this::poll),
+                pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(() -> run("check", this::check),
+                checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true once the index has been loaded, so that its counts can be used
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return the number of finished trips which started at or after {@code from} and finished at or before
+     * {@code until}, as of the last time the table was read
+     */
+    public long count(long from, long until) {
+        return index.count(from, until);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Reads every trip which finished before the watermark, and leaves the rest to be read by the next poll.
+     */
+    void load() throws SQLException {
+        final Timer.Context context = loads.time();
+        try (Connection connection = dataSource.getConnection()) {
+            Number latest = new QueryRunner().query(connection, QUERY_LATEST_END_TIME, new ScalarHandler<Number>());
+            long loadedUntil = latest != null ? latest.longValue() - lookback : Long.MIN_VALUE;
+
+            long[] starts = new long[INITIAL_LOAD_CAPACITY];
+            long[] ends = new long[INITIAL_LOAD_CAPACITY];
+            int size = 0;
+            // The driver only streams the rows in pages of the fetch size within a transaction
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(QUERY_TRIPS_FINISHED_BY)) {
+                statement.setFetchSize(LOAD_FETCH_SIZE);
+                statement.setLong(1, loadedUntil);
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        if (size == starts.length) {
+                            starts = Arrays.copyOf(starts, size * 2);
+                            ends = Arrays.copyOf(ends, size * 2);
+                        }
+                        starts[size] = rows.getLong(1);
+                        ends[size] = rows.getLong(2);
+                        size++;
+                    }
+                }
+            } finally {
+                connection.commit();
+                connection.setAutoCommit(true);
+            }
+
+            index.load(starts, ends, size);
+            finishedAfterWatermark.clear();
+            watermark = loadedUntil;
+            loaded = true;
+            logger.info(String.format("Loaded %d trips into the time index, taking about %d bytes", size,
+                    index.estimateMemoryBytes()));
+        } finally {
+            context.stop();
+        }
+    }
+
+    /**
+     * Adds the trips which finished after the watermark and have not been added yet, then moves the watermark up.
+     */
+    void poll() throws SQLException {
+        // Keep trying to load the index if it failed to load on start
+        if (!loaded) {
+            load();
+            return;
+        }
+        long latest = watermark;
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(QUERY_TRIPS_FINISHED_AFTER)) {
+            statement.setLong(1, watermark);
+            try (ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    String tripId = rows.getString(1);
+                    long end = rows.getLong(3);
+                    if (finishedAfterWatermark.put(tripId, end) == null) {
+                        index.add(rows.getLong(2), end);
+                    }
+                    latest = Math.max(latest, end);
+                }
+            }
+        }
+
+        if (latest > watermark) {
+            watermark = Math.max(watermark, latest - lookback);
+        }
+        Iterator<Long> ends = finishedAfterWatermark.values().iterator();
+        while (ends.hasNext()) {
+            if (ends.next() <= watermark) {
+                ends.remove();
+            }
+        }
+    }
+
+    /**
+     * Compares the count of a random time range which finished before the watermark with the count of the table, and
+     * loads the index again if they differ.
+     */
+    void check() throws SQLException {
+        long earliest = index.earliestStart();
+        if (!loaded || earliest >= watermark) {
+            return;
+        }
+        long from = earliest + (long) (random.nextDouble() * (watermark - earliest));
+        long until = watermark;
+        long indexed = index.count(from, until);
+        long counted = new QueryRunner(dataSource).query(TripDataServiceImpl.QUERY_TRIPS_BY_TIME,
+                new ScalarHandler<Number>(), from, until, until).longValue();
+        checks.mark();
+        if (indexed != counted) {
+            mismatches.mark();
+            logger.warn(String.format("The time index counted %d trips between %d and %d but the table has %d, " +
+                    "loading it again", indexed, from, until, counted));
+            load();
+        }
+    }
+
+    private void run(String task, SqlTask sqlTask) {
+        try {
+            sqlTask.run();
+        } catch (SQLException | RuntimeException ex) {
+            // An exception would stop the task from being scheduled again
+            logger.error(String.format("The time index failed to %s", task), ex);
+        }
+    }
+
+    private interface SqlTask {
+        void run() throws SQLException;
+    }
+
+}
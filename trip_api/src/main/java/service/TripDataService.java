@@ -1,19 +1,41 @@
 package service;
 
 
+import model.ApproximateCount;
 import model.GeoTripData;
+import model.GeoTripRollup;
 import model.TimeRange;
 
 import java.sql.SQLException;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * The queries of the API. Every query has a variant which returns at once with a {@link CompletableFuture} of its
+ * result, so that the caller's thread is not held while the databases answer, and a variant which waits for it.
+ */
 public interface TripDataService {
 
     long getNumberOfTripsInGeoLocation(List<String> geoHashes);
 
+    CompletableFuture<Long> getNumberOfTripsInGeoLocationAsync(List<String> geoHashes);
+
+    ApproximateCount getApproximateNumberOfTripsInGeoLocation(List<String> geoHashes);
+
+    CompletableFuture<ApproximateCount> getApproximateNumberOfTripsInGeoLocationAsync(List<String> geoHashes);
+
     long getNumberOfTripsInTimeRange(TimeRange timeRange) throws SQLException;
 
-    GeoTripData getStartFinishTripDataForGeoLocation(List<String> geoHashes) throws InterruptedException, ExecutionException, SQLException;
+    CompletableFuture<Long> getNumberOfTripsInTimeRangeAsync(TimeRange timeRange);
+
+    GeoTripData getStartFinishTripDataForGeoLocation(List<String> geoHashes, TimeRange startedWithin) throws SQLException;
+
+    CompletableFuture<GeoTripData> getStartFinishTripDataForGeoLocationAsync(List<String> geoHashes,
+                                                                           TimeRange startedWithin);
+
+    GeoTripRollup getStartFinishRollupForGeoLocation(List<String> geoHashes, TimeRange startedWithin) throws SQLException;
+
+    CompletableFuture<GeoTripRollup> getStartFinishRollupForGeoLocationAsync(List<String> geoHashes,
+                                                                           TimeRange startedWithin);
 
 }
@@ -5,28 +5,43 @@ import com.codahale.metrics.JmxReporter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.datastax.driver.core.PreparedStatement;
-import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.utils.Bytes;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import model.ApproximateCount;
 import model.GeoTripData;
+import model.GeoTripRollup;
 import model.TimeRange;
-import org.apache.commons.dbutils.AsyncQueryRunner;
 import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
 import org.apache.commons.dbutils.handlers.BeanHandler;
 import org.apache.commons.dbutils.handlers.ScalarHandler;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import sketch.HyperLogLog;
+import util.Hashing;
 
 import javax.sql.DataSource;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
@@ -36,142 +51,574 @@ public class TripDataServiceImpl implements TripDataService {
     private static final Logger logger = LoggerFactory.getLogger(TripDataServiceImpl.class);
 
     private static final String JMX_CONSOLE_STATISTICS_NAME = "database-requests";
+    private static final String GEO_COUNT_QUERY_TYPE = "geocount";
+    private static final String GEO_VALUE_QUERY_TYPE = "geovalue";
+    private static final String GEO_BITMAP_QUERY_TYPE = "geocount-bitmaps";
 
     private static final String COUNT_TRIPS_IN_GEOHASH = "SELECT trip_id FROM geo_trips WHERE geohash = ?";
-    private static final String QUERY_START_STOP_GEOHASHES = "SELECT count(trip_id), sum(fare) FROM orgn_dst_geo_trips WHERE geohash_start like ? or geohash_end like ?;";
-    private static final String QUERY_TRIPS_BY_TIME = "SELECT count(*) FROM time_trips WHERE start_time >= ? and end_time <= ?";
+    private static final String QUERY_TRIP_SKETCHES = "SELECT sketch FROM geo_trip_sketches WHERE geohash = ?";
+    private static final String QUERY_TRIP_BITMAPS = "SELECT bitmap FROM geo_trip_bitmaps WHERE geohash = ?";
+    // The covering geohashes are passed as two arrays, the lower and upper bounds of the geohashes they prefix
+    private static final String QUERY_START_STOP_GEOHASHES =
+            "WITH prefixes AS (SELECT * FROM unnest(?::text[], ?::text[]) AS p(lower_bound, upper_bound)), " +
+            "matching AS (" +
+            "SELECT t.trip_id, t.fare FROM orgn_dst_geo_trips t JOIN prefixes p " +
+            "ON t.geohash_start COLLATE \"C\" >= p.lower_bound AND t.geohash_start COLLATE \"C\" < p.upper_bound " +
+            "WHERE t.start_time >= ? AND t.start_time <= ? " +
+            "UNION " +
+            "SELECT t.trip_id, t.fare FROM orgn_dst_geo_trips t JOIN prefixes p " +
+            "ON t.geohash_end COLLATE \"C\" >= p.lower_bound AND t.geohash_end COLLATE \"C\" < p.upper_bound " +
+            "WHERE t.start_time >= ? AND t.start_time <= ?) " +
+            "SELECT count(DISTINCT trip_id) AS count, sum(fare) AS sum FROM matching";
+    private static final char PREFIX_RANGE_END = '~';
+    private static final String QUERY_ROLLUPS =
+            "SELECT coalesce(sum(start_count), 0) AS started, coalesce(sum(end_count), 0) AS ended, " +
+            "coalesce(sum(fare_total), 0) AS fare FROM geo_trip_rollups " +
+            "WHERE geohash = ANY(?) AND bucket > ? AND bucket <= ?";
+    // The length of the buckets the subscribers roll the trips up in
+    private static final long ROLLUP_BUCKET_MILLIS = TimeUnit.HOURS.toMillis(1);
+    // A trip which ended by the end of the range also started by then, which lets the planner skip later partitions
+    static final String QUERY_TRIPS_BY_TIME =
+            "SELECT count(*) FROM time_trips WHERE start_time >= ? and start_time <= ? and end_time <= ?";
+    // Every trip, for requests without a time window
+    static final TimeRange ALL_TIME = new TimeRange(Long.MIN_VALUE, Long.MAX_VALUE);
 
 
-    private final ExecutorService asyncQueryService = Executors.newCachedThreadPool();;
+    private final ExecutorService asyncQueryService;
+    private final ExecutorService jdbcQueryService;
+    private final int maxFanOut;
     private final DataSource dataSource;
     private final Session session;
     private final PreparedStatement cassandraGeoTripCountQuery;
+    private final PreparedStatement cassandraTripSketchQuery;
+    private final PreparedStatement cassandraTripBitmapQuery;
+    private final int fetchSize;
+    private final int maxSketchPrefixLength;
+    private final boolean geoCountFromBitmaps;
 
     static final MetricRegistry dbMetrics = new MetricRegistry();
     private final Timer responses = dbMetrics.timer(name(TripDataServiceImpl.class, JMX_CONSOLE_STATISTICS_NAME));
 
+    private final CellResultCache<TripIdHashes> geoCountCache;
+    private final CellResultCache<GeoTripData> geoValueCache;
+    private final CellResultCache<ImmutableRoaringBitmap> geoBitmapCache;
+    private final TimeTripIndex timeIndex;
 
-    public TripDataServiceImpl(DataSource dataSource, Session session) {
+
+    /**
+     * @param queryThreads the number of threads which process query results
+     * @param jdbcThreads the number of threads which run PostgreSQL queries, which block until they are answered
+     * @param maxFanOut the most geohashes one request queries at the same time
+     * @param fetchSize the number of geo_trips rows to read per page
+     * @param maxSketchPrefixLength the longest geohash prefix the subscribers keep a trip sketch for
+     * @param geoCountFromBitmaps whether to count the trips from the geo_trip_bitmaps rather than the geo_trips rows
+     * @param cellCacheMaxTrips the number of trips each geocount cell cache holds across all cells
+     * @param geoValueCacheMaxResults the number of geovalue results the cache holds, one per set of geohashes
+     * @param cellCacheTtlMillis how long a cell's result is reused for
+     * @param timeIndex the index which answers the timecount query from memory, or null to query the table
+     */
+    public TripDataServiceImpl(DataSource dataSource, Session session, int queryThreads, int jdbcThreads, int maxFanOut,
+                               int fetchSize, int maxSketchPrefixLength, boolean geoCountFromBitmaps,
+                               long cellCacheMaxTrips, int geoValueCacheMaxResults, long cellCacheTtlMillis,
+                               TimeTripIndex timeIndex) {
         final JmxReporter reporter = JmxReporter.forRegistry(dbMetrics).build();
         reporter.start();
 
         this.dataSource = dataSource;
         this.session = session;
+        this.asyncQueryService = Executors.newFixedThreadPool(queryThreads);
+        this.jdbcQueryService = Executors.newFixedThreadPool(jdbcThreads);
+        this.maxFanOut = maxFanOut;
+        this.fetchSize = fetchSize;
+        this.maxSketchPrefixLength = maxSketchPrefixLength;
+        this.geoCountFromBitmaps = geoCountFromBitmaps;
+        this.timeIndex = timeIndex;
         cassandraGeoTripCountQuery = session.prepare(COUNT_TRIPS_IN_GEOHASH);
+        cassandraTripSketchQuery = session.prepare(QUERY_TRIP_SKETCHES);
+        cassandraTripBitmapQuery = session.prepare(QUERY_TRIP_BITMAPS);
+        // Empty cells still take an entry, so every cell weighs at least one trip
+        geoCountCache = new CellResultCache<>(GEO_COUNT_QUERY_TYPE, cellCacheMaxTrips, cellCacheTtlMillis,
+                trips -> Math.max(1, trips.size()), dbMetrics);
+        geoBitmapCache = new CellResultCache<>(GEO_BITMAP_QUERY_TYPE, cellCacheMaxTrips, cellCacheTtlMillis,
+                trips -> Math.max(1, trips.getCardinality()), dbMetrics);
+        // A trip is counted once however many of the geohashes it passed through, so the counts of separate geohashes
+        // cannot be added up, and the geovalue results are cached for the whole set of geohashes instead
+        geoValueCache = new CellResultCache<>(GEO_VALUE_QUERY_TYPE, geoValueCacheMaxResults, cellCacheTtlMillis,
+                data -> 1, dbMetrics);
 
         addShutDownHook(reporter);
     }
 
     /**
-     * Given a set of geohashes, returns the number of (unique) trips which have passed through it.
+     * Given a set of geohashes, returns the number of (unique) trips which have passed through it, from the trip
+     * bitmaps if {@code geoCountFromBitmaps} is set, see {@link #countTripsInBitmaps(List)}. Otherwise the rows of every
+     * geohash are read in pages of {@code fetchSize} rows, and each page is merged into a set of trip id hashes as
+     * soon as it arrives, so the memory used grows with the number of distinct trips rather than with the number of
+     * rows, and the pages of up to {@code maxFanOut} geohashes are merged in parallel. The trips of every geohash are cached, so
+     * only the geohashes which have not been queried recently are read from Cassandra.
      *
      * @param geoHashes a list of geohashes to search
      * @return the number of trips that have passed through these geohashes
      */
     @Override
-    public long getNumberOfTripsInGeoLocation(List<String> geoHashes) {
+    public CompletableFuture<Long> getNumberOfTripsInGeoLocationAsync(List<String> geoHashes) {
+        if (geoCountFromBitmaps) {
+            return countTripsInBitmaps(geoHashes);
+        }
         final Timer.Context context = responses.time();
-        List<ResultSetFuture> futures = new ArrayList<>();
-        try {
-            for (String geoHash: geoHashes) {
-                ResultSetFuture resultSetFuture = session.executeAsync(cassandraGeoTripCountQuery.bind(geoHash));
-                futures.add(resultSetFuture);
+        DistinctTripIds tripIds = new DistinctTripIds();
+        List<String> uncached = new ArrayList<>();
+        for (String geoHash : geoHashes) {
+            TripIdHashes cached = geoCountCache.get(geoHash);
+            if (cached != null) {
+                cached.addTo(tripIds);
+            } else {
+                uncached.add(geoHash);
             }
-            return countAllUniqueTrips(geoHashes, futures);
-        } finally {
-            context.stop();
         }
+        return timed(readAllPages(uncached, tripIds).thenApply(read -> {
+            read.forEach(geoCountCache::put);
+            if (tripIds.collisions() > 0) {
+                logger.warn(String.format("%d trip ids shared a hash with another trip id in geohashes: %s",
+                        tripIds.collisions(), geoHashes.toString()));
+            }
+            return tripIds.size();
+        }), context);
+    }
+
+    /**
+     * Counts the trips which passed through the geohashes by ORing the bitmaps of trip numbers the subscribers keep for
+     * every geohash, one per hour and subscriber, and counting the trips in the result. A trip is numbered once, so
+     * the count is exact, but only a few compressed rows are read per geohash rather than one row per trip, at most
+     * {@code maxFanOut} geohashes at a time. The trips of every geohash are cached as one bitmap.
+     */
+    private CompletableFuture<Long> countTripsInBitmaps(List<String> geoHashes) {
+        final Timer.Context context = responses.time();
+        MutableRoaringBitmap trips = new MutableRoaringBitmap();
+        List<String> uncached = new ArrayList<>();
+        for (String geoHash : geoHashes) {
+            ImmutableRoaringBitmap cached = geoBitmapCache.get(geoHash);
+            if (cached != null) {
+                trips.or(cached);
+            } else {
+                uncached.add(geoHash);
+            }
+        }
+        List<List<ByteBuffer>> bitmaps = new ArrayList<>();
+        for (int i = 0; i < uncached.size(); i++) {
+            bitmaps.add(new ArrayList<>());
+        }
+        return timed(fanOut(uncached.size(), index -> {
+            // The pages of a geohash are read one after another, so its bitmaps are never added to concurrently
+            CompletableFuture<Void> read = new CompletableFuture<>();
+            readPages(session.executeAsync(cassandraTripBitmapQuery.bind(uncached.get(index)).setFetchSize(fetchSize)),
+                    row -> bitmaps.get(index).add(row.getBytes(0)), read);
+            return read;
+        }).thenApply(ignored -> {
+            for (int i = 0; i < uncached.size(); i++) {
+                ImmutableRoaringBitmap cellTrips = union(bitmaps.get(i));
+                geoBitmapCache.put(uncached.get(i), cellTrips);
+                trips.or(cellTrips);
+            }
+            return (long) trips.getCardinality();
+        }), context);
     }
 
     /**
-     * Given a time range, count the number of trips that were occurring at that time
+     * @param bitmaps the serialized bitmaps of trip numbers
+     * @return the trips in any of the bitmaps
+     */
+    static ImmutableRoaringBitmap union(List<ByteBuffer> bitmaps) {
+        MutableRoaringBitmap union = new MutableRoaringBitmap();
+        for (ByteBuffer bitmap : bitmaps) {
+            union.or(new ImmutableRoaringBitmap(bitmap));
+        }
+        union.runOptimize();
+        return union;
+    }
+
+    @Override
+    public long getNumberOfTripsInGeoLocation(List<String> geoHashes) {
+        return join(getNumberOfTripsInGeoLocationAsync(geoHashes));
+    }
+
+    /**
+     * Given a set of geohashes, estimates the number of (unique) trips which have passed through it by merging the
+     * trip sketches of every geohash, which reads one small row per geohash and subscriber rather than one row per
+     * trip, reading at most {@code maxFanOut} geohashes at a time like the exact count. The subscribers only keep
+     * sketches for geohashes up to {@code maxSketchPrefixLength} characters long, so the trips through longer geohashes
+     * are counted exactly instead.
+     *
+     * @param geoHashes a list of geohashes to search
+     * @return the estimated number of trips that have passed through these geohashes, with its error bound
+     */
+    @Override
+    public CompletableFuture<ApproximateCount> getApproximateNumberOfTripsInGeoLocationAsync(List<String> geoHashes) {
+        for (String geoHash : geoHashes) {
+            if (geoHash.length() > maxSketchPrefixLength) {
+                return getNumberOfTripsInGeoLocationAsync(geoHashes).thenApply(count -> new ApproximateCount(count, 0));
+            }
+        }
+
+        final Timer.Context context = responses.time();
+        List<HyperLogLog> sketches = Collections.synchronizedList(new ArrayList<>());
+        return timed(fanOut(geoHashes.size(), index ->
+                toCompletableFuture(session.executeAsync(cassandraTripSketchQuery.bind(geoHashes.get(index))))
+                        .thenAccept(rows -> {
+                            for (Row row : rows) {
+                                sketches.add(HyperLogLog.fromBytes(Bytes.getArray(row.getBytes(0))));
+                            }
+                        })
+        ).thenApply(ignored -> {
+            HyperLogLog merged = null;
+            for (HyperLogLog sketch : sketches) {
+                if (merged == null) {
+                    merged = sketch;
+                } else {
+                    merged.merge(sketch);
+                }
+            }
+            if (merged == null) {
+                return new ApproximateCount(0, 0);
+            }
+            long estimate = merged.estimate();
+            // 1.96 standard errors either side of the estimate covers the true count 95% of the time
+            long errorBound = (long) Math.ceil(1.96 * merged.standardError() * estimate);
+            return new ApproximateCount(estimate, errorBound);
+        }), context);
+    }
+
+    @Override
+    public ApproximateCount getApproximateNumberOfTripsInGeoLocation(List<String> geoHashes) {
+        return join(getApproximateNumberOfTripsInGeoLocationAsync(geoHashes));
+    }
+
+    /**
+     * Given a time range, count the number of trips that were occurring at that time. Once the time index has been
+     * loaded the trips are counted in memory, otherwise the time_trips table is queried.
      *
      * @param timeRange a time range in UNIX epoch time
      * @return the total number of trips that were occurring during this time
      * @throws SQLException
      */
     @Override
-    public long getNumberOfTripsInTimeRange(TimeRange timeRange) throws SQLException {
+    public CompletableFuture<Long> getNumberOfTripsInTimeRangeAsync(TimeRange timeRange) {
         final Timer.Context context = responses.time();
-        QueryRunner run = new QueryRunner(dataSource);
-        try {
-            return run.query(QUERY_TRIPS_BY_TIME,
-                    new ScalarHandler<Number>(),
-                    timeRange.getFromTime(),
-                    timeRange.getUntilTime()).longValue();
-        } catch (SQLException ex) {
-            logger.error(String.format("Failed to query number of trips between  %d and %d", timeRange.getFromTime(), timeRange.getUntilTime()), ex);
-            throw ex;
-        } finally {
-            context.stop();
+        if (timeIndex != null && timeIndex.isLoaded()) {
+            try {
+                return CompletableFuture.completedFuture(timeIndex.count(timeRange.getFromTime(), timeRange.getUntilTime()));
+            } finally {
+                context.stop();
+            }
         }
+        return timed(supplyJdbc(() -> {
+            QueryRunner run = new QueryRunner(dataSource);
+            try {
+                return run.query(QUERY_TRIPS_BY_TIME,
+                        new ScalarHandler<Number>(),
+                        timeRange.getFromTime(),
+                        timeRange.getUntilTime(),
+                        timeRange.getUntilTime()).longValue();
+            } catch (SQLException ex) {
+                logger.error(String.format("Failed to query number of trips between  %d and %d", timeRange.getFromTime(), timeRange.getUntilTime()), ex);
+                throw ex;
+            }
+        }), context);
+    }
+
+    @Override
+    public long getNumberOfTripsInTimeRange(TimeRange timeRange) throws SQLException {
+        return await(getNumberOfTripsInTimeRangeAsync(timeRange));
     }
 
 
     /**
-     * Given a set of geohashes, returns the number of trips which started or stopped in each geohash and the sum total
-     * of all their fares. This function runs each query in parallel for each geohash, rather than running them
-     * sequentially.
+     * Given a set of geohashes, returns the number of trips which started or stopped in any of them and the sum total
+     * of all their fares. All the geohashes are queried in one statement, which turns each geohash into a range of
+     * the geohashes it prefixes, so that the start and end geohash indexes can be scanned, and counts each trip once
+     * even if it started in one geohash and stopped in another. The trips can be limited to those which started within
+     * a time window, which only scans the partitions of the months in the window. The result of every set of geohashes
+     * and time window is cached, so a repeated request does not query the database again.
      *
      * @param geoHashes a list of geohashes to search
+     * @param startedWithin the time window the trips started within, or null for every trip
      * @return A count of all trips and the total of all their fares
-     * @throws InterruptedException
-     * @throws ExecutionException
      * @throws SQLException
      */
     @Override
-    public GeoTripData getStartFinishTripDataForGeoLocation(List<String> geoHashes) throws InterruptedException, ExecutionException, SQLException {
+    public CompletableFuture<GeoTripData> getStartFinishTripDataForGeoLocationAsync(List<String> geoHashes,
+                                                                                  TimeRange startedWithin) {
         final Timer.Context context = responses.time();
+        TimeRange window = startedWithin != null ? startedWithin : ALL_TIME;
 
-        long totalTripCount = 0;
-        double totalTripValue = 0;
-        List<Future<GeoTripData>> geoTripDataFutures = new ArrayList<>();
-        QueryRunner run = new QueryRunner(dataSource);
-        AsyncQueryRunner asyncRun = new AsyncQueryRunner(asyncQueryService, run);
-        try {
-            for (String geoHash : geoHashes) {
-                Future<GeoTripData> future = asyncRun.query(QUERY_START_STOP_GEOHASHES, geoTripStats, geoHash + '%', geoHash + '%');
-                geoTripDataFutures.add(future);
-            }
-            for (Future<GeoTripData> future: geoTripDataFutures) {
-                GeoTripData data = future.get();
-                totalTripCount += data.getTripCount();
-                totalTripValue += data.getFareTotal();
-                logger.debug("Query result, fare = : " + data.getFareTotal() + " trip count = :" + data.getTripCount() );
-            }
-        } catch (SQLException ex) {
-            logger.error(String.format("Could not get start/finish trip data for all geohashes in: %s", geoHashes.toString()), ex);
-            throw ex;
-        } catch (Exception ex) {
-            logger.error("Exception occurred when calling get on future", ex);
-            throw ex;
-        } finally {
+        List<String> sorted = new ArrayList<>(geoHashes);
+        Collections.sort(sorted);
+        String cacheKey = String.join(",", sorted) + "@" + window.getFromTime() + "-" + window.getUntilTime();
+        GeoTripData cached = geoValueCache.get(cacheKey);
+        if (cached != null) {
             context.stop();
+            return CompletableFuture.completedFuture(cached);
         }
 
-        return new GeoTripData(totalTripCount, totalTripValue);
+        String[][] ranges = prefixRanges(sorted);
+        return timed(supplyJdbc(() -> {
+            QueryRunner run = new QueryRunner();
+            try (Connection connection = dataSource.getConnection()) {
+                GeoTripData data = run.query(connection, QUERY_START_STOP_GEOHASHES, geoTripStats,
+                        connection.createArrayOf("text", ranges[0]), connection.createArrayOf("text", ranges[1]),
+                        window.getFromTime(), window.getUntilTime(), window.getFromTime(), window.getUntilTime());
+                geoValueCache.put(cacheKey, data);
+                logger.debug("Query result, fare = : " + data.getFareTotal() + " trip count = :" + data.getTripCount() );
+                return data;
+            } catch (SQLException ex) {
+                logger.error(String.format("Could not get start/finish trip data for all geohashes in: %s", geoHashes.toString()), ex);
+                throw ex;
+            }
+        }), context);
     }
 
+    @Override
+    public GeoTripData getStartFinishTripDataForGeoLocation(List<String> geoHashes, TimeRange startedWithin)
+            throws SQLException {
+        return await(getStartFinishTripDataForGeoLocationAsync(geoHashes, startedWithin));
+    }
 
+    /**
+     * Given a set of geohashes, returns the number of trips which started in them, the number which stopped in them and
+     * the sum total of the fares of those which stopped, from the rollup rows the subscribers keep for every geohash
+     * prefix. Only the rollup rows of the geohashes are read, however many trips passed through them, but a trip which
+     * started and stopped within the geohashes is counted both as started and as stopped. The rollups are kept by the
+     * hour, so a time window counts the trips which started or stopped within any hour the window overlaps.
+     *
+     * @param geoHashes a list of geohashes to search
+     * @param startedWithin the time window the trips started or stopped within, or null for every trip
+     * @return the counts of trips started and stopped and the total of the fares of those stopped
+     * @throws SQLException
+     */
+    @Override
+    public CompletableFuture<GeoTripRollup> getStartFinishRollupForGeoLocationAsync(List<String> geoHashes,
+                                                                                  TimeRange startedWithin) {
+        final Timer.Context context = responses.time();
+        TimeRange window = startedWithin != null ? startedWithin : ALL_TIME;
+        // The buckets which start after the hour before the window, but not after the window
+        long afterBucket = window.getFromTime() == Long.MIN_VALUE ? Long.MIN_VALUE
+                : window.getFromTime() - ROLLUP_BUCKET_MILLIS;
+        return timed(supplyJdbc(() -> {
+            QueryRunner run = new QueryRunner();
+            try (Connection connection = dataSource.getConnection()) {
+                return run.query(connection, QUERY_ROLLUPS, geoTripRollups,
+                        connection.createArrayOf("text", geoHashes.toArray(new String[geoHashes.size()])),
+                        afterBucket, window.getUntilTime());
+            } catch (SQLException ex) {
+                logger.error(String.format("Could not get the rollups of all geohashes in: %s", geoHashes.toString()), ex);
+                throw ex;
+            }
+        }), context);
+    }
 
-    private long countAllUniqueTrips(List<String> geoHashes, List<ResultSetFuture> futures) {
-        Set<String> allTrips = new HashSet<>();
-        for (ResultSetFuture future : futures) {
-            com.datastax.driver.core.ResultSet rows = future.getUninterruptibly();
+    @Override
+    public GeoTripRollup getStartFinishRollupForGeoLocation(List<String> geoHashes, TimeRange startedWithin)
+            throws SQLException {
+        return await(getStartFinishRollupForGeoLocationAsync(geoHashes, startedWithin));
+    }
 
-            List<Row> allRows = rows.all();
-            if (geoHashes.size() == 1) {
-                return allRows.size();
+    /**
+     * Turns every geohash into the range of geohashes it prefixes: from the geohash itself, inclusive, to the geohash
+     * followed by '~', exclusive, which sorts after every base32 character in the "C" collation.
+     *
+     * @return the lower bounds of the ranges followed by their upper bounds
+     */
+    static String[][] prefixRanges(List<String> geoHashes) {
+        String[][] ranges = new String[2][geoHashes.size()];
+        for (int i = 0; i < geoHashes.size(); i++) {
+            ranges[0][i] = geoHashes.get(i);
+            ranges[1][i] = geoHashes.get(i) + PREFIX_RANGE_END;
+        }
+        return ranges;
+    }
+
+    /**
+     * Queries the trips of the geohashes in parallel, at most {@code maxFanOut} geohashes at a time, and adds every
+     * trip to the set of distinct trips, from several threads at once. Completes with the trips of every geohash once
+     * every page of every geohash has been read.
+     */
+    private CompletableFuture<Map<String, TripIdHashes>> readAllPages(List<String> geoHashes, DistinctTripIds tripIds) {
+        Map<String, TripIdHashes> trips = new HashMap<>();
+        for (String geoHash : geoHashes) {
+            trips.put(geoHash, new TripIdHashes());
+        }
+        return fanOut(geoHashes.size(), index -> {
+            String geoHash = geoHashes.get(index);
+            TripIdHashes cellTrips = trips.get(geoHash);
+            CompletableFuture<Void> read = new CompletableFuture<>();
+            Statement query = cassandraGeoTripCountQuery.bind(geoHash).setFetchSize(fetchSize);
+            // The pages of a geohash are read one after another, so its trips are never added to concurrently
+            readPages(session.executeAsync(query), row -> {
+                String tripId = row.getString(0);
+                long hash = Hashing.hash64(tripId);
+                int check = tripId.hashCode();
+                cellTrips.add(hash, check);
+                tripIds.add(hash, check);
+            }, read);
+            return read.thenRun(cellTrips::trim);
+        }).thenApply(ignored -> trips);
+    }
+
+    /**
+     * Reads {@code count} geohashes in parallel, at most {@code maxFanOut} at a time, so that a request over many
+     * geohashes does not flood Cassandra with queries, whichever way it counts the trips.
+     *
+     * @param read starts reading the geohash at an index, and returns the future of the read
+     * @return completes once every geohash has been read, or exceptionally if any could not be
+     */
+    private CompletableFuture<Void> fanOut(int count, IntFunction<CompletableFuture<?>> read) {
+        List<CompletableFuture<Void>> geoHashesRead = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            geoHashesRead.add(new CompletableFuture<>());
+        }
+        AtomicInteger next = new AtomicInteger();
+        for (int i = 0; i < Math.min(maxFanOut, count); i++) {
+            readNextGeoHash(read, next, geoHashesRead);
+        }
+        return allOf(geoHashesRead);
+    }
+
+    /**
+     * Starts reading the next geohash which has not been read yet, and once it has been read, the one after it.
+     */
+    private void readNextGeoHash(IntFunction<CompletableFuture<?>> read, AtomicInteger next,
+                                 List<CompletableFuture<Void>> geoHashesRead) {
+        int index = next.getAndIncrement();
+        if (index >= geoHashesRead.size()) {
+            return;
+        }
+        CompletableFuture<?> geoHashRead;
+        try {
+            geoHashRead = read.apply(index);
+        } catch (RuntimeException ex) {
+            geoHashRead = new CompletableFuture<>();
+            geoHashRead.completeExceptionally(ex);
+        }
+        geoHashRead.whenComplete((ignored, t) -> {
+            if (t != null) {
+                geoHashesRead.get(index).completeExceptionally(t);
             } else {
-                // De-duplicate the trip_id fields
-                for (Row r: allRows) {
-                    allTrips.add(r.getString(0));
+                geoHashesRead.get(index).complete(null);
+            }
+            readNextGeoHash(read, next, geoHashesRead);
+        });
+    }
+
+    /**
+     * Reads the rows of a page once it arrives, then requests the next page, until the last page has been read.
+     */
+    private void readPages(ListenableFuture<com.datastax.driver.core.ResultSet> page, Consumer<Row> rowReader,
+                           CompletableFuture<Void> read) {
+        Futures.addCallback(page, new FutureCallback<com.datastax.driver.core.ResultSet>() {
+            @Override
+            public void onSuccess(com.datastax.driver.core.ResultSet rows) {
+                try {
+                    for (int available = rows.getAvailableWithoutFetching(); available > 0; available--) {
+                        rowReader.accept(rows.one());
+                    }
+                    if (rows.isFullyFetched()) {
+                        read.complete(null);
+                    } else {
+                        readPages(rows.fetchMoreResults(), rowReader, read);
+                    }
+                } catch (RuntimeException ex) {
+                    read.completeExceptionally(ex);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                read.completeExceptionally(t);
+            }
+        }, asyncQueryService);
+    }
+
+
+    /**
+     * Runs a PostgreSQL query on the JDBC threads, so that it only blocks one of them while it waits for its answer.
+     */
+    private <T> CompletableFuture<T> supplyJdbc(SqlQuery<T> query) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            jdbcQueryService.execute(() -> {
+                try {
+                    result.complete(query.run());
+                } catch (SQLException | RuntimeException ex) {
+                    result.completeExceptionally(ex);
                 }
+            });
+        } catch (RejectedExecutionException ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    private static <T> CompletableFuture<T> toCompletableFuture(ListenableFuture<T> future) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Futures.addCallback(future, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                result.complete(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    private static CompletableFuture<Void> allOf(List<? extends CompletableFuture<?>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+    }
+
+    /**
+     * Stops timing the request once its result is complete.
+     */
+    private static <T> CompletableFuture<T> timed(CompletableFuture<T> result, Timer.Context context) {
+        return result.whenComplete((value, t) -> context.stop());
+    }
+
+    /**
+     * Waits for the result of a query, throwing the exception it failed with.
+     */
+    private static <T> T join(CompletableFuture<T> result) {
+        try {
+            return result.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
             }
+            throw ex;
         }
-        return allTrips.size();
     }
 
+    /**
+     * Waits for the result of a PostgreSQL query, throwing the exception it failed with.
+     */
+    private static <T> T await(CompletableFuture<T> result) throws SQLException {
+        try {
+            return result.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof SQLException) {
+                throw (SQLException) ex.getCause();
+            }
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    private interface SqlQuery<T> {
+        T run() throws SQLException;
+    }
 
     private void addShutDownHook(JmxReporter reporter) {
         Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -179,8 +626,13 @@ public class TripDataServiceImpl implements TripDataService {
             public void run() {
                 logger.info("The server was shutdown, closing connection pool.");
                 asyncQueryService.shutdown();
+                jdbcQueryService.shutdown();
                 try {
                     asyncQueryService.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+                    jdbcQueryService.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+                    if (timeIndex != null) {
+                        timeIndex.close();
+                    }
                     session.close();
                     reporter.close();
                 } catch (InterruptedException ex) {
@@ -190,6 +642,14 @@ public class TripDataServiceImpl implements TripDataService {
         });
     }
 
+    private final ResultSetHandler<GeoTripRollup> geoTripRollups = rs -> {
+        if (rs.next()) {
+            return new GeoTripRollup(rs.getLong("started"), rs.getLong("ended"), rs.getBigDecimal("fare").doubleValue());
+        } else {
+            throw new SQLException("Empty result set");
+        }
+    };
+
     private final ResultSetHandler<GeoTripData> geoTripStats = new BeanHandler<GeoTripData>(GeoTripData.class) {
         @Override
         public GeoTripData handle(ResultSet rs) throws SQLException {
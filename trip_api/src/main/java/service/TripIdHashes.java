@@ -0,0 +1,46 @@
+package service;
+
+
+import java.util.Arrays;
+
+/**
+ * The trips of one geohash cell, held as the pairs of hashes {@link DistinctTripIds} identifies a trip by, which take
+ * 12 bytes per trip. The trips of a cell are unique, so they are appended without checking for repeats.
+ */
+final class TripIdHashes {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] hashes = new long[INITIAL_CAPACITY];
+    private int[] checks = new int[INITIAL_CAPACITY];
+    private int size;
+
+    void add(long hash, int check) {
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+            checks = Arrays.copyOf(checks, size * 2);
+        }
+        hashes[size] = hash;
+        checks[size] = check;
+        size++;
+    }
+
+    /**
+     * Releases the unused capacity, once all the trips of the cell have been added.
+     */
+    void trim() {
+        hashes = Arrays.copyOf(hashes, size);
+        checks = Arrays.copyOf(checks, size);
+    }
+
+    void addTo(DistinctTripIds tripIds) {
+        for (int i = 0; i < size; i++) {
+            tripIds.add(hashes[i], checks[i]);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+}
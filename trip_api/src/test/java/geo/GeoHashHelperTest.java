@@ -2,9 +2,7 @@ package geo;
 
 import model.BoundingGeoRect;
 import org.junit.Test;
-import org.vertexium.type.GeoHash;
 import org.vertexium.type.GeoPoint;
-import org.vertexium.type.GeoRect;
 
 import java.util.Arrays;
 import java.util.List;
@@ -16,35 +14,86 @@ import static org.junit.Assert.assertTrue;
 
 public class GeoHashHelperTest {
 
+    private static final BoundingGeoRect MANHATTAN = new BoundingGeoRect(
+            new GeoPoint(40.782181, -73.986743), new GeoPoint(40.725575, -73.971983));
+    private static final BoundingGeoRect SYDNEY = new BoundingGeoRect(
+            new GeoPoint(-33.519580, 150.748331), new GeoPoint(-33.847689, 151.280739));
 
     @Test
     public void shouldFindExpectedGeoHashesForGeoRect() {
-        BoundingGeoRect geoRect = new BoundingGeoRect(new GeoPoint(40.782181,-73.986743), new GeoPoint(40.725575, -73.971983));
-        List<String> geoHashes = GeoHashHelper.calculateGeohashesWithinSearchArea(geoRect);
+        List<String> geoHashes = GeoHashHelper.calculateGeohashesWithinSearchArea(MANHATTAN);
 
-        assertTrue(geoHashes.contains("dr5rs"));
-        assertTrue(geoHashes.contains("dr5ru"));
+        // The northern edge of the georect reaches just over into dr72
+        for (String geoHash : geoHashes) {
+            assertTrue(geoHash, geoHash.startsWith("dr5r") || geoHash.startsWith("dr72"));
+        }
+        assertTrue(geoHashes.size() <= GeoHashHelper.DEFAULT_MAX_CELLS);
+        assertCovers(geoHashes, MANHATTAN);
     }
 
     @Test
-    public void shouldNotReturnAll32SmallerGeoHashesIfBoundingBoxIsAGeoHash() {
-        GeoRect boundingBox = new GeoHash("r3gx8b").toGeoRect();
+    public void shouldReturnTheGeoHashItselfIfBoundingBoxIsAGeoHash() {
+        double[] bounds = GeoHashEncoder.decodeBounds(GeoHashEncoder.fromBase32("r3gx8b"), 6);
+        BoundingGeoRect geoRect = new BoundingGeoRect(
+                new GeoPoint(bounds[1], bounds[2]), new GeoPoint(bounds[0], bounds[3]));
 
-        assertThat(GeoHashHelper.removeOutOfBoundsGeoHashes("r3gx8b", boundingBox), is(Arrays.asList("r3gx8b")));
+        assertThat(GeoHashHelper.calculateGeohashesWithinSearchArea(geoRect), is(Arrays.asList("r3gx8b")));
     }
 
     @Test
-    public void shouldRemoveOutOfBoundsGeoHashesForLowPrecisionGeoHashes() {
-        GeoRect boundingBox = new GeoRect(new GeoPoint(-33.519580, 150.748331), new GeoPoint(-33.847689, 151.280739));
+    public void shouldUseShortGeoHashesForTheInteriorAndLongGeoHashesForTheBoundary() {
+        List<String> geoHashes = GeoHashHelper.calculateGeohashesWithinSearchArea(SYDNEY, 64, 0.01, 9);
 
-        assertThat(GeoHashHelper.removeOutOfBoundsGeoHashes("r3g", boundingBox), is(Arrays.asList("r3gp", "r3gr", "r3gx")));
+        int shortest = geoHashes.stream().mapToInt(String::length).min().getAsInt();
+        int longest = geoHashes.stream().mapToInt(String::length).max().getAsInt();
+        assertTrue(shortest < longest);
+        assertCovers(geoHashes, SYDNEY);
     }
 
     @Test
-    public void shouldNotRemoveOutOfBoundsGeoHashesForHighPrecisionGeohashes() {
-        GeoRect boundingBox = new GeoRect(new GeoPoint(-33.535963, 151.184950), new GeoPoint(-33.550248, 151.199569));
+    public void shouldNotReturnMoreGeoHashesThanTheBudget() {
+        for (int maxCells : new int[] {4, 8, 16, 32, 64}) {
+            List<String> geoHashes = GeoHashHelper.calculateGeohashesWithinSearchArea(SYDNEY, maxCells, 0, 9);
 
-        assertThat(GeoHashHelper.removeOutOfBoundsGeoHashes("r3grkpd", boundingBox), is(Arrays.asList("r3grkpd")));
+            assertTrue(geoHashes.size() <= maxCells);
+            assertCovers(geoHashes, SYDNEY);
+        }
+    }
+
+    @Test
+    public void shouldNotReturnGeoHashesLongerThanTheMaxPrecision() {
+        List<String> geoHashes = GeoHashHelper.calculateGeohashesWithinSearchArea(MANHATTAN, 1000, 0, 5);
+
+        assertTrue(geoHashes.stream().allMatch(geoHash -> geoHash.length() <= 5));
+        assertCovers(geoHashes, MANHATTAN);
+    }
+
+    @Test
+    public void shouldReturnASingleGeoHashForAPoint() {
+        BoundingGeoRect point = new BoundingGeoRect(new GeoPoint(-33.8688, 151.2093), new GeoPoint(-33.8688, 151.2093));
+
+        List<String> geoHashes = GeoHashHelper.calculateGeohashesWithinSearchArea(point);
+
+        assertThat(geoHashes.size(), is(1));
+        assertThat(geoHashes.get(0).length(), is(GeoHashHelper.STORED_PRECISION));
+    }
+
+    /**
+     * Checks that the geohash of every point on a grid over the georect starts with one of the geohashes.
+     */
+    private static void assertCovers(List<String> geoHashes, BoundingGeoRect geoRect) {
+        double minLat = geoRect.getSouthEast().getLatitude();
+        double maxLat = geoRect.getNorthWest().getLatitude();
+        double minLng = geoRect.getNorthWest().getLongitude();
+        double maxLng = geoRect.getSouthEast().getLongitude();
+        for (int i = 0; i <= 20; i++) {
+            for (int j = 0; j <= 20; j++) {
+                double lat = minLat + (maxLat - minLat) * i / 20;
+                double lng = minLng + (maxLng - minLng) * j / 20;
+                String point = GeoHashEncoder.toBase32(GeoHashEncoder.encode(lat, lng, 9), 9);
+                assertTrue(point, geoHashes.stream().anyMatch(point::startsWith));
+            }
+        }
     }
 
 }
@@ -3,7 +3,6 @@ package geo;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
-import org.locationtech.spatial4j.distance.DistanceUtils;
 
 import java.util.Arrays;
 import java.util.Collection;
@@ -14,39 +13,43 @@ import static org.junit.Assert.assertThat;
 @RunWith(Parameterized.class)
 public class ParameterizedGeoPrecisionTest {
 
-    private static final double startLong = -33.0;
-    private static final double startLat = -151.0;
-
     @Parameterized.Parameters
     public static Collection<Object[]> data() {
         return Arrays.asList(new Object[][] {
-                {startLat + (4.8d / 1000 / DistanceUtils.DEG_TO_KM), startLong - (4.7d / 1000 / DistanceUtils.DEG_TO_KM), 9},
-                {startLat + (5d / 1000 / DistanceUtils.DEG_TO_KM), startLong - (5d / 1000 / DistanceUtils.DEG_TO_KM), 8},
-                {startLat + (152.4d / 1000 / DistanceUtils.DEG_TO_KM), startLong - (152d / 1000 / DistanceUtils.DEG_TO_KM), 7},
-                {startLat + (609.0d / 1000 / DistanceUtils.DEG_TO_KM), startLong - (1.1d / DistanceUtils.DEG_TO_KM), 6},
-                {startLat + (4.8d / DistanceUtils.DEG_TO_KM), startLong - (4.8d / DistanceUtils.DEG_TO_KM), 5},
-                {startLat + (19d / DistanceUtils.DEG_TO_KM), startLong - (38d / DistanceUtils.DEG_TO_KM), 4},
-                {startLat + (155d / DistanceUtils.DEG_TO_KM), startLong - (155d / DistanceUtils.DEG_TO_KM), 3},
-                {startLat + (624d / DistanceUtils.DEG_TO_KM), startLong - (1252d / DistanceUtils.DEG_TO_KM), 2},
-                {startLat + (650d / DistanceUtils.DEG_TO_KM), startLong - (1270d / DistanceUtils.DEG_TO_KM), 1}
-
+                {within("r3gx8b7z3"), 9},
+                {within("r3gx8b7z"), 8},
+                {within("r3gx8b7"), 7},
+                {within("r3gx8b"), 6},
+                {within("r3gx8"), 5},
+                {within("r3gx"), 4},
+                {within("r3g"), 3},
+                {within("r3"), 2},
+                {within("r"), 1},
+                // Straddles the equator and the prime meridian, so no geohash encompasses it
+                {new double[] {-1, 1, -1, 1}, 0}
         });
     }
 
-    private double lat;
-    private double lng;
+    private double[] rect;
     private int expected;
 
-    public ParameterizedGeoPrecisionTest(double latitude, double longitude, int expec) {
-        lat = latitude;
-        lng = longitude;
+    public ParameterizedGeoPrecisionTest(double[] rect, int expec) {
+        this.rect = rect;
         expected = expec;
     }
 
     @Test
     public void test() {
-        int precision = GeoHashHelper.getSmallestEncompassingPrecision(lat, lng, startLat, startLong);
+        int precision = GeoHashHelper.getSmallestEncompassingPrecision(rect, 9);
         assertThat(precision, is(expected));
     }
 
+    // A georect just inside the bounds of the geohash
+    private static double[] within(String geoHash) {
+        double[] bounds = GeoHashEncoder.decodeBounds(GeoHashEncoder.fromBase32(geoHash), geoHash.length());
+        double latMargin = (bounds[1] - bounds[0]) / 10;
+        double lngMargin = (bounds[3] - bounds[2]) / 10;
+        return new double[] {bounds[0] + latMargin, bounds[1] - latMargin, bounds[2] + lngMargin, bounds[3] - lngMargin};
+    }
+
 }
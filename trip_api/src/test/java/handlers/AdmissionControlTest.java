@@ -0,0 +1,101 @@
+package handlers;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+
+public class AdmissionControlTest {
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        timeouts.shutdownNow();
+    }
+
+    @Test
+    public void shouldAdmitRequestsUpToTheLimit() {
+        AdmissionControl admission = new AdmissionControl(2, 0, 10, timeouts, metrics);
+
+        AdmissionControl.Permit first = admission.admit().join();
+        AdmissionControl.Permit second = admission.admit().join();
+        assertThat(admission.getActiveCount(), is(2));
+
+        first.close();
+        second.close();
+        assertThat(admission.getActiveCount(), is(0));
+    }
+
+    @Test
+    public void shouldRejectWithTooManyRequestsWhenTheQueueIsFull() throws Exception {
+        AdmissionControl admission = new AdmissionControl(1, 0, 1000, timeouts, metrics);
+
+        try (AdmissionControl.Permit ignored = admission.admit().join()) {
+            assertThat(rejection(admission.admit()).getStatus(), is(AdmissionControl.TOO_MANY_REQUESTS));
+        }
+        assertThat(metrics.meter("handlers.AdmissionControl.rejected.queue-full").getCount(), is(1L));
+    }
+
+    @Test
+    public void shouldRejectWithServiceUnavailableWhenTheWaitIsTooLong() throws Exception {
+        AdmissionControl admission = new AdmissionControl(1, 1, 10, timeouts, metrics);
+
+        try (AdmissionControl.Permit ignored = admission.admit().join()) {
+            assertThat(rejection(admission.admit()).getStatus(), is(AdmissionControl.SERVICE_UNAVAILABLE));
+        }
+        assertThat(metrics.meter("handlers.AdmissionControl.rejected.timed-out").getCount(), is(1L));
+        assertThat(admission.getQueuedCount(), is(0));
+        assertThat(admission.getActiveCount(), is(0));
+    }
+
+    @Test
+    public void shouldQueueARequestWithoutWaitingAndAdmitItOnceAPermitIsReleased() {
+        AdmissionControl admission = new AdmissionControl(1, 2, TimeUnit.SECONDS.toMillis(10), timeouts, metrics);
+
+        AdmissionControl.Permit permit = admission.admit().join();
+        CompletableFuture<AdmissionControl.Permit> first = admission.admit();
+        CompletableFuture<AdmissionControl.Permit> second = admission.admit();
+        assertThat(first.isDone(), is(false));
+        assertThat(admission.getQueuedCount(), is(2));
+
+        // The permit is handed to the requests in the order they were queued
+        permit.close();
+        assertThat(first.isDone(), is(true));
+        assertThat(second.isDone(), is(false));
+        assertThat(admission.getActiveCount(), is(1));
+
+        first.join().close();
+        second.join().close();
+        assertThat(admission.getActiveCount(), is(0));
+        assertThat(admission.getQueuedCount(), is(0));
+    }
+
+    private static RequestRejectedException rejection(CompletableFuture<AdmissionControl.Permit> permit)
+            throws InterruptedException {
+        try {
+            permit.get(10, TimeUnit.SECONDS).close();
+            fail("The request should have been rejected");
+        } catch (ExecutionException ex) {
+            assertThat(ex.getCause(), instanceOf(RequestRejectedException.class));
+            return (RequestRejectedException) ex.getCause();
+        } catch (TimeoutException ex) {
+            fail("The request was neither admitted nor rejected");
+        }
+        return null;
+    }
+
+}
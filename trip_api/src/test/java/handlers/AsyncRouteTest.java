@@ -0,0 +1,93 @@
+package handlers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import parser.InvalidQueryParamsException;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+
+public class AsyncRouteTest {
+
+    private final ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor();
+    private final Request req = mock(Request.class);
+    private final HttpServletRequest rawRequest = mock(HttpServletRequest.class);
+    private final HttpServletResponse rawResponse = mock(HttpServletResponse.class);
+    private final AsyncContext context = mock(AsyncContext.class);
+    private final StringWriter body = new StringWriter();
+
+    @Before
+    public void setup() throws Exception {
+        when(req.raw()).thenReturn(rawRequest);
+        when(rawRequest.startAsync()).thenReturn(context);
+        when(context.getResponse()).thenReturn(rawResponse);
+        when(rawResponse.getWriter()).thenReturn(new PrintWriter(body, true));
+    }
+
+    @After
+    public void tearDown() {
+        deadlines.shutdownNow();
+    }
+
+    @Test
+    public void shouldAnswerOnceTheBodyIsComplete() {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        AsyncRoute route = new AsyncRoute(request -> result, 10000, deadlines);
+
+        assertThat(route.handle(req, mock(Response.class)), is(nullValue()));
+        verify(context, never()).complete();
+
+        result.complete("Number of trips: 3");
+        verify(rawResponse).setStatus(200);
+        assertThat(body.toString(), is("Number of trips: 3"));
+        verify(context).complete();
+    }
+
+    @Test
+    public void shouldAnswerBadRequestWhenTheParametersAreInvalid() {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        result.completeExceptionally(new InvalidQueryParamsException("The from parameter is missing"));
+        AsyncRoute route = new AsyncRoute(request -> result, 10000, deadlines);
+
+        route.handle(req, mock(Response.class));
+
+        verify(rawResponse).setStatus(400);
+        verify(context).complete();
+    }
+
+    @Test
+    public void shouldAnswerGatewayTimeoutOnceTheDeadlinePasses() {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        AsyncRoute route = new AsyncRoute(request -> result, 10, deadlines);
+
+        route.handle(req, mock(Response.class));
+
+        verify(context, timeout(5000)).complete();
+        verify(rawResponse).setStatus(504);
+        result.complete("Number of trips: 3");
+        verify(rawResponse, never()).setStatus(200);
+        verify(context, times(1)).complete();
+    }
+
+    @Test
+    public void shouldAnswerWithTheStatusOfARejectedRequest() {
+        assertThat(AsyncRoute.statusOf(new RequestRejectedException("Too many requests", 429)), is(429));
+        assertThat(AsyncRoute.statusOf(new IllegalStateException("The index is not loaded")), is(500));
+    }
+
+}
@@ -1,7 +1,11 @@
 package handlers;
 
+import com.codahale.metrics.MetricRegistry;
+import model.ApproximateCount;
 import model.GeoTripData;
+import model.GeoTripRollup;
 import model.TimeRange;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -9,8 +13,15 @@ import org.mockito.internal.verification.VerificationModeFactory;
 import service.TripDataService;
 import service.TripDataServiceImpl;
 import spark.Request;
-import spark.Response;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyList;
 import static org.mockito.Mockito.*;
@@ -19,8 +30,10 @@ import static org.mockito.Mockito.*;
 public class TripRequestHandlerTest {
 
 
+    private ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor();
     private TripDataService mockDataService = mock(TripDataService.class);
-    private TripRequestHandler handler = new TripRequestHandler(mockDataService);
+    private TripRequestHandler handler = new TripRequestHandler(mockDataService, 5,
+            new AdmissionControl(10, 10, 1000, timeouts, new MetricRegistry()));
     private Request req = mock(Request.class);
     @Before
     public void setup() throws Exception {
@@ -28,26 +41,123 @@ public class TripRequestHandlerTest {
         when(req.queryParams("to")).thenReturn("22345678");
         when(req.queryParams("nw")).thenReturn("-22.0,135");
         when(req.queryParams("se")).thenReturn("-23.0, 155");
-        when(mockDataService.getStartFinishTripDataForGeoLocation(any())).thenReturn(new GeoTripData(200, 1789.55f));
+        when(mockDataService.getStartFinishTripDataForGeoLocationAsync(any(), any()))
+                .thenReturn(CompletableFuture.completedFuture(new GeoTripData(200, 1789.55f)));
+        when(mockDataService.getNumberOfTripsInTimeRangeAsync(any())).thenReturn(CompletableFuture.completedFuture(7L));
+        when(mockDataService.getNumberOfTripsInGeoLocationAsync(anyList()))
+                .thenReturn(CompletableFuture.completedFuture(3L));
+    }
+
+    @After
+    public void tearDown() {
+        timeouts.shutdownNow();
     }
 
 
     @Test
     public void shouldCallGetNumberOfTripsInTimeRange() throws Exception {
-        handler.getNumberOfTripsAtTime(req, mock(Response.class));
-        verify(mockDataService, times(1)).getNumberOfTripsInTimeRange(any(TimeRange.class));
+        String body = handler.getNumberOfTripsAtTime(req).join();
+        verify(mockDataService, times(1)).getNumberOfTripsInTimeRangeAsync(any(TimeRange.class));
+        assertThat(body, is("Number of trips that occurred between the epochs 12345678 and 22345678 is: 7"));
     }
 
     @Test
     public void shouldCallGetNumberOfTripsInGeo() {
-        handler.getNumberOfTripsInGeo(req, mock(Response.class));
-        verify(mockDataService).getNumberOfTripsInGeoLocation(anyList());
+        handler.getNumberOfTripsInGeo(req).join();
+        verify(mockDataService).getNumberOfTripsInGeoLocationAsync(anyList());
+    }
+
+    @Test
+    public void shouldCallGetApproximateNumberOfTripsInGeoWhenApproxRequested() {
+        when(req.queryParams("approx")).thenReturn("true");
+        when(mockDataService.getApproximateNumberOfTripsInGeoLocationAsync(anyList()))
+                .thenReturn(CompletableFuture.completedFuture(new ApproximateCount(1000, 32)));
+
+        String body = handler.getNumberOfTripsInGeo(req).join();
+
+        verify(mockDataService, never()).getNumberOfTripsInGeoLocationAsync(anyList());
+        assertThat(body, is("Approximate number of trips that have passed through this geo rect is: 1000 " +
+                "(+/- 32 at 95% confidence)"));
     }
 
     @Test
     public void shouldCallGetStartedOrCompletedInGeo() throws Exception {
-        handler.getTripsStartedOrCompletedInGeo(req, mock(Response.class));
-        verify(mockDataService, VerificationModeFactory.times(1)).getStartFinishTripDataForGeoLocation(Mockito.any());
+        handler.getTripsStartedOrCompletedInGeo(req).join();
+        verify(mockDataService, VerificationModeFactory.times(1)).getStartFinishTripDataForGeoLocationAsync(
+                Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    public void shouldReadTheRollupsWhenRollupRequested() throws Exception {
+        when(req.queryParams("rollup")).thenReturn("true");
+        when(mockDataService.getStartFinishRollupForGeoLocationAsync(anyList(), any()))
+                .thenReturn(CompletableFuture.completedFuture(new GeoTripRollup(120, 80, 640.5)));
+
+        String body = handler.getTripsStartedOrCompletedInGeo(req).join();
+
+        verify(mockDataService, never()).getStartFinishTripDataForGeoLocationAsync(anyList(), any());
+        assertThat(body, is("Number of trips started in geo rect is: 120, number of trips stopped is: 80, " +
+                "with the stopped trips having a total value of $640.50"));
+    }
+
+    @Test
+    public void shouldAnswerTooManyRequestsWhenNoRequestCanBeQueued() throws Exception {
+        AdmissionControl full = new AdmissionControl(1, 0, 1000, timeouts, new MetricRegistry());
+        TripRequestHandler limitedHandler = new TripRequestHandler(mockDataService, 5, full);
+
+        try (AdmissionControl.Permit ignored = full.admit().join()) {
+            limitedHandler.getNumberOfTripsInGeo(req).join();
+            fail("The request should have been rejected");
+        } catch (CompletionException ex) {
+            assertThat(AsyncRoute.statusOf(ex.getCause()), is(429));
+        }
+
+        verify(mockDataService, never()).getNumberOfTripsInGeoLocationAsync(anyList());
+    }
+
+    @Test
+    public void shouldHandThePermitBackOnceTheQueryCompletes() {
+        AdmissionControl single = new AdmissionControl(1, 0, 1000, timeouts, new MetricRegistry());
+        TripRequestHandler limitedHandler = new TripRequestHandler(mockDataService, 5, single);
+        CompletableFuture<Long> count = new CompletableFuture<>();
+        when(mockDataService.getNumberOfTripsInGeoLocationAsync(anyList())).thenReturn(count);
+
+        CompletableFuture<String> body = limitedHandler.getNumberOfTripsInGeo(req);
+        assertThat(single.getActiveCount(), is(1));
+
+        count.complete(3L);
+        assertThat(body.join(), is("Number of trips that have passed through this geo rect is: 3"));
+        assertThat(single.getActiveCount(), is(0));
+    }
+
+    @Test
+    public void shouldStartAQueuedQueryOnceAPermitIsHandedBack() {
+        AdmissionControl single = new AdmissionControl(1, 1, 1000, timeouts, new MetricRegistry());
+        TripRequestHandler limitedHandler = new TripRequestHandler(mockDataService, 5, single);
+        AdmissionControl.Permit permit = single.admit().join();
+
+        CompletableFuture<String> body = limitedHandler.getNumberOfTripsInGeo(req);
+        assertThat(body.isDone(), is(false));
+        verify(mockDataService, never()).getNumberOfTripsInGeoLocationAsync(anyList());
+
+        permit.close();
+        assertThat(body.join(), is("Number of trips that have passed through this geo rect is: 3"));
+        assertThat(single.getActiveCount(), is(0));
+    }
+
+    @Test
+    public void shouldRejectInvalidParametersWithoutQueueing() {
+        AdmissionControl single = new AdmissionControl(1, 1, 1000, timeouts, new MetricRegistry());
+        TripRequestHandler limitedHandler = new TripRequestHandler(mockDataService, 5, single);
+        when(req.queryParams("nw")).thenReturn("not a coordinate");
+
+        try (AdmissionControl.Permit ignored = single.admit().join()) {
+            limitedHandler.getNumberOfTripsInGeo(req).join();
+            fail("The request should have been rejected");
+        } catch (CompletionException ex) {
+            assertThat(AsyncRoute.statusOf(ex.getCause()), is(AsyncRoute.BAD_REQUEST));
+        }
+        assertThat(single.getQueuedCount(), is(0));
     }
 
 }
@@ -54,6 +54,17 @@ public class RequestParserTest {
         assertNotNull(timeRange.getUntilTime());
     }
 
+    @Test
+    public void shouldReturnNoTimeRangeWhenOptionalFromParameterNotSupplied() throws InvalidQueryParamsException {
+        when(mockRequest.queryParams("from")).thenReturn(null);
+        when(mockRequest.queryParams("to")).thenReturn("234567899");
+
+        assertThat(RequestParser.getOptionalTimeRangeForParams(mockRequest), nullValue());
+
+        when(mockRequest.queryParams("from")).thenReturn("124567789");
+        assertThat(RequestParser.getOptionalTimeRangeForParams(mockRequest).getFromTime(), is(124567789L));
+    }
+
     @Test
     public void shouldReturnTimeRangeObjectWhenParamsValid() throws InvalidQueryParamsException {
         when(mockRequest.queryParams("from")).thenReturn("124567789");
@@ -99,4 +110,22 @@ public class RequestParserTest {
         assertThat(rect.getSouthEast(), is(new GeoPoint(-30, 118)));
     }
 
+    @Test
+    public void shouldOnlyBeApproximateWhenApproxParamIsTrue() {
+        when(mockRequest.queryParams("approx")).thenReturn("true");
+        assertThat(RequestParser.isApproximate(mockRequest), is(true));
+
+        when(mockRequest.queryParams("approx")).thenReturn(null);
+        assertThat(RequestParser.isApproximate(mockRequest), is(false));
+    }
+
+    @Test
+    public void shouldOnlyReadTheRollupsWhenRollupParamIsTrue() {
+        when(mockRequest.queryParams("rollup")).thenReturn("true");
+        assertThat(RequestParser.isRollup(mockRequest), is(true));
+
+        when(mockRequest.queryParams("rollup")).thenReturn(null);
+        assertThat(RequestParser.isRollup(mockRequest), is(false));
+    }
+
 }
@@ -0,0 +1,82 @@
+package service;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+
+public class CellResultCacheTest {
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void shouldReturnCachedResultsUntilTheyExpire() {
+        CellResultCache<String> cache = new CellResultCache<>("test", 10, 1000, String::length, metrics, now::get);
+
+        cache.put("9q8", "abc");
+        now.set(999);
+        assertThat(cache.get("9q8"), is("abc"));
+
+        now.set(1000);
+        assertThat(cache.get("9q8"), nullValue());
+        assertThat(cache.getWeight(), is(0L));
+    }
+
+    @Test
+    public void shouldEvictTheLeastRecentlyUsedCellsOnceTooHeavy() {
+        CellResultCache<String> cache = new CellResultCache<>("test", 10, 1000, String::length, metrics, now::get);
+
+        cache.put("9q8", "aaaa");
+        cache.put("9q9", "bbbb");
+        cache.get("9q8");
+        cache.put("9qb", "cccc");
+
+        assertThat(cache.get("9q9"), nullValue());
+        assertThat(cache.get("9q8"), is("aaaa"));
+        assertThat(cache.get("9qb"), is("cccc"));
+        assertThat(cache.getWeight(), is(8L));
+        assertThat(metrics.meter("service.CellResultCache.test.evictions").getCount(), is(1L));
+    }
+
+    @Test
+    public void shouldNotCacheResultsHeavierThanTheCache() {
+        CellResultCache<String> cache = new CellResultCache<>("test", 10, 1000, String::length, metrics, now::get);
+
+        cache.put("9q8", "aaaa");
+        cache.put("9q9", "bbbbbbbbbbb");
+
+        assertThat(cache.get("9q9"), nullValue());
+        assertThat(cache.get("9q8"), is("aaaa"));
+    }
+
+    @Test
+    public void shouldReplaceTheWeightOfARecachedCell() {
+        CellResultCache<String> cache = new CellResultCache<>("test", 10, 1000, String::length, metrics, now::get);
+
+        cache.put("9q8", "aaaa");
+        cache.put("9q8", "aa");
+
+        assertThat(cache.getWeight(), is(2L));
+        assertThat(cache.size(), is(1));
+    }
+
+    @Test
+    public void shouldCountHitsAndMisses() {
+        CellResultCache<String> cache = new CellResultCache<>("test", 10, 1000, String::length, metrics, now::get);
+
+        cache.get("9q8");
+        cache.put("9q8", "aaaa");
+        cache.get("9q8");
+        cache.get("9q8");
+
+        assertThat(metrics.meter("service.CellResultCache.test.hits").getCount(), is(2L));
+        assertThat(metrics.meter("service.CellResultCache.test.misses").getCount(), is(1L));
+    }
+
+}
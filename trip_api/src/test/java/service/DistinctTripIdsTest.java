@@ -0,0 +1,60 @@
+package service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class DistinctTripIdsTest {
+
+    @Test
+    public void shouldCountEachTripOnce() {
+        DistinctTripIds tripIds = new DistinctTripIds();
+
+        for (int i = 0; i < 10000; i++) {
+            tripIds.add(String.valueOf(i));
+            tripIds.add(String.valueOf(i / 2));
+        }
+
+        assertThat(tripIds.size(), is(10000L));
+        assertThat(tripIds.collisions(), is(0L));
+    }
+
+    @Test
+    public void shouldCountTripsWhoseHashesCollide() {
+        DistinctTripIds tripIds = new DistinctTripIds();
+
+        assertThat(tripIds.add(42L, 1), is(true));
+        assertThat(tripIds.add(42L, 2), is(true));
+        assertThat(tripIds.add(42L, 1), is(false));
+
+        assertThat(tripIds.size(), is(2L));
+        assertThat(tripIds.collisions(), is(1L));
+    }
+
+    @Test
+    public void shouldMergeTripsAddedFromSeveralThreads() throws InterruptedException {
+        DistinctTripIds tripIds = new DistinctTripIds();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            // Every thread adds the same trips, as overlapping geohashes return the same trips
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    tripIds.add("trip-" + i);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(tripIds.size(), is(20000L));
+    }
+
+}
@@ -0,0 +1,121 @@
+package service;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
+import model.ApproximateCount;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class TripDataServiceImplTest {
+
+    @Test
+    public void shouldTurnGeoHashesIntoTheRangesTheyPrefix() {
+        String[][] ranges = TripDataServiceImpl.prefixRanges(Arrays.asList("9q8", "r3gx"));
+
+        assertThat(ranges[0], is(new String[] {"9q8", "r3gx"}));
+        assertThat(ranges[1], is(new String[] {"9q8~", "r3gx~"}));
+    }
+
+    @Test
+    public void shouldOnlyIncludeTheGeoHashesAPrefixPrefixes() {
+        String[][] ranges = TripDataServiceImpl.prefixRanges(Arrays.asList("9q8"));
+
+        for (String geoHash : Arrays.asList("9q8", "9q80", "9q8zzzzzz")) {
+            assertTrue(geoHash, geoHash.compareTo(ranges[0][0]) >= 0 && geoHash.compareTo(ranges[1][0]) < 0);
+        }
+        for (String geoHash : Arrays.asList("9q7zzzzzz", "9q9", "9q90", "9r")) {
+            assertTrue(geoHash, geoHash.compareTo(ranges[0][0]) < 0 || geoHash.compareTo(ranges[1][0]) >= 0);
+        }
+    }
+
+    @Test
+    public void shouldCountATripInSeveralBitmapsOnce() throws Exception {
+        assertThat(TripDataServiceImpl.union(Arrays.asList(serialize(1, 2, 3), serialize(3, 4), serialize())).getCardinality(),
+                is(4));
+    }
+
+    @Test
+    public void shouldReadAtMostMaxFanOutSketchesAtATime() {
+        Session session = mock(Session.class);
+        PreparedStatement prepared = mock(PreparedStatement.class);
+        when(session.prepare(anyString())).thenReturn(prepared);
+        when(prepared.bind(Matchers.<Object>anyVararg())).thenReturn(mock(BoundStatement.class));
+        List<PendingRows> queries = new ArrayList<>();
+        when(session.executeAsync(any(Statement.class))).thenAnswer(invocation -> {
+            PendingRows query = new PendingRows();
+            queries.add(query);
+            return query;
+        });
+        TripDataServiceImpl service = new TripDataServiceImpl(null, session, 1, 1, 2, 100, 5, false, 1000, 10, 1000,
+                null);
+
+        CompletableFuture<ApproximateCount> count = service.getApproximateNumberOfTripsInGeoLocationAsync(
+                Arrays.asList("9q", "9r", "9w", "9x", "9y"));
+
+        assertThat(queries.size(), is(2));
+        // Every sketch read makes room for the next one
+        for (int answered = 0; answered < queries.size(); answered++) {
+            queries.get(answered).answer();
+            assertThat(queries.size(), is(Math.min(5, answered + 3)));
+        }
+        assertThat(count.join().getEstimate(), is(0L));
+    }
+
+    private static ByteBuffer serialize(int... tripNumbers) throws IOException {
+        MutableRoaringBitmap bitmap = MutableRoaringBitmap.bitmapOf(tripNumbers);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            bitmap.serialize(out);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    // A query which is answered with no rows when the test says so
+    private static final class PendingRows extends AbstractFuture<ResultSet> implements ResultSetFuture {
+
+        void answer() {
+            ResultSet rows = mock(ResultSet.class);
+            when(rows.iterator()).thenReturn(Collections.<Row>emptyIterator());
+            set(rows);
+        }
+
+        @Override
+        public ResultSet getUninterruptibly() {
+            return Futures.getUnchecked(this);
+        }
+
+        @Override
+        public ResultSet getUninterruptibly(long timeout, TimeUnit unit) {
+            return Futures.getUnchecked(this);
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+package benchmarks;
+
+
+import parser.EventType;
+import parser.Message;
+import parser.MessageParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates raw messages in the proportions the subscriber sees them: every trip begins, sends a location update
+ * every second and ends, and a small share of messages is invalid. Trips move slowly enough that consecutive updates
+ * are often in the same precision 9 geohash cell, as they are in dense traffic.
+ *
+ * The messages of different trips are interleaved, but the events of each trip stay in order.
+ */
+public final class MessageMix {
+
+    private static final double SAN_FRANCISCO_LAT = 37.7749;
+    private static final double SAN_FRANCISCO_LNG = -122.4194;
+    // About 4m a second, so that roughly every other update moves to a new precision 9 cell
+    private static final double DEGREES_PER_UPDATE = 0.00004;
+
+    private static final String[] INVALID = {
+            "{\"event\":\"start\",\"tripId\":1, \"lat\":37.79947, \"lng\":-122.511635, \"epoch\":1392864673040}",
+            "{\"event\":\"update\",\"tripId\":1, \"lat\":\"north\", \"lng\":-122.511635, \"epoch\":1392864673040}",
+            "{\"event\":\"end\",\"tripId\":1, \"lat\":37.79947, \"lng\":-122.511635, \"epoch\":1392864673040}",
+            "{\"event\":\"update\",\"tripId\":1, \"lat\":37.79947, \"lng\":-122.511635",
+    };
+
+    // Prevent unnecessary instantiations
+    private MessageMix() {
+    }
+
+    /**
+     * @param trips the number of trips
+     * @param updatesPerTrip the number of UPDATE messages sent by each trip between its BEGIN and END
+     * @param invalidRatio the share of invalid messages, between 0 and 1
+     * @param seed the seed of the random generator, so that runs can be compared
+     * @return the messages
+     */
+    public static List<String> generate(int trips, int updatesPerTrip, double invalidRatio, long seed) {
+        Random random = new Random(seed);
+        List<List<String>> tripMessages = new ArrayList<>();
+        for (int trip = 0; trip < trips; trip++) {
+            tripMessages.add(tripMessages(trip, updatesPerTrip, random));
+        }
+
+        // Interleave the trips round robin, starting each trip at a random offset
+        List<String> messages = new ArrayList<>();
+        int[] offsets = new int[trips];
+        for (int trip = 0; trip < trips; trip++) {
+            offsets[trip] = -random.nextInt(updatesPerTrip + 1);
+        }
+        boolean remaining = true;
+        while (remaining) {
+            remaining = false;
+            for (int trip = 0; trip < trips; trip++) {
+                int index = offsets[trip]++;
+                List<String> events = tripMessages.get(trip);
+                if (index < events.size()) {
+                    remaining = true;
+                }
+                if (index >= 0 && index < events.size()) {
+                    messages.add(events.get(index));
+                    if (random.nextDouble() < invalidRatio) {
+                        messages.add(INVALID[random.nextInt(INVALID.length)]);
+                    }
+                }
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * @return the valid messages of the given event type
+     */
+    public static List<String> valid(List<String> messages, EventType event) {
+        MessageParser parser = new MessageParser();
+        Message parsed = new Message();
+        List<String> result = new ArrayList<>();
+        for (String message : messages) {
+            if (parser.parse(message, parsed) == null && parsed.getEvent() == event) {
+                result.add(message);
+            }
+        }
+        return result;
+    }
+
+    private static List<String> tripMessages(int trip, int updatesPerTrip, Random random) {
+        List<String> events = new ArrayList<>();
+        double lat = SAN_FRANCISCO_LAT + random.nextGaussian() * 0.05;
+        double lng = SAN_FRANCISCO_LNG + random.nextGaussian() * 0.05;
+        double heading = random.nextDouble() * 2 * Math.PI;
+        long epoch = 1392864673040L + random.nextInt(3600_000);
+
+        events.add(message("begin", trip, lat, lng, null, epoch));
+        for (int i = 0; i < updatesPerTrip; i++) {
+            heading += random.nextGaussian() * 0.2;
+            lat += Math.sin(heading) * DEGREES_PER_UPDATE;
+            lng += Math.cos(heading) * DEGREES_PER_UPDATE;
+            epoch += 1000;
+            events.add(message("update", trip, lat, lng, null, epoch));
+        }
+        events.add(message("end", trip, lat, lng, 5 + random.nextInt(5000) / 100f, epoch + 1000));
+        return events;
+    }
+
+    private static String message(String event, int trip, double lat, double lng, Float fare, long epoch) {
+        StringBuilder message = new StringBuilder()
+                .append("{\"event\":\"").append(event)
+                .append("\",\"tripId\":").append(trip)
+                .append(", \"lat\":").append(roundToGpsPrecision(lat))
+                .append(", \"lng\":").append(roundToGpsPrecision(lng));
+        if (fare != null) {
+            message.append(", \"fare\":").append(fare);
+        }
+        return message.append(", \"epoch\":").append(epoch).append('}').toString();
+    }
+
+    // GPS positions are reported with six decimals, about 10cm
+    private static double roundToGpsPrecision(double degrees) {
+        return Math.round(degrees * 1e6) / 1e6;
+    }
+
+}
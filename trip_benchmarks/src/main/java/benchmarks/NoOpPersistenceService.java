@@ -0,0 +1,34 @@
+package benchmarks;
+
+
+import db.MessagePersistenceService;
+import org.openjdk.jmh.infra.Blackhole;
+import parser.Message;
+
+/**
+ * A persistence service which hands every message to a {@link Blackhole} instead of a database, so that benchmarks
+ * measure parsing and validation and nothing else.
+ */
+public class NoOpPersistenceService implements MessagePersistenceService {
+
+    private final Blackhole blackhole;
+
+    public NoOpPersistenceService(Blackhole blackhole) {
+        this.blackhole = blackhole;
+    }
+
+    @Override
+    public void saveMessage(Message message) {
+        blackhole.consume(message);
+    }
+
+    @Override
+    public boolean flush() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
@@ -0,0 +1,146 @@
+package db;
+
+
+import benchmarks.MessageMix;
+import com.codahale.metrics.MetricRegistry;
+import geo.GeoHashEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import parser.EventType;
+import parser.InvalidMessageFormatException;
+import parser.Message;
+import parser.MessageParser;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures generating the geohash prefixes of a location update, which {@code insertGeoDataForTrip} does for every
+ * message: deriving the nine prefix strings with {@code substring} as the subscriber used to, deriving them by
+ * shifting the geohash bits, and the whole of {@link MessagePersistenceServiceImpl#saveMessage(Message)} for an update
+ * with a Cassandra writer which discards its rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeoPrefixBenchmark {
+
+    private static final int TRIPS = 200;
+
+    private Message[] messages;
+    private int next;
+    private final Message message = new Message();
+
+    private WrittenPrefixCache prefixCache;
+    private BatchingSqlWriter sqlWriter;
+    private GeoTripSketchWriter sketchWriter;
+    private MessagePersistenceService service;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws InvalidMessageFormatException {
+        List<String> updates = MessageMix.valid(MessageMix.generate(TRIPS, 60, 0, 42), EventType.UPDATE);
+        messages = new Message[updates.size()];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = MessageParser.parseMessage(updates.get(i));
+        }
+
+        MetricRegistry metrics = new MetricRegistry();
+        prefixCache = new WrittenPrefixCache(TRIPS, Long.MAX_VALUE, metrics);
+        // Updates only write geohash prefixes, so the SQL writer is never given a statement to write
+        sqlWriter = new BatchingSqlWriter(null, Collections.emptyList(), Integer.MAX_VALUE, TimeUnit.HOURS.toMillis(1),
+                metrics);
+        // Sketches are not kept, so the sketch writer is never given a sketch to write
+        sketchWriter = new GeoTripSketchWriter(null, null, null, "benchmark", 0, 12, TimeUnit.HOURS.toMillis(1), metrics);
+        // Bitmaps are not kept either, so no trip is ever numbered
+        service = new MessagePersistenceServiceImpl(sqlWriter, new DiscardingGeoTripWriter(blackhole), prefixCache,
+                sketchWriter, null, null, true, metrics);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sketchWriter.close();
+        sqlWriter.close();
+    }
+
+    @Benchmark
+    public void prefixesBySubstring(Blackhole blackhole) {
+        String geoHash = nextMessage().getGeoHash();
+        for (int i = 1; i <= geoHash.length(); i++) {
+            blackhole.consume(geoHash.substring(0, i));
+        }
+    }
+
+    @Benchmark
+    public void prefixesByShift(Blackhole blackhole) {
+        long geoHash = nextMessage().getGeoHashBits();
+        for (int i = 1; i <= Message.GEOHASH_PRECISION; i++) {
+            blackhole.consume(GeoHashEncoder.toBase32(GeoHashEncoder.prefix(geoHash, Message.GEOHASH_PRECISION, i), i));
+        }
+    }
+
+    @Benchmark
+    public void saveUpdate() {
+        service.saveMessage(nextMessage());
+    }
+
+    // The same messages are replayed, so forget the written prefixes on every pass to keep the cache realistic
+    private Message nextMessage() {
+        Message source = messages[next];
+        if (++next == messages.length) {
+            next = 0;
+            for (int trip = 0; trip < TRIPS; trip++) {
+                prefixCache.evict(String.valueOf(trip));
+            }
+        }
+        // Setting the fields clears the cached geohash, as parsing a new message would
+        message.set(source.getEvent(), source.getTripId(), source.getLat(), source.getLng(), source.getEpoch());
+        return message;
+    }
+
+    private static final class DiscardingGeoTripWriter implements GeoTripWriter {
+
+        private final Blackhole blackhole;
+
+        private DiscardingGeoTripWriter(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(String geoHash, String tripId) {
+            blackhole.consume(geoHash);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public boolean flushAndWait() {
+            return true;
+        }
+
+        @Override
+        public long getFailedCount() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package parser;
+
+
+import benchmarks.MessageMix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertexium.type.GeoHash;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures computing the geohash of a freshly parsed message, as bits and as a string, against the vertexium
+ * {@link GeoHash} the subscriber used to build for every call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageGeoHashBenchmark {
+
+    private Message[] messages;
+    private int next;
+
+    private final Message message = new Message();
+
+    @Setup
+    public void parseMessages() throws InvalidMessageFormatException {
+        List<String> updates = MessageMix.valid(MessageMix.generate(200, 60, 0, 42), EventType.UPDATE);
+        messages = new Message[updates.size()];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = MessageParser.parseMessage(updates.get(i));
+        }
+    }
+
+    @Benchmark
+    public long getGeoHashBits() {
+        return nextMessage().getGeoHashBits();
+    }
+
+    @Benchmark
+    public String getGeoHash() {
+        return nextMessage().getGeoHash();
+    }
+
+    @Benchmark
+    public String vertexiumGeoHash() {
+        Message next = nextMessage();
+        return new GeoHash(next.getLat(), next.getLng(), Message.GEOHASH_PRECISION).getHash();
+    }
+
+    // Copying into the reused message clears its cached geohash, as parsing a new message would
+    private Message nextMessage() {
+        Message source = messages[next];
+        next = next + 1 == messages.length ? 0 : next + 1;
+        message.set(source.getEvent(), source.getTripId(), source.getLat(), source.getLng(), source.getEpoch());
+        return message;
+    }
+
+}
@@ -0,0 +1,66 @@
+package parser;
+
+
+import benchmarks.MessageMix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing a realistic mix of messages, both with {@link MessageParser#parseMessage(String)}, which allocates
+ * a message per call and throws on invalid messages, and with a reused parser and message as the ingest lanes do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageParserBenchmark {
+
+    @Param({"0.0", "0.02"})
+    public double invalidRatio;
+
+    private String[] messages;
+    private int next;
+
+    private final MessageParser parser = new MessageParser();
+    private final Message parsed = new Message();
+
+    @Setup
+    public void generateMessages() {
+        messages = MessageMix.generate(200, 60, invalidRatio, 42).toArray(new String[0]);
+    }
+
+    @Benchmark
+    public Object parseMessage() {
+        try {
+            return MessageParser.parseMessage(nextMessage());
+        } catch (InvalidMessageFormatException ex) {
+            return ex;
+        }
+    }
+
+    @Benchmark
+    public Object parseIntoReusedMessage() {
+        ParseError error = parser.parse(nextMessage(), parsed);
+        return error != null ? error : parsed;
+    }
+
+    private String nextMessage() {
+        String message = messages[next];
+        next = next + 1 == messages.length ? 0 : next + 1;
+        return message;
+    }
+
+}
@@ -0,0 +1,69 @@
+package subscriber;
+
+
+import benchmarks.MessageMix;
+import com.codahale.metrics.MetricRegistry;
+import benchmarks.NoOpPersistenceService;
+import db.MessagePersistenceService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures handling a realistic mix of messages against a persistence service which does nothing, both with a new
+ * {@link MessageHandler} per message, and with one handler reused for every message as the ingest lanes do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageHandlerBenchmark {
+
+    @Param({"0.0", "0.02"})
+    public double invalidRatio;
+
+    private String[] messages;
+    private int next;
+
+    private MessagePersistenceService service;
+    private MetricRegistry metrics;
+    private MessageHandler reusedHandler;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        messages = MessageMix.generate(200, 60, invalidRatio, 42).toArray(new String[0]);
+        service = new NoOpPersistenceService(blackhole);
+        metrics = new MetricRegistry();
+        reusedHandler = new MessageHandler(service, metrics);
+    }
+
+    @Benchmark
+    public void run() {
+        new MessageHandler(nextMessage(), service, metrics).run();
+    }
+
+    @Benchmark
+    public boolean handleWithReusedHandler() {
+        return reusedHandler.handle(nextMessage());
+    }
+
+    private String nextMessage() {
+        String message = messages[next];
+        next = next + 1 == messages.length ? 0 : next + 1;
+        return message;
+    }
+
+}
@@ -0,0 +1,186 @@
+package geo;
+
+
+/**
+ * Encodes lat/long points as geohashes held in a {@code long}, five bits per geohash character, with the first
+ * character in the most significant bits. A precision 9 geohash therefore takes 45 bits, and the geohash of any lower
+ * precision is a right shift away, so a hash only needs to be computed once per point and only needs to be turned
+ * into base32 characters when a string is actually required.
+ *
+ * The encoding repeats the interval halving of {@code org.locationtech.spatial4j.io.GeohashUtils} step for step, so
+ * the results are identical to it, including for points which lie exactly on a cell boundary.
+ */
+public final class GeoHashEncoder {
+
+    public static final int BITS_PER_CHAR = 5;
+
+    /**
+     * The highest precision which fits in a long.
+     */
+    public static final int MAX_PRECISION = 12;
+
+    private static final char[] BASE_32 = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'b', 'c', 'd', 'e', 'f', 'g',
+            'h', 'j', 'k', 'm', 'n', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z'
+    };
+
+    private static final int[] BASE_32_INDEX = new int[128];
+
+    static {
+        java.util.Arrays.fill(BASE_32_INDEX, -1);
+        for (int i = 0; i < BASE_32.length; i++) {
+            BASE_32_INDEX[BASE_32[i]] = i;
+        }
+    }
+
+    // Prevent unnecessary instantiations
+    private GeoHashEncoder() {
+    }
+
+    /**
+     * @param latitude the latitude of the point
+     * @param longitude the longitude of the point
+     * @param precision the number of geohash characters, between 1 and {@link #MAX_PRECISION}
+     * @return the geohash bits of the point, right aligned
+     */
+    public static long encode(double latitude, double longitude, int precision) {
+        checkPrecision(precision);
+        double minLat = -90.0;
+        double maxLat = 90.0;
+        double minLng = -180.0;
+        double maxLng = 180.0;
+
+        long hash = 0;
+        int bits = precision * BITS_PER_CHAR;
+        for (int i = 0; i < bits; i++) {
+            hash <<= 1;
+            if ((i & 1) == 0) {
+                double mid = (minLng + maxLng) / 2D;
+                if (longitude > mid) {
+                    hash |= 1;
+                    minLng = mid;
+                } else {
+                    maxLng = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2D;
+                if (latitude > mid) {
+                    hash |= 1;
+                    minLat = mid;
+                } else {
+                    maxLat = mid;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @param hash the geohash bits
+     * @param precision the precision of the hash
+     * @param prefixPrecision the precision of the prefix, no greater than {@code precision}
+     * @return the bits of the geohash prefix of the given precision
+     */
+    public static long prefix(long hash, int precision, int prefixPrecision) {
+        return hash >>> (BITS_PER_CHAR * (precision - prefixPrecision));
+    }
+
+    /**
+     * @param hash the geohash bits
+     * @param precision the precision of the hash
+     * @return the geohash as base32 characters
+     */
+    public static String toBase32(long hash, int precision) {
+        char[] chars = new char[precision];
+        toBase32(hash, precision, chars);
+        return new String(chars);
+    }
+
+    /**
+     * Writes the base32 characters of a geohash into the start of an array.
+     *
+     * @param hash the geohash bits
+     * @param precision the precision of the hash
+     * @param chars an array with room for at least {@code precision} characters
+     */
+    public static void toBase32(long hash, int precision, char[] chars) {
+        for (int i = precision - 1; i >= 0; i--) {
+            chars[i] = BASE_32[(int) (hash & 0x1f)];
+            hash >>>= BITS_PER_CHAR;
+        }
+    }
+
+    /**
+     * @param geoHash a geohash of base32 characters
+     * @return the geohash bits
+     * @throws IllegalArgumentException if the geohash contains a character which is not a geohash character
+     */
+    public static long fromBase32(String geoHash) {
+        checkPrecision(geoHash.length());
+        long hash = 0;
+        for (int i = 0; i < geoHash.length(); i++) {
+            char c = geoHash.charAt(i);
+            int value = c < BASE_32_INDEX.length ? BASE_32_INDEX[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException(String.format("Not a geohash character '%c' in: %s", c, geoHash));
+            }
+            hash = (hash << BITS_PER_CHAR) | value;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the bounds of the cell covered by a geohash.
+     *
+     * @param hash the geohash bits
+     * @param precision the precision of the hash
+     * @return the cell bounds as {minLat, maxLat, minLng, maxLng}
+     */
+    public static double[] decodeBounds(long hash, int precision) {
+        double minLat = -90.0;
+        double maxLat = 90.0;
+        double minLng = -180.0;
+        double maxLng = 180.0;
+
+        int bits = precision * BITS_PER_CHAR;
+        for (int i = 0; i < bits; i++) {
+            boolean set = ((hash >>> (bits - 1 - i)) & 1) == 1;
+            if ((i & 1) == 0) {
+                double mid = (minLng + maxLng) / 2D;
+                if (set) {
+                    minLng = mid;
+                } else {
+                    maxLng = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2D;
+                if (set) {
+                    minLat = mid;
+                } else {
+                    maxLat = mid;
+                }
+            }
+        }
+        return new double[] {minLat, maxLat, minLng, maxLng};
+    }
+
+    /**
+     * @param hash the geohash bits
+     * @return the bits of the 32 geohashes one character longer than the given geohash
+     */
+    public static long[] children(long hash) {
+        long[] children = new long[32];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = (hash << BITS_PER_CHAR) | i;
+        }
+        return children;
+    }
+
+    private static void checkPrecision(int precision) {
+        if (precision < 1 || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException(String.format("Geohash precision must be between 1 and %d: %d",
+                    MAX_PRECISION, precision));
+        }
+    }
+
+}
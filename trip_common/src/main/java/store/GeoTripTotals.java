@@ -0,0 +1,59 @@
+package store;
+
+
+/**
+ * The totals of the trips which started or ended in an area, see
+ * {@link TripStore#geoTripTotals(java.util.List, long, long)}.
+ */
+public final class GeoTripTotals {
+
+    private final long tripCount;
+    private final double fareTotal;
+    private final long startedCount;
+    private final long endedCount;
+    private final double endedFareTotal;
+
+    public GeoTripTotals(long tripCount, double fareTotal, long startedCount, long endedCount, double endedFareTotal) {
+        this.tripCount = tripCount;
+        this.fareTotal = fareTotal;
+        this.startedCount = startedCount;
+        this.endedCount = endedCount;
+        this.endedFareTotal = endedFareTotal;
+    }
+
+    /**
+     * @return the number of trips which started or ended in the area and started within the time range
+     */
+    public long getTripCount() {
+        return tripCount;
+    }
+
+    /**
+     * @return the total fare of the trips counted by {@link #getTripCount()}
+     */
+    public double getFareTotal() {
+        return fareTotal;
+    }
+
+    /**
+     * @return the number of trips which started in the area within the time range
+     */
+    public long getStartedCount() {
+        return startedCount;
+    }
+
+    /**
+     * @return the number of trips which ended in the area within the time range
+     */
+    public long getEndedCount() {
+        return endedCount;
+    }
+
+    /**
+     * @return the total fare of the trips counted by {@link #getEndedCount()}
+     */
+    public double getEndedFareTotal() {
+        return endedFareTotal;
+    }
+
+}
@@ -0,0 +1,383 @@
+package store;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records, kept in a directory of memory-mapped segment files of {@code segmentBytes} each.
+ * Appending a record copies it into the mapped segment, so it takes no system call and survives the process crashing
+ * once it returns; it only survives the machine crashing once the segment has been forced to disk, see
+ * {@link #force()}.
+ *
+ * Every record is written as {@code [length][crc32][payload]}, the length last, so a reader never sees a length before
+ * the payload it describes. A length of 0 marks the end of the log, and a length of {@value #NEXT_SEGMENT} marks the
+ * end of a full segment, which is only written once the next segment exists. A record whose checksum does not match
+ * was torn by a crash: when the log is opened for writing, the log is cut off before it.
+ *
+ * One process at a time may open the log for writing, which any number of processes may read by opening it read-only
+ * and following the records as they are appended, see {@link #readNew(Consumer)}. A reader can remember how far it
+ * has read, see {@link #position()}, and start from there when it opens the log again, once the writer has deleted the
+ * segments before it, see {@link #deleteSegmentsBefore(long)}.
+ */
+public final class SegmentLog implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentLog.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOCK_FILE = "writer.lock";
+    private static final int HEADER_BYTES = 8;
+    private static final int NEXT_SEGMENT = -1;
+    private static final int WIPE_CHUNK_BYTES = 64 * 1024;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final boolean writable;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final List<Path> segments = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+
+    // The segment being read, and appended to if the log is writable. It is only replaced once the segment before it
+    // has been forced, so another thread forcing the log never skips a record.
+    private volatile MappedByteBuffer segment;
+    private int segmentNumber = -1;
+
+    private SegmentLog(Path directory, int segmentBytes, boolean writable) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.writable = writable;
+        if (writable) {
+            Files.createDirectories(directory);
+            lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            lock = lockChannel.tryLock();
+            if (lock == null) {
+                lockChannel.close();
+                throw new IOException(String.format("The log in %s is already open for writing", directory));
+            }
+        } else {
+            lockChannel = null;
+            lock = null;
+        }
+    }
+
+    /**
+     * Opens the log for appending, creating it if it does not exist, and hands every record already in it to the
+     * consumer, see {@link #readNew(Consumer)}. A torn record at the end of the log is wiped out, so the next record
+     * is appended in its place.
+     *
+     * @param segmentBytes the size of a segment file, which must hold the largest record
+     */
+    public static SegmentLog openForWriting(Path directory, int segmentBytes, Consumer<ByteBuffer> recovered)
+            throws IOException {
+        SegmentLog log = new SegmentLog(directory, segmentBytes, true);
+        try {
+            log.listSegments();
+            if (log.segments.isEmpty()) {
+                log.segments.add(directory.resolve(segmentName(0)));
+            }
+            log.segment = log.mapSegment(log.segments.get(0));
+            log.segmentNumber = segmentNumber(log.segments.get(0));
+            log.readNew(recovered);
+        } catch (IOException | RuntimeException ex) {
+            log.close();
+            throw ex;
+        }
+        return log;
+    }
+
+    /**
+     * Opens a log, which another process may be appending to, for reading.
+     */
+    public static SegmentLog openForReading(Path directory) throws IOException {
+        SegmentLog log = new SegmentLog(directory, 0, false);
+        log.listSegments();
+        return log;
+    }
+
+    /**
+     * Opens a log for reading from a position a reader had read up to. If the segment of the position has been
+     * deleted, the log is read from the first segment after it.
+     *
+     * @param position a position returned by {@link #position()}
+     */
+    public static SegmentLog openForReading(Path directory, long position) throws IOException {
+        SegmentLog log = openForReading(directory);
+        int number = (int) (position >>> 32);
+        for (Path path : log.segments) {
+            if (segmentNumber(path) == number && Files.size(path) > 0) {
+                log.segment = log.mapSegment(path);
+                log.segmentNumber = number;
+                log.segment.position((int) position);
+                return log;
+            }
+        }
+        // The first segment from the position's on is mapped by the first read
+        log.segmentNumber = number - 1;
+        return log;
+    }
+
+    /**
+     * Hands the payload of every record which has been appended since the last call to the consumer, in the order
+     * they were appended. The payload is only valid until the consumer returns.
+     *
+     * @return the number of records read
+     */
+    public long readNew(Consumer<ByteBuffer> consumer) throws IOException {
+        if (segment == null && !mapNextSegment()) {
+            return 0;
+        }
+        long read = 0;
+        while (true) {
+            int position = segment.position();
+            // The marker of the end of a segment may be in its last 4 bytes
+            int length = segment.remaining() >= 4 ? segment.getInt(position) : 0;
+            if (length == NEXT_SEGMENT) {
+                if (!mapNextSegment()) {
+                    // The end of the segment is only marked once the next one exists, so it is still being created
+                    return read;
+                }
+                continue;
+            }
+            if (length <= 0 || length > segment.capacity() - position - HEADER_BYTES
+                    || !checksumMatches(position, length)) {
+                if (length != 0 && writable) {
+                    logger.warn(String.format("Cut off a torn record at %d of %s", position, segmentName(segmentNumber)));
+                    wipe(position);
+                }
+                return read;
+            }
+            ByteBuffer payload = segment.duplicate();
+            payload.position(position + HEADER_BYTES).limit(position + HEADER_BYTES + length);
+            consumer.accept(payload.slice());
+            segment.position(position + HEADER_BYTES + length);
+            read++;
+        }
+    }
+
+    /**
+     * Appends a record, rolling over to a new segment if the current one cannot hold it.
+     *
+     * @param payload the record, from its position to its limit
+     */
+    public void append(ByteBuffer payload) {
+        int length = payload.remaining();
+        if (length + HEADER_BYTES + 4 > segmentBytes) {
+            throw new IllegalArgumentException(String.format("A record of %d bytes does not fit in a segment of %d",
+                    length, segmentBytes));
+        }
+        // Keep room for the marker of the end of the segment
+        if (segment.remaining() < length + HEADER_BYTES + 4) {
+            rollOver();
+        }
+        int position = segment.position();
+        crc.reset();
+        crc.update(payload.duplicate());
+        segment.putInt(position + 4, (int) crc.getValue());
+        ByteBuffer target = segment.duplicate();
+        target.position(position + HEADER_BYTES);
+        target.put(payload);
+        segment.putInt(position, length);
+        segment.position(position + HEADER_BYTES + length);
+    }
+
+    /**
+     * @return the position of the next record to be read, which the log can be opened for reading from, see
+     * {@link #openForReading(Path, long)}. The number of the segment is in the high 32 bits and the offset in it in
+     * the low 32 bits, so positions sort in the order the records were appended.
+     */
+    public long position() {
+        if (segment == null) {
+            // Nothing has been read yet, so the next record is at the start of the next segment
+            return (long) (segmentNumber + 1) << 32;
+        }
+        return ((long) segmentNumber << 32) | segment.position();
+    }
+
+    /**
+     * Writes the appended records of the current segment to disk. The segments before it were forced when they were
+     * rolled over. May be called by another thread than the one appending, and then writes at least the records
+     * appended before it was called.
+     */
+    public void force() {
+        MappedByteBuffer current = segment;
+        if (current != null && writable) {
+            current.force();
+        }
+    }
+
+    /**
+     * Deletes the segments which hold no record at or after the position, i.e. which every reader has read past. The
+     * segment being appended to is never deleted.
+     *
+     * @param position a position returned by {@link #position()}
+     * @return the number of segments deleted
+     */
+    public int deleteSegmentsBefore(long position) throws IOException {
+        if (!writable) {
+            throw new IllegalStateException("Only the writer may delete segments");
+        }
+        int before = Math.min((int) (position >>> 32), segmentNumber);
+        int deleted = 0;
+        Iterator<Path> it = segments.iterator();
+        while (it.hasNext()) {
+            Path path = it.next();
+            if (segmentNumber(path) >= before) {
+                break;
+            }
+            Files.deleteIfExists(path);
+            it.remove();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * @return the number of bytes the segments of the log take
+     */
+    public long sizeBytes() {
+        long size = 0;
+        for (Path path : segments) {
+            try {
+                size += Files.size(path);
+            } catch (IOException ex) {
+                // A segment which cannot be read takes no space as far as this is concerned
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        segment = null;
+        if (lock != null) {
+            lock.release();
+            lockChannel.close();
+        }
+    }
+
+    // Segments are numbered on from the last one, as the ones before it may have been deleted
+    private void rollOver() {
+        MappedByteBuffer full = segment;
+        int end = full.position();
+        Path path = directory.resolve(segmentName(segmentNumber + 1));
+        MappedByteBuffer next;
+        try {
+            next = mapSegment(path);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to create a new segment", ex);
+        }
+        segments.add(path);
+        full.putInt(end, NEXT_SEGMENT);
+        full.force();
+        segment = next;
+        segmentNumber++;
+    }
+
+    private boolean mapNextSegment() throws IOException {
+        Path next = segmentAfter(segmentNumber);
+        if (next == null) {
+            listSegments();
+            next = segmentAfter(segmentNumber);
+            if (next == null) {
+                return false;
+            }
+        }
+        if (!writable && Files.size(next) == 0) {
+            // The writer has created the file but not yet sized it
+            return false;
+        }
+        segment = mapSegment(next);
+        segmentNumber = segmentNumber(next);
+        return true;
+    }
+
+    private Path segmentAfter(int number) {
+        for (Path path : segments) {
+            if (segmentNumber(path) > number) {
+                return path;
+            }
+        }
+        return null;
+    }
+
+    private MappedByteBuffer mapSegment(Path path) throws IOException {
+        if (writable) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                // Mapping past the end of the file grows it, and the bytes it grows by are zero
+                long size = Math.max(channel.size(), segmentBytes);
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private void listSegments() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        List<Path> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            files.forEach(found::add);
+        }
+        // The segment numbers are zero padded, so their names sort in the order they were created
+        Collections.sort(found);
+        segments.clear();
+        segments.addAll(found);
+    }
+
+    private boolean checksumMatches(int position, int length) {
+        ByteBuffer payload = segment.duplicate();
+        payload.position(position + HEADER_BYTES).limit(position + HEADER_BYTES + length);
+        crc.reset();
+        crc.update(payload);
+        return (int) crc.getValue() == segment.getInt(position + 4);
+    }
+
+    /**
+     * Zeroes the segment from the position, so no part of a torn record can be read once records are appended after
+     * it.
+     */
+    private void wipe(int position) {
+        ByteBuffer tail = segment.duplicate();
+        tail.position(position);
+        byte[] zeros = new byte[Math.min(WIPE_CHUNK_BYTES, tail.remaining())];
+        while (tail.hasRemaining()) {
+            tail.put(zeros, 0, Math.min(zeros.length, tail.remaining()));
+        }
+        segment.force();
+    }
+
+    private static String segmentName(int number) {
+        return String.format("%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+    }
+
+    private static int segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+}
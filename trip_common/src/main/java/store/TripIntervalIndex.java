@@ -0,0 +1,349 @@
+package store;
+
+
+import java.util.Arrays;
+
+/**
+ * Holds the (start time, end time) pairs of finished trips in memory and counts the trips which started at or after a
+ * time and finished at or before another, the same as
+ * {@code SELECT count(*) FROM time_trips WHERE start_time >= ? AND end_time <= ?}, in O(log n) time.
+ *
+ * The trips are sorted by start time, so the trips which started at or after a time are a suffix of them, found by a
+ * binary search. Their end times are replaced by their rank among the distinct end times and kept in a wavelet matrix,
+ * which counts the ranks below a bound in any range of positions with one rank query per bit of the rank. The index
+ * takes about {@code 16 + 1.5 * log2(n) / 8} bytes per trip: 8 for the start time, up to 8 for the distinct end time,
+ * and one bit per level of the wavelet matrix with a 32-bit rank for every 64 bits. 13 million trips take about 270MB.
+ *
+ * The wavelet matrix cannot be changed once built, so trips which finish later are appended to a pending list, which
+ * is scanned by every count, and are merged into a newly built wavelet matrix once there are {@code maxPendingTrips}
+ * of them. Trips are added by one thread at a time, and counted by any number of threads without locking.
+ */
+public final class TripIntervalIndex {
+
+    private static final int INITIAL_PENDING_CAPACITY = 1024;
+
+    private final int maxPendingTrips;
+    private volatile State state = new State(Snapshot.build(new long[0], new long[0], 0), new long[0], new long[0], 0);
+
+    public TripIntervalIndex(int maxPendingTrips) {
+        this.maxPendingTrips = maxPendingTrips;
+    }
+
+    /**
+     * Replaces every trip in the index.
+     *
+     * @param starts the start times of the trips, in any order
+     * @param ends the end times of the trips, in the same order as their start times
+     * @param size the number of trips in the arrays
+     */
+    public synchronized void load(long[] starts, long[] ends, int size) {
+        state = new State(Snapshot.build(starts, ends, size), new long[0], new long[0], 0);
+    }
+
+    /**
+     * Adds a trip which has finished, rebuilding the index once enough trips are pending.
+     */
+    public synchronized void add(long start, long end) {
+        State current = state;
+        long[] starts = current.pendingStarts;
+        long[] ends = current.pendingEnds;
+        int size = current.pendingSize;
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, Math.max(INITIAL_PENDING_CAPACITY, size * 2));
+            ends = Arrays.copyOf(ends, starts.length);
+        }
+        // The published state only reads up to its own size, so writing past it cannot be seen by a count
+        starts[size] = start;
+        ends[size] = end;
+        if (size + 1 >= maxPendingTrips) {
+            state = new State(current.snapshot.merge(starts, ends, size + 1), new long[0], new long[0], 0);
+        } else {
+            state = new State(current.snapshot, starts, ends, size + 1);
+        }
+    }
+
+    /**
+     * @return the number of trips which started at or after {@code from} and finished at or before {@code until}
+     */
+    public long count(long from, long until) {
+        State current = state;
+        long count = current.snapshot.count(from, until);
+        for (int i = 0; i < current.pendingSize; i++) {
+            if (current.pendingStarts[i] >= from && current.pendingEnds[i] <= until) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the earliest start time of any trip, or {@link Long#MAX_VALUE} if the index is empty
+     */
+    public long earliestStart() {
+        State current = state;
+        long earliest = current.snapshot.starts.length > 0 ? current.snapshot.starts[0] : Long.MAX_VALUE;
+        for (int i = 0; i < current.pendingSize; i++) {
+            earliest = Math.min(earliest, current.pendingStarts[i]);
+        }
+        return earliest;
+    }
+
+    public long size() {
+        State current = state;
+        return current.snapshot.starts.length + current.pendingSize;
+    }
+
+    public int pendingSize() {
+        return state.pendingSize;
+    }
+
+    /**
+     * @return the number of bytes held by the arrays of the index
+     */
+    public long estimateMemoryBytes() {
+        State current = state;
+        return current.snapshot.estimateMemoryBytes() + 16L * current.pendingStarts.length;
+    }
+
+    private static final class State {
+        private final Snapshot snapshot;
+        private final long[] pendingStarts;
+        private final long[] pendingEnds;
+        private final int pendingSize;
+
+        private State(Snapshot snapshot, long[] pendingStarts, long[] pendingEnds, int pendingSize) {
+            this.snapshot = snapshot;
+            this.pendingStarts = pendingStarts;
+            this.pendingEnds = pendingEnds;
+            this.pendingSize = pendingSize;
+        }
+    }
+
+    /**
+     * The trips sorted by start time, with the ranks of their end times in a wavelet matrix.
+     */
+    private static final class Snapshot {
+        private final long[] starts;
+        private final long[] distinctEnds;
+        private final WaveletMatrix endRanks;
+
+        private Snapshot(long[] starts, long[] distinctEnds, WaveletMatrix endRanks) {
+            this.starts = starts;
+            this.distinctEnds = distinctEnds;
+            this.endRanks = endRanks;
+        }
+
+        static Snapshot build(long[] starts, long[] ends, int size) {
+            long[] distinctEnds = distinct(ends, size);
+            long[] distinctStarts = distinct(starts, size);
+            // Both ranks fit in 32 bits, so sorting the trips by start time is a sort of one long per trip
+            long[] trips = new long[size];
+            for (int i = 0; i < size; i++) {
+                long startRank = Arrays.binarySearch(distinctStarts, starts[i]);
+                long endRank = Arrays.binarySearch(distinctEnds, ends[i]);
+                trips[i] = startRank << 32 | endRank;
+            }
+            Arrays.sort(trips);
+
+            long[] sortedStarts = new long[size];
+            int[] endRanks = new int[size];
+            for (int i = 0; i < size; i++) {
+                sortedStarts[i] = distinctStarts[(int) (trips[i] >>> 32)];
+                endRanks[i] = (int) trips[i];
+            }
+            return new Snapshot(sortedStarts, distinctEnds, new WaveletMatrix(endRanks, distinctEnds.length));
+        }
+
+        Snapshot merge(long[] pendingStarts, long[] pendingEnds, int pendingSize) {
+            int size = starts.length + pendingSize;
+            long[] allStarts = Arrays.copyOf(starts, size);
+            long[] allEnds = new long[size];
+            for (int i = 0; i < starts.length; i++) {
+                allEnds[i] = distinctEnds[endRanks.get(i)];
+            }
+            System.arraycopy(pendingStarts, 0, allStarts, starts.length, pendingSize);
+            System.arraycopy(pendingEnds, 0, allEnds, starts.length, pendingSize);
+            return build(allStarts, allEnds, size);
+        }
+
+        long count(long from, long until) {
+            int first = lowerBound(starts, from);
+            // The number of distinct end times at or before the bound, so every rank below it is counted
+            int endRankBound = upperBound(distinctEnds, until);
+            return endRanks.countLessThan(first, starts.length, endRankBound);
+        }
+
+        long estimateMemoryBytes() {
+            return 8L * starts.length + 8L * distinctEnds.length + endRanks.estimateMemoryBytes();
+        }
+
+        private static long[] distinct(long[] values, int size) {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            int distinct = 0;
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || sorted[i] != sorted[distinct - 1]) {
+                    sorted[distinct++] = sorted[i];
+                }
+            }
+            return Arrays.copyOf(sorted, distinct);
+        }
+
+        /**
+         * @return the index of the first value at or above the key, or the length of the array if there is none
+         */
+        private static int lowerBound(long[] sorted, long key) {
+            int low = 0;
+            int high = sorted.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sorted[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return the index of the first value above the key, or the length of the array if there is none
+         */
+        private static int upperBound(long[] sorted, long key) {
+            int low = 0;
+            int high = sorted.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sorted[mid] <= key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * A sequence of integers in {@code [0, limit)}, stored as one bit vector per bit of the integers, most significant
+     * first. Each level holds the bits of the integers ordered by the bits above it, those with a 0 bit first, so the
+     * integers within a range of positions which share their higher bits stay next to each other at every level.
+     */
+    static final class WaveletMatrix {
+
+        private final int size;
+        private final int levels;
+        private final long[][] bits;
+        // The number of 1 bits before each 64-bit word of a level
+        private final int[][] ranks;
+        private final int[] zeros;
+
+        WaveletMatrix(int[] values, int limit) {
+            this.size = values.length;
+            this.levels = Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(0, limit - 1)));
+            int words = (size + 63) >>> 6;
+            this.bits = new long[levels][words];
+            this.ranks = new int[levels][words + 1];
+            this.zeros = new int[levels];
+
+            int[] current = values.clone();
+            int[] next = new int[size];
+            for (int level = 0; level < levels; level++) {
+                int shift = levels - 1 - level;
+                long[] levelBits = bits[level];
+                int zeroCount = 0;
+                for (int i = 0; i < size; i++) {
+                    if ((current[i] >>> shift & 1) == 1) {
+                        levelBits[i >>> 6] |= 1L << (i & 63);
+                    } else {
+                        zeroCount++;
+                    }
+                }
+                zeros[level] = zeroCount;
+                for (int word = 0; word < words; word++) {
+                    ranks[level][word + 1] = ranks[level][word] + Long.bitCount(levelBits[word]);
+                }
+                // A stable partition by the bit: the integers with a 0 bit first, in the order they were in
+                int zeroIndex = 0;
+                int oneIndex = zeroCount;
+                for (int i = 0; i < size; i++) {
+                    if ((current[i] >>> shift & 1) == 1) {
+                        next[oneIndex++] = current[i];
+                    } else {
+                        next[zeroIndex++] = current[i];
+                    }
+                }
+                int[] swap = current;
+                current = next;
+                next = swap;
+            }
+        }
+
+        /**
+         * @return the integer at the position
+         */
+        int get(int position) {
+            int value = 0;
+            for (int level = 0; level < levels; level++) {
+                boolean one = (bits[level][position >>> 6] >>> (position & 63) & 1) == 1;
+                int onesBefore = rank1(level, position);
+                if (one) {
+                    value = value << 1 | 1;
+                    position = zeros[level] + onesBefore;
+                } else {
+                    value = value << 1;
+                    position = position - onesBefore;
+                }
+            }
+            return value;
+        }
+
+        /**
+         * @return the number of integers below {@code bound} at the positions {@code [from, to)}
+         */
+        int countLessThan(int from, int to, int bound) {
+            if (from >= to || bound <= 0) {
+                return 0;
+            }
+            if (bound >= 1L << levels) {
+                return to - from;
+            }
+            int count = 0;
+            for (int level = 0; level < levels; level++) {
+                int fromOnes = rank1(level, from);
+                int toOnes = rank1(level, to);
+                if ((bound >>> (levels - 1 - level) & 1) == 1) {
+                    // Every integer in the range with a 0 where the bound has a 1 is below the bound
+                    count += (to - toOnes) - (from - fromOnes);
+                    from = zeros[level] + fromOnes;
+                    to = zeros[level] + toOnes;
+                } else {
+                    from = from - fromOnes;
+                    to = to - toOnes;
+                }
+            }
+            return count;
+        }
+
+        long estimateMemoryBytes() {
+            long bytes = 4L * zeros.length;
+            for (int level = 0; level < levels; level++) {
+                bytes += 8L * bits[level].length + 4L * ranks[level].length;
+            }
+            return bytes;
+        }
+
+        /**
+         * @return the number of 1 bits of the level before the position
+         */
+        private int rank1(int level, int position) {
+            int word = position >>> 6;
+            int offset = position & 63;
+            if (offset == 0) {
+                return ranks[level][word];
+            }
+            return ranks[level][word] + Long.bitCount(bits[level][word] & ((1L << offset) - 1));
+        }
+    }
+
+}
@@ -0,0 +1,372 @@
+package store;
+
+
+import geo.GeoHashEncoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An embedded store of trip events, which answers the same queries as the PostgreSQL and Cassandra tables without a
+ * database. Every event is appended to a {@link SegmentLog}, and the indexes the queries read are kept in memory and
+ * built again from the log when the store is opened, so the log is the only state which survives a restart.
+ *
+ * The indexes are:
+ * <ul>
+ *     <li>three postings indexes, of the trips which visited, started in and ended in each geohash cell, sorted by
+ *     the cell's precision {@value #GEOHASH_PRECISION} geohash bits, so that the cells which share a prefix are a
+ *     range of the index, in the same way as the geohash range scans of the PostgreSQL queries;</li>
+ *     <li>a {@link TripIntervalIndex} of the start and end times of the finished trips.</li>
+ * </ul>
+ * Trips are numbered in the order they are first seen, and the postings hold these numbers, so that the trips of many
+ * cells are counted once each by setting their bits in a {@link BitSet}.
+ *
+ * The process which opens the store for writing appends the events. Any number of other processes may open it for
+ * reading, and {@link #refresh()} applies the events which have been appended since. Events are appended and applied
+ * by one thread at a time, and the queries run concurrently with each other.
+ */
+public final class TripStore implements AutoCloseable {
+
+    public static final byte BEGIN = 0;
+    public static final byte UPDATE = 1;
+    public static final byte END = 2;
+
+    // The precision of the geohashes of the events, which longer geohashes are cut down to when querying
+    public static final int GEOHASH_PRECISION = 9;
+
+    private static final long NO_TIME = Long.MIN_VALUE;
+    private static final long NO_CELL = -1;
+    private static final int INITIAL_TRIPS = 1024;
+    private static final int MAX_PENDING_TRIPS = 65536;
+    private static final int MAX_TRIP_ID_BYTES = Short.MAX_VALUE;
+    // event, epoch, geohash, has fare, fare and the length of the trip id
+    private static final int FIXED_RECORD_BYTES = 1 + 8 + 8 + 1 + 4 + 2;
+
+    private SegmentLog log;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private ByteBuffer record = ByteBuffer.allocate(256);
+
+    private final Map<String, Integer> tripNumbers = new HashMap<>();
+    private final NavigableMap<Long, Postings> visited = new TreeMap<>();
+    private final NavigableMap<Long, Postings> started = new TreeMap<>();
+    private final NavigableMap<Long, Postings> ended = new TreeMap<>();
+    private final TripIntervalIndex finished = new TripIntervalIndex(MAX_PENDING_TRIPS);
+    private long[] startTimes = new long[INITIAL_TRIPS];
+    private long[] endTimes = new long[INITIAL_TRIPS];
+    private float[] fares = new float[INITIAL_TRIPS];
+    private long[] lastCells = new long[INITIAL_TRIPS];
+    private long events;
+
+    private TripStore() {
+    }
+
+    /**
+     * Opens the store in the directory for appending events, creating it if it does not exist, and applies every event
+     * already in it.
+     *
+     * @param segmentBytes the size of a segment file of the log
+     */
+    public static TripStore openForWriting(Path directory, int segmentBytes) throws IOException {
+        TripStore store = new TripStore();
+        store.log = SegmentLog.openForWriting(directory, segmentBytes, store::apply);
+        return store;
+    }
+
+    /**
+     * Opens a store, which another process may be appending to, for reading, and applies every event in it.
+     */
+    public static TripStore openForReading(Path directory) throws IOException {
+        TripStore store = new TripStore();
+        store.log = SegmentLog.openForReading(directory);
+        store.refresh();
+        return store;
+    }
+
+    /**
+     * Appends an event and applies it to the indexes.
+     *
+     * @param event one of {@link #BEGIN}, {@link #UPDATE} or {@link #END}
+     * @param geoHashBits the bits of the precision {@value #GEOHASH_PRECISION} geohash of the event's location
+     * @param fare the fare of the trip, which is only kept if {@code hasFare} is set
+     */
+    public void append(byte event, String tripId, long geoHashBits, long epoch, boolean hasFare, float fare) {
+        byte[] id = tripId.getBytes(StandardCharsets.UTF_8);
+        if (id.length > MAX_TRIP_ID_BYTES) {
+            throw new IllegalArgumentException(String.format("The trip id is longer than %d bytes: %s",
+                    MAX_TRIP_ID_BYTES, tripId));
+        }
+        lock.writeLock().lock();
+        try {
+            if (record.capacity() < FIXED_RECORD_BYTES + id.length) {
+                record = ByteBuffer.allocate(FIXED_RECORD_BYTES + id.length);
+            }
+            record.clear();
+            record.put(event).putLong(epoch).putLong(geoHashBits).put((byte) (hasFare ? 1 : 0)).putFloat(fare)
+                    .putShort((short) id.length).put(id);
+            record.flip();
+            log.append(record);
+            apply(event, tripId, geoHashBits, epoch, hasFare, fare);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the events which the writing process has appended since the store was opened or last refreshed.
+     */
+    public void refresh() throws IOException {
+        lock.writeLock().lock();
+        try {
+            log.readNew(this::apply);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the appended events to disk, see {@link SegmentLog#force()}.
+     */
+    public void force() {
+        lock.writeLock().lock();
+        try {
+            log.force();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of distinct trips which have an event in any of the geohashes
+     */
+    public long countTrips(List<String> geoHashes) {
+        lock.readLock().lock();
+        try {
+            BitSet trips = new BitSet();
+            for (String geoHash : geoHashes) {
+                for (Postings postings : cellsWithPrefix(visited, geoHash).values()) {
+                    postings.addTo(trips);
+                }
+            }
+            return trips.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of trips which started at or after {@code from} and finished at or before {@code until}
+     */
+    public long countTrips(long from, long until) {
+        lock.readLock().lock();
+        try {
+            return finished.count(from, until);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Totals the trips which started or ended in any of the geohashes within the time range, see
+     * {@link GeoTripTotals}. A trip which started and ended in the area is counted once by the trip count.
+     */
+    public GeoTripTotals geoTripTotals(List<String> geoHashes, long from, long until) {
+        lock.readLock().lock();
+        try {
+            BitSet startedInArea = new BitSet();
+            BitSet endedInArea = new BitSet();
+            for (String geoHash : geoHashes) {
+                for (Postings postings : cellsWithPrefix(started, geoHash).values()) {
+                    postings.addTo(startedInArea);
+                }
+                for (Postings postings : cellsWithPrefix(ended, geoHash).values()) {
+                    postings.addTo(endedInArea);
+                }
+            }
+
+            long startedCount = 0;
+            for (int trip = startedInArea.nextSetBit(0); trip >= 0; trip = startedInArea.nextSetBit(trip + 1)) {
+                if (within(startTimes[trip], from, until)) {
+                    startedCount++;
+                }
+            }
+            long endedCount = 0;
+            double endedFareTotal = 0;
+            for (int trip = endedInArea.nextSetBit(0); trip >= 0; trip = endedInArea.nextSetBit(trip + 1)) {
+                if (within(endTimes[trip], from, until)) {
+                    endedCount++;
+                    endedFareTotal += fares[trip];
+                }
+            }
+
+            BitSet inArea = startedInArea;
+            inArea.or(endedInArea);
+            long tripCount = 0;
+            double fareTotal = 0;
+            for (int trip = inArea.nextSetBit(0); trip >= 0; trip = inArea.nextSetBit(trip + 1)) {
+                if (within(startTimes[trip], from, until)) {
+                    tripCount++;
+                    fareTotal += fares[trip];
+                }
+            }
+            return new GeoTripTotals(tripCount, fareTotal, startedCount, endedCount, endedFareTotal);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of events in the store
+     */
+    public long getEventCount() {
+        lock.readLock().lock();
+        try {
+            return events;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of distinct trips in the store
+     */
+    public int getTripCount() {
+        lock.readLock().lock();
+        try {
+            return tripNumbers.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes the segments of the log take
+     */
+    public long getLogSizeBytes() {
+        return log.sizeBytes();
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            log.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void apply(ByteBuffer record) {
+        byte event = record.get();
+        long epoch = record.getLong();
+        long geoHashBits = record.getLong();
+        boolean hasFare = record.get() == 1;
+        float fare = record.getFloat();
+        byte[] id = new byte[record.getShort()];
+        record.get(id);
+        apply(event, new String(id, StandardCharsets.UTF_8), geoHashBits, epoch, hasFare, fare);
+    }
+
+    /**
+     * Adds an event to the indexes. A repeated BEGIN or END event does not change the trip, in the same way as the
+     * PostgreSQL statements, so that the events may be delivered more than once.
+     */
+    private void apply(byte event, String tripId, long cell, long epoch, boolean hasFare, float fare) {
+        int trip = tripNumber(tripId);
+        if (lastCells[trip] != cell) {
+            postings(visited, cell).add(trip);
+            lastCells[trip] = cell;
+        }
+        if (event == BEGIN && startTimes[trip] == NO_TIME) {
+            startTimes[trip] = epoch;
+            postings(started, cell).add(trip);
+            if (endTimes[trip] != NO_TIME) {
+                finished.add(epoch, endTimes[trip]);
+            }
+        } else if (event == END && endTimes[trip] == NO_TIME) {
+            endTimes[trip] = epoch;
+            fares[trip] = hasFare ? fare : 0;
+            postings(ended, cell).add(trip);
+            if (startTimes[trip] != NO_TIME) {
+                finished.add(startTimes[trip], epoch);
+            }
+        }
+        events++;
+    }
+
+    private int tripNumber(String tripId) {
+        Integer number = tripNumbers.get(tripId);
+        if (number != null) {
+            return number;
+        }
+        int trip = tripNumbers.size();
+        if (trip == startTimes.length) {
+            int capacity = trip * 2;
+            startTimes = Arrays.copyOf(startTimes, capacity);
+            endTimes = Arrays.copyOf(endTimes, capacity);
+            fares = Arrays.copyOf(fares, capacity);
+            lastCells = Arrays.copyOf(lastCells, capacity);
+        }
+        startTimes[trip] = NO_TIME;
+        endTimes[trip] = NO_TIME;
+        lastCells[trip] = NO_CELL;
+        tripNumbers.put(tripId, trip);
+        return trip;
+    }
+
+    private static Postings postings(NavigableMap<Long, Postings> index, long cell) {
+        Postings postings = index.get(cell);
+        if (postings == null) {
+            postings = new Postings();
+            index.put(cell, postings);
+        }
+        return postings;
+    }
+
+    /**
+     * @return the cells of the index whose geohash starts with the geohash
+     */
+    static NavigableMap<Long, Postings> cellsWithPrefix(NavigableMap<Long, Postings> index, String geoHash) {
+        String prefix = geoHash.length() > GEOHASH_PRECISION ? geoHash.substring(0, GEOHASH_PRECISION) : geoHash;
+        int shift = GeoHashEncoder.BITS_PER_CHAR * (GEOHASH_PRECISION - prefix.length());
+        long bits = GeoHashEncoder.fromBase32(prefix);
+        return index.subMap(bits << shift, true, (bits + 1) << shift, false);
+    }
+
+    private static boolean within(long time, long from, long until) {
+        return time != NO_TIME && time >= from && time <= until;
+    }
+
+    /**
+     * The numbers of the trips of a cell, in the order they were added.
+     */
+    static final class Postings {
+
+        private int[] trips = new int[4];
+        private int size;
+
+        void add(int trip) {
+            if (size == trips.length) {
+                trips = Arrays.copyOf(trips, size * 2);
+            }
+            trips[size++] = trip;
+        }
+
+        void addTo(BitSet set) {
+            for (int i = 0; i < size; i++) {
+                set.set(trips[i]);
+            }
+        }
+    }
+
+}
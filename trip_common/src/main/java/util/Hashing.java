@@ -0,0 +1,40 @@
+package util;
+
+
+/**
+ * A 64-bit hash of strings which is stable across processes and JVM versions, unlike {@link String#hashCode()} which
+ * is only 32 bits wide. The characters are combined with FNV-1a and the result is put through the MurmurHash3
+ * finalizer, so that every input bit affects every output bit, which sketches built on the hash rely on.
+ */
+public final class Hashing {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Prevent unnecessary instantiations
+    private Hashing() {
+    }
+
+    public static long hash64(CharSequence value) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return mix64(hash);
+    }
+
+    /**
+     * The MurmurHash3 64-bit finalizer.
+     */
+    public static long mix64(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+}
@@ -0,0 +1,36 @@
+package util;
+
+
+/**
+ * How trip messages are spread over the shards of a Redis stream, which producers and subscribers must agree on.
+ * Every shard is a stream of its own, named after the stream followed by the index of the shard, e.g.
+ * {@code trip_updates:3}, and every entry holds the raw message in its {@link #MESSAGE_FIELD} field.
+ *
+ * Messages are sharded by trip, so all the events of a trip are read by the same reader in the order they were added,
+ * which the subscriber relies on to persist a trip's END after its BEGIN.
+ */
+public final class StreamShards {
+
+    public static final String MESSAGE_FIELD = "message";
+
+    // Prevent unnecessary instantiations
+    private StreamShards() {
+    }
+
+    /**
+     * @return the key of the stream of the shard
+     */
+    public static String key(String stream, int shard) {
+        return stream + ":" + shard;
+    }
+
+    /**
+     * @param tripId the id of the trip as it appears in the message
+     * @param shards the number of shards of the stream
+     * @return the index of the shard the trip's messages are added to
+     */
+    public static int shardOf(CharSequence tripId, int shards) {
+        return (int) Long.remainderUnsigned(Hashing.hash64(tripId), shards);
+    }
+
+}
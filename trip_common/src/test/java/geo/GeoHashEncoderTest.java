@@ -0,0 +1,83 @@
+package geo;
+
+import org.junit.Test;
+import org.locationtech.spatial4j.context.SpatialContext;
+import org.locationtech.spatial4j.io.GeohashUtils;
+import org.locationtech.spatial4j.shape.Rectangle;
+
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class GeoHashEncoderTest {
+
+    @Test
+    public void shouldMatchGeohashUtilsForRandomPoints() {
+        Random random = new Random(11);
+        for (int i = 0; i < 100000; i++) {
+            double lat = random.nextDouble() * 180 - 90;
+            double lng = random.nextDouble() * 360 - 180;
+            int precision = 1 + random.nextInt(GeoHashEncoder.MAX_PRECISION);
+
+            String expected = GeohashUtils.encodeLatLon(lat, lng, precision);
+            assertThat(GeoHashEncoder.toBase32(GeoHashEncoder.encode(lat, lng, precision), precision), is(expected));
+        }
+    }
+
+    @Test
+    public void shouldMatchGeohashUtilsOnCellBoundaries() {
+        double[] lats = {-90, -45, 0, 45, 90, 37.79, 22.5, 11.25};
+        double[] lngs = {-180, -90, 0, 90, 180, -122.4, 45, 22.5};
+        for (double lat : lats) {
+            for (double lng : lngs) {
+                String expected = GeohashUtils.encodeLatLon(lat, lng, 9);
+                assertThat(GeoHashEncoder.toBase32(GeoHashEncoder.encode(lat, lng, 9), 9), is(expected));
+            }
+        }
+    }
+
+    @Test
+    public void shouldDerivePrefixesByShifting() {
+        long hash = GeoHashEncoder.encode(37.7749, -122.4194, 9);
+        String geoHash = GeoHashEncoder.toBase32(hash, 9);
+
+        for (int precision = 1; precision <= 9; precision++) {
+            long prefix = GeoHashEncoder.prefix(hash, 9, precision);
+            assertThat(GeoHashEncoder.toBase32(prefix, precision), is(geoHash.substring(0, precision)));
+        }
+    }
+
+    @Test
+    public void shouldRoundTripBase32() {
+        assertThat(GeoHashEncoder.toBase32(GeoHashEncoder.fromBase32("9q8yyk8yt"), 9), is("9q8yyk8yt"));
+        assertThat(GeoHashEncoder.fromBase32("0"), is(0L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNonGeohashCharacters() {
+        GeoHashEncoder.fromBase32("9qa");
+    }
+
+    @Test
+    public void shouldDecodeBoundsMatchingGeohashUtils() {
+        double[] bounds = GeoHashEncoder.decodeBounds(GeoHashEncoder.fromBase32("9q8y"), 4);
+        Rectangle expected = GeohashUtils.decodeBoundary("9q8y", SpatialContext.GEO);
+
+        assertThat(bounds[0], is(expected.getMinY()));
+        assertThat(bounds[1], is(expected.getMaxY()));
+        assertThat(bounds[2], is(expected.getMinX()));
+        assertThat(bounds[3], is(expected.getMaxX()));
+    }
+
+    @Test
+    public void shouldListChildrenInGeohashOrder() {
+        long[] children = GeoHashEncoder.children(GeoHashEncoder.fromBase32("9q"));
+
+        assertThat(children.length, is(32));
+        assertThat(GeoHashEncoder.toBase32(children[0], 3), is("9q0"));
+        assertThat(GeoHashEncoder.toBase32(children[31], 3), is("9qz"));
+    }
+
+}
@@ -0,0 +1,73 @@
+package sketch;
+
+import org.junit.Test;
+import util.Hashing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class HyperLogLogTest {
+
+    @Test
+    public void shouldEstimateWithinThreeStandardErrors() {
+        for (int distinct : new int[] {10, 1000, 100000}) {
+            HyperLogLog sketch = new HyperLogLog(12);
+            for (int i = 0; i < distinct; i++) {
+                sketch.add(Hashing.hash64("trip-" + i));
+            }
+            double error = Math.abs(sketch.estimate() - distinct) / (double) distinct;
+            assertThat(error < 3 * sketch.standardError(), is(true));
+        }
+    }
+
+    @Test
+    public void shouldNotCountAValueTwice() {
+        HyperLogLog sketch = new HyperLogLog(12);
+
+        assertThat(sketch.add(Hashing.hash64("432")), is(true));
+        assertThat(sketch.add(Hashing.hash64("432")), is(false));
+        assertThat(sketch.estimate(), is(1L));
+    }
+
+    @Test
+    public void shouldMergeOverlappingSketchesIntoTheirUnion() {
+        HyperLogLog first = new HyperLogLog(12);
+        HyperLogLog second = new HyperLogLog(12);
+        for (int i = 0; i < 6000; i++) {
+            first.add(Hashing.hash64("trip-" + i));
+        }
+        for (int i = 4000; i < 10000; i++) {
+            second.add(Hashing.hash64("trip-" + i));
+        }
+
+        first.merge(second);
+
+        double error = Math.abs(first.estimate() - 10000) / 10000.0;
+        assertThat(error < 3 * first.standardError(), is(true));
+    }
+
+    @Test
+    public void shouldRoundTripThroughBytes() {
+        HyperLogLog sketch = new HyperLogLog(10);
+        for (int i = 0; i < 500; i++) {
+            sketch.add(Hashing.hash64("trip-" + i));
+        }
+
+        HyperLogLog copy = HyperLogLog.fromBytes(sketch.toBytes());
+
+        assertThat(copy.getPrecision(), is(10));
+        assertThat(copy.estimate(), is(sketch.estimate()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectBytesWhichAreNotASketch() {
+        HyperLogLog.fromBytes(new byte[] {12, 0, 0});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectMergingDifferentPrecisions() {
+        new HyperLogLog(10).merge(new HyperLogLog(12));
+    }
+
+}
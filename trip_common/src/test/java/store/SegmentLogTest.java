@@ -0,0 +1,158 @@
+package store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class SegmentLogTest {
+
+    private static final int SEGMENT_BYTES = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldReadTheRecordsAgainWhenReopened() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (SegmentLog log = SegmentLog.openForWriting(directory, SEGMENT_BYTES, record -> { })) {
+            for (int i = 0; i < 10; i++) {
+                log.append(encode("record-" + i));
+            }
+        }
+
+        List<String> recovered = new ArrayList<>();
+        try (SegmentLog log = SegmentLog.openForWriting(directory, SEGMENT_BYTES, record -> recovered.add(decode(record)))) {
+            log.append(encode("record-10"));
+        }
+
+        List<String> read = new ArrayList<>();
+        try (SegmentLog log = SegmentLog.openForReading(directory)) {
+            log.readNew(record -> read.add(decode(record)));
+        }
+        assertThat(recovered.size(), is(10));
+        assertThat(read.size(), is(11));
+        assertThat(read.get(10), is("record-10"));
+    }
+
+    @Test
+    public void shouldCutOffATornRecordWhenReopened() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (SegmentLog log = SegmentLog.openForWriting(directory, SEGMENT_BYTES, record -> { })) {
+            log.append(encode("first"));
+            log.append(encode("second"));
+        }
+        // Corrupt the payload of the second record, as if the process crashed while writing it
+        try (RandomAccessFile segment = new RandomAccessFile(directory.resolve("segment-0000000000.log").toFile(), "rw")) {
+            segment.seek(8 + 5 + 8);
+            segment.write('X');
+        }
+
+        List<String> recovered = new ArrayList<>();
+        try (SegmentLog log = SegmentLog.openForWriting(directory, SEGMENT_BYTES, record -> recovered.add(decode(record)))) {
+            log.append(encode("third"));
+        }
+
+        List<String> read = new ArrayList<>();
+        try (SegmentLog log = SegmentLog.openForReading(directory)) {
+            log.readNew(record -> read.add(decode(record)));
+        }
+        assertThat(recovered, is(Arrays.asList("first")));
+        assertThat(read, is(Arrays.asList("first", "third")));
+    }
+
+    @Test
+    public void shouldFollowTheRecordsAppendedByTheWriter() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<String> read = new ArrayList<>();
+        try (SegmentLog writer = SegmentLog.openForWriting(directory, SEGMENT_BYTES, record -> { });
+             SegmentLog reader = SegmentLog.openForReading(directory)) {
+            writer.append(encode("first"));
+            assertThat(reader.readNew(record -> read.add(decode(record))), is(1L));
+            // Enough records to fill several segments
+            for (int i = 0; i < 20; i++) {
+                writer.append(encode("record-" + i));
+            }
+            assertThat(reader.readNew(record -> read.add(decode(record))), is(20L));
+            assertThat(reader.readNew(record -> read.add(decode(record))), is(0L));
+        }
+        assertThat(read.get(20), is("record-19"));
+    }
+
+    @Test
+    public void shouldStartReadingFromThePositionAReaderHadReadUpTo() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        long position;
+        try (SegmentLog writer = SegmentLog.openForWriting(directory, SEGMENT_BYTES, record -> { });
+             SegmentLog reader = SegmentLog.openForReading(directory)) {
+            for (int i = 0; i < 5; i++) {
+                writer.append(encode("record-" + i));
+            }
+            reader.readNew(record -> { });
+            position = reader.position();
+            writer.append(encode("record-5"));
+        }
+
+        List<String> read = new ArrayList<>();
+        try (SegmentLog reader = SegmentLog.openForReading(directory, position)) {
+            reader.readNew(record -> read.add(decode(record)));
+        }
+        assertThat(read, is(Arrays.asList("record-5")));
+    }
+
+    @Test
+    public void shouldDeleteTheSegmentsBeforeAPositionAndCarryOnNumberingTheSegments() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<String> read = new ArrayList<>();
+        try (SegmentLog writer = SegmentLog.openForWriting(directory, SEGMENT_BYTES, record -> { });
+             SegmentLog reader = SegmentLog.openForReading(directory)) {
+            for (int i = 0; i < 10; i++) {
+                writer.append(encode("record-" + i));
+            }
+            reader.readNew(record -> { });
+            long position = reader.position();
+            assertThat(writer.deleteSegmentsBefore(position) > 0, is(true));
+            assertThat(Files.exists(directory.resolve("segment-0000000000.log")), is(false));
+
+            writer.append(encode("record-10"));
+            reader.readNew(record -> read.add(decode(record)));
+        }
+
+        List<String> recovered = new ArrayList<>();
+        try (SegmentLog log = SegmentLog.openForWriting(directory, SEGMENT_BYTES, record -> recovered.add(decode(record)))) {
+            for (int i = 11; i < 20; i++) {
+                log.append(encode("record-" + i));
+            }
+        }
+        assertThat(read, is(Arrays.asList("record-10")));
+        assertThat(recovered.get(recovered.size() - 1), is("record-10"));
+        try (SegmentLog log = SegmentLog.openForReading(directory)) {
+            List<String> all = new ArrayList<>();
+            log.readNew(record -> all.add(decode(record)));
+            assertThat(all.get(all.size() - 1), is("record-19"));
+        }
+    }
+
+    private static ByteBuffer encode(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(ByteBuffer record) {
+        byte[] bytes = new byte[record.remaining()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,108 @@
+package store;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class TripIntervalIndexTest {
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void shouldCountTheSameTripsAsScanningThem() {
+        long[] starts = new long[2000];
+        long[] ends = new long[2000];
+        randomTrips(starts, ends);
+        TripIntervalIndex index = new TripIntervalIndex(1000);
+        index.load(starts, ends, starts.length);
+
+        for (int i = 0; i < 500; i++) {
+            long from = random.nextInt(11000);
+            long until = random.nextInt(11000);
+            assertThat(index.count(from, until), is(bruteForceCount(starts, ends, starts.length, from, until)));
+        }
+        assertThat(index.count(Long.MIN_VALUE, Long.MAX_VALUE), is(2000L));
+    }
+
+    @Test
+    public void shouldCountTripsAddedAfterLoadingAndAfterRebuilding() {
+        long[] starts = new long[1000];
+        long[] ends = new long[1000];
+        randomTrips(starts, ends);
+        TripIntervalIndex index = new TripIntervalIndex(100);
+        index.load(starts, ends, 500);
+
+        for (int size = 500; size < 1000; size++) {
+            index.add(starts[size], ends[size]);
+            long from = random.nextInt(11000);
+            long until = random.nextInt(11000);
+            assertThat(index.count(from, until), is(bruteForceCount(starts, ends, size + 1, from, until)));
+        }
+        assertThat(index.size(), is(1000L));
+        assertThat(index.pendingSize() < 100, is(true));
+    }
+
+    @Test
+    public void shouldCountNothingWhenEmpty() {
+        TripIntervalIndex index = new TripIntervalIndex(100);
+
+        assertThat(index.count(0, Long.MAX_VALUE), is(0L));
+        assertThat(index.earliestStart(), is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void shouldReturnTheIntegersOfTheWaveletMatrix() {
+        int[] values = new int[300];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(37);
+        }
+        TripIntervalIndex.WaveletMatrix matrix = new TripIntervalIndex.WaveletMatrix(values, 37);
+
+        for (int i = 0; i < values.length; i++) {
+            assertThat(matrix.get(i), is(values[i]));
+        }
+        int below = 0;
+        for (int i = 100; i < 200; i++) {
+            below += values[i] < 20 ? 1 : 0;
+        }
+        assertThat(matrix.countLessThan(100, 200, 20), is(below));
+    }
+
+    @Test
+    public void shouldTakeAboutTwentyBytesPerTrip() {
+        int trips = 1 << 16;
+        long[] starts = new long[trips];
+        long[] ends = new long[trips];
+        for (int i = 0; i < trips; i++) {
+            starts[i] = i;
+            ends[i] = i + 1 + random.nextInt(1000);
+        }
+        TripIntervalIndex index = new TripIntervalIndex(100);
+        index.load(starts, ends, trips);
+
+        // 8 bytes for the start time, at most 8 for the end time and 1.5 bits for each of 16 levels
+        assertThat(index.estimateMemoryBytes() <= trips * (16 + 16 * 1.5 / 8) + 1024, is(true));
+    }
+
+    private void randomTrips(long[] starts, long[] ends) {
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = random.nextInt(10000);
+            ends[i] = starts[i] + random.nextInt(1000);
+        }
+    }
+
+    private static long bruteForceCount(long[] starts, long[] ends, int size, long from, long until) {
+        long count = 0;
+        for (int i = 0; i < size; i++) {
+            if (starts[i] >= from && ends[i] <= until) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
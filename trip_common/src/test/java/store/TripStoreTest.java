@@ -0,0 +1,117 @@
+package store;
+
+import geo.GeoHashEncoder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class TripStoreTest {
+
+    private static final int SEGMENT_BYTES = 1 << 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldCountTheTripsWhichVisitedTheGeohashes() throws Exception {
+        try (TripStore store = TripStore.openForWriting(folder.getRoot().toPath(), SEGMENT_BYTES)) {
+            appendTrips(store);
+
+            assertThat(store.countTrips(Collections.singletonList("u33d")), is(2L));
+            assertThat(store.countTrips(Arrays.asList("u33dc0c", "u33dbfc")), is(2L));
+            assertThat(store.countTrips(Collections.singletonList("9q8y")), is(2L));
+            assertThat(store.countTrips(Collections.singletonList("gcpv")), is(0L));
+        }
+    }
+
+    @Test
+    public void shouldCountTheTripsWhichFinishedWithinTheTimeRange() throws Exception {
+        try (TripStore store = TripStore.openForWriting(folder.getRoot().toPath(), SEGMENT_BYTES)) {
+            appendTrips(store);
+
+            assertThat(store.countTrips(1000, 4000), is(2L));
+            assertThat(store.countTrips(1500, 4000), is(1L));
+            assertThat(store.countTrips(1000, 2999), is(0L));
+        }
+    }
+
+    @Test
+    public void shouldTotalTheTripsWhichStartedOrEndedInTheGeohashes() throws Exception {
+        try (TripStore store = TripStore.openForWriting(folder.getRoot().toPath(), SEGMENT_BYTES)) {
+            appendTrips(store);
+
+            GeoTripTotals totals = store.geoTripTotals(Collections.singletonList("u33d"), Long.MIN_VALUE, Long.MAX_VALUE);
+
+            // The second trip started in the geohash, so its fare counts even though it ended elsewhere
+            assertThat(totals.getTripCount(), is(2L));
+            assertThat(totals.getFareTotal(), is(32.5));
+            assertThat(totals.getStartedCount(), is(2L));
+            assertThat(totals.getEndedCount(), is(1L));
+            assertThat(totals.getEndedFareTotal(), is(12.5));
+        }
+    }
+
+    @Test
+    public void shouldNotCountARepeatedEventTwice() throws Exception {
+        try (TripStore store = TripStore.openForWriting(folder.getRoot().toPath(), SEGMENT_BYTES)) {
+            appendTrips(store);
+            store.append(TripStore.END, "trip-1", hash("u33dc0cpv"), 3500, true, 99);
+
+            assertThat(store.countTrips(1000, 4000), is(2L));
+            assertThat(store.geoTripTotals(Collections.singletonList("u33d"), Long.MIN_VALUE, Long.MAX_VALUE)
+                    .getFareTotal(), is(32.5));
+        }
+    }
+
+    @Test
+    public void shouldRebuildTheIndexesWhenReopened() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (TripStore store = TripStore.openForWriting(directory, SEGMENT_BYTES)) {
+            appendTrips(store);
+        }
+
+        try (TripStore store = TripStore.openForWriting(directory, SEGMENT_BYTES)) {
+            assertThat(store.getEventCount(), is(7L));
+            assertThat(store.getTripCount(), is(3));
+            assertThat(store.countTrips(Collections.singletonList("u33d")), is(2L));
+            assertThat(store.countTrips(1000, 4000), is(2L));
+        }
+    }
+
+    @Test
+    public void shouldApplyTheEventsAppendedByAnotherProcessWhenRefreshed() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (TripStore writer = TripStore.openForWriting(directory, SEGMENT_BYTES);
+             TripStore reader = TripStore.openForReading(directory)) {
+            appendTrips(writer);
+            assertThat(reader.countTrips(1000, 4000), is(0L));
+
+            reader.refresh();
+            assertThat(reader.countTrips(1000, 4000), is(2L));
+            assertThat(reader.countTrips(Collections.singletonList("u33d")), is(2L));
+        }
+    }
+
+    private static void appendTrips(TripStore store) {
+        store.append(TripStore.BEGIN, "trip-1", hash("u33dc0cpn"), 1000, false, 0);
+        store.append(TripStore.UPDATE, "trip-1", hash("u33dbfcyz"), 2000, false, 0);
+        store.append(TripStore.END, "trip-1", hash("u33dc0cpv"), 3000, true, 12.5f);
+        store.append(TripStore.BEGIN, "trip-2", hash("u33dc0cpn"), 2000, false, 0);
+        store.append(TripStore.END, "trip-2", hash("9q8yyk8yt"), 4000, true, 20);
+        store.append(TripStore.BEGIN, "trip-3", hash("9q8yyk8yt"), 5000, false, 0);
+        store.append(TripStore.UPDATE, "trip-3", hash("9q8yyk8yu"), 6000, false, 0);
+    }
+
+    private static long hash(String geoHash) {
+        return GeoHashEncoder.fromBase32(geoHash);
+    }
+
+}
@@ -0,0 +1,65 @@
+package util;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class LongHashSetTest {
+
+    @Test
+    public void shouldOnlyAddAValueOnce() {
+        LongHashSet set = new LongHashSet();
+
+        assertThat(set.add(42), is(true));
+        assertThat(set.add(42), is(false));
+        assertThat(set.contains(42), is(true));
+        assertThat(set.contains(43), is(false));
+        assertThat(set.size(), is(1));
+    }
+
+    @Test
+    public void shouldHoldZero() {
+        LongHashSet set = new LongHashSet();
+
+        assertThat(set.contains(0), is(false));
+        assertThat(set.add(0), is(true));
+        assertThat(set.add(0), is(false));
+        assertThat(set.contains(0), is(true));
+        assertThat(set.size(), is(1));
+    }
+
+    @Test
+    public void shouldAgreeWithHashSetWhileGrowing() {
+        LongHashSet set = new LongHashSet(1);
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            long value = random.nextInt(5000) - 2500;
+            assertThat(set.add(value), is(expected.add(value)));
+        }
+        assertThat(set.size(), is(expected.size()));
+        for (long value = -2600; value < 2600; value++) {
+            assertThat(set.contains(value), is(expected.contains(value)));
+        }
+    }
+
+    @Test
+    public void shouldBeEmptyAfterClear() {
+        LongHashSet set = new LongHashSet();
+        set.add(0);
+        set.add(1);
+
+        set.clear();
+
+        assertThat(set.size(), is(0));
+        assertThat(set.contains(0), is(false));
+        assertThat(set.contains(1), is(false));
+    }
+
+}
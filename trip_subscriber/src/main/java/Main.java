@@ -1,17 +1,45 @@
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.Session;
+import db.AsyncGeoTripWriter;
+import db.BatchingSqlWriter;
+import db.EmbeddedMessagePersistenceService;
+import db.GeoTripBitmapWriter;
+import db.GeoTripSketchWriter;
+import db.GeoTripWriter;
+import db.LoggingWriteFailureListener;
+import db.MessagePersistenceService;
+import db.MessagePersistenceServiceImpl;
+import db.PartitionManager;
+import db.SyncGeoTripWriter;
+import db.TripDictionary;
+import db.WriteFailureListener;
+import db.WrittenPrefixCache;
 import org.apache.commons.dbcp2.BasicDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import store.TripStore;
+import subscriber.IngestPipeline;
 import subscriber.MessageSubscriber;
+import subscriber.MetricsHttpServer;
+import subscriber.OverflowPolicy;
+import subscriber.StreamShardReader;
+import subscriber.StreamSubscriber;
+import subscriber.WriteAheadLog;
+import util.StreamShards;
 
 import javax.sql.DataSource;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 public final class Main {
 
@@ -22,47 +50,314 @@ public final class Main {
     private static final String DB_USERNAME =        "DB_USERNAME";
     private static final String DB_PASSWORD =        "DB_PASSWORD";
     private static final String DB_CP_SIZE =         "DB_CP_SIZE";
+    private static final String DB_BATCH_SIZE =      "DB_BATCH_SIZE";
+    private static final String DB_FLUSH_INTERVAL_MS = "DB_FLUSH_INTERVAL_MS";
     private static final String REDIS_HOST =         "REDIS_HOST";
     private static final String REDIS_PORT =         "REDIS_PORT";
     private static final String REDIS_CHANNEL =      "REDIS_CHANNEL";
+    private static final String INGEST_SOURCE =      "INGEST_SOURCE";
+    private static final String STREAM_SHARDS =      "REDIS_STREAM_SHARDS";
+    private static final String STREAM_GROUP =       "REDIS_STREAM_GROUP";
+    private static final String STREAM_BATCH_SIZE =  "REDIS_STREAM_BATCH_SIZE";
+    private static final String STREAM_BLOCK_MS =    "REDIS_STREAM_BLOCK_MS";
+    private static final String STREAM_ACK_BATCH_SIZE = "REDIS_STREAM_ACK_BATCH_SIZE";
+    private static final String STREAM_ACK_INTERVAL_MS = "REDIS_STREAM_ACK_INTERVAL_MS";
+    private static final String SUBSCRIBER_INDEX =   "SUBSCRIBER_INDEX";
+    private static final String SUBSCRIBER_COUNT =   "SUBSCRIBER_COUNT";
+    private static final String INGEST_LANES =       "INGEST_LANES";
+    private static final String INGEST_LANE_CAP =    "INGEST_LANE_CAPACITY";
+    private static final String INGEST_COALESCE_MS = "INGEST_COALESCE_WINDOW_MS";
+    private static final String INGEST_OVERFLOW =    "INGEST_OVERFLOW_POLICY";
+    private static final String INGEST_SPILL_FILE =  "INGEST_SPILL_FILE";
     private static final String CSSNDRA_CONTACT_PT = "CASSANDRA_CONTACT_POINT";
     private static final String CSSNDRA_KEY_SPACE  = "CASSANDRA_KEY_SPACE";
+    private static final String CSSNDRA_WRITE_MODE = "CASSANDRA_WRITE_MODE";
+    private static final String CSSNDRA_MAX_IN_FLIGHT = "CASSANDRA_MAX_IN_FLIGHT";
+    private static final String CSSNDRA_MAX_BUFFERED_ROWS = "CASSANDRA_MAX_BUFFERED_ROWS";
+    private static final String CSSNDRA_FLUSH_INTERVAL_MS = "CASSANDRA_FLUSH_INTERVAL_MS";
+    private static final String PREFIX_CACHE_MAX_TRIPS = "PREFIX_CACHE_MAX_TRIPS";
+    private static final String PREFIX_CACHE_IDLE_SECS = "PREFIX_CACHE_IDLE_TIMEOUT_SECONDS";
+    private static final String SKETCH_MAX_PREFIX =  "SKETCH_MAX_PREFIX_LENGTH";
+    private static final String SKETCH_PRECISION =   "SKETCH_PRECISION";
+    private static final String SKETCH_FLUSH_INTERVAL_MS = "SKETCH_FLUSH_INTERVAL_MS";
+    private static final String SKETCH_INSTANCE_ID = "SKETCH_INSTANCE_ID";
+    private static final String BITMAP_MAX_PREFIX =  "BITMAP_MAX_PREFIX_LENGTH";
+    private static final String BITMAP_BUCKET_MINS = "BITMAP_BUCKET_MINUTES";
+    private static final String BITMAP_FLUSH_INTERVAL_MS = "BITMAP_FLUSH_INTERVAL_MS";
+    private static final String DICTIONARY_MAX_TRIPS = "TRIP_DICTIONARY_MAX_TRIPS";
+    private static final String DICTIONARY_FLUSH_INTERVAL_MS = "TRIP_DICTIONARY_FLUSH_INTERVAL_MS";
+    private static final String GEO_TRIP_ROWS_ENABLED = "GEO_TRIP_ROWS_ENABLED";
+    private static final String METRICS_HTTP_PORT =  "METRICS_HTTP_PORT";
+    private static final String PARTITION_MONTHS_AHEAD = "PARTITION_MONTHS_AHEAD";
+    private static final String PARTITION_RETENTION_MONTHS = "PARTITION_RETENTION_MONTHS";
+    private static final String PARTITION_DROP_DETACHED = "PARTITION_DROP_DETACHED";
+    private static final String PARTITION_CHECK_INTERVAL_MINS = "PARTITION_CHECK_INTERVAL_MINUTES";
+    private static final String STORAGE_ENGINE =     "STORAGE_ENGINE";
+    private static final String STORE_DIR =          "STORE_DIR";
+    private static final String STORE_SEGMENT_MB =   "STORE_SEGMENT_MB";
+    private static final String STORE_FORCE_INTERVAL_MS = "STORE_FORCE_INTERVAL_MS";
+    private static final String WAL_ENABLED =        "WAL_ENABLED";
+    private static final String WAL_DIR =            "WAL_DIR";
+    private static final String WAL_SEGMENT_MB =     "WAL_SEGMENT_MB";
+    private static final String WAL_COMMIT_INTERVAL_MS = "WAL_COMMIT_INTERVAL_MS";
+    private static final String WAL_CHECKPOINT_INTERVAL_MS = "WAL_CHECKPOINT_INTERVAL_MS";
+
+    // The storage engine which keeps the trips in an embedded store rather than in PostgreSQL and Cassandra
+    private static final String EMBEDDED_ENGINE = "embedded";
+    // The ingest source which reads the shards of a Redis stream rather than subscribing to a pub/sub channel
+    private static final String STREAMS_SOURCE = "streams";
 
     private static final String CONFIG_PROPERTIES = "application.properties";
 
 
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) throws Exception {
         Properties properties = getAppConfigProperties();
-        JedisPool jedisPool = configureJedisPool(properties);
-        final Jedis jedis = jedisPool.getResource();
+        boolean fromStreams = STREAMS_SOURCE.equalsIgnoreCase(properties.getProperty(INGEST_SOURCE));
+        List<Integer> shards = fromStreams ? configureOwnedShards(properties) : null;
+        // Every shard reader holds a connection of its own
+        JedisPool jedisPool = configureJedisPool(properties, fromStreams ? shards.size() + 1 : 1);
+
+        MetricRegistry metrics = new MetricRegistry();
+        JmxReporter reporter = JmxReporter.forRegistry(metrics).build();
+        reporter.start();
+        MetricsHttpServer metricsServer = new MetricsHttpServer(
+                Integer.valueOf(properties.getProperty(METRICS_HTTP_PORT, "8081")), metrics);
+        metricsServer.start();
 
-        DataSource ds = configureDataSource(properties);
-        Cluster cluster = configureCassandraCluster(properties);
-        Session session = cluster.connect(properties.getProperty(CSSNDRA_KEY_SPACE));
+        MessagePersistenceService service;
+        Session session = null;
+        PartitionManager partitionManager = null;
+        if (EMBEDDED_ENGINE.equalsIgnoreCase(properties.getProperty(STORAGE_ENGINE))) {
+            service = configureEmbeddedService(properties, metrics);
+        } else {
+            DataSource ds = configureDataSource(properties);
+            Cluster cluster = configureCassandraCluster(properties);
+            session = cluster.connect(properties.getProperty(CSSNDRA_KEY_SPACE));
 
-        MessageSubscriber subscriber = new MessageSubscriber(ds, session);
-        logger.info("Message subscriber started. Awaiting messages.");
+            // The partitions the trips are about to be written to must exist before any message is persisted
+            partitionManager = configurePartitionManager(properties, ds, metrics);
+            partitionManager.start();
 
+            WrittenPrefixCache prefixCache = configurePrefixCache(properties, metrics);
+            GeoTripWriter geoTripWriter = configureGeoTripWriter(properties, session, prefixCache, metrics);
+            GeoTripSketchWriter sketchWriter = configureSketchWriter(properties, session, metrics);
+            BatchingSqlWriter sqlWriter = configureSqlWriter(properties, ds, metrics);
+            // The trips are only numbered when the bitmaps are kept
+            TripDictionary dictionary = null;
+            GeoTripBitmapWriter bitmapWriter = null;
+            if (Integer.valueOf(properties.getProperty(BITMAP_MAX_PREFIX, "0")) > 0) {
+                dictionary = configureDictionary(properties, ds, metrics);
+                bitmapWriter = configureBitmapWriter(properties, session, metrics);
+            }
+            service = new MessagePersistenceServiceImpl(sqlWriter, geoTripWriter, prefixCache, sketchWriter,
+                    dictionary, bitmapWriter, Boolean.valueOf(properties.getProperty(GEO_TRIP_ROWS_ENABLED, "true")),
+                    metrics);
+        }
+        // The messages are only acknowledged once they are in the write-ahead log, which needs a stream to acknowledge
+        boolean logged = Boolean.valueOf(properties.getProperty(WAL_ENABLED, "false"));
+        if (logged && !fromStreams) {
+            logger.warn("The write-ahead log is only used when reading streams, pub/sub messages are not logged");
+            logged = false;
+        }
+        IngestPipeline pipeline = configureIngestPipeline(properties, service, fromStreams, metrics);
+
+        final PartitionManager partitions = partitionManager;
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
                 logger.info("The server was shutdown, closing Redis connection pool.");
                 jedisPool.close();
+                if (partitions != null) {
+                    partitions.close();
+                }
+                reporter.close();
+                try {
+                    metricsServer.stop();
+                } catch (Exception ex) {
+                    logger.error("Failed to stop the metrics HTTP server", ex);
+                }
             }
         });
-        jedis.subscribe(subscriber, properties.getProperty(REDIS_CHANNEL));
 
+        if (fromStreams) {
+            WriteAheadLog writeAheadLog = logged ? configureWriteAheadLog(properties, pipeline, service, metrics) : null;
+            StreamSubscriber subscriber = new StreamSubscriber(pipeline, writeAheadLog, service, session,
+                    configureShardReaders(properties, jedisPool, metrics), shards);
+            subscriber.start();
+            logger.info(String.format("Stream subscriber started. Reading shards: %s", shards));
+        } else {
+            final Jedis jedis = jedisPool.getResource();
+            MessageSubscriber subscriber = new MessageSubscriber(pipeline, service, session);
+            logger.info("Message subscriber started. Awaiting messages.");
+            jedis.subscribe(subscriber, properties.getProperty(REDIS_CHANNEL));
+        }
     }
 
-    private static JedisPool configureJedisPool(Properties props) {
+    private static JedisPool configureJedisPool(Properties props, int connections) {
         JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(Math.max(poolConfig.getMaxTotal(), connections));
         return new JedisPool(poolConfig, props.getProperty(REDIS_HOST), Integer.valueOf(props.getProperty(REDIS_PORT)), 0);
     }
 
+    /**
+     * Every subscriber reads its own shards, so all the messages of a trip are read by one subscriber. The shards
+     * are named after the channel, e.g. trip_updates:0 to trip_updates:3.
+     */
+    private static List<Integer> configureOwnedShards(Properties props) {
+        return StreamSubscriber.shardsOf(
+                Integer.valueOf(props.getProperty(STREAM_SHARDS, "4")),
+                Integer.valueOf(props.getProperty(SUBSCRIBER_INDEX, "0")),
+                Integer.valueOf(props.getProperty(SUBSCRIBER_COUNT, "1")));
+    }
+
+    /**
+     * The consumer is named after the subscriber's index, so a restarted subscriber reads the messages it had read
+     * but not acknowledged before it stopped.
+     */
+    private static StreamSubscriber.ReaderFactory configureShardReaders(Properties props, JedisPool jedisPool,
+                                                                        MetricRegistry metrics) {
+        String consumer = "subscriber-" + props.getProperty(SUBSCRIBER_INDEX, "0");
+        return (shard, pipeline, awaitDurable) -> new StreamShardReader(jedisPool,
+                StreamShards.key(props.getProperty(REDIS_CHANNEL), shard),
+                props.getProperty(STREAM_GROUP, "trip_subscribers"),
+                consumer,
+                Integer.valueOf(props.getProperty(STREAM_BATCH_SIZE, "500")),
+                Long.valueOf(props.getProperty(STREAM_BLOCK_MS, "1000")),
+                Integer.valueOf(props.getProperty(STREAM_ACK_BATCH_SIZE, "500")),
+                Long.valueOf(props.getProperty(STREAM_ACK_INTERVAL_MS, "1000")),
+                pipeline, awaitDurable, metrics);
+    }
+
     private static Cluster configureCassandraCluster(Properties props) {
         return Cluster.builder().addContactPoint(props.getProperty(CSSNDRA_CONTACT_PT)).build();
     }
 
+    /**
+     * A pipeline fed by the streams always blocks when a lane is full: the streams already keep the messages the
+     * databases cannot keep up with, a message is acknowledged once it has been handed over, so a dropped message
+     * would be lost, and the checkpoints of the write-ahead log must cover every message before them.
+     */
+    private static IngestPipeline configureIngestPipeline(Properties props, MessagePersistenceService service,
+                                                          boolean fromStreams, MetricRegistry metrics)
+            throws IOException {
+        OverflowPolicy overflowPolicy = OverflowPolicy.fromString(props.getProperty(INGEST_OVERFLOW, "block"));
+        if (fromStreams && overflowPolicy != OverflowPolicy.BLOCK) {
+            logger.info(String.format("Ignoring the %s overflow policy, the streams keep the messages instead",
+                    overflowPolicy));
+            overflowPolicy = OverflowPolicy.BLOCK;
+        }
+        return new IngestPipeline(
+                Integer.valueOf(props.getProperty(INGEST_LANES,
+                        String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.valueOf(props.getProperty(INGEST_LANE_CAP, "16384")),
+                Long.valueOf(props.getProperty(INGEST_COALESCE_MS, "1000")),
+                overflowPolicy,
+                Paths.get(props.getProperty(INGEST_SPILL_FILE, "ingest-spill.log")),
+                service, metrics);
+    }
+
+    /**
+     * Opens the write-ahead log, which starts persisting the messages it holds from the last checkpoint before the
+     * readers start.
+     */
+    private static WriteAheadLog configureWriteAheadLog(Properties props, IngestPipeline pipeline,
+                                                        MessagePersistenceService service, MetricRegistry metrics)
+            throws IOException {
+        return new WriteAheadLog(Paths.get(props.getProperty(WAL_DIR, "wal")),
+                Integer.valueOf(props.getProperty(WAL_SEGMENT_MB, "64")) << 20,
+                Long.valueOf(props.getProperty(WAL_COMMIT_INTERVAL_MS, "10")),
+                Long.valueOf(props.getProperty(WAL_CHECKPOINT_INTERVAL_MS, "10000")),
+                pipeline, service, metrics);
+    }
+
+    private static BatchingSqlWriter configureSqlWriter(Properties props, DataSource ds, MetricRegistry metrics) {
+        return new BatchingSqlWriter(ds, MessagePersistenceServiceImpl.SQL_STATEMENTS,
+                Integer.valueOf(props.getProperty(DB_BATCH_SIZE, "200")),
+                Long.valueOf(props.getProperty(DB_FLUSH_INTERVAL_MS, "100")),
+                metrics);
+    }
+
+    /**
+     * Opens the embedded trip store for writing, which replays the events already in it before the subscriber starts.
+     */
+    private static MessagePersistenceService configureEmbeddedService(Properties props, MetricRegistry metrics)
+            throws IOException {
+        TripStore store = TripStore.openForWriting(Paths.get(props.getProperty(STORE_DIR, "trip-store")),
+                Integer.valueOf(props.getProperty(STORE_SEGMENT_MB, "64")) << 20);
+        logger.info(String.format("Opened the trip store with %d events of %d trips", store.getEventCount(),
+                store.getTripCount()));
+        return new EmbeddedMessagePersistenceService(store,
+                Long.valueOf(props.getProperty(STORE_FORCE_INTERVAL_MS, "1000")), metrics);
+    }
+
+    private static PartitionManager configurePartitionManager(Properties props, DataSource ds, MetricRegistry metrics) {
+        return new PartitionManager(ds,
+                Integer.valueOf(props.getProperty(PARTITION_MONTHS_AHEAD, "3")),
+                Integer.valueOf(props.getProperty(PARTITION_RETENTION_MONTHS, "12")),
+                Boolean.valueOf(props.getProperty(PARTITION_DROP_DETACHED, "false")),
+                TimeUnit.MINUTES.toMillis(Long.valueOf(props.getProperty(PARTITION_CHECK_INTERVAL_MINS, "60"))),
+                metrics);
+    }
+
+    private static WrittenPrefixCache configurePrefixCache(Properties props, MetricRegistry metrics) {
+        return new WrittenPrefixCache(
+                Integer.valueOf(props.getProperty(PREFIX_CACHE_MAX_TRIPS, "10000")),
+                TimeUnit.SECONDS.toMillis(Long.valueOf(props.getProperty(PREFIX_CACHE_IDLE_SECS, "600"))),
+                metrics);
+    }
+
+    private static GeoTripWriter configureGeoTripWriter(Properties props, Session session, WrittenPrefixCache prefixCache,
+                                                        MetricRegistry metrics) {
+        PreparedStatement insertGeoTrip = session.prepare(MessagePersistenceServiceImpl.INSERT_GEO_TRIP);
+        // Rows which failed to be written must not be suppressed as repeats, so forget the trips they belong to
+        WriteFailureListener logFailure = new LoggingWriteFailureListener();
+        WriteFailureListener failureListener = (geoHash, tripIds, cause) -> {
+            tripIds.forEach(prefixCache::evict);
+            logFailure.onFailure(geoHash, tripIds, cause);
+        };
+        if ("async".equalsIgnoreCase(props.getProperty(CSSNDRA_WRITE_MODE, "sync"))) {
+            return new AsyncGeoTripWriter(session, insertGeoTrip,
+                    Integer.valueOf(props.getProperty(CSSNDRA_MAX_IN_FLIGHT, "256")),
+                    Integer.valueOf(props.getProperty(CSSNDRA_MAX_BUFFERED_ROWS, "500")),
+                    Long.valueOf(props.getProperty(CSSNDRA_FLUSH_INTERVAL_MS, "50")),
+                    failureListener, metrics);
+        }
+        return new SyncGeoTripWriter(session, insertGeoTrip, failureListener, metrics);
+    }
+
+    /**
+     * Unless an instance id is configured, the sketch rows are keyed by the subscriber's index, so a restarted
+     * subscriber adds to the rows it wrote before instead of leaving them behind.
+     */
+    private static GeoTripSketchWriter configureSketchWriter(Properties props, Session session, MetricRegistry metrics) {
+        return new GeoTripSketchWriter(session, session.prepare(GeoTripSketchWriter.UPSERT_SKETCH),
+                session.prepare(GeoTripSketchWriter.SELECT_SKETCH),
+                props.getProperty(SKETCH_INSTANCE_ID, "subscriber-" + props.getProperty(SUBSCRIBER_INDEX, "0")),
+                Integer.valueOf(props.getProperty(SKETCH_MAX_PREFIX, "5")),
+                Integer.valueOf(props.getProperty(SKETCH_PRECISION, "12")),
+                Long.valueOf(props.getProperty(SKETCH_FLUSH_INTERVAL_MS, "5000")),
+                metrics);
+    }
+
+    /**
+     * The bitmap rows are keyed by the subscriber's index, so a restarted subscriber adds to the rows it wrote before
+     * instead of leaving them behind.
+     */
+    private static TripDictionary configureDictionary(Properties props, DataSource ds, MetricRegistry metrics) {
+        return new TripDictionary(ds, Integer.valueOf(props.getProperty(DICTIONARY_MAX_TRIPS, "100000")),
+                Long.valueOf(props.getProperty(DICTIONARY_FLUSH_INTERVAL_MS, "1000")), metrics);
+    }
+
+    private static GeoTripBitmapWriter configureBitmapWriter(Properties props, Session session, MetricRegistry metrics) {
+        return new GeoTripBitmapWriter(session, session.prepare(GeoTripBitmapWriter.UPSERT_BITMAP),
+                session.prepare(GeoTripBitmapWriter.SELECT_BITMAP),
+                "subscriber-" + props.getProperty(SUBSCRIBER_INDEX, "0"),
+                Integer.valueOf(props.getProperty(BITMAP_MAX_PREFIX, "0")),
+                TimeUnit.MINUTES.toMillis(Long.valueOf(props.getProperty(BITMAP_BUCKET_MINS, "60"))),
+                Long.valueOf(props.getProperty(BITMAP_FLUSH_INTERVAL_MS, "5000")),
+                metrics);
+    }
+
     private static Properties getAppConfigProperties() throws IOException {
         ClassLoader loader = Thread.currentThread().getContextClassLoader();
         Properties props = new Properties();
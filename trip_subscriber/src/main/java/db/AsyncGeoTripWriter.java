@@ -0,0 +1,218 @@
+package db;
+
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Writes rows to Cassandra with non-blocking calls. Rows are buffered across messages and sent either when the buffer
+ * holds {@code maxBufferedRows} rows or every {@code flushIntervalMillis}, whichever comes first. Buffered rows which
+ * share a partition key (the geohash prefix) are sent together as a single unlogged batch, since such a batch is
+ * applied by a single replica set in one mutation.
+ *
+ * The number of statements in flight is capped by a permit limit. When all permits are in use, the calling thread
+ * blocks until a write completes, which pushes back on the message handlers rather than letting outstanding requests
+ * pile up in the driver.
+ *
+ * The latency of every statement and the rows which failed to be written are recorded in the geo_trips
+ * {@link TableMetrics}, and the number of statements in flight and of buffered rows are published as gauges.
+ */
+public class AsyncGeoTripWriter implements GeoTripWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncGeoTripWriter.class);
+
+    // Keep unlogged batches small, large batches put pressure on the coordinator
+    static final int MAX_ROWS_PER_BATCH = 50;
+
+    private static final long WAIT_TIMEOUT_SECONDS = 30;
+
+    private final Session session;
+    private final PreparedStatement insertGeoTrip;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final int maxBufferedRows;
+    private final WriteFailureListener failureListener;
+    private final ScheduledExecutorService flushScheduler;
+    private final Timer writeLatency;
+    private final Meter writeFailures;
+
+    private Map<String, List<String>> buffer = new HashMap<>();
+    private int bufferedRows;
+
+    public AsyncGeoTripWriter(Session session, PreparedStatement insertGeoTrip, int maxInFlight, int maxBufferedRows,
+                              long flushIntervalMillis, WriteFailureListener failureListener, MetricRegistry metrics) {
+        this.session = session;
+        this.insertGeoTrip = insertGeoTrip;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.maxBufferedRows = maxBufferedRows;
+        this.failureListener = failureListener;
+        this.writeLatency = TableMetrics.writeLatency(metrics, TableMetrics.GEO_TRIPS);
+        this.writeFailures = TableMetrics.writeFailures(metrics, TableMetrics.GEO_TRIPS);
+        metrics.register(name(AsyncGeoTripWriter.class, "in-flight"), (Gauge<Integer>) this::getInFlightCount);
+        metrics.register(name(AsyncGeoTripWriter.class, "buffered-rows"), (Gauge<Integer>) this::getBufferedRows);
+        this.flushScheduler = Executors.newSingleThreadScheduledExecutor();
+        flushScheduler.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void write(String geoHash, String tripId) {
+        Map<String, List<String>> toSend = null;
+        synchronized (this) {
+            buffer.computeIfAbsent(geoHash, k -> new ArrayList<>()).add(tripId);
+            if (++bufferedRows >= maxBufferedRows) {
+                toSend = drainBuffer();
+            }
+        }
+        if (toSend != null) {
+            send(toSend);
+        }
+    }
+
+    @Override
+    public void flush() {
+        Map<String, List<String>> toSend;
+        synchronized (this) {
+            if (bufferedRows == 0) {
+                return;
+            }
+            toSend = drainBuffer();
+        }
+        send(toSend);
+    }
+
+    /**
+     * Sends the buffered rows, and waits until no statement is in flight by taking every permit, which are given back
+     * straight away.
+     */
+    @Override
+    public boolean flushAndWait() {
+        flush();
+        try {
+            if (inFlight.tryAcquire(maxInFlight, WAIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                inFlight.release(maxInFlight);
+                return true;
+            }
+            logger.warn(String.format("Timed out waiting for %d geo trip writes to complete",
+                    maxInFlight - inFlight.availablePermits()));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    @Override
+    public long getFailedCount() {
+        return writeFailures.getCount();
+    }
+
+    @Override
+    public void close() {
+        flushScheduler.shutdown();
+        flushAndWait();
+    }
+
+    /**
+     * @return the number of statements which have been sent but not yet acknowledged.
+     */
+    public int getInFlightCount() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public synchronized int getBufferedRows() {
+        return bufferedRows;
+    }
+
+    private Map<String, List<String>> drainBuffer() {
+        Map<String, List<String>> drained = buffer;
+        buffer = new HashMap<>();
+        bufferedRows = 0;
+        return drained;
+    }
+
+    private void send(Map<String, List<String>> rowsByPartition) {
+        for (Map.Entry<String, List<String>> partition : rowsByPartition.entrySet()) {
+            String geoHash = partition.getKey();
+            List<String> tripIds = partition.getValue();
+            for (int from = 0; from < tripIds.size(); from += MAX_ROWS_PER_BATCH) {
+                List<String> chunk = tripIds.subList(from, Math.min(from + MAX_ROWS_PER_BATCH, tripIds.size()));
+                sendStatement(geoHash, chunk, toStatement(geoHash, chunk));
+            }
+        }
+    }
+
+    private Statement toStatement(String geoHash, List<String> tripIds) {
+        if (tripIds.size() == 1) {
+            return insertGeoTrip.bind(geoHash, tripIds.get(0));
+        }
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        for (String tripId : tripIds) {
+            batch.add(insertGeoTrip.bind(geoHash, tripId));
+        }
+        return batch;
+    }
+
+    private void sendStatement(String geoHash, List<String> tripIds, Statement statement) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            fail(geoHash, tripIds, ie);
+            return;
+        }
+
+        Timer.Context latency = writeLatency.time();
+        ResultSetFuture future;
+        try {
+            future = session.executeAsync(statement);
+        } catch (RuntimeException ex) {
+            inFlight.release();
+            fail(geoHash, tripIds, ex);
+            return;
+        }
+
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                latency.stop();
+                inFlight.release();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                latency.stop();
+                inFlight.release();
+                fail(geoHash, tripIds, t);
+            }
+        });
+    }
+
+    private void fail(String geoHash, List<String> tripIds, Throwable cause) {
+        writeFailures.mark(tripIds.size());
+        failureListener.onFailure(geoHash, tripIds, cause);
+    }
+
+}
@@ -0,0 +1,275 @@
+package db;
+
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.apache.commons.dbutils.QueryRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Collects SQL statements from many messages and writes them with JDBC batches on a single connection in a single
+ * transaction, instead of borrowing a connection and committing once per statement. The buffered statements are
+ * flushed when {@code maxBatchSize} statements are waiting or every {@code flushIntervalMillis}, whichever comes
+ * first.
+ *
+ * Within a flush, statements are executed grouped by their SQL in the order given to the constructor, so listing the
+ * inserts before the updates guarantees that a trip's END update is never applied before its BEGIN insert, as long
+ * as the BEGIN message was added first. Flushes are executed one at a time, so statements added earlier are always
+ * committed no later than statements added after them.
+ *
+ * A statement can be added with a rollup increment, which is only counted if the statement changed a row, see
+ * {@link #add(String, Object[], Consumer)}. The increments of a flush are summed by {@link GeoTripRollups} and
+ * upserted after all the other statements, in the same transaction. This relies on the driver reporting the update
+ * count of every row of a batch, which the Postgres driver does unless its batched inserts are rewritten.
+ *
+ * If a batch fails, the transaction is rolled back and each statement is retried in a transaction of its own, together
+ * with its rollup increment, so that a single bad row does not lose the rest of the batch.
+ *
+ * The time taken by the batch of each statement and the rows which could not be written are recorded in the
+ * {@link TableMetrics} of the table the statement writes to, and the number of statements waiting for the next flush
+ * is published as a gauge.
+ */
+public class BatchingSqlWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchingSqlWriter.class);
+
+    // The table written by the statement, or by the first statement of a WITH clause
+    private static final Pattern TABLE_NAME = Pattern.compile(
+            "^\\s*(?:WITH\\s+\\w+\\s+AS\\s+\\(\\s*)?(?:INSERT\\s+INTO|UPDATE)\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+
+    private final DataSource dataSource;
+    private final List<String> statementOrder;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService flushScheduler;
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Map<String, Timer> writeLatency = new LinkedHashMap<>();
+    private final Map<String, Meter> writeFailures = new LinkedHashMap<>();
+
+    private Map<String, List<Object[]>> pending;
+    // The rollup increment of every pending row, or null for the rows without one
+    private Map<String, List<Consumer<GeoTripRollups>>> pendingRollups;
+    private int pendingCount;
+
+    public BatchingSqlWriter(DataSource dataSource, List<String> statementOrder, int maxBatchSize, long flushIntervalMillis,
+                             MetricRegistry metrics) {
+        this.dataSource = dataSource;
+        this.statementOrder = new ArrayList<>(statementOrder);
+        this.maxBatchSize = maxBatchSize;
+        this.pending = emptyBuffer();
+        this.pendingRollups = emptyBuffer();
+        List<String> written = new ArrayList<>(statementOrder);
+        written.add(GeoTripRollups.UPSERT_ROLLUP);
+        for (String sql : written) {
+            String table = tableName(sql);
+            writeLatency.put(sql, TableMetrics.writeLatency(metrics, table));
+            writeFailures.put(sql, TableMetrics.writeFailures(metrics, table));
+        }
+        metrics.register(name(BatchingSqlWriter.class, "pending"), (Gauge<Integer>) this::getPendingCount);
+        this.flushScheduler = Executors.newSingleThreadScheduledExecutor();
+        flushScheduler.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a statement for the next flush.
+     *
+     * @param sql one of the statements this writer was constructed with
+     * @param params the statement parameters
+     */
+    public void add(String sql, Object... params) {
+        add(sql, params, null);
+    }
+
+    /**
+     * Queues a statement for the next flush, which adds to the rollups if the statement changes a row.
+     *
+     * @param sql one of the statements this writer was constructed with
+     * @param params the statement parameters
+     * @param ifApplied adds the statement's increment to the rollups of the flush, or null if it has none
+     */
+    public void add(String sql, Object[] params, Consumer<GeoTripRollups> ifApplied) {
+        boolean full;
+        synchronized (this) {
+            List<Object[]> rows = pending.get(sql);
+            if (rows == null) {
+                throw new IllegalArgumentException(String.format("Statement is not known to this writer: %s", sql));
+            }
+            rows.add(params);
+            pendingRollups.get(sql).add(ifApplied);
+            full = ++pendingCount >= maxBatchSize;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes all queued statements in one transaction.
+     */
+    public void flush() {
+        flushLock.lock();
+        try {
+            Map<String, List<Object[]>> toWrite;
+            Map<String, List<Consumer<GeoTripRollups>>> rollupsToWrite;
+            synchronized (this) {
+                if (pendingCount == 0) {
+                    return;
+                }
+                toWrite = pending;
+                rollupsToWrite = pendingRollups;
+                pending = emptyBuffer();
+                pendingRollups = emptyBuffer();
+                pendingCount = 0;
+            }
+            write(toWrite, rollupsToWrite);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    public void close() {
+        flushScheduler.shutdown();
+        try {
+            flushScheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * @return the number of rows which failed to be written since the writer was created
+     */
+    public long getFailedCount() {
+        // The statements which write to the same table share its meter
+        return writeFailures.values().stream().distinct().mapToLong(Meter::getCount).sum();
+    }
+
+    /**
+     * @return the table an INSERT or UPDATE statement writes to, or that the first statement of its WITH clause writes to
+     */
+    static String tableName(String sql) {
+        Matcher matcher = TABLE_NAME.matcher(sql);
+        if (!matcher.find()) {
+            throw new IllegalArgumentException(String.format("Not an INSERT or UPDATE statement: %s", sql));
+        }
+        return matcher.group(1).toLowerCase();
+    }
+
+    private <T> Map<String, List<T>> emptyBuffer() {
+        Map<String, List<T>> buffer = new LinkedHashMap<>();
+        for (String sql : statementOrder) {
+            buffer.put(sql, new ArrayList<>());
+        }
+        return buffer;
+    }
+
+    private void write(Map<String, List<Object[]>> statements, Map<String, List<Consumer<GeoTripRollups>>> increments) {
+        // Parameter metadata costs a round trip per statement with the Postgres driver, and none of our parameters
+        // are ever null, so tell the runner not to ask for it.
+        QueryRunner run = new QueryRunner(true);
+        try (Connection conn = dataSource.getConnection()) {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                GeoTripRollups rollups = new GeoTripRollups();
+                for (Map.Entry<String, List<Object[]>> batch : statements.entrySet()) {
+                    if (!batch.getValue().isEmpty()) {
+                        int[] updateCounts;
+                        try (Timer.Context ignored = writeLatency.get(batch.getKey()).time()) {
+                            updateCounts = run.batch(conn, batch.getKey(), batch.getValue().toArray(new Object[0][]));
+                        }
+                        List<Consumer<GeoTripRollups>> batchIncrements = increments.get(batch.getKey());
+                        for (int i = 0; i < updateCounts.length; i++) {
+                            if (updateCounts[i] > 0 && batchIncrements.get(i) != null) {
+                                batchIncrements.get(i).accept(rollups);
+                            }
+                        }
+                    }
+                }
+                if (!rollups.isEmpty()) {
+                    try (Timer.Context ignored = writeLatency.get(GeoTripRollups.UPSERT_ROLLUP).time()) {
+                        run.batch(conn, GeoTripRollups.UPSERT_ROLLUP, rollups.toParams());
+                    }
+                }
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                logger.warn("Batch write failed, retrying statements individually", ex);
+                writeIndividually(run, conn, statements, increments);
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException ex) {
+            logger.error(String.format("Failed to write batch of %d statements", countStatements(statements)), ex);
+            for (Map.Entry<String, List<Object[]>> batch : statements.entrySet()) {
+                writeFailures.get(batch.getKey()).mark(batch.getValue().size());
+            }
+        }
+    }
+
+    /**
+     * Commits every statement together with its rollup increment, so the rollups never count a row which was not
+     * written nor miss a row which was. A statement whose row or increment fails is rolled back on its own.
+     */
+    private void writeIndividually(QueryRunner run, Connection conn, Map<String, List<Object[]>> statements,
+                                   Map<String, List<Consumer<GeoTripRollups>>> increments) throws SQLException {
+        for (Map.Entry<String, List<Object[]>> batch : statements.entrySet()) {
+            List<Consumer<GeoTripRollups>> batchIncrements = increments.get(batch.getKey());
+            for (int i = 0; i < batch.getValue().size(); i++) {
+                Object[] params = batch.getValue().get(i);
+                String sql = batch.getKey();
+                try {
+                    if (run.update(conn, sql, params) > 0 && batchIncrements.get(i) != null) {
+                        GeoTripRollups rollups = new GeoTripRollups();
+                        batchIncrements.get(i).accept(rollups);
+                        sql = GeoTripRollups.UPSERT_ROLLUP;
+                        for (Object[] rollupParams : rollups.toParams()) {
+                            params = rollupParams;
+                            run.update(conn, sql, params);
+                        }
+                    }
+                    conn.commit();
+                } catch (SQLException ex) {
+                    conn.rollback();
+                    writeFailures.get(sql).mark();
+                    logger.error(String.format("Failed to execute '%s' with parameters: %s", sql,
+                            Arrays.toString(params)), ex);
+                }
+            }
+        }
+    }
+
+    private static int countStatements(Map<String, List<Object[]>> statements) {
+        int count = 0;
+        for (List<Object[]> rows : statements.values()) {
+            count += rows.size();
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,96 @@
+package db;
+
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import parser.EventType;
+import parser.Message;
+import store.TripStore;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Persists messages to an embedded {@link TripStore} instead of PostgreSQL and Cassandra, so the subscriber runs
+ * without a database. The API reads the same store by opening it for reading.
+ *
+ * Appended events survive the subscriber crashing straight away, and the machine crashing once they have been forced
+ * to disk, which is done every {@code forceIntervalMillis} and when the service is closed.
+ */
+public class EmbeddedMessagePersistenceService implements MessagePersistenceService {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddedMessagePersistenceService.class);
+
+    private final TripStore store;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Meter persisted;
+
+    public EmbeddedMessagePersistenceService(TripStore store, long forceIntervalMillis, MetricRegistry metrics) {
+        this.store = store;
+        this.persisted = metrics.meter(name(MessagePersistenceService.class, "persisted"));
+        metrics.register(name(EmbeddedMessagePersistenceService.class, "trips"), (Gauge<Integer>) store::getTripCount);
+        metrics.register(name(EmbeddedMessagePersistenceService.class, "log-bytes"),
+                (Gauge<Long>) store::getLogSizeBytes);
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                store.force();
+            } catch (RuntimeException ex) {
+                // An exception would stop the store from being forced again
+                logger.error("Failed to force the trip store to disk", ex);
+            }
+        }, forceIntervalMillis, forceIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void saveMessage(Message message) {
+        store.append(eventOf(message.getEvent()), message.getTripId(), message.getGeoHashBits(), message.getEpoch(),
+                message.hasFare(), message.getFareValue());
+        persisted.mark();
+    }
+
+    /**
+     * Forces the store to disk.
+     */
+    @Override
+    public boolean flush() {
+        try {
+            store.force();
+            return true;
+        } catch (RuntimeException ex) {
+            logger.error("Failed to force the trip store to disk", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Forces the store to disk and closes it.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        try {
+            store.close();
+        } catch (IOException ex) {
+            logger.error("Failed to close the trip store", ex);
+        }
+    }
+
+    private static byte eventOf(EventType event) {
+        switch (event) {
+            case BEGIN:
+                return TripStore.BEGIN;
+            case END:
+                return TripStore.END;
+            default:
+                return TripStore.UPDATE;
+        }
+    }
+
+}
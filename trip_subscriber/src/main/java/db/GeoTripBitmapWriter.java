@@ -0,0 +1,364 @@
+package db;
+
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import geo.GeoHashEncoder;
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Keeps a Roaring bitmap of the numbers of the trips which passed through each geohash prefix of up to
+ * {@code maxPrefixPrecision} characters within each bucket of {@code bucketMillis}, see {@link TripDictionary}, and
+ * writes the bitmaps which changed to the geo_trip_bitmaps table every {@code flushIntervalMillis}. The API ORs the
+ * bitmaps of the cells covering a rectangle and counts the trips in the result, which is exact, while reading a few
+ * compressed rows per cell rather than one row per trip.
+ *
+ * Like the {@link GeoTripSketchWriter}, every subscriber writes its own rows, keyed by its {@code instanceId}, which
+ * stays the same across restarts. Before the writer first writes a cell of a bucket it reads back the row it wrote
+ * before it restarted and ORs it into its bitmap, so a restarted subscriber adds to its rows rather than overwriting
+ * them or leaving them behind. Only the latest two buckets are open, and an event older than
+ * them is added to the older of the two, so a closed bucket is dropped from memory once it has been written.
+ *
+ * The latency of every write and the bitmaps which failed to be written are recorded in the geo_trip_bitmaps
+ * {@link TableMetrics}. A bitmap which failed to be written, or whose row failed to be read back, is written on the
+ * next flush.
+ */
+public class GeoTripBitmapWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeoTripBitmapWriter.class);
+
+    // CQL statement for upserting this subscriber's bitmap of a geohash prefix in a bucket
+    public static final String UPSERT_BITMAP =
+            "INSERT INTO geo_trip_bitmaps (geohash, bucket, instance_id, bitmap) VALUES(?, ?, ?, ?)";
+    // CQL query for reading back the bitmap of a geohash prefix in a bucket this subscriber wrote before it restarted
+    public static final String SELECT_BITMAP =
+            "SELECT bitmap FROM geo_trip_bitmaps WHERE geohash = ? AND bucket = ? AND instance_id = ?";
+
+    private static final long WRITE_TIMEOUT_SECONDS = 30;
+
+    private final Session session;
+    private final PreparedStatement upsertBitmap;
+    private final PreparedStatement selectBitmap;
+    private final String instanceId;
+    private final int maxPrefixPrecision;
+    private final long bucketMillis;
+    private final ScheduledExecutorService flushScheduler;
+    private final Timer writeLatency;
+    private final Meter writeFailures;
+    private final Meter lateEvents;
+
+    // Keyed by the start of the bucket, then by the prefix bits shifted left by four bits, with the prefix precision
+    // in the low four bits
+    private final TreeMap<Long, Map<Long, RoaringBitmap>> buckets = new TreeMap<>();
+    private Map<Long, Set<Long>> changed = new HashMap<>();
+    // The bitmaps whose stored row has been read back and ORed in, by bucket
+    private final Map<Long, Set<Long>> loaded = new HashMap<>();
+    private long latestBucket = Long.MIN_VALUE;
+
+    /**
+     * @param instanceId the id of this subscriber's rows, which must stay the same across restarts and must not be
+     *                   shared with another running subscriber
+     * @param maxPrefixPrecision the longest prefix to keep a bitmap for, or 0 to keep none
+     * @param bucketMillis the length of the buckets the trips are kept in
+     */
+    public GeoTripBitmapWriter(Session session, PreparedStatement upsertBitmap, PreparedStatement selectBitmap,
+                               String instanceId, int maxPrefixPrecision, long bucketMillis, long flushIntervalMillis,
+                               MetricRegistry metrics) {
+        this.session = session;
+        this.upsertBitmap = upsertBitmap;
+        this.selectBitmap = selectBitmap;
+        this.instanceId = instanceId;
+        this.maxPrefixPrecision = maxPrefixPrecision;
+        this.bucketMillis = bucketMillis;
+        this.writeLatency = TableMetrics.writeLatency(metrics, TableMetrics.GEO_TRIP_BITMAPS);
+        this.writeFailures = TableMetrics.writeFailures(metrics, TableMetrics.GEO_TRIP_BITMAPS);
+        this.lateEvents = metrics.meter(name(GeoTripBitmapWriter.class, "late-events"));
+        metrics.register(name(GeoTripBitmapWriter.class, "bitmaps"), (Gauge<Integer>) this::getBitmapCount);
+        this.flushScheduler = Executors.newSingleThreadScheduledExecutor();
+        flushScheduler.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the longest prefix a bitmap is kept for
+     */
+    public int getMaxPrefixPrecision() {
+        return maxPrefixPrecision;
+    }
+
+    /**
+     * Adds a trip to the bitmap of a geohash prefix in the bucket of the epoch. Prefixes longer than
+     * {@code maxPrefixPrecision} are ignored.
+     *
+     * @param prefix the geohash bits of the prefix
+     * @param precision the number of characters in the prefix
+     * @param epoch the time the trip was in the prefix
+     * @param tripNumber the number of the trip, see {@link TripDictionary#numberOf(String, java.util.function.IntConsumer)}
+     */
+    public void record(long prefix, int precision, long epoch, int tripNumber) {
+        if (precision > maxPrefixPrecision) {
+            return;
+        }
+        long key = (prefix << 4) | precision;
+        long bucket = epoch - Math.floorMod(epoch, bucketMillis);
+        synchronized (this) {
+            if (bucket > latestBucket) {
+                latestBucket = bucket;
+            }
+            long oldestOpenBucket = latestBucket - bucketMillis;
+            if (bucket < oldestOpenBucket) {
+                lateEvents.mark();
+                bucket = oldestOpenBucket;
+            }
+            Map<Long, RoaringBitmap> cells = buckets.get(bucket);
+            if (cells == null) {
+                cells = new HashMap<>();
+                buckets.put(bucket, cells);
+            }
+            RoaringBitmap bitmap = cells.get(key);
+            if (bitmap == null) {
+                bitmap = new RoaringBitmap();
+                cells.put(key, bitmap);
+            }
+            if (bitmap.checkedAdd(tripNumber)) {
+                changedKeys(bucket).add(key);
+            }
+        }
+    }
+
+    /**
+     * Writes the bitmaps which changed since the last flush, waits for the writes to complete, and drops the closed
+     * buckets which have been written.
+     *
+     * @return false if a bitmap failed to be written or read back, in which case it is written on the next flush
+     */
+    public boolean flush() {
+        long failures = writeFailures.getCount();
+        loadStoredBitmaps();
+        List<PendingBitmap> toSend = drainChanged();
+        List<PendingBitmap> sent = new ArrayList<>(toSend.size());
+        List<ResultSetFuture> futures = new ArrayList<>(toSend.size());
+        for (PendingBitmap bitmap : toSend) {
+            try {
+                futures.add(session.executeAsync(
+                        upsertBitmap.bind(bitmap.geoHash, bitmap.bucket, instanceId, bitmap.bytes)));
+                sent.add(bitmap);
+            } catch (RuntimeException ex) {
+                fail(bitmap, ex);
+            }
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            try (Timer.Context ignored = writeLatency.time()) {
+                futures.get(i).get(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                fail(sent.get(i), ie);
+            } catch (ExecutionException | TimeoutException ex) {
+                fail(sent.get(i), ex);
+            }
+        }
+        dropClosedBuckets();
+        return writeFailures.getCount() == failures;
+    }
+
+    /**
+     * Stops the scheduled flushes and writes the bitmaps which changed since the last flush.
+     */
+    public void close() {
+        flushScheduler.shutdown();
+        flush();
+    }
+
+    public synchronized int getBitmapCount() {
+        int count = 0;
+        for (Map<Long, RoaringBitmap> cells : buckets.values()) {
+            count += cells.size();
+        }
+        return count;
+    }
+
+    private Set<Long> changedKeys(long bucket) {
+        Set<Long> keys = changed.get(bucket);
+        if (keys == null) {
+            keys = new HashSet<>();
+            changed.put(bucket, keys);
+        }
+        return keys;
+    }
+
+    // Reads back the rows of the changed bitmaps which have not been written by this run yet
+    private void loadStoredBitmaps() {
+        List<long[]> toLoad = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<Long, Set<Long>> bucket : changed.entrySet()) {
+                Set<Long> loadedKeys = loaded.get(bucket.getKey());
+                for (long key : bucket.getValue()) {
+                    if (loadedKeys == null || !loadedKeys.contains(key)) {
+                        toLoad.add(new long[] {bucket.getKey(), key});
+                    }
+                }
+            }
+        }
+        List<ResultSetFuture> futures = new ArrayList<>(toLoad.size());
+        for (long[] bitmap : toLoad) {
+            try {
+                futures.add(session.executeAsync(selectBitmap.bind(geoHashOf(bitmap[1]), bitmap[0], instanceId)));
+            } catch (RuntimeException ex) {
+                futures.add(null);
+                failRead(bitmap, ex);
+            }
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            if (futures.get(i) == null) {
+                continue;
+            }
+            long[] bitmap = toLoad.get(i);
+            try {
+                Row row = futures.get(i).get(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS).one();
+                merge(bitmap[0], bitmap[1], row == null ? null : row.getBytes("bitmap"));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                failRead(bitmap, ie);
+            } catch (ExecutionException | TimeoutException | UncheckedIOException ex) {
+                failRead(bitmap, ex);
+            }
+        }
+    }
+
+    private void merge(long bucket, long key, ByteBuffer stored) {
+        RoaringBitmap storedBitmap = stored == null ? null : fromBytes(stored);
+        synchronized (this) {
+            Map<Long, RoaringBitmap> cells = buckets.get(bucket);
+            if (cells == null) {
+                // Dropped by a concurrent flush, which wrote it after reading it back
+                return;
+            }
+            if (storedBitmap != null) {
+                cells.get(key).or(storedBitmap);
+            }
+            loaded.computeIfAbsent(bucket, b -> new HashSet<>()).add(key);
+        }
+    }
+
+    // The bitmaps whose row has not been read back yet are kept back, writing them would overwrite the row
+    private synchronized List<PendingBitmap> drainChanged() {
+        List<PendingBitmap> drained = new ArrayList<>();
+        Map<Long, Set<Long>> notLoaded = new HashMap<>();
+        for (Map.Entry<Long, Set<Long>> bucket : changed.entrySet()) {
+            Map<Long, RoaringBitmap> cells = buckets.get(bucket.getKey());
+            Set<Long> loadedKeys = loaded.get(bucket.getKey());
+            for (long key : bucket.getValue()) {
+                if (loadedKeys != null && loadedKeys.contains(key)) {
+                    drained.add(new PendingBitmap(bucket.getKey(), key, toBytes(cells.get(key))));
+                } else {
+                    notLoaded.computeIfAbsent(bucket.getKey(), b -> new HashSet<>()).add(key);
+                }
+            }
+        }
+        changed = notLoaded;
+        return drained;
+    }
+
+    // Buckets with bitmaps still to be written, e.g. after a failed write, are kept until they have been written
+    private synchronized void dropClosedBuckets() {
+        Iterator<Long> bucket = buckets.keySet().iterator();
+        while (bucket.hasNext()) {
+            long start = bucket.next();
+            if (start >= latestBucket - bucketMillis) {
+                break;
+            }
+            if (!changed.containsKey(start)) {
+                bucket.remove();
+                loaded.remove(start);
+            }
+        }
+    }
+
+    private void fail(PendingBitmap bitmap, Throwable cause) {
+        writeFailures.mark();
+        logger.error(String.format("Failed to write the trip bitmap of geoHash: %s in bucket: %d",
+                bitmap.geoHash, bitmap.bucket), cause);
+        synchronized (this) {
+            changedKeys(bitmap.bucket).add(bitmap.key);
+        }
+    }
+
+    private void failRead(long[] bitmap, Throwable cause) {
+        writeFailures.mark();
+        logger.error(String.format("Failed to read back the trip bitmap of geoHash: %s in bucket: %d",
+                geoHashOf(bitmap[1]), bitmap[0]), cause);
+    }
+
+    private static String geoHashOf(long key) {
+        return GeoHashEncoder.toBase32(key >>> 4, (int) (key & 0xf));
+    }
+
+    private static RoaringBitmap fromBytes(ByteBuffer bytes) {
+        byte[] array = new byte[bytes.remaining()];
+        bytes.duplicate().get(array);
+        RoaringBitmap bitmap = new RoaringBitmap();
+        try {
+            bitmap.deserialize(new DataInputStream(new ByteArrayInputStream(array)));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return bitmap;
+    }
+
+    private static ByteBuffer toBytes(RoaringBitmap bitmap) {
+        bitmap.runOptimize();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(bitmap.serializedSizeInBytes());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            bitmap.serialize(out);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private static final class PendingBitmap {
+
+        private final long bucket;
+        private final long key;
+        private final String geoHash;
+        private final ByteBuffer bytes;
+
+        private PendingBitmap(long bucket, long key, ByteBuffer bytes) {
+            this.bucket = bucket;
+            this.key = key;
+            this.geoHash = geoHashOf(key);
+            this.bytes = bytes;
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package db;
+
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sums the trips started and ended in every geohash prefix per bucket over a batch of statements, so that each
+ * geo_trip_rollups row is upserted once per batch instead of once per trip.
+ *
+ * The short prefixes are shared by almost every trip, so upserting them trip by trip made every subscriber queue up on
+ * the same few rows, and two batches locking them in different orders deadlocked. The rows are upserted in geohash and
+ * bucket order instead, so every transaction takes their locks in the same order.
+ *
+ * This class is not thread safe.
+ */
+public class GeoTripRollups {
+
+    // SQL statement for adding the increments of a batch to a rollup row
+    public static final String UPSERT_ROLLUP =
+            "INSERT INTO geo_trip_rollups (geohash, bucket, start_count, end_count, fare_total) VALUES (?, ?, ?, ?, ?) " +
+            "ON CONFLICT (geohash, bucket) DO UPDATE SET start_count = geo_trip_rollups.start_count + EXCLUDED.start_count, " +
+            "end_count = geo_trip_rollups.end_count + EXCLUDED.end_count, " +
+            "fare_total = geo_trip_rollups.fare_total + EXCLUDED.fare_total";
+
+    private final Map<String, Map<Long, Totals>> rows = new TreeMap<>();
+
+    /**
+     * Counts a trip started in every prefix of the geohash.
+     */
+    public void started(String geoHash, long bucket) {
+        for (int n = 1; n <= geoHash.length(); n++) {
+            totals(geoHash.substring(0, n), bucket).started++;
+        }
+    }
+
+    /**
+     * Counts a trip ended in every prefix of the geohash, with its fare.
+     *
+     * @param fare the trip's fare, or null if it has none
+     */
+    public void ended(String geoHash, long bucket, Float fare) {
+        for (int n = 1; n <= geoHash.length(); n++) {
+            Totals totals = totals(geoHash.substring(0, n), bucket);
+            totals.ended++;
+            if (fare != null) {
+                // The fares are numeric in the database, so they are summed as the decimals they were sent as
+                totals.fareTotal = totals.fareTotal.add(new BigDecimal(Float.toString(fare)));
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return rows.isEmpty();
+    }
+
+    /**
+     * @return the parameters of {@link #UPSERT_ROLLUP} for every row, in geohash and bucket order
+     */
+    public Object[][] toParams() {
+        List<Object[]> params = new ArrayList<>();
+        for (Map.Entry<String, Map<Long, Totals>> geoHash : rows.entrySet()) {
+            for (Map.Entry<Long, Totals> bucket : geoHash.getValue().entrySet()) {
+                Totals totals = bucket.getValue();
+                params.add(new Object[] {geoHash.getKey(), bucket.getKey(), totals.started, totals.ended,
+                        totals.fareTotal});
+            }
+        }
+        return params.toArray(new Object[0][]);
+    }
+
+    private Totals totals(String geoHash, long bucket) {
+        return rows.computeIfAbsent(geoHash, g -> new TreeMap<>()).computeIfAbsent(bucket, b -> new Totals());
+    }
+
+    private static final class Totals {
+        private long started;
+        private long ended;
+        private BigDecimal fareTotal = BigDecimal.ZERO;
+    }
+
+}
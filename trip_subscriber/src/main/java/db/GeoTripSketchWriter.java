@@ -0,0 +1,256 @@
+package db;
+
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import geo.GeoHashEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sketch.HyperLogLog;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Keeps a {@link HyperLogLog} sketch of the trips which passed through each geohash prefix of up to
+ * {@code maxPrefixPrecision} characters, and writes the sketches which changed to the geo_trip_sketches table every
+ * {@code flushIntervalMillis}. The API merges the sketches of the cells covering a rectangle to estimate how many
+ * trips passed through it without reading every geo_trips row.
+ *
+ * Every subscriber writes its own row for a cell, keyed by its {@code instanceId}, so concurrent subscribers cannot
+ * overwrite each other's trips. Readers merge all the rows of a cell, and as merging is idempotent a trip seen by
+ * several subscribers is still counted once. The instance id stays the same across restarts, so the number of rows is
+ * bounded by the number of subscribers: before the writer first writes a cell it reads back the row it wrote before it
+ * restarted, and merges it into its sketch.
+ *
+ * The latency of every write and the sketches which failed to be written are recorded in the geo_trip_sketches
+ * {@link TableMetrics}. A sketch which failed to be written, or whose row failed to be read back, is written on the
+ * next flush.
+ */
+public class GeoTripSketchWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeoTripSketchWriter.class);
+
+    // CQL statement for upserting this subscriber's sketch of a geohash prefix
+    public static final String UPSERT_SKETCH = "INSERT INTO geo_trip_sketches (geohash, instance_id, sketch) VALUES(?, ?, ?)";
+    // CQL query for reading back the sketch of a geohash prefix this subscriber wrote before it restarted
+    public static final String SELECT_SKETCH = "SELECT sketch FROM geo_trip_sketches WHERE geohash = ? AND instance_id = ?";
+
+    private static final long WRITE_TIMEOUT_SECONDS = 30;
+
+    private final Session session;
+    private final PreparedStatement upsertSketch;
+    private final PreparedStatement selectSketch;
+    private final String instanceId;
+    private final int maxPrefixPrecision;
+    private final int sketchPrecision;
+    private final ScheduledExecutorService flushScheduler;
+    private final Timer writeLatency;
+    private final Meter writeFailures;
+
+    // Keyed by the prefix bits shifted left by four bits, with the prefix precision in the low four bits
+    private final Map<Long, HyperLogLog> sketches = new HashMap<>();
+    private Set<Long> changed = new HashSet<>();
+    // The sketches whose stored row has been read back and merged
+    private final Set<Long> loaded = new HashSet<>();
+
+    /**
+     * @param instanceId the id of this subscriber's rows, which must stay the same across restarts and must not be
+     *                   shared with another running subscriber
+     * @param maxPrefixPrecision the longest prefix to keep a sketch for, or 0 to keep none
+     * @param sketchPrecision the precision of the sketches, see {@link HyperLogLog#HyperLogLog(int)}
+     */
+    public GeoTripSketchWriter(Session session, PreparedStatement upsertSketch, PreparedStatement selectSketch,
+                               String instanceId, int maxPrefixPrecision, int sketchPrecision, long flushIntervalMillis,
+                               MetricRegistry metrics) {
+        this.session = session;
+        this.upsertSketch = upsertSketch;
+        this.selectSketch = selectSketch;
+        this.instanceId = instanceId;
+        this.maxPrefixPrecision = maxPrefixPrecision;
+        this.sketchPrecision = sketchPrecision;
+        this.writeLatency = TableMetrics.writeLatency(metrics, TableMetrics.GEO_TRIP_SKETCHES);
+        this.writeFailures = TableMetrics.writeFailures(metrics, TableMetrics.GEO_TRIP_SKETCHES);
+        metrics.register(name(GeoTripSketchWriter.class, "sketches"), (Gauge<Integer>) this::getSketchCount);
+        this.flushScheduler = Executors.newSingleThreadScheduledExecutor();
+        flushScheduler.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the longest prefix a sketch is kept for
+     */
+    public int getMaxPrefixPrecision() {
+        return maxPrefixPrecision;
+    }
+
+    /**
+     * Adds a trip to the sketch of a geohash prefix. Prefixes longer than {@code maxPrefixPrecision} are ignored.
+     *
+     * @param prefix the geohash bits of the prefix
+     * @param precision the number of characters in the prefix
+     * @param tripHash the 64-bit hash of the trip id, see {@link util.Hashing#hash64(CharSequence)}
+     */
+    public void record(long prefix, int precision, long tripHash) {
+        if (precision > maxPrefixPrecision) {
+            return;
+        }
+        long key = (prefix << 4) | precision;
+        synchronized (this) {
+            HyperLogLog sketch = sketches.get(key);
+            if (sketch == null) {
+                sketch = new HyperLogLog(sketchPrecision);
+                sketches.put(key, sketch);
+            }
+            if (sketch.add(tripHash)) {
+                changed.add(key);
+            }
+        }
+    }
+
+    /**
+     * Writes the sketches which changed since the last flush and waits for the writes to complete.
+     *
+     * @return false if a sketch failed to be written or read back, in which case it is written on the next flush
+     */
+    public boolean flush() {
+        long failures = writeFailures.getCount();
+        loadStoredSketches();
+        Map<String, ByteBuffer> toSend = drainChanged();
+        List<String> sent = new ArrayList<>(toSend.size());
+        List<ResultSetFuture> futures = new ArrayList<>(toSend.size());
+        for (Map.Entry<String, ByteBuffer> sketch : toSend.entrySet()) {
+            try {
+                futures.add(session.executeAsync(upsertSketch.bind(sketch.getKey(), instanceId, sketch.getValue())));
+                sent.add(sketch.getKey());
+            } catch (RuntimeException ex) {
+                fail(sketch.getKey(), ex);
+            }
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            try (Timer.Context ignored = writeLatency.time()) {
+                futures.get(i).get(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                fail(sent.get(i), ie);
+            } catch (ExecutionException | TimeoutException ex) {
+                fail(sent.get(i), ex);
+            }
+        }
+        return writeFailures.getCount() == failures;
+    }
+
+    /**
+     * Stops the scheduled flushes and writes the sketches which changed since the last flush.
+     */
+    public void close() {
+        flushScheduler.shutdown();
+        flush();
+    }
+
+    public synchronized int getSketchCount() {
+        return sketches.size();
+    }
+
+    // Reads back the rows of the changed sketches which have not been written by this run yet
+    private void loadStoredSketches() {
+        List<Long> toLoad = new ArrayList<>();
+        synchronized (this) {
+            for (long key : changed) {
+                if (!loaded.contains(key)) {
+                    toLoad.add(key);
+                }
+            }
+        }
+        List<ResultSetFuture> futures = new ArrayList<>(toLoad.size());
+        for (long key : toLoad) {
+            try {
+                futures.add(session.executeAsync(selectSketch.bind(geoHashOf(key), instanceId)));
+            } catch (RuntimeException ex) {
+                futures.add(null);
+                failRead(geoHashOf(key), ex);
+            }
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            if (futures.get(i) == null) {
+                continue;
+            }
+            long key = toLoad.get(i);
+            try {
+                Row row = futures.get(i).get(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS).one();
+                merge(key, row == null ? null : row.getBytes("sketch"));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                failRead(geoHashOf(key), ie);
+            } catch (ExecutionException | TimeoutException ex) {
+                failRead(geoHashOf(key), ex);
+            }
+        }
+    }
+
+    private synchronized void merge(long key, ByteBuffer stored) {
+        if (stored != null) {
+            byte[] bytes = new byte[stored.remaining()];
+            stored.duplicate().get(bytes);
+            HyperLogLog storedSketch = HyperLogLog.fromBytes(bytes);
+            if (storedSketch.getPrecision() == sketchPrecision) {
+                sketches.get(key).merge(storedSketch);
+            } else {
+                logger.warn(String.format("Replacing the trip sketch of geoHash: %s, its precision %d is not %d",
+                        geoHashOf(key), storedSketch.getPrecision(), sketchPrecision));
+            }
+        }
+        loaded.add(key);
+    }
+
+    // The sketches whose row has not been read back yet are kept back, writing them would overwrite the row
+    private synchronized Map<String, ByteBuffer> drainChanged() {
+        Map<String, ByteBuffer> drained = new HashMap<>();
+        Set<Long> notLoaded = new HashSet<>();
+        for (long key : changed) {
+            if (loaded.contains(key)) {
+                drained.put(geoHashOf(key), ByteBuffer.wrap(sketches.get(key).toBytes()));
+            } else {
+                notLoaded.add(key);
+            }
+        }
+        changed = notLoaded;
+        return drained;
+    }
+
+    private static String geoHashOf(long key) {
+        return GeoHashEncoder.toBase32(key >>> 4, (int) (key & 0xf));
+    }
+
+    private void failRead(String geoHash, Throwable cause) {
+        writeFailures.mark();
+        logger.error(String.format("Failed to read back the trip sketch of geoHash: %s", geoHash), cause);
+    }
+
+    private void fail(String geoHash, Throwable cause) {
+        writeFailures.mark();
+        logger.error(String.format("Failed to write the trip sketch of geoHash: %s", geoHash), cause);
+        long key = (GeoHashEncoder.fromBase32(geoHash) << 4) | geoHash.length();
+        synchronized (this) {
+            changed.add(key);
+        }
+    }
+
+}
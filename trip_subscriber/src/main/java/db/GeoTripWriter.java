@@ -0,0 +1,40 @@
+package db;
+
+
+/**
+ * Writes (geohash, trip_id) rows into the Cassandra geo_trips table.
+ */
+public interface GeoTripWriter {
+
+    /**
+     * Queues a single (geohash, trip_id) row for writing. Implementations may write it immediately or hold on to it
+     * until {@link #flush()} is called.
+     *
+     * @param geoHash the geohash (or geohash prefix) which is the partition key of the row
+     * @param tripId the trip that passed through the geohash
+     */
+    void write(String geoHash, String tripId);
+
+    /**
+     * Sends any rows which have been queued but not yet written.
+     */
+    void flush();
+
+    /**
+     * Sends any rows which have been queued but not yet written, and waits for every write sent so far to complete.
+     *
+     * @return false if the writes did not complete in time
+     */
+    boolean flushAndWait();
+
+    /**
+     * @return the number of rows which failed to be written since the writer was created
+     */
+    long getFailedCount();
+
+    /**
+     * Flushes any queued rows and waits for outstanding writes to complete.
+     */
+    void close();
+
+}
@@ -0,0 +1,21 @@
+package db;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Logs failed geo trip writes. Instead of just logging the failure here, we could publish the rows to a retry queue.
+ */
+public class LoggingWriteFailureListener implements WriteFailureListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoggingWriteFailureListener.class);
+
+    @Override
+    public void onFailure(String geoHash, List<String> tripIds, Throwable cause) {
+        logger.error(String.format("Failed to insert geo trip data for tripIds: %s and geoHash: %s", tripIds, geoHash), cause);
+    }
+
+}
@@ -5,6 +5,21 @@ import parser.Message;
 
 public interface MessagePersistenceService {
 
+    /**
+     * Persists a message. Message handlers reuse the same message instance for every message they parse, so
+     * implementations must copy anything they need to keep once this method returns.
+     *
+     * @param message the message to persist
+     */
     void saveMessage(Message message);
 
+    /**
+     * Writes every message saved so far to the data stores, and waits for the writes to complete.
+     *
+     * @return false if a write failed since the last flush, so a message saved since then may not have been persisted
+     */
+    boolean flush();
+
+    void close();
+
 }
@@ -1,42 +1,88 @@
 package db;
 
 
-import com.datastax.driver.core.BoundStatement;
-import com.datastax.driver.core.PreparedStatement;
-import com.datastax.driver.core.Session;
-import com.datastax.driver.core.exceptions.NoHostAvailableException;
-import org.apache.commons.dbutils.QueryRunner;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import geo.GeoHashEncoder;
 import parser.EventType;
 import parser.Message;
+import util.Hashing;
 
-import javax.sql.DataSource;
-import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
 
 public class MessagePersistenceServiceImpl implements MessagePersistenceService {
 
-    private static final Logger logger = LoggerFactory.getLogger(MessagePersistenceServiceImpl.class);
+    // SQL statement for recording the start time of a trip. The trip tables are keyed by trip_id and start_time, so
+    // trip_starts keeps the trip ids unique: the trip rows are only inserted for the start time recorded first, and
+    // the END updates find the partition of the trip from it rather than probing every partition.
+    private static final String INSERT_TRIP_START =
+            "INSERT INTO trip_starts (trip_id, start_time) VALUES (?, ?) ON CONFLICT DO NOTHING";
 
     // SQL statements for inserting time related data into relational data table
-    private static final String INSERT_TIME_TRIP = "INSERT INTO time_trips (trip_id, start_time) values (?, ?) ON CONFLICT DO NOTHING";
-    private static final String UPDATE_TIME_TRIP = "UPDATE time_trips SET end_time = ? WHERE trip_id = ?";
-
-    // SQL statements for inserting and updating stop/start geohash trip data into relational table
-    private static final String INSERT_ORGN_DST_GEO_TRIP = "INSERT INTO orgn_dst_geo_trips (trip_id, geohash_start) values (?, ?) ON CONFLICT DO NOTHING";
-    private static final String UPDATE_DEST_GEO_TRIP = "UPDATE orgn_dst_geo_trips SET geohash_end = ?, fare = ? where trip_id = ?";
+    private static final String INSERT_TIME_TRIP =
+            "INSERT INTO time_trips (trip_id, start_time) SELECT trip_id, start_time FROM trip_starts " +
+            "WHERE trip_id = ? AND start_time = ? ON CONFLICT DO NOTHING";
+    private static final String UPDATE_TIME_TRIP =
+            "UPDATE time_trips t SET end_time = ? FROM trip_starts s " +
+            "WHERE s.trip_id = ? AND t.trip_id = s.trip_id AND t.start_time = s.start_time";
+
+    // SQL statements for inserting and updating stop/start geohash trip data into relational table. The rollup rows of
+    // every prefix of the geohash are only counted when the statement inserted or ended the trip's row, so a repeated
+    // BEGIN or END message does not count the trip twice, see GeoTripRollups.
+    private static final String INSERT_ORGN_DST_GEO_TRIP =
+            "INSERT INTO orgn_dst_geo_trips (trip_id, geohash_start, start_time) SELECT trip_id, ?, start_time " +
+            "FROM trip_starts WHERE trip_id = ? AND start_time = ? ON CONFLICT DO NOTHING";
+    private static final String UPDATE_DEST_GEO_TRIP =
+            "UPDATE orgn_dst_geo_trips g SET geohash_end = ?, fare = ? FROM trip_starts s " +
+            "WHERE s.trip_id = ? AND g.trip_id = s.trip_id AND g.start_time = s.start_time AND g.geohash_end IS NULL";
+
+    // The rollups count the trips started and ended in every geohash prefix per hour
+    public static final long ROLLUP_BUCKET_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    // The SQL statements in the order they are applied by the batching writer, inserts must come before updates
+    public static final List<String> SQL_STATEMENTS = Arrays.asList(
+            INSERT_TRIP_START, INSERT_TIME_TRIP, INSERT_ORGN_DST_GEO_TRIP, UPDATE_TIME_TRIP, UPDATE_DEST_GEO_TRIP);
 
     // CQL statement for inserting geohash trip data into Cassandra
-    private static final String INSERT_GEO_TRIP = "INSERT INTO geo_trips (geohash, trip_id) VALUES(?, ?)";
+    public static final String INSERT_GEO_TRIP = "INSERT INTO geo_trips (geohash, trip_id) VALUES(?, ?)";
+
+    private final BatchingSqlWriter sqlWriter;
+    private final GeoTripWriter geoTripWriter;
+    private final WrittenPrefixCache prefixCache;
+    private final GeoTripSketchWriter sketchWriter;
+    private final TripDictionary dictionary;
+    private final GeoTripBitmapWriter bitmapWriter;
+    // The longest prefix added to the bitmaps, 0 when no bitmaps are kept
+    private final int maxBitmapPrecision;
+    private final boolean writeGeoTripRows;
+    private final Meter queued;
+
+    // The writes which had failed by the last flush
+    private long failedCount;
 
-    private final DataSource dataSource;
-    private final Session session;
-    private final PreparedStatement cassandraGeoTripPreparedQuery;
-
-    public MessagePersistenceServiceImpl(DataSource dataSource, Session session) {
-        this.dataSource = dataSource;
-        this.session = session;
-        cassandraGeoTripPreparedQuery = session.prepare(INSERT_GEO_TRIP);
+    /**
+     * @param dictionary numbers the trips added to the bitmaps, or null when no bitmaps are kept
+     * @param bitmapWriter the writer of the bitmaps, or null to keep no bitmaps
+     * @param writeGeoTripRows whether to write the geo_trips rows, which the API only reads when it does not count
+     *                         the trips from the bitmaps
+     */
+    public MessagePersistenceServiceImpl(BatchingSqlWriter sqlWriter, GeoTripWriter geoTripWriter, WrittenPrefixCache prefixCache,
+                                         GeoTripSketchWriter sketchWriter, TripDictionary dictionary,
+                                         GeoTripBitmapWriter bitmapWriter, boolean writeGeoTripRows,
+                                         MetricRegistry metrics) {
+        this.sqlWriter = sqlWriter;
+        this.geoTripWriter = geoTripWriter;
+        this.prefixCache = prefixCache;
+        this.sketchWriter = sketchWriter;
+        this.dictionary = dictionary;
+        this.bitmapWriter = bitmapWriter;
+        this.maxBitmapPrecision = bitmapWriter != null ? bitmapWriter.getMaxPrefixPrecision() : 0;
+        this.writeGeoTripRows = writeGeoTripRows;
+        this.queued = metrics.meter(name(MessagePersistenceService.class, "queued"));
     }
 
     /**
@@ -47,74 +93,135 @@ public class MessagePersistenceServiceImpl implements MessagePersistenceService
      */
     @Override
     public void saveMessage(Message message) {
-        QueryRunner run = new QueryRunner(dataSource);
-
         insertGeoDataForTrip(message);
 
-        insertTripDataByTime(run, message);
+        insertTripDataByTime(message);
 
         if (message.getEvent() == EventType.BEGIN) {
-            insertOriginDestGeoDataForTrip(run, message);
+            String geoHash = message.getGeoHash();
+            long bucket = rollupBucket(message.getEpoch());
+            sqlWriter.add(INSERT_ORGN_DST_GEO_TRIP, new Object[] {geoHash, message.getTripId(), message.getEpoch()},
+                    rollups -> rollups.started(geoHash, bucket));
         } else if (message.getEvent() == EventType.END) {
-            updateOriginDestGeoDataForTrip(run, message);
+            String geoHash = message.getGeoHash();
+            Float fare = message.getFare();
+            long bucket = rollupBucket(message.getEpoch());
+            sqlWriter.add(UPDATE_DEST_GEO_TRIP, new Object[] {geoHash, fare, message.getTripId()},
+                    rollups -> rollups.ended(geoHash, bucket, fare));
         }
+        queued.mark();
     }
 
-    private void updateOriginDestGeoDataForTrip(QueryRunner run, Message message) {
-        try {
-            run.update(UPDATE_DEST_GEO_TRIP,
-                    message.getGeoHash(),
-                    message.getFare(),
-                    message.getTripId());
-        } catch (SQLException ex) {
-            logger.error(String.format("Failed to update message into orgn_dst_geo_trips table: %s", message.toString()), ex);
+    /**
+     * Sends any outstanding writes and waits for them to complete. The writers drop a geo_trips or SQL row which
+     * failed to be written, and the trip which failed to be numbered is left out of the bitmaps, so the flush fails if
+     * any of them failed since the last flush, including in the writers' own scheduled flushes. The trips waiting for
+     * a number are numbered before the bitmaps are written, so the bitmaps include every message saved before the flush.
+     */
+    @Override
+    public synchronized boolean flush() {
+        boolean written = geoTripWriter.flushAndWait();
+        written &= sketchWriter.flush();
+        long failed = geoTripWriter.getFailedCount();
+        if (bitmapWriter != null) {
+            dictionary.flush();
+            written &= bitmapWriter.flush();
+            failed += dictionary.getFailedCount();
         }
+        sqlWriter.flush();
+        failed += sqlWriter.getFailedCount();
+        written &= failed == failedCount;
+        failedCount = failed;
+        return written;
     }
 
-    private void insertOriginDestGeoDataForTrip(QueryRunner run, Message message) {
-        try {
-            run.update(INSERT_ORGN_DST_GEO_TRIP,
-                    message.getTripId(),
-                    message.getGeoHash());
-        } catch (SQLException ex) {
-            logger.error(String.format("Failed to insert message into orgn_dst_geo_trips table: %s", message.toString()), ex);
+    /**
+     * Sends any outstanding writes and waits for them to complete.
+     */
+    @Override
+    public void close() {
+        geoTripWriter.close();
+        sketchWriter.close();
+        if (bitmapWriter != null) {
+            dictionary.close();
+            bitmapWriter.close();
         }
+        sqlWriter.close();
     }
 
+    /**
+     * Writes a row for every prefix of the message's geohash, skipping the prefixes which have already been written
+     * for this trip. Once the trip has ended it is evicted from the cache as no more rows will be written for it.
+     * The trip is added to the sketch of every prefix it is written for, up to the sketch writer's longest prefix,
+     * and likewise to the bitmap of the bucket it first passed through the prefix in. The trip is only numbered once it
+     * is added to a bitmap, and forgotten by the dictionary once it has ended. A trip which is not numbered yet is added
+     * to the bitmaps once the dictionary has numbered it, so the lane never waits for the trip_numbers table.
+     *
+     * The prefixes are derived from the geohash bits, so a prefix string is only created when its row is written.
+     */
     private void insertGeoDataForTrip(Message message) {
-        String geoHash = message.getGeoHash();
-        for (int i = 1; i <= geoHash.length(); i++) {
-           insertTripDataForGeoHash(geoHash.substring(0, i), message.getTripId());
+        long geoHash = message.getGeoHashBits();
+        String tripId = message.getTripId();
+        long tripHash = 0;
+        int tripNumber = maxBitmapPrecision > 0 ? dictionary.cachedNumberOf(tripId) : TripDictionary.NO_NUMBER;
+        // The bitmap keys of the prefixes to add the trip to once it is numbered, see GeoTripBitmapWriter
+        long[] unnumbered = null;
+        int unnumberedCount = 0;
+        for (int i = 1; i <= Message.GEOHASH_PRECISION; i++) {
+            long prefix = GeoHashEncoder.prefix(geoHash, Message.GEOHASH_PRECISION, i);
+            if (prefixCache.markWritten(tripId, prefix, i)) {
+                if (writeGeoTripRows) {
+                    geoTripWriter.write(GeoHashEncoder.toBase32(prefix, i), tripId);
+                }
+                if (i <= sketchWriter.getMaxPrefixPrecision()) {
+                    if (tripHash == 0) {
+                        tripHash = Hashing.hash64(tripId);
+                    }
+                    sketchWriter.record(prefix, i, tripHash);
+                }
+                if (i <= maxBitmapPrecision) {
+                    if (tripNumber != TripDictionary.NO_NUMBER) {
+                        bitmapWriter.record(prefix, i, message.getEpoch(), tripNumber);
+                    } else {
+                        if (unnumbered == null) {
+                            unnumbered = new long[maxBitmapPrecision];
+                        }
+                        unnumbered[unnumberedCount++] = (prefix << 4) | i;
+                    }
+                }
+            }
+        }
+        if (unnumbered != null) {
+            long[] keys = unnumbered;
+            int count = unnumberedCount;
+            long epoch = message.getEpoch();
+            dictionary.numberOf(tripId, number -> {
+                for (int k = 0; k < count; k++) {
+                    bitmapWriter.record(keys[k] >>> 4, (int) (keys[k] & 0xf), epoch, number);
+                }
+            });
+        }
+        if (message.getEvent() == EventType.END) {
+            prefixCache.evict(tripId);
+            if (maxBitmapPrecision > 0) {
+                dictionary.evict(tripId);
+            }
         }
     }
 
-    private void insertTripDataForGeoHash(String geoHash, String tripId) {
-        try {
-            BoundStatement boundStatement = new BoundStatement(cassandraGeoTripPreparedQuery);
-            session.execute(boundStatement.bind(geoHash, tripId));
-        } catch (NoHostAvailableException ex) {
-            logger.error(String.format("Failed to insert geo trip data for tripId: %s and geoHash: %s", tripId, geoHash), ex);
-        }
+    /**
+     * @return the start of the rollup bucket the epoch falls in
+     */
+    static long rollupBucket(long epoch) {
+        return epoch - Math.floorMod(epoch, ROLLUP_BUCKET_MILLIS);
     }
 
-    private void insertTripDataByTime(QueryRunner run, Message message) {
+    private void insertTripDataByTime(Message message) {
         if (message.getEvent() == EventType.BEGIN) {
-            try {
-                run.update(INSERT_TIME_TRIP,
-                        message.getTripId(),
-                        message.getEpoch());
-            } catch (SQLException ex) {
-                logger.error(String.format("Failed to insert trip into trip_times table: %s", message.toString()), ex);
-            }
+            sqlWriter.add(INSERT_TRIP_START, message.getTripId(), message.getEpoch());
+            sqlWriter.add(INSERT_TIME_TRIP, message.getTripId(), message.getEpoch());
         } else if (message.getEvent() == EventType.END) {
-            try {
-                run.update(UPDATE_TIME_TRIP,
-                        message.getEpoch(),
-                        message.getTripId());
-            } catch (SQLException ex) {
-                logger.error(String.format("Failed to update trip end time in trip_times table: %s", message.toString()), ex);
-            }
+            sqlWriter.add(UPDATE_TIME_TRIP, message.getEpoch(), message.getTripId());
         }
     }
 }
-
@@ -0,0 +1,306 @@
+package db;
+
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Clock;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Manages the monthly partitions of the trip tables, which are partitioned by the start time of the trips. The
+ * partitions of the current month and of the next {@code monthsAhead} months are created before any trip can be
+ * written to them, and the partitions of the months before the last {@code retentionMonths} months are detached, which
+ * only changes the catalog rather than deleting every row. A detached partition is a table of its own which can be
+ * archived and then dropped, or it is dropped straight away if {@code dropDetached} is set.
+ *
+ * A trip which starts outside every monthly partition, e.g. a late or early event, or one written while a check was
+ * missed, goes to the table's default partition. PostgreSQL cannot create a partition for a range the default
+ * partition holds rows in, so a new partition is created as a table of its own, the rows of its month are moved to it
+ * out of the default partition and it is then attached, all in one transaction. The rows of the default partition
+ * which are older than the retention period are deleted, as there is no partition to detach them with, and the rows
+ * left are counted, see the {@code default-rows} gauge. The start times of the trips older than the retention period
+ * are deleted from trip_starts likewise.
+ *
+ * The partitions are checked when the manager starts and then every {@code checkIntervalMillis}. Every partition is
+ * created or detached on its own, so one which fails does not hold back the others.
+ */
+public class PartitionManager implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionManager.class);
+
+    public static final List<String> PARTITIONED_TABLES = Arrays.asList("time_trips", "orgn_dst_geo_trips");
+
+    private static final String CREATE_PARTITION =
+            "CREATE TABLE IF NOT EXISTS %s PARTITION OF %s FOR VALUES FROM (%d) TO (%d)";
+    // The default partition is locked against writes while the rows of the new partition are moved out of it
+    private static final String LOCK_DEFAULT = "LOCK TABLE %s IN EXCLUSIVE MODE";
+    private static final String CREATE_DETACHED = "CREATE TABLE %s (LIKE %s INCLUDING DEFAULTS INCLUDING CONSTRAINTS)";
+    private static final String MOVE_ROWS =
+            "WITH moved AS (DELETE FROM %s WHERE start_time >= %d AND start_time < %d RETURNING *) " +
+            "INSERT INTO %s SELECT * FROM moved";
+    private static final String ATTACH_PARTITION = "ALTER TABLE %s ATTACH PARTITION %s FOR VALUES FROM (%d) TO (%d)";
+    private static final String EXPIRE_DEFAULT_ROWS = "DELETE FROM %s WHERE start_time < %d";
+    private static final String COUNT_ROWS = "SELECT count(*) FROM %s";
+    private static final String EXPIRE_TRIP_STARTS = "DELETE FROM trip_starts WHERE start_time < %d";
+    private static final String DETACH_PARTITION = "ALTER TABLE %s DETACH PARTITION %s";
+    private static final String DROP_PARTITION = "DROP TABLE %s";
+    private static final String QUERY_PARTITIONS =
+            "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+            "JOIN pg_class p ON p.oid = i.inhparent WHERE p.relname = ?";
+    private static final Pattern PARTITION_MONTH = Pattern.compile("_p(\\d{4})_(\\d{2})$");
+
+    private final DataSource dataSource;
+    private final int monthsAhead;
+    private final int retentionMonths;
+    private final boolean dropDetached;
+    private final long checkIntervalMillis;
+    private final Clock clock;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private final Meter detached;
+    private final Meter failures;
+
+    // The rows left in the default partitions by the last check
+    private volatile long defaultRows;
+
+    public PartitionManager(DataSource dataSource, int monthsAhead, int retentionMonths, boolean dropDetached,
+                            long checkIntervalMillis, MetricRegistry metrics) {
+        this(dataSource, monthsAhead, retentionMonths, dropDetached, checkIntervalMillis, metrics, Clock.systemUTC());
+    }
+
+    PartitionManager(DataSource dataSource, int monthsAhead, int retentionMonths, boolean dropDetached,
+                     long checkIntervalMillis, MetricRegistry metrics, Clock clock) {
+        this.dataSource = dataSource;
+        this.monthsAhead = monthsAhead;
+        this.retentionMonths = retentionMonths;
+        this.dropDetached = dropDetached;
+        this.checkIntervalMillis = checkIntervalMillis;
+        this.clock = clock;
+        this.detached = metrics.meter(name(PartitionManager.class, "detached"));
+        this.failures = metrics.meter(name(PartitionManager.class, "failures"));
+        metrics.register(name(PartitionManager.class, "default-rows"), (Gauge<Long>) this::getDefaultRowCount);
+    }
+
+    /**
+     * Checks the partitions, so that the partitions trips are about to be written to exist before this returns, and
+     * then keeps checking them in the background.
+     */
+    public void start() throws SQLException {
+        maintain();
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                maintain();
+            } catch (SQLException | RuntimeException ex) {
+                // An exception would stop the check from being scheduled again
+                failures.mark();
+                logger.error("Failed to maintain the trip table partitions", ex);
+            }
+        }, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Creates the partitions of the current and the coming months, detaches the partitions which are older than the
+     * retention period, and expires the old rows of the default partitions.
+     */
+    void maintain() throws SQLException {
+        YearMonth now = YearMonth.now(clock);
+        YearMonth oldestKept = now.minusMonths(retentionMonths - 1);
+        long rows = 0;
+        try (Connection connection = dataSource.getConnection()) {
+            for (String table : PARTITIONED_TABLES) {
+                List<String> partitions;
+                try {
+                    partitions = partitionsOf(connection, table);
+                } catch (SQLException ex) {
+                    fail(String.format("Failed to list the partitions of %s", table), ex);
+                    continue;
+                }
+                String defaultPartition = defaultPartitionName(table);
+                boolean hasDefault = partitions.contains(defaultPartition);
+                for (int i = 0; i <= monthsAhead; i++) {
+                    YearMonth month = now.plusMonths(i);
+                    String partition = partitionName(table, month);
+                    if (partitions.contains(partition)) {
+                        continue;
+                    }
+                    try {
+                        if (hasDefault) {
+                            createFromDefault(connection, table, partition, month, defaultPartition);
+                        } else {
+                            execute(connection, String.format(CREATE_PARTITION, partition, table,
+                                    monthStartMillis(month), monthStartMillis(month.plusMonths(1))));
+                        }
+                    } catch (SQLException ex) {
+                        fail(String.format("Failed to create partition %s of %s", partition, table), ex);
+                    }
+                }
+
+                for (String partition : expiredPartitions(partitions, oldestKept)) {
+                    try {
+                        execute(connection, String.format(DETACH_PARTITION, table, partition));
+                        detached.mark();
+                        logger.info(String.format("Detached partition %s of %s, which is older than %s", partition,
+                                table, oldestKept));
+                        if (dropDetached) {
+                            execute(connection, String.format(DROP_PARTITION, partition));
+                        }
+                    } catch (SQLException ex) {
+                        fail(String.format("Failed to detach partition %s of %s", partition, table), ex);
+                    }
+                }
+
+                if (hasDefault) {
+                    try {
+                        rows += expireDefault(connection, defaultPartition, oldestKept);
+                    } catch (SQLException ex) {
+                        fail(String.format("Failed to expire the rows of partition %s", defaultPartition), ex);
+                    }
+                }
+            }
+
+            try (Statement dml = connection.createStatement()) {
+                dml.executeUpdate(String.format(EXPIRE_TRIP_STARTS, monthStartMillis(oldestKept)));
+            } catch (SQLException ex) {
+                fail("Failed to expire the start times of the trips", ex);
+            }
+        }
+        defaultRows = rows;
+    }
+
+    /**
+     * @return the number of rows the default partitions held after the last check, which belong to no monthly
+     * partition
+     */
+    public long getDefaultRowCount() {
+        return defaultRows;
+    }
+
+    private void createFromDefault(Connection connection, String table, String partition, YearMonth month,
+                                   String defaultPartition) throws SQLException {
+        long from = monthStartMillis(month);
+        long to = monthStartMillis(month.plusMonths(1));
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (Statement ddl = connection.createStatement()) {
+            ddl.execute(String.format(LOCK_DEFAULT, defaultPartition));
+            // Another subscriber may have created the partition while this one waited for the lock
+            if (partitionsOf(connection, table).contains(partition)) {
+                connection.rollback();
+                return;
+            }
+            ddl.execute(String.format(CREATE_DETACHED, partition, table));
+            int moved = ddl.executeUpdate(String.format(MOVE_ROWS, defaultPartition, from, to, partition));
+            ddl.execute(String.format(ATTACH_PARTITION, table, partition, from, to));
+            connection.commit();
+            if (moved > 0) {
+                logger.info(String.format("Moved %d rows of %s into its new partition %s", moved, defaultPartition,
+                        partition));
+            }
+        } catch (SQLException | RuntimeException ex) {
+            connection.rollback();
+            throw ex;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    // Returns the number of rows left in the default partition
+    private long expireDefault(Connection connection, String defaultPartition, YearMonth oldestKept)
+            throws SQLException {
+        try (Statement ddl = connection.createStatement()) {
+            int expired = ddl.executeUpdate(String.format(EXPIRE_DEFAULT_ROWS, defaultPartition,
+                    monthStartMillis(oldestKept)));
+            if (expired > 0) {
+                logger.info(String.format("Deleted %d rows of %s which are older than %s", expired, defaultPartition,
+                        oldestKept));
+            }
+            try (ResultSet count = ddl.executeQuery(String.format(COUNT_ROWS, defaultPartition))) {
+                long rows = count.next() ? count.getLong(1) : 0;
+                if (rows > 0) {
+                    logger.warn(String.format("%d rows of %s fall outside every monthly partition", rows,
+                            defaultPartition));
+                }
+                return rows;
+            }
+        }
+    }
+
+    private void fail(String message, SQLException cause) {
+        failures.mark();
+        logger.error(message, cause);
+    }
+
+    private static void execute(Connection connection, String sql) throws SQLException {
+        try (Statement ddl = connection.createStatement()) {
+            ddl.execute(sql);
+        }
+    }
+
+    static String defaultPartitionName(String table) {
+        return table + "_default";
+    }
+
+    static String partitionName(String table, YearMonth month) {
+        return String.format("%s_p%04d_%02d", table, month.getYear(), month.getMonthValue());
+    }
+
+    static long monthStartMillis(YearMonth month) {
+        return month.atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    /**
+     * @return the monthly partitions of months before the oldest month kept, leaving out any other partition such as
+     * the default partition
+     */
+    static List<String> expiredPartitions(List<String> partitions, YearMonth oldestKept) {
+        List<String> expired = new ArrayList<>();
+        for (String partition : partitions) {
+            Matcher matcher = PARTITION_MONTH.matcher(partition);
+            if (matcher.find() && YearMonth.of(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)))
+                    .isBefore(oldestKept)) {
+                expired.add(partition);
+            }
+        }
+        return expired;
+    }
+
+    private static List<String> partitionsOf(Connection connection, String table) throws SQLException {
+        List<String> partitions = new ArrayList<>();
+        try (PreparedStatement query = connection.prepareStatement(QUERY_PARTITIONS)) {
+            query.setString(1, table);
+            try (ResultSet rows = query.executeQuery()) {
+                while (rows.next()) {
+                    partitions.add(rows.getString(1));
+                }
+            }
+        }
+        return partitions;
+    }
+
+}
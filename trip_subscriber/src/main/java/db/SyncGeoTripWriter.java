@@ -0,0 +1,63 @@
+package db;
+
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+
+import java.util.Collections;
+
+/**
+ * Writes every row with a blocking call to Cassandra, one round trip per row. The latency of every write and the rows
+ * which failed to be written are recorded in the geo_trips {@link TableMetrics} and reported to a
+ * {@link WriteFailureListener}.
+ */
+public class SyncGeoTripWriter implements GeoTripWriter {
+
+    private final Session session;
+    private final PreparedStatement insertGeoTrip;
+    private final Timer writeLatency;
+    private final Meter writeFailures;
+    private final WriteFailureListener failureListener;
+
+    public SyncGeoTripWriter(Session session, PreparedStatement insertGeoTrip, WriteFailureListener failureListener,
+                             MetricRegistry metrics) {
+        this.session = session;
+        this.insertGeoTrip = insertGeoTrip;
+        this.failureListener = failureListener;
+        this.writeLatency = TableMetrics.writeLatency(metrics, TableMetrics.GEO_TRIPS);
+        this.writeFailures = TableMetrics.writeFailures(metrics, TableMetrics.GEO_TRIPS);
+    }
+
+    @Override
+    public void write(String geoHash, String tripId) {
+        try (Timer.Context ignored = writeLatency.time()) {
+            session.execute(insertGeoTrip.bind(geoHash, tripId));
+        } catch (NoHostAvailableException ex) {
+            writeFailures.mark();
+            failureListener.onFailure(geoHash, Collections.singletonList(tripId), ex);
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public boolean flushAndWait() {
+        return true;
+    }
+
+    @Override
+    public long getFailedCount() {
+        return writeFailures.getCount();
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
@@ -0,0 +1,39 @@
+package db;
+
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Names the metrics kept for every table the subscriber writes to, so that the latency of each store can be compared
+ * on one dashboard whichever writer the table is written by, e.g. {@code tables.geo_trips.write-latency} and
+ * {@code tables.geo_trips.write-failures}.
+ */
+public final class TableMetrics {
+
+    public static final String GEO_TRIPS = "geo_trips";
+    public static final String GEO_TRIP_SKETCHES = "geo_trip_sketches";
+    public static final String GEO_TRIP_BITMAPS = "geo_trip_bitmaps";
+
+    // Prevent unnecessary instantiations
+    private TableMetrics() {
+    }
+
+    /**
+     * @return the timer of the writes to the table, where one write may carry a batch of rows
+     */
+    public static Timer writeLatency(MetricRegistry metrics, String table) {
+        return metrics.timer(name("tables", table, "write-latency"));
+    }
+
+    /**
+     * @return the meter of the rows which could not be written to the table
+     */
+    public static Meter writeFailures(MetricRegistry metrics, String table) {
+        return metrics.meter(name("tables", table, "write-failures"));
+    }
+
+}
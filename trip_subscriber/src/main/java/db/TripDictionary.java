@@ -0,0 +1,255 @@
+package db;
+
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Maps trip ids to dense trip numbers, which are kept in the trip_numbers table so that every subscriber and the API
+ * agree on them. The table is authoritative: the number of a trip which is not cached is upserted into the table,
+ * which returns the number the trip already has, or else records the next number of a block of
+ * {@link #NUMBER_BLOCK_SIZE} numbers this subscriber reserved from the trip_number_blocks sequence. A trip whose
+ * BEGIN is delivered again, or which began before the subscriber was restarted, keeps its number, and the number is
+ * in the table before it is written anywhere else, see {@link GeoTripBitmapWriter}.
+ *
+ * The lanes never wait for the table: a trip which is not cached is queued with a callback, and the trips queued are
+ * upserted in one statement every {@code flushIntervalMillis}, or as soon as {@link #NUMBER_BLOCK_SIZE} trips are
+ * queued, by the dictionary's own thread, which then calls back with their numbers. The numbers of at most
+ * {@code maxTrips} trips are cached, evicting the least recently used trip once full, and a trip is evicted when its
+ * END event is persisted. A trip whose number could not be upserted is not called back, so its events are left out
+ * of the bitmaps rather than the trip being counted twice.
+ */
+public class TripDictionary {
+
+    private static final Logger logger = LoggerFactory.getLogger(TripDictionary.class);
+
+    // SQL statement for numbering a batch of trips, which returns the number every trip already has if it has one.
+    // The no-op update makes the statement return the existing rows, which DO NOTHING would not.
+    private static final String UPSERT_TRIP_NUMBERS =
+            "INSERT INTO trip_numbers (trip_id, trip_number) SELECT * FROM unnest(?::text[], ?::integer[]) " +
+            "ON CONFLICT (trip_id) DO UPDATE SET trip_id = EXCLUDED.trip_id RETURNING trip_id, trip_number";
+    private static final String NEXT_NUMBER_BLOCK = "SELECT nextval('trip_number_blocks')";
+
+    // The number of trip numbers reserved at a time, block n holds the numbers from n * NUMBER_BLOCK_SIZE
+    public static final int NUMBER_BLOCK_SIZE = 1024;
+    // The number returned for a trip which is not cached
+    public static final int NO_NUMBER = -1;
+    private static final long MAX_BLOCK = Integer.MAX_VALUE / NUMBER_BLOCK_SIZE - 1;
+
+    private final DataSource dataSource;
+    private final int maxTrips;
+    private final ScheduledExecutorService flushScheduler;
+    private final Meter lookups;
+    private final Meter assigned;
+    private final Meter failures;
+
+    private final LinkedHashMap<String, Integer> numbers = new LinkedHashMap<>(16, 0.75f, true);
+    // The trips waiting to be numbered, with the callbacks waiting for their numbers
+    private Map<String, List<IntConsumer>> queued = new LinkedHashMap<>();
+    // Guards the reserved block and serializes the flushes
+    private final Object flushLock = new Object();
+    private int nextNumber;
+    private int blockEnd;
+
+    /**
+     * @param flushIntervalMillis how often the queued trips are numbered
+     */
+    public TripDictionary(DataSource dataSource, int maxTrips, long flushIntervalMillis, MetricRegistry metrics) {
+        this.dataSource = dataSource;
+        this.maxTrips = maxTrips;
+        this.lookups = metrics.meter(name(TripDictionary.class, "lookups"));
+        this.assigned = metrics.meter(name(TripDictionary.class, "assigned"));
+        this.failures = metrics.meter(name(TripDictionary.class, "failures"));
+        metrics.register(name(TripDictionary.class, "trips"), (Gauge<Integer>) this::getTripCount);
+        metrics.register(name(TripDictionary.class, "queued"), (Gauge<Integer>) this::getQueuedCount);
+        this.flushScheduler = Executors.newSingleThreadScheduledExecutor();
+        flushScheduler.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param tripId the trip to look up
+     * @return the cached number of the trip, or {@link #NO_NUMBER} if it is not cached
+     */
+    public synchronized int cachedNumberOf(String tripId) {
+        Integer number = numbers.get(tripId);
+        return number != null ? number : NO_NUMBER;
+    }
+
+    /**
+     * Calls back with the number of a trip, straight away if it is cached, or else from the dictionary's thread once
+     * the trip has been numbered. The callback is not called if the trip could not be numbered.
+     *
+     * @param tripId the trip to number
+     * @param numbered receives the number of the trip
+     */
+    public void numberOf(String tripId, IntConsumer numbered) {
+        boolean full;
+        synchronized (this) {
+            Integer number = numbers.get(tripId);
+            if (number == null) {
+                queued.computeIfAbsent(tripId, id -> new ArrayList<>(1)).add(numbered);
+                full = queued.size() == NUMBER_BLOCK_SIZE;
+            } else {
+                numbered.accept(number);
+                return;
+            }
+        }
+        if (full) {
+            flushScheduler.execute(this::flush);
+        }
+    }
+
+    /**
+     * Forgets the number of a trip which has ended.
+     */
+    public synchronized void evict(String tripId) {
+        numbers.remove(tripId);
+    }
+
+    /**
+     * Numbers the trips queued so far in one statement, and calls back with their numbers.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            Map<String, List<IntConsumer>> toNumber;
+            synchronized (this) {
+                if (queued.isEmpty()) {
+                    return;
+                }
+                toNumber = queued;
+                queued = new LinkedHashMap<>();
+            }
+            Map<String, Integer> upserted;
+            try {
+                upserted = upsert(new ArrayList<>(toNumber.keySet()));
+            } catch (SQLException | RuntimeException ex) {
+                failures.mark(toNumber.size());
+                logger.error(String.format("Failed to number %d trips", toNumber.size()), ex);
+                return;
+            }
+            synchronized (this) {
+                numbers.putAll(upserted);
+                Iterator<String> eldest = numbers.keySet().iterator();
+                while (numbers.size() > maxTrips) {
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+            for (Map.Entry<String, List<IntConsumer>> trip : toNumber.entrySet()) {
+                Integer number = upserted.get(trip.getKey());
+                if (number == null) {
+                    failures.mark();
+                    logger.error(String.format("No trip number was returned for trip: %s", trip.getKey()));
+                    continue;
+                }
+                for (IntConsumer numbered : trip.getValue()) {
+                    numbered.accept(number);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the scheduled flushes and numbers the trips still queued.
+     */
+    public void close() {
+        flushScheduler.shutdown();
+        try {
+            flushScheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    public synchronized int getTripCount() {
+        return numbers.size();
+    }
+
+    public synchronized int getQueuedCount() {
+        return queued.size();
+    }
+
+    /**
+     * @return the number of trips which could not be given a number since the dictionary was created
+     */
+    public long getFailedCount() {
+        return failures.getCount();
+    }
+
+    /**
+     * Numbers the trips with the next numbers of the block, unless the table already has numbers for them. The
+     * numbers offered to trips which already have one are not given to other trips.
+     */
+    private Map<String, Integer> upsert(List<String> tripIds) throws SQLException {
+        lookups.mark(tripIds.size());
+        Integer[] offered = new Integer[tripIds.size()];
+        for (int i = 0; i < offered.length; i++) {
+            offered[i] = nextNumber();
+        }
+        Map<String, Integer> upserted = new HashMap<>();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement query = connection.prepareStatement(UPSERT_TRIP_NUMBERS)) {
+            query.setArray(1, connection.createArrayOf("text", tripIds.toArray(new String[tripIds.size()])));
+            query.setArray(2, connection.createArrayOf("integer", offered));
+            try (ResultSet rows = query.executeQuery()) {
+                while (rows.next()) {
+                    upserted.put(rows.getString(1), rows.getInt(2));
+                }
+            }
+        }
+        for (int i = 0; i < offered.length; i++) {
+            if (offered[i].equals(upserted.get(tripIds.get(i)))) {
+                assigned.mark();
+            }
+        }
+        return upserted;
+    }
+
+    // Only called by a flush, which holds the flush lock
+    private int nextNumber() throws SQLException {
+        if (nextNumber == blockEnd) {
+            long block = reserveBlock();
+            if (block < 0 || block > MAX_BLOCK) {
+                throw new IllegalStateException(String.format("Trip number block out of range: %d", block));
+            }
+            nextNumber = (int) block * NUMBER_BLOCK_SIZE;
+            blockEnd = nextNumber + NUMBER_BLOCK_SIZE;
+        }
+        return nextNumber++;
+    }
+
+    private long reserveBlock() throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement query = connection.prepareStatement(NEXT_NUMBER_BLOCK);
+             ResultSet rows = query.executeQuery()) {
+            if (!rows.next()) {
+                throw new SQLException("No trip number block was returned");
+            }
+            return rows.getLong(1);
+        }
+    }
+
+}
@@ -0,0 +1,18 @@
+package db;
+
+
+import java.util.List;
+
+/**
+ * Callback notified when rows could not be written to the geo_trips table.
+ */
+public interface WriteFailureListener {
+
+    /**
+     * @param geoHash the partition key of the rows that failed
+     * @param tripIds the trip ids of the rows that failed
+     * @param cause the reason for the failure
+     */
+    void onFailure(String geoHash, List<String> tripIds, Throwable cause);
+
+}
@@ -0,0 +1,120 @@
+package db;
+
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import util.LongHashSet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Remembers which geohash prefixes have already been written to the geo_trips table for each trip, so that a vehicle
+ * which stays in (or keeps returning to) the same area does not resend the same rows. Skipping these writes does not
+ * change any query results because the geo_trips primary key is (geohash, trip_id), so a repeated write is a no-op.
+ *
+ * The cache holds at most {@code maxTrips} trips, evicting the least recently used trip once full. A trip is also
+ * evicted when its END event is persisted, or when it has not been seen for {@code idleTimeoutMillis}.
+ *
+ * Prefixes are held as geohash bits together with their precision, see {@link geo.GeoHashEncoder}, so a lookup does
+ * not need the prefix as a string.
+ */
+public class WrittenPrefixCache {
+
+    private static final String HIT_RATIO_METRIC = "hit-ratio";
+    private static final int PRECISION_BITS = 4;
+
+    private final int maxTrips;
+    private final long idleTimeoutMillis;
+    private final LongSupplier clock;
+    private final Meter hits;
+    private final Meter lookups;
+
+    private final LinkedHashMap<String, TripPrefixes> trips = new LinkedHashMap<>(16, 0.75f, true);
+
+    public WrittenPrefixCache(int maxTrips, long idleTimeoutMillis, MetricRegistry metrics) {
+        this(maxTrips, idleTimeoutMillis, metrics, System::currentTimeMillis);
+    }
+
+    WrittenPrefixCache(int maxTrips, long idleTimeoutMillis, MetricRegistry metrics, LongSupplier clock) {
+        this.maxTrips = maxTrips;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.clock = clock;
+        this.hits = metrics.meter(name(WrittenPrefixCache.class, "hits"));
+        this.lookups = metrics.meter(name(WrittenPrefixCache.class, "lookups"));
+        metrics.register(name(WrittenPrefixCache.class, HIT_RATIO_METRIC), new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(hits.getCount(), lookups.getCount());
+            }
+        });
+    }
+
+    /**
+     * Records that a row for the geohash prefix is about to be written for the trip.
+     *
+     * @param tripId the trip the row belongs to
+     * @param prefixBits the bits of the geohash prefix of the row
+     * @param precision the precision of the geohash prefix
+     * @return true if the row has not been written before and needs to be sent to Cassandra, false if it is a repeat
+     */
+    public synchronized boolean markWritten(String tripId, long prefixBits, int precision) {
+        long now = clock.getAsLong();
+        evictIdleTrips(now);
+
+        TripPrefixes prefixes = trips.get(tripId);
+        if (prefixes == null) {
+            prefixes = new TripPrefixes();
+            trips.put(tripId, prefixes);
+            if (trips.size() > maxTrips) {
+                Iterator<String> eldest = trips.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        prefixes.lastSeen = now;
+
+        lookups.mark();
+        if (prefixes.written.add((prefixBits << PRECISION_BITS) | precision)) {
+            return true;
+        }
+        hits.mark();
+        return false;
+    }
+
+    /**
+     * Forgets everything that has been written for the trip, e.g. because the trip has ended or because a write for
+     * it failed and the rows need to be sent again.
+     *
+     * @param tripId the trip to evict
+     */
+    public synchronized void evict(String tripId) {
+        trips.remove(tripId);
+    }
+
+    public synchronized int size() {
+        return trips.size();
+    }
+
+    // The map is in access order, so idle trips are always found at the head
+    private void evictIdleTrips(long now) {
+        Iterator<Map.Entry<String, TripPrefixes>> it = trips.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue().lastSeen < idleTimeoutMillis) {
+                return;
+            }
+            it.remove();
+        }
+    }
+
+    private static final class TripPrefixes {
+        private final LongHashSet written = new LongHashSet();
+        private long lastSeen;
+    }
+
+}
@@ -1,49 +1,93 @@
 package parser;
 
 
-import com.fasterxml.jackson.annotation.JsonProperty;
-import org.vertexium.type.GeoHash;
-
-import java.sql.Timestamp;
-import java.time.Instant;
+import geo.GeoHashEncoder;
 
+/**
+ * A trip event. Instances are mutable so that a message handler can parse every message into the same instance, see
+ * {@link MessageParser#parse(String, Message)}.
+ */
 public class Message {
 
-    private static final int GEOHASH_PRECISION = 9;
+    public static final int GEOHASH_PRECISION = 9;
 
-    @JsonProperty(value="event", required=true)
     private EventType event;
-    @JsonProperty(value="tripId", required=true)
     private String tripId;
-    @JsonProperty(value="lat", required=true)
     private double lat;
-    @JsonProperty(value="lng", required=true)
     private double lng;
-    @JsonProperty("fare")
-    private Float fare;
-    @JsonProperty(value="epoch", required=true)
+    private boolean hasFare;
+    private float fare;
     private long timestamp;
 
+    // The geohash is computed on first use and kept until the message is overwritten
+    private boolean hasGeoHash;
+    private long geoHashBits;
+    private String geoHash;
+
     public Message() {
 
     }
 
     public Message(EventType event, String tripId, double lat, double lng, long timestamp) {
+        set(event, tripId, lat, lng, timestamp);
+    }
+
+    public Message(EventType event, String tripId, double lat, double lng, Float fare, long timestamp) {
+        this(event, tripId, lat, lng, timestamp);
+        if (fare != null) {
+            setFare(fare);
+        }
+    }
+
+    /**
+     * Overwrites every field of this message, clearing the fare.
+     */
+    public void set(EventType event, String tripId, double lat, double lng, long timestamp) {
         this.event = event;
         this.tripId = tripId;
         this.lat = lat;
         this.lng = lng;
         this.timestamp = timestamp;
+        this.hasFare = false;
+        this.fare = 0;
+        this.hasGeoHash = false;
+        this.geoHash = null;
     }
 
-    public Message(EventType event, String tripId, double lat, double lng, Float fare, long timestamp) {
-        this(event, tripId, lat, lng, timestamp);
+    /**
+     * Copies every field of another message into this one.
+     */
+    public void copyFrom(Message other) {
+        set(other.event, other.tripId, other.lat, other.lng, other.timestamp);
+        hasFare = other.hasFare;
+        fare = other.fare;
+        hasGeoHash = other.hasGeoHash;
+        geoHashBits = other.geoHashBits;
+        geoHash = other.geoHash;
+    }
+
+    public void setFare(float fare) {
+        this.hasFare = true;
         this.fare = fare;
     }
 
+    /**
+     * @return the bits of the precision {@value #GEOHASH_PRECISION} geohash of the message's location, see
+     * {@link GeoHashEncoder}
+     */
+    public long getGeoHashBits() {
+        if (!hasGeoHash) {
+            geoHashBits = GeoHashEncoder.encode(lat, lng, GEOHASH_PRECISION);
+            hasGeoHash = true;
+        }
+        return geoHashBits;
+    }
+
     public String getGeoHash() {
-        GeoHash hash = new GeoHash(lat, lng, GEOHASH_PRECISION);
-        return hash.getHash();
+        if (geoHash == null) {
+            geoHash = GeoHashEncoder.toBase32(getGeoHashBits(), GEOHASH_PRECISION);
+        }
+        return geoHash;
     }
 
     public EventType getEvent() {
@@ -62,11 +106,22 @@ public class Message {
         return lng;
     }
 
-    public Float getFare() {
+    public boolean hasFare() {
+        return hasFare;
+    }
+
+    /**
+     * @return the fare, or 0 if the message has no fare
+     */
+    public float getFareValue() {
         return fare;
     }
 
-    public Long getEpoch() {
+    public Float getFare() {
+        return hasFare ? fare : null;
+    }
+
+    public long getEpoch() {
         return timestamp;
     }
 
@@ -77,7 +132,7 @@ public class Message {
                 ", tripId='" + tripId + '\'' +
                 ", lat=" + lat +
                 ", lng=" + lng +
-                ", fare=" + fare +
+                ", fare=" + getFare() +
                 ", timestamp=" + timestamp +
                 '}';
     }
@@ -1,37 +1,446 @@
 package parser;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import static java.lang.String.format;
+/**
+ * Parses trip messages, which are flat JSON objects such as
+ * {@code {"event":"end", "tripId":432, "lat":37.79947, "lng":-122.511635, "fare":43.55, "epoch":1392864673040}}.
+ *
+ * The parser scans the message directly into a reusable {@link Message} and reports failures as a {@link ParseError}
+ * rather than an exception, so a handler can parse a stream of messages without allocating a new message or building
+ * stack traces for malformed input. An instance keeps its position in the message being parsed, so it must only be
+ * used by one thread at a time.
+ */
+public class MessageParser {
 
+    private static final String EVENT = "event";
+    private static final String TRIP_ID = "tripId";
+    private static final String LAT = "lat";
+    private static final String LNG = "lng";
+    private static final String FARE = "fare";
+    private static final String EPOCH = "epoch";
 
-public class MessageParser {
+    // Bits recording which of the required fields have been seen
+    private static final int EVENT_SEEN = 1;
+    private static final int TRIP_ID_SEEN = 1 << 1;
+    private static final int LAT_SEEN = 1 << 2;
+    private static final int LNG_SEEN = 1 << 3;
+    private static final int EPOCH_SEEN = 1 << 4;
+    private static final int ALL_REQUIRED_SEEN = EVENT_SEEN | TRIP_ID_SEEN | LAT_SEEN | LNG_SEEN | EPOCH_SEEN;
+
+    // Powers of ten which are exactly representable as doubles
+    private static final double[] EXACT_POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
 
-    private static final Logger logger = LoggerFactory.getLogger(MessageParser.class);
+    private String json;
+    private int pos;
+    private int end;
 
-    private static final ObjectMapper mapper = new ObjectMapper();
+    // Results of the last scanned value
+    private boolean numberIsIntegral;
+    private long integralValue;
+    private double doubleValue;
+    private int valueStart;
 
+    /**
+     * Parses and validates a message. This is a convenience for callers which parse the odd message, handlers which
+     * parse a stream of messages should reuse a parser and a message with {@link #parse(String, Message)}.
+     *
+     * @param msg the raw message
+     * @return the parsed message
+     * @throws InvalidMessageFormatException if the message is not a valid trip message
+     */
     public static Message parseMessage(String msg) throws InvalidMessageFormatException {
+        Message message = new Message();
+        ParseError error = new MessageParser().parse(msg, message);
+        if (error != null) {
+            throw new InvalidMessageFormatException(
+                    String.format("Error occurred during parsing of message: %s, %s", msg, error.getDescription()));
+        }
+        return message;
+    }
+
+    /**
+     * Finds the event type of a raw message without parsing it, by looking for the value of the "event" field. This
+     * is meant for cheap routing decisions only, the message may still turn out to be invalid when it is parsed.
+     *
+     * @param msg the raw message
+     * @return the event type, or null if it could not be found
+     */
+    public static EventType peekEventType(String msg) {
+        int field = msg.indexOf("\"event\"");
+        if (field < 0) {
+            return null;
+        }
+        int i = msg.indexOf(':', field + 7);
+        if (i < 0) {
+            return null;
+        }
+        i = msg.indexOf('"', i + 1);
+        if (i < 0) {
+            return null;
+        }
+        for (EventType type : EventType.values()) {
+            String name = type.name();
+            if (msg.regionMatches(true, i + 1, name, 0, name.length())
+                    && i + 1 + name.length() < msg.length() && msg.charAt(i + 1 + name.length()) == '"') {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hashes the value of the "tripId" field of a raw message without parsing it or allocating. Quoted and unquoted
+     * trip ids hash the same, so both forms of a trip id are routed alike. Like {@link #peekEventType(String)} this is
+     * meant for routing only.
+     *
+     * @param msg the raw message
+     * @return the hash of the trip id, or 0 if it could not be found
+     */
+    public static int peekTripIdHash(String msg) {
+        int field = msg.indexOf("\"" + TRIP_ID + "\"");
+        if (field < 0) {
+            return 0;
+        }
+        int i = msg.indexOf(':', field + TRIP_ID.length() + 2);
+        if (i < 0) {
+            return 0;
+        }
+        i++;
+        while (i < msg.length() && Character.isWhitespace(msg.charAt(i))) {
+            i++;
+        }
+        boolean quoted = i < msg.length() && msg.charAt(i) == '"';
+        if (quoted) {
+            i++;
+        }
+        int hash = 0;
+        for (; i < msg.length(); i++) {
+            char c = msg.charAt(i);
+            if (quoted ? c == '"' : (c == ',' || c == '}' || Character.isWhitespace(c))) {
+                break;
+            }
+            hash = 31 * hash + c;
+        }
+        return hash;
+    }
+
+    /**
+     * Parses and validates a message into the target, overwriting all of its fields.
+     *
+     * @param msg the raw message
+     * @param target the message to fill in, its contents are undefined if parsing fails
+     * @return null if the message is valid, otherwise the reason it was rejected
+     */
+    public ParseError parse(String msg, Message target) {
+        if (msg == null || msg.isEmpty()) {
+            return ParseError.EMPTY;
+        }
+        json = msg;
+        pos = 0;
+        end = msg.length();
         try {
-            Message message = mapper.readValue(msg, Message.class);
-            validateMessage(message);
-            return message;
-        } catch (Exception ex) {
-            logger.error(format("Error occurred during parsing of message: %s", msg), ex);
-            throw new InvalidMessageFormatException(format("Error occurred during parsing of message: %s", msg), ex);
+            return parseObject(target);
+        } catch (NumberFormatException ex) {
+            // Only reachable with a malformed unicode escape in the trip id
+            return ParseError.MALFORMED_JSON;
+        } finally {
+            json = null;
         }
     }
 
-    private static void validateMessage(Message message) throws InvalidMessageFormatException {
-        if (message.getEvent() == EventType.END && message.getFare() == null) {
-            throw new InvalidMessageFormatException(format("Event type '%s' has missing fare value", message.getEvent()));
+    private ParseError parseObject(Message target) {
+        EventType event = null;
+        String tripId = null;
+        double lat = 0;
+        double lng = 0;
+        long epoch = 0;
+        boolean hasFare = false;
+        float fare = 0;
+        int seen = 0;
+
+        skipWhitespace();
+        if (!consume('{')) {
+            return ParseError.MALFORMED_JSON;
         }
-        if (message.getEvent() != EventType.END && message.getFare() != null) {
-            throw new InvalidMessageFormatException(
-                    format("Event type '%s' has a fare value of '%.2f' when it should be null", message.getEvent(), message.getFare()));
+        skipWhitespace();
+        if (!consume('}')) {
+            do {
+                skipWhitespace();
+                int nameStart = pos + 1;
+                if (!skipString()) {
+                    return ParseError.MALFORMED_JSON;
+                }
+                int nameLength = pos - 1 - nameStart;
+                skipWhitespace();
+                if (!consume(':')) {
+                    return ParseError.MALFORMED_JSON;
+                }
+                skipWhitespace();
+
+                if (fieldIs(EVENT, nameStart, nameLength)) {
+                    event = scanEventType();
+                    if (event == null) {
+                        return ParseError.INVALID_EVENT;
+                    }
+                    seen |= EVENT_SEEN;
+                } else if (fieldIs(TRIP_ID, nameStart, nameLength)) {
+                    tripId = scanTripId();
+                    if (tripId == null) {
+                        return ParseError.INVALID_VALUE;
+                    }
+                    seen |= TRIP_ID_SEEN;
+                } else if (fieldIs(LAT, nameStart, nameLength)) {
+                    if (!scanNumber()) {
+                        return ParseError.INVALID_VALUE;
+                    }
+                    lat = doubleValue;
+                    seen |= LAT_SEEN;
+                } else if (fieldIs(LNG, nameStart, nameLength)) {
+                    if (!scanNumber()) {
+                        return ParseError.INVALID_VALUE;
+                    }
+                    lng = doubleValue;
+                    seen |= LNG_SEEN;
+                } else if (fieldIs(EPOCH, nameStart, nameLength)) {
+                    if (!scanNumber() || !numberIsIntegral) {
+                        return ParseError.INVALID_VALUE;
+                    }
+                    epoch = integralValue;
+                    seen |= EPOCH_SEEN;
+                } else if (fieldIs(FARE, nameStart, nameLength)) {
+                    if (consumeLiteral("null")) {
+                        hasFare = false;
+                    } else if (scanNumber()) {
+                        hasFare = true;
+                        fare = (float) doubleValue;
+                    } else {
+                        return ParseError.INVALID_VALUE;
+                    }
+                } else {
+                    return ParseError.UNKNOWN_FIELD;
+                }
+                skipWhitespace();
+            } while (consume(','));
+
+            if (!consume('}')) {
+                return ParseError.MALFORMED_JSON;
+            }
+        }
+        skipWhitespace();
+        if (pos != end) {
+            return ParseError.MALFORMED_JSON;
+        }
+        if (seen != ALL_REQUIRED_SEEN) {
+            return ParseError.MISSING_FIELD;
+        }
+
+        target.set(event, tripId, lat, lng, epoch);
+        if (hasFare) {
+            target.setFare(fare);
+        }
+        return validateMessage(target);
+    }
+
+    private static ParseError validateMessage(Message message) {
+        if (message.getEvent() == EventType.END && !message.hasFare()) {
+            return ParseError.MISSING_FARE;
+        }
+        if (message.getEvent() != EventType.END && message.hasFare()) {
+            return ParseError.UNEXPECTED_FARE;
+        }
+        return null;
+    }
+
+    private boolean fieldIs(String field, int nameStart, int nameLength) {
+        return nameLength == field.length() && json.startsWith(field, nameStart);
+    }
+
+    private EventType scanEventType() {
+        int start = pos + 1;
+        if (!skipString()) {
+            return null;
+        }
+        int length = pos - 1 - start;
+        for (EventType type : EventType.values()) {
+            String name = type.name();
+            if (length == name.length() && json.regionMatches(true, start, name, 0, length)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    // Trip ids may be sent as a JSON string or a JSON number, numbers are kept exactly as they were written
+    private String scanTripId() {
+        if (pos < end && json.charAt(pos) == '"') {
+            int start = pos + 1;
+            if (!skipString()) {
+                return null;
+            }
+            String raw = json.substring(start, pos - 1);
+            return raw.indexOf('\\') < 0 ? raw : unescape(raw);
+        }
+        if (!scanNumber()) {
+            return null;
+        }
+        return json.substring(valueStart, pos);
+    }
+
+    /**
+     * Scans a JSON number. Numbers with at most 15 or so significant digits and a small exponent, which covers every
+     * coordinate and fare, are converted with a single exactly rounded multiplication or division. Anything else
+     * falls back to {@link Double#parseDouble(String)}.
+     */
+    private boolean scanNumber() {
+        valueStart = pos;
+        boolean negative = consume('-');
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean mantissaExact = true;
+
+        int intStart = pos;
+        while (pos < end && isDigit(json.charAt(pos))) {
+            mantissaExact = mantissaExact && fitsAnotherDigit(mantissa);
+            if (mantissaExact) {
+                mantissa = mantissa * 10 + (json.charAt(pos) - '0');
+            }
+            digits++;
+            pos++;
+        }
+        if (pos == intStart) {
+            return false;
+        }
+        boolean integral = true;
+        if (consume('.')) {
+            integral = false;
+            int fractionStart = pos;
+            while (pos < end && isDigit(json.charAt(pos))) {
+                mantissaExact = mantissaExact && fitsAnotherDigit(mantissa);
+                if (mantissaExact) {
+                    mantissa = mantissa * 10 + (json.charAt(pos) - '0');
+                    exponent--;
+                }
+                digits++;
+                pos++;
+            }
+            if (pos == fractionStart) {
+                return false;
+            }
+        }
+        if (pos < end && (json.charAt(pos) == 'e' || json.charAt(pos) == 'E')) {
+            integral = false;
+            pos++;
+            boolean negativeExponent = consume('-');
+            if (!negativeExponent) {
+                consume('+');
+            }
+            int exponentStart = pos;
+            int explicitExponent = 0;
+            while (pos < end && isDigit(json.charAt(pos))) {
+                explicitExponent = Math.min(explicitExponent * 10 + (json.charAt(pos) - '0'), 10000);
+                pos++;
+            }
+            if (pos == exponentStart) {
+                return false;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+
+        numberIsIntegral = integral && digits <= 18;
+        if (numberIsIntegral) {
+            integralValue = negative ? -mantissa : mantissa;
+        }
+        if (mantissaExact && mantissa <= MAX_EXACT_MANTISSA && Math.abs(exponent) < EXACT_POWERS_OF_TEN.length) {
+            double value = exponent < 0
+                    ? mantissa / EXACT_POWERS_OF_TEN[-exponent]
+                    : mantissa * EXACT_POWERS_OF_TEN[exponent];
+            doubleValue = negative ? -value : value;
+        } else {
+            doubleValue = Double.parseDouble(json.substring(valueStart, pos));
+        }
+        return true;
+    }
+
+    // Whether another digit can be added to the mantissa without overflowing a long
+    private static boolean fitsAnotherDigit(long mantissa) {
+        return mantissa <= (Long.MAX_VALUE - 9) / 10;
+    }
+
+    private boolean skipString() {
+        if (!consume('"')) {
+            return false;
+        }
+        while (pos < end) {
+            char c = json.charAt(pos++);
+            if (c == '"') {
+                return true;
+            }
+            if (c == '\\') {
+                pos++;
+            }
+        }
+        return false;
+    }
+
+    private boolean consumeLiteral(String literal) {
+        if (json.startsWith(literal, pos)) {
+            pos += literal.length();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean consume(char c) {
+        if (pos < end && json.charAt(pos) == c) {
+            pos++;
+            return true;
         }
+        return false;
+    }
 
+    private void skipWhitespace() {
+        while (pos < end) {
+            char c = json.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static String unescape(String raw) {
+        StringBuilder sb = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c != '\\' || i + 1 == raw.length()) {
+                sb.append(c);
+                continue;
+            }
+            char escaped = raw.charAt(++i);
+            switch (escaped) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if (i + 4 < raw.length()) {
+                        sb.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+                        i += 4;
+                    }
+                    break;
+                default: sb.append(escaped);
+            }
+        }
+        return sb.toString();
     }
 }
@@ -0,0 +1,29 @@
+package parser;
+
+
+/**
+ * The reasons a message can be rejected by the {@link MessageParser}. These are returned instead of thrown, so that a
+ * burst of malformed messages does not cost an exception and a stack trace each.
+ */
+public enum ParseError {
+
+    EMPTY("Message is empty"),
+    MALFORMED_JSON("Message is not a valid JSON object"),
+    UNKNOWN_FIELD("Message has an unknown field"),
+    MISSING_FIELD("Message is missing a required field"),
+    INVALID_EVENT("Message has an unknown event type"),
+    INVALID_VALUE("Message has a field with a value of the wrong type"),
+    MISSING_FARE("Event type 'END' has missing fare value"),
+    UNEXPECTED_FARE("Event type 'BEGIN' or 'UPDATE' has a fare value when it should be null");
+
+    private final String description;
+
+    ParseError(String description) {
+        this.description = description;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+}
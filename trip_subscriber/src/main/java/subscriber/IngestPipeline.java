@@ -0,0 +1,291 @@
+package subscriber;
+
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import db.MessagePersistenceService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import parser.EventType;
+import parser.MessageParser;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Hands raw messages from the Redis reader thread to a fixed set of lanes, each of which is a preallocated ring buffer
+ * drained by a single persistence worker. Messages are routed to a lane by the hash of their trip id, so all the events
+ * of a trip are persisted in the order they were received, e.g. a trip's END is never persisted before its BEGIN,
+ * while different trips are persisted in parallel. Each lane also runs its own {@link UpdateCoalescer}, which relies on
+ * seeing all of a trip's events on one thread.
+ *
+ * Unlike an executor with an unbounded queue, memory use stays bounded when the databases slow down: once a lane is
+ * full the {@link OverflowPolicy} decides whether the reader blocks, drops UPDATE messages or spills messages to disk.
+ *
+ * The queue depth of every lane, the spill depth, the rate of received, dropped and spilled messages and the ratio of
+ * coalesced updates are published to the metric registry.
+ */
+public class IngestPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(IngestPipeline.class);
+
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SPILL_DRAIN_INTERVAL_MILLIS = 100;
+    // Published into every lane by a checkpoint, and told apart from the messages by identity
+    private static final String BARRIER = new String("checkpoint");
+
+    private final List<RingBuffer<String>> lanes = new ArrayList<>();
+    private final OverflowPolicy overflowPolicy;
+    private final SpillFile spillFile;
+    private final List<Thread> workers = new ArrayList<>();
+    private final ScheduledExecutorService spillDrainer;
+    private final Meter received;
+    private final Meter dropped;
+    private final Meter spilled;
+
+    private volatile boolean accepting = true;
+    private volatile boolean running = true;
+    private volatile CountDownLatch barriersReached;
+
+    /**
+     * @param laneCount the number of lanes, and so of worker threads, typically the number of cores
+     * @param laneCapacity the number of messages each lane can hold
+     * @param coalesceWindowMillis how long each lane holds back a trip's updates to coalesce them
+     */
+    public IngestPipeline(int laneCount, int laneCapacity, long coalesceWindowMillis, OverflowPolicy overflowPolicy,
+                          Path spillPath, MessagePersistenceService service, MetricRegistry metrics) throws IOException {
+        this(laneCount, laneCapacity, coalesceWindowMillis, overflowPolicy, spillPath, service, metrics, true);
+    }
+
+    IngestPipeline(int laneCount, int laneCapacity, long coalesceWindowMillis, OverflowPolicy overflowPolicy,
+                   Path spillPath, MessagePersistenceService service, MetricRegistry metrics, boolean startWorkers)
+            throws IOException {
+        if (laneCount < 1) {
+            throw new IllegalArgumentException(String.format("Lane count must be positive: %d", laneCount));
+        }
+        this.overflowPolicy = overflowPolicy;
+        this.received = metrics.meter(name(IngestPipeline.class, "received"));
+        this.dropped = metrics.meter(name(IngestPipeline.class, "dropped"));
+        this.spilled = metrics.meter(name(IngestPipeline.class, "spilled"));
+        for (int i = 0; i < laneCount; i++) {
+            RingBuffer<String> lane = new RingBuffer<>(laneCapacity);
+            lanes.add(lane);
+            metrics.register(name(IngestPipeline.class, "lane-" + i, "queue-depth"), (Gauge<Integer>) lane::size);
+        }
+        metrics.register(name(IngestPipeline.class, "queue-depth"), (Gauge<Integer>) this::getQueueDepth);
+
+        if (overflowPolicy == OverflowPolicy.SPILL) {
+            spillFile = new SpillFile(spillPath);
+            metrics.register(name(IngestPipeline.class, "spill-depth"), (Gauge<Long>) this::spillDepth);
+            spillDrainer = Executors.newSingleThreadScheduledExecutor();
+            spillDrainer.scheduleWithFixedDelay(this::drainSpillFile,
+                    SPILL_DRAIN_INTERVAL_MILLIS, SPILL_DRAIN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            spillFile = null;
+            spillDrainer = null;
+        }
+
+        Meter updates = metrics.meter(name(UpdateCoalescer.class, "updates"));
+        Meter coalesced = metrics.meter(name(UpdateCoalescer.class, "coalesced"));
+        metrics.register(name(UpdateCoalescer.class, "coalescing-ratio"), new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(coalesced.getCount(), updates.getCount());
+            }
+        });
+
+        if (startWorkers) {
+            for (int i = 0; i < laneCount; i++) {
+                RingBuffer<String> lane = lanes.get(i);
+                UpdateCoalescer coalescer = new UpdateCoalescer(service, coalesceWindowMillis, updates, coalesced);
+                MessageHandler handler = new MessageHandler(coalescer, metrics);
+                Thread worker = new Thread(() -> consume(lane, handler, coalescer), "ingest-lane-" + i);
+                workers.add(worker);
+                worker.start();
+            }
+        }
+    }
+
+    /**
+     * Queues a message for the workers. Must only be called by one thread at a time, which for a Redis subscription
+     * is always the case.
+     *
+     * @param message the raw message
+     */
+    public void publish(String message) {
+        if (!accepting) {
+            return;
+        }
+        received.mark();
+        RingBuffer<String> lane = laneFor(message);
+        if (overflowPolicy == OverflowPolicy.SPILL) {
+            publishOrSpill(message, lane);
+        } else if (!lane.offer(message)) {
+            if (overflowPolicy == OverflowPolicy.DROP_UPDATES && MessageParser.peekEventType(message) == EventType.UPDATE) {
+                dropped.mark();
+            } else {
+                publishBlocking(message, lane);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting messages, waits for the workers to empty the lanes and stops them. Messages which are still
+     * in the spill file are left there and read back on the next start.
+     */
+    public void shutdown() throws InterruptedException {
+        accepting = false;
+        if (spillDrainer != null) {
+            spillDrainer.shutdown();
+            spillDrainer.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        }
+        while (getQueueDepth() > 0) {
+            Thread.sleep(10);
+        }
+        running = false;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (spillFile != null) {
+            synchronized (spillFile) {
+                closeSpillFile();
+            }
+        }
+    }
+
+    /**
+     * Waits until the workers have persisted every message published before the call, including the updates their
+     * coalescers were holding back, by publishing a barrier into every lane which each worker reaches once it has
+     * persisted the messages ahead of it. Must be called by the publishing thread, and not with the spill policy, as
+     * a spilled message may still be behind the barrier.
+     */
+    public void checkpoint() throws InterruptedException {
+        if (spillFile != null) {
+            throw new IllegalStateException("Cannot checkpoint a pipeline which spills messages");
+        }
+        CountDownLatch reached = new CountDownLatch(lanes.size());
+        barriersReached = reached;
+        for (RingBuffer<String> lane : lanes) {
+            publishBlocking(BARRIER, lane);
+        }
+        reached.await();
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (RingBuffer<String> lane : lanes) {
+            depth += lane.size();
+        }
+        return depth;
+    }
+
+    public int getLaneCount() {
+        return lanes.size();
+    }
+
+    /**
+     * @return the index of the lane which persists the messages of the message's trip
+     */
+    int laneIndex(String message) {
+        int hash = MessageParser.peekTripIdHash(message);
+        return Math.floorMod(hash ^ (hash >>> 16), lanes.size());
+    }
+
+    public long getDroppedCount() {
+        return dropped.getCount();
+    }
+
+    private RingBuffer<String> laneFor(String message) {
+        return lanes.get(laneIndex(message));
+    }
+
+    private void consume(RingBuffer<String> lane, MessageHandler handler, UpdateCoalescer coalescer) {
+        long parkNanos = MIN_PARK_NANOS;
+        while (running) {
+            String message = lane.poll();
+            if (message == BARRIER) {
+                coalescer.flush();
+                barriersReached.countDown();
+            } else if (message != null) {
+                handler.handle(message);
+                parkNanos = MIN_PARK_NANOS;
+            } else {
+                LockSupport.parkNanos(parkNanos);
+                parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+            }
+            coalescer.flushExpired();
+        }
+        coalescer.close();
+    }
+
+    private void publishBlocking(String message, RingBuffer<String> lane) {
+        long parkNanos = MIN_PARK_NANOS;
+        while (!lane.offer(message)) {
+            LockSupport.parkNanos(parkNanos);
+            parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+        }
+    }
+
+    // Once anything has been spilled, later messages must queue up behind it in the file to keep their order
+    private void publishOrSpill(String message, RingBuffer<String> lane) {
+        synchronized (spillFile) {
+            try {
+                if (spillFile.size() > 0) {
+                    drainSpillFileLocked();
+                }
+                if (spillFile.size() > 0 || !lane.offer(message)) {
+                    spillFile.append(message);
+                    spilled.mark();
+                }
+            } catch (IOException ex) {
+                logger.error(String.format("Failed to spill message, blocking until there is room for it: %s", message), ex);
+                publishBlocking(message, lane);
+            }
+        }
+    }
+
+    private void drainSpillFile() {
+        synchronized (spillFile) {
+            try {
+                drainSpillFileLocked();
+            } catch (IOException ex) {
+                logger.error("Failed to read back spilled messages", ex);
+            }
+        }
+    }
+
+    // Stops at the first message whose lane is full, so that no message overtakes an earlier one of the same trip
+    private void drainSpillFileLocked() throws IOException {
+        String message;
+        while ((message = spillFile.peek()) != null && laneFor(message).offer(message)) {
+            spillFile.remove();
+        }
+    }
+
+    private long spillDepth() {
+        synchronized (spillFile) {
+            return spillFile.size();
+        }
+    }
+
+    private void closeSpillFile() {
+        try {
+            spillFile.close();
+        } catch (IOException ex) {
+            logger.error("Failed to close spill file", ex);
+        }
+    }
+
+}
@@ -1,34 +1,94 @@
 package subscriber;
 
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import db.MessagePersistenceService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import parser.InvalidMessageFormatException;
 import parser.Message;
 import parser.MessageParser;
+import parser.ParseError;
 
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Parses and persists messages. A handler reuses the same parser and message for every message it handles, so it must
+ * only be used by one thread at a time.
+ *
+ * The rates of messages which were parsed and of messages which failed to parse are published to the metric registry.
+ */
 public class MessageHandler implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(MessageHandler.class);
 
-    private String message;
-    private MessagePersistenceService service;
+    // Log at most one rejected message per interval, so a burst of bad messages does not flood the logs
+    private static final long REJECTION_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String message;
+    private final MessagePersistenceService service;
+    private final MessageParser parser = new MessageParser();
+    private final Message parsed = new Message();
+    private final Meter parsedMessages;
+    private final Meter failedMessages;
 
-    public MessageHandler(String message, MessagePersistenceService service) {
+    private long lastRejectionLogged = System.nanoTime() - REJECTION_LOG_INTERVAL_NANOS;
+    private long rejectionsNotLogged;
+
+    public MessageHandler(String message, MessagePersistenceService service, MetricRegistry metrics) {
         this.message = message;
         this.service = service;
+        this.parsedMessages = metrics.meter(name(MessageHandler.class, "parsed"));
+        this.failedMessages = metrics.meter(name(MessageHandler.class, "failed"));
+    }
+
+    /**
+     * Creates a handler which is reused for many messages, see {@link #handle(String)}.
+     */
+    public MessageHandler(MessagePersistenceService service, MetricRegistry metrics) {
+        this(null, service, metrics);
     }
 
     @Override
     public void run() {
-        try {
-            Message msg = MessageParser.parseMessage(message);
-            service.saveMessage(msg);
-        } catch (InvalidMessageFormatException ex) {
-            // instead of just logging the failure here, we could publish
-            logger.error(String.format("Error occurred during parsing of message: %s", message), ex);
+        handle(message);
+    }
+
+    /**
+     * Parses and persists a message.
+     *
+     * @param message the raw message
+     * @return true if the message was valid and has been handed to the persistence service
+     */
+    public boolean handle(String message) {
+        ParseError error = parser.parse(message, parsed);
+        if (error != null) {
+            failedMessages.mark();
+            // instead of just logging the failure here, we could publish the message to a dead letter channel
+            logRejection(message, error);
+            return false;
+        }
+        parsedMessages.mark();
+        service.saveMessage(parsed);
+        return true;
+    }
+
+    private void logRejection(String message, ParseError error) {
+        long now = System.nanoTime();
+        if (now - lastRejectionLogged < REJECTION_LOG_INTERVAL_NANOS) {
+            rejectionsNotLogged++;
+            return;
+        }
+        if (rejectionsNotLogged > 0) {
+            logger.warn(String.format("Rejected message (%s): %s, %d more rejected messages were not logged",
+                    error.getDescription(), message, rejectionsNotLogged));
+        } else {
+            logger.warn(String.format("Rejected message (%s): %s", error.getDescription(), message));
         }
+        lastRejectionLogged = now;
+        rejectionsNotLogged = 0;
     }
 
 }
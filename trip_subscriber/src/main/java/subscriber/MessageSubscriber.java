@@ -2,16 +2,10 @@ package subscriber;
 
 import com.datastax.driver.core.Session;
 import db.MessagePersistenceService;
-import db.MessagePersistenceServiceImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.JedisPubSub;
 
-import javax.sql.DataSource;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-
 /**
  * Pub/sub subscriber for Jedis queue.
  */
@@ -19,22 +13,25 @@ public class MessageSubscriber extends JedisPubSub {
 
     private static final Logger logger = LoggerFactory.getLogger(MessageSubscriber.class);
 
+    private final IngestPipeline pipeline;
     private final MessagePersistenceService service;
-    private final ExecutorService pool;
 
-    public MessageSubscriber(DataSource dataSource, Session session) {
-        pool = Executors.newFixedThreadPool(4);
-        service = new MessagePersistenceServiceImpl(dataSource, session);
+    /**
+     * @param session the Cassandra session to close on shutdown, or null if the service does not use Cassandra
+     */
+    public MessageSubscriber(IngestPipeline pipeline, MessagePersistenceService service, Session session) {
+        this.pipeline = pipeline;
+        this.service = service;
 
         addShutdownHook(session);
     }
 
     @Override
     public void onMessage(String channel, String message) {
-        logger.debug(String.format("Received a message from channel: %s with value: %s", channel, message));
-        if (!pool.isShutdown()) {
-            pool.execute(new MessageHandler(message, service));
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Received a message from channel: %s with value: %s", channel, message));
         }
+        pipeline.publish(message);
     }
 
     private void addShutdownHook(final Session session) {
@@ -42,10 +39,12 @@ public class MessageSubscriber extends JedisPubSub {
             @Override
             public void run() {
                 logger.info("The server was shutdown, closing connection pool.");
-                pool.shutdown();
                 try {
-                    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
-                    session.close();
+                    pipeline.shutdown();
+                    service.close();
+                    if (session != null) {
+                        session.close();
+                    }
                 } catch (InterruptedException ie) {
                     Thread.currentThread().interrupt();
                 }
@@ -0,0 +1,55 @@
+package subscriber;
+
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.servlets.MetricsServlet;
+import com.codahale.metrics.servlets.PingServlet;
+import com.codahale.metrics.servlets.ThreadDumpServlet;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * Serves the subscriber's metrics as JSON over HTTP, so that dashboards and alerts can read them without a JMX
+ * client. The endpoints are {@code /metrics}, {@code /ping} and {@code /threads}.
+ */
+public class MetricsHttpServer {
+
+    private final Server server;
+    private final ServerConnector connector;
+
+    /**
+     * @param port the port to listen on, or 0 to pick a free port
+     * @param metrics the registry to serve
+     */
+    public MetricsHttpServer(int port, MetricRegistry metrics) {
+        server = new Server();
+        connector = new ServerConnector(server);
+        connector.setPort(port);
+        server.addConnector(connector);
+
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        context.addServlet(new ServletHolder(new MetricsServlet(metrics)), "/metrics");
+        context.addServlet(new ServletHolder(new PingServlet()), "/ping");
+        context.addServlet(new ServletHolder(new ThreadDumpServlet()), "/threads");
+        server.setHandler(context);
+    }
+
+    public void start() throws Exception {
+        server.start();
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * @return the port the server listens on, once it has been started
+     */
+    public int getPort() {
+        return connector.getLocalPort();
+    }
+
+}
@@ -0,0 +1,28 @@
+package subscriber;
+
+
+/**
+ * What the ingest pipeline does with a message when its ring buffer is full.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Block the Redis reader thread until a worker frees a slot.
+     */
+    BLOCK,
+
+    /**
+     * Drop UPDATE messages, block for BEGIN and END messages since losing those would corrupt the trip tables.
+     */
+    DROP_UPDATES,
+
+    /**
+     * Append messages to a file on local disk, and feed them back into the buffer once the workers catch up.
+     */
+    SPILL;
+
+    public static OverflowPolicy fromString(String policy) {
+        return OverflowPolicy.valueOf(policy.toUpperCase());
+    }
+
+}
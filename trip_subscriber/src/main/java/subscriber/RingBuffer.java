@@ -0,0 +1,100 @@
+package subscriber;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, preallocated, lock-free queue for a single producer and any number of consumers.
+ *
+ * Every slot carries a sequence number which tells the producer when the slot is free to be written, and the consumers
+ * when it holds a published element. Consumers claim elements by advancing the shared head with a compare-and-set, so
+ * neither side ever takes a lock and no nodes are allocated per element.
+ *
+ * Only one thread may call {@link #offer(Object)} at a time. Calls from different threads must be serialized by the
+ * caller, e.g. with a lock, which also makes the producer state visible to the next producer.
+ *
+ * @param <E> the type of the queued elements
+ */
+public class RingBuffer<E> {
+
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int capacity;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param requestedCapacity the minimum number of elements the buffer can hold, rounded up to a power of two. The
+     *                          capacity is at least two, with a single slot its "published" and "free" sequence
+     *                          numbers would be the same.
+     */
+    public RingBuffer(int requestedCapacity) {
+        if (requestedCapacity < 1) {
+            throw new IllegalArgumentException(String.format("Capacity must be positive: %d", requestedCapacity));
+        }
+        capacity = requestedCapacity <= 2 ? 2 : Integer.highestOneBit(requestedCapacity - 1) << 1;
+        mask = capacity - 1;
+        slots = new Object[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element to the tail of the buffer.
+     *
+     * @param element the element to add
+     * @return false if the buffer is full
+     */
+    public boolean offer(E element) {
+        long t = tail.get();
+        int index = (int) t & mask;
+        if (sequences.get(index) != t) {
+            return false;
+        }
+        slots[index] = element;
+        sequences.lazySet(index, t + 1);
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Removes the element at the head of the buffer.
+     *
+     * @return the element, or null if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        while (true) {
+            long h = head.get();
+            int index = (int) h & mask;
+            long published = sequences.get(index) - (h + 1);
+            if (published < 0) {
+                return null;
+            }
+            if (published == 0 && head.compareAndSet(h, h + 1)) {
+                E element = (E) slots[index];
+                slots[index] = null;
+                sequences.lazySet(index, h + capacity);
+                return element;
+            }
+        }
+    }
+
+    /**
+     * @return the number of elements in the buffer, which may already be stale when it is returned.
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+}
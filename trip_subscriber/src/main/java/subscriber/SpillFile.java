@@ -0,0 +1,143 @@
+package subscriber;
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A first-in first-out overflow queue of messages on local disk, one message per line. The file is deleted once every
+ * message in it has been read back, and a file left behind by a previous run is read back before new messages.
+ *
+ * How many messages have been read back is saved next to the file every {@value #SAVE_POSITION_INTERVAL} messages and
+ * on close, so a file left behind by a crash is read back from the last saved position. At most that many messages
+ * are read back a second time, which the persistence service's idempotent writes absorb.
+ *
+ * This class is not thread safe.
+ */
+class SpillFile {
+
+    private static final int SAVE_POSITION_INTERVAL = 1000;
+
+    private final Path path;
+    private final Path positionPath;
+    private BufferedWriter writer;
+    private BufferedReader reader;
+    private String head;
+    private long pending;
+    // The number of messages at the start of the file which have been read back
+    private long read;
+
+    SpillFile(Path path) throws IOException {
+        this.path = path;
+        this.positionPath = path.resolveSibling(path.getFileName() + ".position");
+        if (Files.exists(path)) {
+            try (BufferedReader existing = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                while (existing.readLine() != null) {
+                    pending++;
+                }
+            }
+            read = Math.min(readPosition(), pending);
+            pending -= read;
+        } else {
+            Files.deleteIfExists(positionPath);
+        }
+    }
+
+    void append(String message) throws IOException {
+        if (writer == null) {
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        // A JSON document never needs a raw line break, they are only ever insignificant whitespace
+        writer.write(message.replace('\n', ' ').replace('\r', ' '));
+        writer.newLine();
+        pending++;
+    }
+
+    /**
+     * @return the oldest message in the file without removing it, or null if the file is empty
+     */
+    String peek() throws IOException {
+        if (pending == 0) {
+            return null;
+        }
+        if (head == null) {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (reader == null) {
+                reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+                for (long skipped = 0; skipped < read; skipped++) {
+                    reader.readLine();
+                }
+            }
+            head = reader.readLine();
+            if (head == null) {
+                // The file was truncated underneath us, there is nothing left to read back
+                pending = 0;
+                close();
+                delete();
+            }
+        }
+        return head;
+    }
+
+    /**
+     * Removes the oldest message, deleting the file once it has been fully read.
+     */
+    void remove() throws IOException {
+        head = null;
+        read++;
+        if (--pending == 0) {
+            close();
+            delete();
+        } else if (read % SAVE_POSITION_INTERVAL == 0) {
+            savePosition();
+        }
+    }
+
+    long size() {
+        return pending;
+    }
+
+    void close() throws IOException {
+        if (pending > 0 && read > 0) {
+            savePosition();
+        }
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+
+    private void delete() throws IOException {
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(positionPath);
+        read = 0;
+    }
+
+    private void savePosition() throws IOException {
+        Files.write(positionPath, Long.toString(read).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // A position torn by a crash is ignored, reading the whole file back as before positions were saved
+    private long readPosition() throws IOException {
+        if (!Files.exists(positionPath)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(positionPath), StandardCharsets.UTF_8).trim());
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+}
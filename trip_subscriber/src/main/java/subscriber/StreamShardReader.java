@@ -0,0 +1,244 @@
+package subscriber;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.StreamEntry;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.StreamPendingEntry;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.util.Pool;
+import util.StreamShards;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Reads the messages of one shard of a Redis stream as a member of a consumer group, so that every message is read by
+ * one subscriber of the group, and hands them to the ingest pipeline in the order they were added.
+ *
+ * Messages are acknowledged once they have been handed over, in batches of up to {@code ackBatchSize} messages or
+ * every {@code ackIntervalMillis}, whichever comes first, and once they are durable when the subscriber logs them
+ * before persisting them, see {@link WriteAheadLog}. A message which was read but never acknowledged, e.g.
+ * because its subscriber stopped, stays pending in the group. Every shard is read by one subscriber, so the messages
+ * pending for another consumer were left by a subscriber which read the shard before the shards were reassigned:
+ * whenever it connects, the reader claims them, then reads every message pending for itself in the order they were
+ * added before reading new messages, so a trip's END is never handed over before its BEGIN and UPDATEs. A claimed
+ * message may already have been persisted by the consumer which stopped, so messages are persisted at least once.
+ */
+public class StreamShardReader implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamShardReader.class);
+
+    private static final String GROUP_EXISTS_ERROR = "BUSYGROUP";
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    // The first and last ids of a stream, the range every pending message falls in
+    private static final StreamEntryID FIRST_ID = new StreamEntryID();
+    private static final StreamEntryID LAST_ID = new StreamEntryID(Long.MAX_VALUE, Long.MAX_VALUE);
+
+    private final Pool<Jedis> pool;
+    private final String stream;
+    private final String group;
+    private final String consumer;
+    private final int batchSize;
+    private final long blockMillis;
+    private final int ackBatchSize;
+    private final long ackIntervalMillis;
+    private final Consumer<String> pipeline;
+    private final Runnable awaitDurable;
+    private final LongSupplier clock;
+    private final Meter read;
+    private final Meter claimed;
+    private final Meter acknowledged;
+
+    private final List<StreamEntryID> unacknowledged = new ArrayList<>();
+    private long lastAck;
+    private volatile boolean running = true;
+
+    /**
+     * @param stream the key of the shard's stream
+     * @param group the consumer group shared by every subscriber
+     * @param consumer the name of this subscriber in the group, which must not be shared with a running subscriber
+     * @param batchSize the most messages read at a time
+     * @param blockMillis how long a read waits for a message to arrive
+     * @param pipeline receives the messages, from the reader's thread
+     * @param awaitDurable called before messages are acknowledged, returns once the messages handed over would
+     *                     survive the subscriber crashing
+     */
+    public StreamShardReader(Pool<Jedis> pool, String stream, String group, String consumer, int batchSize,
+                             long blockMillis, int ackBatchSize, long ackIntervalMillis, Consumer<String> pipeline,
+                             Runnable awaitDurable, MetricRegistry metrics) {
+        this(pool, stream, group, consumer, batchSize, blockMillis, ackBatchSize, ackIntervalMillis, pipeline,
+                awaitDurable, metrics, System::currentTimeMillis);
+    }
+
+    StreamShardReader(Pool<Jedis> pool, String stream, String group, String consumer, int batchSize, long blockMillis,
+                      int ackBatchSize, long ackIntervalMillis, Consumer<String> pipeline, Runnable awaitDurable,
+                      MetricRegistry metrics, LongSupplier clock) {
+        this.pool = pool;
+        this.stream = stream;
+        this.group = group;
+        this.consumer = consumer;
+        this.batchSize = batchSize;
+        this.blockMillis = blockMillis;
+        this.ackBatchSize = ackBatchSize;
+        this.ackIntervalMillis = ackIntervalMillis;
+        this.pipeline = pipeline;
+        this.awaitDurable = awaitDurable;
+        this.clock = clock;
+        this.read = metrics.meter(name(StreamShardReader.class, "read"));
+        this.claimed = metrics.meter(name(StreamShardReader.class, "claimed"));
+        this.acknowledged = metrics.meter(name(StreamShardReader.class, "acknowledged"));
+    }
+
+    /**
+     * Reads the shard until {@link #stop()} is called, reconnecting whenever the connection to Redis is lost.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            try (Jedis jedis = pool.getResource()) {
+                createGroup(jedis);
+                // After a restart or a lost connection, the messages read but not acknowledged are read again first,
+                // together with the ones left by other consumers, before any newer message
+                claimPending(jedis);
+                readPending(jedis);
+                lastAck = clock.getAsLong();
+                while (running) {
+                    readNew(jedis);
+                    long now = clock.getAsLong();
+                    if (unacknowledged.size() >= ackBatchSize || now - lastAck >= ackIntervalMillis) {
+                        acknowledge(jedis);
+                        lastAck = now;
+                    }
+                }
+                acknowledge(jedis);
+            } catch (JedisException ex) {
+                logger.error(String.format("Failed to read stream: %s, reconnecting", stream), ex);
+                // The messages which could not be acknowledged are still pending, and are read again
+                unacknowledged.clear();
+                sleepBeforeReconnecting();
+            }
+        }
+    }
+
+    /**
+     * Stops reading once the current read returns, after acknowledging the messages which were handed over.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    void createGroup(Jedis jedis) {
+        try {
+            jedis.xgroupCreate(stream, group, FIRST_ID, true);
+            logger.info(String.format("Created consumer group: %s of stream: %s", group, stream));
+        } catch (JedisDataException ex) {
+            if (ex.getMessage() == null || !ex.getMessage().startsWith(GROUP_EXISTS_ERROR)) {
+                throw ex;
+            }
+        }
+    }
+
+    void readPending(Jedis jedis) {
+        StreamEntryID after = FIRST_ID;
+        while (running) {
+            List<StreamEntry> entries = read(jedis, after, 0);
+            if (entries.isEmpty()) {
+                return;
+            }
+            handOver(entries);
+            after = entries.get(entries.size() - 1).getID();
+        }
+    }
+
+    void readNew(Jedis jedis) {
+        handOver(read(jedis, StreamEntryID.UNRECEIVED_ENTRY, blockMillis));
+    }
+
+    /**
+     * Claims every message pending for another consumer, whatever it has been doing since. The claimed messages are
+     * not handed over here but by {@link #readPending(Jedis)}, in order with the messages already pending for this
+     * reader.
+     */
+    void claimPending(Jedis jedis) {
+        StreamEntryID start = FIRST_ID;
+        while (running) {
+            List<StreamPendingEntry> pending = jedis.xpending(stream, group, start, LAST_ID, batchSize, null);
+            List<StreamEntryID> others = new ArrayList<>();
+            for (StreamPendingEntry entry : pending) {
+                if (!consumer.equals(entry.getConsumerName())) {
+                    others.add(entry.getID());
+                }
+            }
+            if (!others.isEmpty()) {
+                jedis.xclaim(stream, group, consumer, 0, 0, 0, false, others.toArray(new StreamEntryID[others.size()]));
+                claimed.mark(others.size());
+                logger.info(String.format("Claimed %d messages of stream: %s pending for other consumers",
+                        others.size(), stream));
+            }
+            if (pending.size() < batchSize) {
+                return;
+            }
+            StreamEntryID last = pending.get(pending.size() - 1).getID();
+            start = new StreamEntryID(last.getTime(), last.getSequence() + 1);
+        }
+    }
+
+    void acknowledge(Jedis jedis) {
+        if (unacknowledged.isEmpty()) {
+            return;
+        }
+        awaitDurable.run();
+        jedis.xack(stream, group, unacknowledged.toArray(new StreamEntryID[unacknowledged.size()]));
+        acknowledged.mark(unacknowledged.size());
+        unacknowledged.clear();
+    }
+
+    int getUnacknowledgedCount() {
+        return unacknowledged.size();
+    }
+
+    private List<StreamEntry> read(Jedis jedis, StreamEntryID after, long block) {
+        Map.Entry<String, StreamEntryID> from = new AbstractMap.SimpleImmutableEntry<>(stream, after);
+        @SuppressWarnings("unchecked")
+        List<Map.Entry<String, List<StreamEntry>>> streams = jedis.xreadGroup(group, consumer, batchSize, block,
+                false, from);
+        // The read returns null once it has blocked for the whole time without a message arriving
+        if (streams == null || streams.isEmpty() || streams.get(0).getValue() == null) {
+            return new ArrayList<>();
+        }
+        return streams.get(0).getValue();
+    }
+
+    // A message which was trimmed from the stream while it was pending has no fields, and is only acknowledged
+    private void handOver(List<StreamEntry> entries) {
+        for (StreamEntry entry : entries) {
+            String message = entry.getFields() != null ? entry.getFields().get(StreamShards.MESSAGE_FIELD) : null;
+            if (message != null) {
+                pipeline.accept(message);
+                read.mark();
+            }
+            unacknowledged.add(entry.getID());
+        }
+    }
+
+    private void sleepBeforeReconnecting() {
+        try {
+            Thread.sleep(RECONNECT_DELAY_MILLIS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package subscriber;
+
+import com.datastax.driver.core.Session;
+import db.MessagePersistenceService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Subscriber which reads the shards of a Redis stream, one {@link StreamShardReader} thread per shard, instead of
+ * subscribing to a pub/sub channel. Unlike a pub/sub channel, a stream keeps the messages which arrive while the
+ * subscriber is slow or restarting, and the subscriber carries on from the last message it read.
+ *
+ * The readers share the pipeline, which is only published to by one reader at a time. All the messages of a trip are
+ * in the same shard, and so are handed to the pipeline in order. If the subscriber has a {@link WriteAheadLog}, the
+ * readers append to the log instead, and the log publishes to the pipeline.
+ */
+public class StreamSubscriber {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamSubscriber.class);
+
+    private final IngestPipeline pipeline;
+    private final WriteAheadLog writeAheadLog;
+    private final MessagePersistenceService service;
+    private final List<StreamShardReader> readers = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    /**
+     * @param writeAheadLog the log the readers append the messages to, or null if they publish them to the pipeline
+     * @param session the Cassandra session to close on shutdown, or null if the service does not use Cassandra
+     * @param readerFactory creates the reader of a shard, which publishes the messages it reads with the given consumer
+     * @param shards the indexes of the shards this subscriber reads
+     */
+    public StreamSubscriber(IngestPipeline pipeline, WriteAheadLog writeAheadLog, MessagePersistenceService service,
+                            Session session, ReaderFactory readerFactory, List<Integer> shards) {
+        this.pipeline = pipeline;
+        this.writeAheadLog = writeAheadLog;
+        this.service = service;
+        for (int shard : shards) {
+            StreamShardReader reader = writeAheadLog != null
+                    ? readerFactory.create(shard, writeAheadLog::append, writeAheadLog::awaitDurable)
+                    : readerFactory.create(shard, this::publish, () -> { });
+            readers.add(reader);
+            threads.add(new Thread(reader, "stream-shard-" + shard));
+        }
+        addShutdownHook(session);
+    }
+
+    public void start() {
+        threads.forEach(Thread::start);
+    }
+
+    /**
+     * Stops the readers, waiting for them to acknowledge the messages they handed over, and then for the pipeline to
+     * persist them.
+     */
+    public void shutdown() throws InterruptedException {
+        readers.forEach(StreamShardReader::stop);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (writeAheadLog != null) {
+            try {
+                writeAheadLog.close();
+            } catch (IOException ex) {
+                // The messages which were not checkpointed are persisted again on the next start
+                logger.error("Failed to close the write-ahead log", ex);
+            }
+        }
+        pipeline.shutdown();
+        service.close();
+    }
+
+    /**
+     * @param shards the number of shards of the stream
+     * @param subscriber the index of this subscriber among the subscribers reading the stream
+     * @param subscribers the number of subscribers reading the stream
+     * @return the indexes of the shards the subscriber reads, so that every shard is read by exactly one subscriber
+     */
+    public static List<Integer> shardsOf(int shards, int subscriber, int subscribers) {
+        if (subscriber < 0 || subscriber >= subscribers) {
+            throw new IllegalArgumentException(String.format("Subscriber index %d is not below the subscriber count %d",
+                    subscriber, subscribers));
+        }
+        List<Integer> owned = new ArrayList<>();
+        for (int shard = subscriber; shard < shards; shard += subscribers) {
+            owned.add(shard);
+        }
+        return owned;
+    }
+
+    private synchronized void publish(String message) {
+        pipeline.publish(message);
+    }
+
+    private void addShutdownHook(final Session session) {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                logger.info("The server was shutdown, stopping the stream readers.");
+                try {
+                    shutdown();
+                    if (session != null) {
+                        session.close();
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates the reader of a shard, which calls {@code awaitDurable} before acknowledging the messages it has handed
+     * to the pipeline.
+     */
+    public interface ReaderFactory {
+
+        StreamShardReader create(int shard, Consumer<String> pipeline, Runnable awaitDurable);
+    }
+
+}
@@ -0,0 +1,213 @@
+package subscriber;
+
+
+import com.codahale.metrics.Meter;
+import db.MessagePersistenceService;
+import parser.EventType;
+import parser.Message;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds back the UPDATE events of each trip for a short window and only passes on the ones which move the trip into a
+ * geohash cell it has not just been persisted in. Vehicles report their location every second, and most of those
+ * reports fall in the same precision 9 cell (about 4.8m) as the last one, in which case persisting them again would
+ * not change any query results.
+ *
+ * When the first new cell of a trip arrives a window is opened, and every distinct cell the trip visits during the
+ * window is persisted once, in the order it was first visited, when the window closes. BEGIN and END events are never
+ * held: they first flush the trip's window so that the trip's events are still persisted in order.
+ *
+ * A coalescer belongs to a single ingest lane and is only used by that lane's worker thread, so it takes no locks.
+ * The service it wraps is shared by all lanes, {@link #close()} therefore persists the held events but does not close
+ * the wrapped service.
+ */
+public class UpdateCoalescer implements MessagePersistenceService {
+
+    private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final MessagePersistenceService service;
+    private final long windowMillis;
+    private final Meter updates;
+    private final Meter coalesced;
+    private final LongSupplier clock;
+
+    // Every trip seen in the last IDLE_TIMEOUT_MILLIS in access order, and the trips with an open window in the order
+    // their windows were opened, i.e. in the order they close
+    private final LinkedHashMap<String, TripWindow> trips = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, TripWindow> openWindows = new LinkedHashMap<>();
+
+    /**
+     * @param service the service to pass the coalesced events on to
+     * @param windowMillis how long to hold the updates of a trip once it has moved to a new cell
+     * @param updates marked for every UPDATE event received
+     * @param coalesced marked for every UPDATE event which is not passed on
+     */
+    public UpdateCoalescer(MessagePersistenceService service, long windowMillis, Meter updates, Meter coalesced) {
+        this(service, windowMillis, updates, coalesced, System::currentTimeMillis);
+    }
+
+    UpdateCoalescer(MessagePersistenceService service, long windowMillis, Meter updates, Meter coalesced,
+                    LongSupplier clock) {
+        this.service = service;
+        this.windowMillis = windowMillis;
+        this.updates = updates;
+        this.coalesced = coalesced;
+        this.clock = clock;
+    }
+
+    @Override
+    public void saveMessage(Message message) {
+        long now = clock.getAsLong();
+        String tripId = message.getTripId();
+        TripWindow trip = trips.get(tripId);
+
+        if (message.getEvent() != EventType.UPDATE) {
+            if (trip != null) {
+                flush(tripId, trip);
+            }
+            service.saveMessage(message);
+            if (message.getEvent() == EventType.END) {
+                trips.remove(tripId);
+            } else {
+                track(tripId, trip, now).persistedCell = message.getGeoHashBits();
+            }
+            return;
+        }
+
+        updates.mark();
+        trip = track(tripId, trip, now);
+        long cell = message.getGeoHashBits();
+        if (cell == trip.persistedCell || trip.holds(cell)) {
+            coalesced.mark();
+            return;
+        }
+        if (trip.heldCount == 0) {
+            trip.windowEnd = now + windowMillis;
+            openWindows.put(tripId, trip);
+        }
+        trip.hold(message);
+    }
+
+    /**
+     * Persists the held events of every trip whose window has closed, and forgets the trips which have been idle for
+     * too long. Called regularly by the lane's worker.
+     */
+    public void flushExpired() {
+        long now = clock.getAsLong();
+        Iterator<Map.Entry<String, TripWindow>> it = openWindows.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, TripWindow> entry = it.next();
+            if (entry.getValue().windowEnd > now) {
+                break;
+            }
+            it.remove();
+            persistHeld(entry.getValue());
+        }
+        evictIdleTrips(now);
+    }
+
+    /**
+     * Persists the held events of every trip. The wrapped service is not flushed, as it is shared by every lane, so
+     * its writes are not known to have failed.
+     */
+    @Override
+    public boolean flush() {
+        for (TripWindow trip : openWindows.values()) {
+            persistHeld(trip);
+        }
+        openWindows.clear();
+        return true;
+    }
+
+    /**
+     * Persists the held events of every trip. The wrapped service is not closed.
+     */
+    @Override
+    public void close() {
+        flush();
+    }
+
+    /**
+     * @return the number of UPDATE events currently held back
+     */
+    int getHeldCount() {
+        int held = 0;
+        for (TripWindow trip : openWindows.values()) {
+            held += trip.heldCount;
+        }
+        return held;
+    }
+
+    private TripWindow track(String tripId, TripWindow trip, long now) {
+        if (trip == null) {
+            trip = new TripWindow();
+            trips.put(tripId, trip);
+        }
+        trip.lastSeen = now;
+        return trip;
+    }
+
+    private void flush(String tripId, TripWindow trip) {
+        if (trip.heldCount > 0) {
+            openWindows.remove(tripId);
+            persistHeld(trip);
+        }
+    }
+
+    private void persistHeld(TripWindow trip) {
+        for (int i = 0; i < trip.heldCount; i++) {
+            service.saveMessage(trip.held[i]);
+        }
+        trip.persistedCell = trip.held[trip.heldCount - 1].getGeoHashBits();
+        trip.heldCount = 0;
+    }
+
+    // The map is in access order, so idle trips are always found at the head. A trip with held events is never idle
+    // for longer than its window, so it is never evicted with events still held.
+    private void evictIdleTrips(long now) {
+        Iterator<TripWindow> it = trips.values().iterator();
+        while (it.hasNext()) {
+            TripWindow trip = it.next();
+            if (now - trip.lastSeen < IDLE_TIMEOUT_MILLIS || trip.heldCount > 0) {
+                return;
+            }
+            it.remove();
+        }
+    }
+
+    private static final class TripWindow {
+        // No geohash is negative, so this never matches a cell
+        private long persistedCell = -1;
+        private long windowEnd;
+        private long lastSeen;
+        // Held messages are reused across windows, so only a trip's first windows allocate
+        private Message[] held = new Message[2];
+        private int heldCount;
+
+        private boolean holds(long cell) {
+            for (int i = 0; i < heldCount; i++) {
+                if (held[i].getGeoHashBits() == cell) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void hold(Message message) {
+            if (heldCount == held.length) {
+                held = Arrays.copyOf(held, held.length * 2);
+            }
+            if (held[heldCount] == null) {
+                held[heldCount] = new Message();
+            }
+            held[heldCount++].copyFrom(message);
+        }
+    }
+
+}
@@ -0,0 +1,290 @@
+package subscriber;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import db.MessagePersistenceService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import store.SegmentLog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * A write-ahead log between the stream readers and the ingest pipeline, kept in a memory-mapped {@link SegmentLog}.
+ * The readers append every message they read, which takes no system call, and only acknowledge the messages once a
+ * group commit, every {@code commitIntervalMillis}, has forced them to disk, see {@link #awaitDurable()}. So the
+ * readers keep up with the stream however slow the databases are, and no acknowledged message is lost.
+ *
+ * A drainer thread follows the log and publishes its messages to the pipeline. Every {@code checkpointIntervalMillis}
+ * it waits for the pipeline and the service to persist the messages it has published, records how far it has read in
+ * the checkpoint file, which is replaced atomically, and deletes the segments before that position. The drainer
+ * starts reading from the checkpoint, so the messages which were logged but not persisted when the subscriber stopped
+ * are persisted after it restarts, some of them again. Persisting a message is idempotent, so every message is
+ * persisted at least once. Likewise, if a write failed since the last checkpoint, the log is not checkpointed and the
+ * drainer reads it again from the last checkpoint.
+ *
+ * The pipeline must block the drainer rather than drop or spill messages when a lane is full, so that a checkpoint
+ * covers every message before it.
+ */
+public class WriteAheadLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String CHECKPOINT_TEMP_FILE = "checkpoint.tmp";
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long READ_RETRY_DELAY_MILLIS = 1000;
+
+    private final Path directory;
+    private final SegmentLog log;
+    private SegmentLog reader;
+    private final IngestPipeline pipeline;
+    private final MessagePersistenceService service;
+    private final long checkpointIntervalMillis;
+    private final ScheduledExecutorService committer;
+    private final Thread drainer;
+    private final Meter appended;
+    private final Meter drained;
+    private final Timer commitLatency;
+
+    // The number of messages appended since the log was opened, and of those which have been forced to disk
+    private long appendedCount;
+    private long durableCount;
+    // The position of the last checkpoint, only used by the drainer
+    private long checkpointPosition;
+    private volatile boolean running = true;
+
+    /**
+     * Opens the log, creating it if it does not exist, and starts draining it from the last checkpoint.
+     *
+     * @param segmentBytes the size of a segment file, which must hold the largest message
+     * @param commitIntervalMillis how often the appended messages are forced to disk
+     * @param checkpointIntervalMillis how often the messages drained so far are persisted and checkpointed
+     */
+    public WriteAheadLog(Path directory, int segmentBytes, long commitIntervalMillis, long checkpointIntervalMillis,
+                         IngestPipeline pipeline, MessagePersistenceService service, MetricRegistry metrics)
+            throws IOException {
+        this(directory, segmentBytes, commitIntervalMillis, checkpointIntervalMillis, pipeline, service, metrics, true);
+    }
+
+    WriteAheadLog(Path directory, int segmentBytes, long commitIntervalMillis, long checkpointIntervalMillis,
+                  IngestPipeline pipeline, MessagePersistenceService service, MetricRegistry metrics,
+                  boolean startThreads) throws IOException {
+        this.directory = directory;
+        this.pipeline = pipeline;
+        this.service = service;
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+        this.appended = metrics.meter(name(WriteAheadLog.class, "appended"));
+        this.drained = metrics.meter(name(WriteAheadLog.class, "drained"));
+        this.commitLatency = metrics.timer(name(WriteAheadLog.class, "commit"));
+        metrics.register(name(WriteAheadLog.class, "size-bytes"), (Gauge<Long>) this::getSizeBytes);
+
+        // The writer only reads the log to find its end, the drainer reads it from the checkpoint
+        this.log = SegmentLog.openForWriting(directory, segmentBytes, record -> { });
+        long checkpoint = readCheckpoint();
+        try {
+            this.reader = SegmentLog.openForReading(directory, checkpoint);
+            this.checkpointPosition = checkpoint;
+        } catch (IOException ex) {
+            log.close();
+            throw ex;
+        }
+        logger.info(String.format("Draining the write-ahead log in %s from segment %d offset %d", directory,
+                checkpoint >>> 32, (int) checkpoint));
+
+        this.committer = Executors.newSingleThreadScheduledExecutor();
+        this.drainer = new Thread(this::drainUntilClosed, "wal-drainer");
+        if (startThreads) {
+            committer.scheduleWithFixedDelay(this::commit, commitIntervalMillis, commitIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+            drainer.start();
+        }
+    }
+
+    /**
+     * Appends a message to the log. May be called by several threads.
+     *
+     * @param message the raw message
+     */
+    public synchronized void append(String message) {
+        log.append(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+        appendedCount++;
+        appended.mark();
+    }
+
+    /**
+     * Waits for the group commit which forces the messages appended so far to disk.
+     *
+     * @throws IllegalStateException if the thread is interrupted while waiting, as the messages must not be
+     * acknowledged
+     */
+    public synchronized void awaitDurable() {
+        long target = appendedCount;
+        while (durableCount < target) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the write-ahead log to be forced", ie);
+            }
+        }
+    }
+
+    /**
+     * Persists every message in the log and checkpoints it, unless a write fails, in which case the messages after the
+     * last checkpoint are persisted again when the log is next opened. Must only be called once every reader has
+     * stopped appending, and before the pipeline is shutdown.
+     */
+    public void close() throws IOException, InterruptedException {
+        committer.shutdown();
+        committer.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        commit();
+        running = false;
+        drainer.join();
+        drain();
+        checkpoint();
+        reader.close();
+        log.close();
+    }
+
+    /**
+     * Forces the messages appended so far to disk, and wakes up the threads waiting for them to be durable. Forcing
+     * does not stop other threads from appending.
+     */
+    void commit() {
+        long target;
+        synchronized (this) {
+            target = appendedCount;
+            if (durableCount == target) {
+                return;
+            }
+        }
+        try (Timer.Context ignored = commitLatency.time()) {
+            log.force();
+        } catch (RuntimeException ex) {
+            // An exception would stop the log from being forced again, the waiting readers retry on the next commit
+            logger.error("Failed to force the write-ahead log to disk", ex);
+            return;
+        }
+        synchronized (this) {
+            durableCount = target;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Publishes the messages appended since the last call to the pipeline.
+     *
+     * @return the number of messages published
+     */
+    long drain() throws IOException {
+        // Taking the lock makes every message appended before it visible to this thread, a message being appended
+        // meanwhile fails its checksum until it is complete
+        synchronized (this) {
+            // Nothing to do but synchronize with the appending threads
+        }
+        long read = reader.readNew(record -> pipeline.publish(StandardCharsets.UTF_8.decode(record).toString()));
+        drained.mark(read);
+        return read;
+    }
+
+    /**
+     * Waits until the messages drained so far are persisted, then records the position they were drained up to and
+     * deletes the segments before it. If a write failed, the messages since the last checkpoint are drained again
+     * instead, as the ones whose writes failed cannot be told apart.
+     *
+     * @return whether the log was checkpointed
+     */
+    boolean checkpoint() throws IOException, InterruptedException {
+        long position = reader.position();
+        pipeline.checkpoint();
+        if (!service.flush()) {
+            logger.warn(String.format("Failed to persist the messages of the write-ahead log, draining it again from " +
+                    "segment %d offset %d", checkpointPosition >>> 32, (int) checkpointPosition));
+            rewind();
+            return false;
+        }
+        writeCheckpoint(position);
+        checkpointPosition = position;
+        int deleted;
+        synchronized (this) {
+            deleted = log.deleteSegmentsBefore(position);
+        }
+        if (deleted > 0) {
+            logger.info(String.format("Deleted %d segments of the write-ahead log which have been persisted", deleted));
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of bytes the segments of the log take
+     */
+    synchronized long getSizeBytes() {
+        return log.sizeBytes();
+    }
+
+    private void drainUntilClosed() {
+        long lastCheckpoint = System.currentTimeMillis();
+        while (running) {
+            try {
+                if (drain() == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastCheckpoint >= checkpointIntervalMillis) {
+                    checkpoint();
+                    lastCheckpoint = now;
+                }
+            } catch (IOException ex) {
+                logger.error("Failed to drain the write-ahead log, retrying", ex);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(READ_RETRY_DELAY_MILLIS));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // The pipeline holds no message once it has been checkpointed, so the reader can start over
+    private void rewind() throws IOException {
+        SegmentLog rewound = SegmentLog.openForReading(directory, checkpointPosition);
+        reader.close();
+        reader = rewound;
+    }
+
+    private long readCheckpoint() throws IOException {
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(checkpoint)) {
+            return 0;
+        }
+        return Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim());
+    }
+
+    // The checkpoint is written to a file of its own and renamed over the last one, so a crash leaves either of them
+    private void writeCheckpoint(long position) throws IOException {
+        Path temp = directory.resolve(CHECKPOINT_TEMP_FILE);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(String.valueOf(position).getBytes(StandardCharsets.UTF_8)));
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+}
@@ -0,0 +1,107 @@
+package db;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+
+public class AsyncGeoTripWriterTest {
+
+    private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+    private final Session session = mock(Session.class);
+    private final PreparedStatement insert = mock(PreparedStatement.class);
+    private final WriteFailureListener listener = mock(WriteFailureListener.class);
+
+    @Test
+    public void shouldNotSendRowsUntilTheBufferIsFull() {
+        when(insert.bind(anyVararg())).thenReturn(mock(BoundStatement.class));
+        when(session.executeAsync(any(Statement.class))).thenReturn(CompletedResultSetFuture.success());
+        AsyncGeoTripWriter writer = new AsyncGeoTripWriter(session, insert, 10, 3, NEVER, listener, new MetricRegistry());
+
+        writer.write("9q8yy", "1");
+        writer.write("9q8yz", "1");
+        verify(session, never()).executeAsync(any(Statement.class));
+
+        writer.write("9q8z0", "1");
+        verify(session, times(3)).executeAsync(any(Statement.class));
+        writer.close();
+    }
+
+    @Test
+    public void shouldGroupRowsWithTheSamePartitionKeyIntoABatch() {
+        when(insert.bind(anyVararg())).thenReturn(mock(BoundStatement.class));
+        when(session.executeAsync(any(Statement.class))).thenReturn(CompletedResultSetFuture.success());
+        AsyncGeoTripWriter writer = new AsyncGeoTripWriter(session, insert, 10, 100, NEVER, listener, new MetricRegistry());
+
+        writer.write("9q", "1");
+        writer.write("9q", "2");
+        writer.write("9r", "3");
+        writer.flush();
+
+        ArgumentCaptor<Statement> sent = ArgumentCaptor.forClass(Statement.class);
+        verify(session, times(2)).executeAsync(sent.capture());
+        long batches = sent.getAllValues().stream().filter(s -> s instanceof BatchStatement).count();
+        assertThat(batches, is(1L));
+        writer.close();
+    }
+
+    @Test
+    public void shouldReportFailedWritesToTheListener() {
+        RuntimeException failure = new RuntimeException("write timeout");
+        when(insert.bind(anyVararg())).thenReturn(mock(BoundStatement.class));
+        when(session.executeAsync(any(Statement.class))).thenReturn(CompletedResultSetFuture.failure(failure));
+        AsyncGeoTripWriter writer = new AsyncGeoTripWriter(session, insert, 10, 100, NEVER, listener, new MetricRegistry());
+
+        writer.write("9q", "1");
+        writer.write("9q", "2");
+        writer.flush();
+
+        verify(listener).onFailure(eq("9q"), eq(Arrays.asList("1", "2")), eq(failure));
+        assertThat(writer.getInFlightCount(), is(0));
+        assertThat(writer.getFailedCount(), is(2L));
+        writer.close();
+    }
+
+    @Test
+    public void shouldReleasePermitsWhenWritesComplete() {
+        when(insert.bind(anyVararg())).thenReturn(mock(BoundStatement.class));
+        when(session.executeAsync(any(Statement.class))).thenReturn(CompletedResultSetFuture.success());
+        AsyncGeoTripWriter writer = new AsyncGeoTripWriter(session, insert, 1, 1, NEVER, listener, new MetricRegistry());
+
+        List<String> geoHashes = Arrays.asList("9", "9q", "9q8", "9q8y", "9q8yy");
+        for (String geoHash : geoHashes) {
+            writer.write(geoHash, "1");
+        }
+
+        verify(session, times(geoHashes.size())).executeAsync(any(Statement.class));
+        assertThat(writer.getInFlightCount(), is(0));
+        verify(listener, never()).onFailure(any(), any(), any());
+        assertThat(lastSentStatement(), instanceOf(BoundStatement.class));
+        writer.close();
+    }
+
+    private Statement lastSentStatement() {
+        ArgumentCaptor<Statement> sent = ArgumentCaptor.forClass(Statement.class);
+        verify(session, atLeastOnce()).executeAsync(sent.capture());
+        return sent.getValue();
+    }
+
+}
@@ -0,0 +1,169 @@
+package db;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import javax.sql.DataSource;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+
+public class BatchingSqlWriterTest {
+
+    private static final String INSERT = "INSERT INTO trips (trip_id) values (?)";
+    private static final String UPDATE = "UPDATE trips SET end_time = ? WHERE trip_id = ?";
+    private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+    private final DataSource dataSource = mock(DataSource.class);
+    private final Connection conn = mock(Connection.class);
+    private final PreparedStatement stmt = mock(PreparedStatement.class);
+
+    @Before
+    public void setup() throws Exception {
+        when(dataSource.getConnection()).thenReturn(conn);
+        when(conn.prepareStatement(anyString())).thenReturn(stmt);
+        when(conn.getAutoCommit()).thenReturn(true);
+        when(stmt.executeBatch()).thenReturn(new int[] {1});
+    }
+
+    @Test
+    public void shouldNotWriteUntilTheBatchIsFull() throws Exception {
+        BatchingSqlWriter writer = new BatchingSqlWriter(dataSource, Arrays.asList(INSERT, UPDATE), 2, NEVER, new MetricRegistry());
+
+        writer.add(INSERT, "1");
+        verify(dataSource, never()).getConnection();
+
+        writer.add(INSERT, "2");
+        verify(dataSource, times(1)).getConnection();
+        verify(stmt, times(2)).addBatch();
+        verify(conn).commit();
+        writer.close();
+    }
+
+    @Test
+    public void shouldApplyInsertsBeforeUpdatesInOneTransaction() throws Exception {
+        BatchingSqlWriter writer = new BatchingSqlWriter(dataSource, Arrays.asList(INSERT, UPDATE), 100, NEVER, new MetricRegistry());
+
+        writer.add(UPDATE, 100L, "1");
+        writer.add(INSERT, "2");
+        writer.flush();
+
+        InOrder inOrder = inOrder(conn);
+        inOrder.verify(conn).setAutoCommit(false);
+        inOrder.verify(conn).prepareStatement(INSERT);
+        inOrder.verify(conn).prepareStatement(UPDATE);
+        inOrder.verify(conn).commit();
+        writer.close();
+    }
+
+    @Test
+    public void shouldRetryStatementsIndividuallyWhenTheBatchFails() throws Exception {
+        when(stmt.executeBatch()).thenThrow(new BatchUpdateException());
+        BatchingSqlWriter writer = new BatchingSqlWriter(dataSource, Arrays.asList(INSERT, UPDATE), 100, NEVER, new MetricRegistry());
+
+        writer.add(INSERT, "1");
+        writer.add(INSERT, "2");
+        writer.flush();
+
+        verify(conn).rollback();
+        verify(stmt, times(2)).executeUpdate();
+        writer.close();
+    }
+
+    @Test
+    public void shouldCommitEachRetriedStatementWithItsRollupIncrement() throws Exception {
+        PreparedStatement upsertRollup = mock(PreparedStatement.class);
+        when(conn.prepareStatement(GeoTripRollups.UPSERT_ROLLUP)).thenReturn(upsertRollup);
+        when(stmt.executeBatch()).thenThrow(new BatchUpdateException());
+        when(stmt.executeUpdate()).thenReturn(1);
+        when(upsertRollup.executeUpdate()).thenThrow(new SQLException("rollup failed")).thenReturn(1);
+        MetricRegistry metrics = new MetricRegistry();
+        BatchingSqlWriter writer = new BatchingSqlWriter(dataSource, Arrays.asList(INSERT, UPDATE), 100, NEVER, metrics);
+
+        writer.add(INSERT, new Object[] {"1"}, rollups -> rollups.started("9q", 0L));
+        writer.add(INSERT, new Object[] {"2"}, rollups -> rollups.started("dr", 0L));
+        writer.flush();
+
+        // The first row is rolled back with its increment, the second is committed with its own
+        InOrder inOrder = inOrder(conn, stmt, upsertRollup);
+        inOrder.verify(conn).rollback();
+        inOrder.verify(stmt).executeUpdate();
+        inOrder.verify(upsertRollup).executeUpdate();
+        inOrder.verify(conn).rollback();
+        inOrder.verify(stmt).executeUpdate();
+        inOrder.verify(upsertRollup, atLeastOnce()).executeUpdate();
+        inOrder.verify(conn).commit();
+        verify(conn, times(1)).commit();
+        String rollupTable = BatchingSqlWriter.tableName(GeoTripRollups.UPSERT_ROLLUP);
+        assertThat(TableMetrics.writeFailures(metrics, rollupTable).getCount(), is(1L));
+        writer.close();
+    }
+
+    @Test
+    public void shouldOnlyRollUpTheStatementsWhichChangedARowAfterTheOtherStatements() throws Exception {
+        PreparedStatement upsertRollup = mock(PreparedStatement.class);
+        when(conn.prepareStatement(GeoTripRollups.UPSERT_ROLLUP)).thenReturn(upsertRollup);
+        when(upsertRollup.executeBatch()).thenReturn(new int[] {1, 1});
+        when(stmt.executeBatch()).thenReturn(new int[] {0, 1});
+        BatchingSqlWriter writer = new BatchingSqlWriter(dataSource, Arrays.asList(INSERT, UPDATE), 100, NEVER, new MetricRegistry());
+
+        writer.add(INSERT, new Object[] {"1"}, rollups -> rollups.started("9q", 0L));
+        writer.add(INSERT, new Object[] {"2"}, rollups -> rollups.started("dr", 0L));
+        writer.flush();
+
+        verify(upsertRollup, times(2)).addBatch();
+        verify(upsertRollup).setObject(1, "d");
+        verify(upsertRollup).setObject(1, "dr");
+        verify(upsertRollup, never()).setObject(1, "9q");
+        InOrder inOrder = inOrder(conn);
+        inOrder.verify(conn).prepareStatement(INSERT);
+        inOrder.verify(conn).prepareStatement(GeoTripRollups.UPSERT_ROLLUP);
+        inOrder.verify(conn).commit();
+        writer.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownStatements() {
+        BatchingSqlWriter writer = new BatchingSqlWriter(dataSource, Arrays.asList(INSERT), 100, NEVER, new MetricRegistry());
+        try {
+            writer.add(UPDATE, 100L, "1");
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void shouldTimeTheBatchesOfEachTable() throws Exception {
+        MetricRegistry metrics = new MetricRegistry();
+        BatchingSqlWriter writer = new BatchingSqlWriter(dataSource, Arrays.asList(INSERT, UPDATE), 100, NEVER, metrics);
+
+        writer.add(INSERT, "1");
+        writer.add(UPDATE, 100L, "1");
+        writer.flush();
+
+        assertThat(TableMetrics.writeLatency(metrics, "trips").getCount(), is(2L));
+        assertThat(TableMetrics.writeFailures(metrics, "trips").getCount(), is(0L));
+        writer.close();
+    }
+
+    @Test
+    public void shouldFindTheTableOfAStatement() {
+        assertThat(BatchingSqlWriter.tableName(MessagePersistenceServiceImpl.SQL_STATEMENTS.get(0)), is("trip_starts"));
+        assertThat(BatchingSqlWriter.tableName(MessagePersistenceServiceImpl.SQL_STATEMENTS.get(1)), is("time_trips"));
+        assertThat(BatchingSqlWriter.tableName(MessagePersistenceServiceImpl.SQL_STATEMENTS.get(2)), is("orgn_dst_geo_trips"));
+        assertThat(BatchingSqlWriter.tableName(MessagePersistenceServiceImpl.SQL_STATEMENTS.get(3)), is("time_trips"));
+        assertThat(BatchingSqlWriter.tableName(MessagePersistenceServiceImpl.SQL_STATEMENTS.get(4)), is("orgn_dst_geo_trips"));
+    }
+
+}
@@ -0,0 +1,51 @@
+package db;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.AbstractFuture;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+/**
+ * A result set future which has already completed, for stubbing asynchronous Cassandra calls.
+ */
+final class CompletedResultSetFuture extends AbstractFuture<ResultSet> implements ResultSetFuture {
+
+    static CompletedResultSetFuture success() {
+        CompletedResultSetFuture future = new CompletedResultSetFuture();
+        future.set(mock(ResultSet.class));
+        return future;
+    }
+
+    /**
+     * @return a future of a result set holding a single row
+     */
+    static CompletedResultSetFuture success(Row row) {
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.one()).thenReturn(row);
+        CompletedResultSetFuture future = new CompletedResultSetFuture();
+        future.set(resultSet);
+        return future;
+    }
+
+    static CompletedResultSetFuture failure(Throwable t) {
+        CompletedResultSetFuture future = new CompletedResultSetFuture();
+        future.setException(t);
+        return future;
+    }
+
+    @Override
+    public ResultSet getUninterruptibly() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ResultSet getUninterruptibly(long timeout, TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+}
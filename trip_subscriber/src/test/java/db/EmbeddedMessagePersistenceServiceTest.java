@@ -0,0 +1,48 @@
+package db;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import parser.EventType;
+import parser.Message;
+import store.TripStore;
+
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class EmbeddedMessagePersistenceServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldPersistTheMessagesForTheApiToRead() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        MessagePersistenceService service = new EmbeddedMessagePersistenceService(
+                TripStore.openForWriting(directory, 1 << 16), 1000, new MetricRegistry());
+        Message message = new Message();
+
+        message.set(EventType.BEGIN, "trip-1", -33.86, 151.20, 1000);
+        service.saveMessage(message);
+        message.set(EventType.UPDATE, "trip-1", -33.87, 151.21, 2000);
+        service.saveMessage(message);
+        message.set(EventType.END, "trip-1", -33.88, 151.22, 3000);
+        message.setFare(18.5f);
+        service.saveMessage(message);
+        service.close();
+
+        try (TripStore store = TripStore.openForReading(directory)) {
+            assertThat(store.getEventCount(), is(3L));
+            assertThat(store.countTrips(1000, 3000), is(1L));
+            assertThat(store.countTrips(Collections.singletonList(message.getGeoHash())), is(1L));
+            assertThat(store.geoTripTotals(Collections.singletonList(message.getGeoHash()), 0, 3000)
+                    .getEndedFareTotal(), is(18.5));
+        }
+    }
+
+}
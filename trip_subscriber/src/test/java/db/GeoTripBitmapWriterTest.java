@@ -0,0 +1,171 @@
+package db;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import geo.GeoHashEncoder;
+import org.junit.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Mockito.*;
+
+
+public class GeoTripBitmapWriterTest {
+
+    private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private final Session session = mock(Session.class);
+    private final PreparedStatement upsert = mock(PreparedStatement.class);
+    private final PreparedStatement select = mock(PreparedStatement.class);
+    private final BoundStatement read = mock(BoundStatement.class);
+    private final List<Object[]> bound = new ArrayList<>();
+
+    @Test
+    public void shouldWriteTheTripsOfEachCellAndBucketUnderThisInstancesRow() throws Exception {
+        GeoTripBitmapWriter writer = newWriter(9);
+
+        record(writer, "9q8", 1000, 1);
+        record(writer, "9q8", 2000, 2);
+        record(writer, "9q8", HOUR + 1000, 3);
+        writer.flush();
+
+        assertThat(bound.size(), is(2));
+        for (Object[] row : bound) {
+            assertThat(row[0], is("9q8"));
+            assertThat(row[2], is("instance"));
+            RoaringBitmap trips = fromBytes((ByteBuffer) row[3]);
+            if ((Long) row[1] == 0L) {
+                assertThat(trips, is(RoaringBitmap.bitmapOf(1, 2)));
+            } else {
+                assertThat(row[1], is(HOUR));
+                assertThat(trips, is(RoaringBitmap.bitmapOf(3)));
+            }
+        }
+        writer.close();
+    }
+
+    @Test
+    public void shouldOnlyWriteBitmapsWhichChanged() {
+        GeoTripBitmapWriter writer = newWriter(5);
+
+        record(writer, "9q", 1000, 1);
+        record(writer, "9q8yyk", 1000, 1);
+        writer.flush();
+        record(writer, "9q", 2000, 1);
+        writer.flush();
+
+        assertThat(bound.size(), is(1));
+        writer.close();
+    }
+
+    @Test
+    public void shouldAddLateEventsToTheOldestOpenBucketAndDropClosedBuckets() {
+        GeoTripBitmapWriter writer = newWriter(9);
+
+        record(writer, "9q", 1000, 1);
+        record(writer, "9q", 2 * HOUR + 1000, 2);
+        writer.flush();
+        // The first bucket was closed by the third, and has been written
+        assertThat(writer.getBitmapCount(), is(1));
+
+        record(writer, "9q", 2000, 3);
+        writer.flush();
+
+        assertThat(bound.get(bound.size() - 1)[1], is(HOUR));
+        assertThat(writer.getBitmapCount(), is(2));
+        writer.close();
+    }
+
+    @Test
+    public void shouldWriteABitmapAgainWhenItFailedToBeWritten() {
+        GeoTripBitmapWriter writer = newWriter(9);
+        when(session.executeAsync(any(Statement.class)))
+                .thenReturn(CompletedResultSetFuture.failure(new RuntimeException("write timeout")))
+                .thenReturn(CompletedResultSetFuture.success());
+        doReturn(CompletedResultSetFuture.success()).when(session).executeAsync(read);
+
+        record(writer, "9q", 1000, 1);
+        assertThat(writer.flush(), is(false));
+        assertThat(writer.flush(), is(true));
+        writer.flush();
+
+        assertThat(bound.size(), is(2));
+        writer.close();
+    }
+
+    @Test
+    public void shouldAddToTheBitmapWrittenBeforeARestart() throws Exception {
+        GeoTripBitmapWriter writer = newWriter(9);
+        Row row = mock(Row.class);
+        when(row.getBytes("bitmap")).thenReturn(toBytes(RoaringBitmap.bitmapOf(1)));
+        doReturn(CompletedResultSetFuture.success(row)).when(session).executeAsync(read);
+
+        record(writer, "9q", 1000, 2);
+        writer.flush();
+
+        verify(select).bind("9q", 0L, "instance");
+        assertThat(fromBytes((ByteBuffer) bound.get(0)[3]), is(RoaringBitmap.bitmapOf(1, 2)));
+        writer.close();
+    }
+
+    @Test
+    public void shouldNotWriteABitmapUntilItsRowHasBeenReadBack() {
+        GeoTripBitmapWriter writer = newWriter(9);
+        doReturn(CompletedResultSetFuture.failure(new RuntimeException("read timeout")))
+                .doReturn(CompletedResultSetFuture.success())
+                .when(session).executeAsync(read);
+
+        record(writer, "9q", 1000, 1);
+        writer.flush();
+        assertThat(bound.size(), is(0));
+
+        writer.flush();
+        assertThat(bound.size(), is(1));
+        writer.close();
+    }
+
+    private GeoTripBitmapWriter newWriter(int maxPrefixPrecision) {
+        when(upsert.bind(anyVararg())).thenAnswer(invocation -> {
+            bound.add(invocation.getArguments());
+            return mock(BoundStatement.class);
+        });
+        when(select.bind(anyVararg())).thenReturn(read);
+        when(session.executeAsync(any(Statement.class))).thenReturn(CompletedResultSetFuture.success());
+        return new GeoTripBitmapWriter(session, upsert, select, "instance", maxPrefixPrecision, HOUR, NEVER,
+                new MetricRegistry());
+    }
+
+    private static void record(GeoTripBitmapWriter writer, String geoHash, long epoch, int tripNumber) {
+        writer.record(GeoHashEncoder.fromBase32(geoHash), geoHash.length(), epoch, tripNumber);
+    }
+
+    private static ByteBuffer toBytes(RoaringBitmap bitmap) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bitmap.serialize(new DataOutputStream(bytes));
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private static RoaringBitmap fromBytes(ByteBuffer bytes) throws Exception {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        bitmap.deserialize(new DataInputStream(new ByteArrayInputStream(bytes.array())));
+        return bitmap;
+    }
+
+}
@@ -0,0 +1,31 @@
+package db;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class GeoTripRollupsTest {
+
+    @Test
+    public void shouldSumTheTripsOfEveryPrefixInGeoHashAndBucketOrder() {
+        GeoTripRollups rollups = new GeoTripRollups();
+
+        rollups.ended("9r", 0L, 10.5f);
+        rollups.started("9q", 3600000L);
+        rollups.started("9q", 0L);
+        rollups.ended("9q", 0L, null);
+
+        Object[][] params = rollups.toParams();
+        assertThat(params.length, is(5));
+        assertThat(params[0], is(new Object[] {"9", 0L, 1L, 2L, new BigDecimal("10.5")}));
+        assertThat(params[1], is(new Object[] {"9", 3600000L, 1L, 0L, BigDecimal.ZERO}));
+        assertThat(params[2], is(new Object[] {"9q", 0L, 1L, 1L, BigDecimal.ZERO}));
+        assertThat(params[3], is(new Object[] {"9q", 3600000L, 1L, 0L, BigDecimal.ZERO}));
+        assertThat(params[4], is(new Object[] {"9r", 0L, 0L, 1L, new BigDecimal("10.5")}));
+    }
+
+}
@@ -0,0 +1,160 @@
+package db;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import geo.GeoHashEncoder;
+import org.junit.Before;
+import org.junit.Test;
+import sketch.HyperLogLog;
+import util.Hashing;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Mockito.*;
+
+
+public class GeoTripSketchWriterTest {
+
+    private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+    private final Session session = mock(Session.class);
+    private final PreparedStatement upsert = mock(PreparedStatement.class);
+    private final PreparedStatement select = mock(PreparedStatement.class);
+    private final BoundStatement read = mock(BoundStatement.class);
+
+    @Before
+    public void setup() {
+        when(select.bind(anyVararg())).thenReturn(read);
+    }
+
+    @Test
+    public void shouldOnlyKeepSketchesUpToTheMaxPrefixLength() {
+        when(upsert.bind(anyVararg())).thenReturn(mock(BoundStatement.class));
+        when(session.executeAsync(any(Statement.class))).thenReturn(CompletedResultSetFuture.success());
+        GeoTripSketchWriter writer = newWriter();
+
+        record(writer, "9q8yy", "1");
+        record(writer, "9q8yyk", "1");
+
+        assertThat(writer.getSketchCount(), is(1));
+        writer.close();
+    }
+
+    @Test
+    public void shouldOnlyWriteSketchesWhichChanged() {
+        when(upsert.bind(anyVararg())).thenReturn(mock(BoundStatement.class));
+        when(session.executeAsync(any(Statement.class))).thenReturn(CompletedResultSetFuture.success());
+        GeoTripSketchWriter writer = newWriter();
+
+        record(writer, "9q", "1");
+        record(writer, "9r", "1");
+        writer.flush();
+        verify(upsert, times(2)).bind(anyVararg());
+
+        record(writer, "9q", "1");
+        writer.flush();
+        verify(upsert, times(2)).bind(anyVararg());
+        writer.close();
+    }
+
+    @Test
+    public void shouldWriteTheSketchUnderThisInstancesRow() {
+        List<Object[]> bound = new ArrayList<>();
+        when(upsert.bind(anyVararg())).thenAnswer(invocation -> {
+            bound.add(invocation.getArguments());
+            return mock(BoundStatement.class);
+        });
+        when(session.executeAsync(any(Statement.class))).thenReturn(CompletedResultSetFuture.success());
+        GeoTripSketchWriter writer = newWriter();
+
+        record(writer, "9q8", "1");
+        record(writer, "9q8", "2");
+        writer.flush();
+
+        assertThat(bound.size(), is(1));
+        assertThat(bound.get(0)[0], is("9q8"));
+        assertThat(bound.get(0)[1], is("instance"));
+        ByteBuffer sketch = (ByteBuffer) bound.get(0)[2];
+        assertThat(HyperLogLog.fromBytes(sketch.array()).estimate(), is(2L));
+        writer.close();
+    }
+
+    @Test
+    public void shouldWriteASketchAgainWhenItFailedToBeWritten() {
+        when(upsert.bind(anyVararg())).thenReturn(mock(BoundStatement.class));
+        when(session.executeAsync(any(Statement.class)))
+                .thenReturn(CompletedResultSetFuture.failure(new RuntimeException("write timeout")))
+                .thenReturn(CompletedResultSetFuture.success());
+        doReturn(CompletedResultSetFuture.success()).when(session).executeAsync(read);
+        GeoTripSketchWriter writer = newWriter();
+
+        record(writer, "9q", "1");
+        assertThat(writer.flush(), is(false));
+        assertThat(writer.flush(), is(true));
+        writer.flush();
+
+        verify(upsert, times(2)).bind(anyVararg());
+        writer.close();
+    }
+
+    @Test
+    public void shouldAddToTheSketchWrittenBeforeARestart() {
+        List<Object[]> bound = new ArrayList<>();
+        when(upsert.bind(anyVararg())).thenAnswer(invocation -> {
+            bound.add(invocation.getArguments());
+            return mock(BoundStatement.class);
+        });
+        when(session.executeAsync(any(Statement.class))).thenReturn(CompletedResultSetFuture.success());
+        HyperLogLog stored = new HyperLogLog(12);
+        stored.add(Hashing.hash64("1"));
+        Row row = mock(Row.class);
+        when(row.getBytes("sketch")).thenReturn(ByteBuffer.wrap(stored.toBytes()));
+        doReturn(CompletedResultSetFuture.success(row)).when(session).executeAsync(read);
+        GeoTripSketchWriter writer = newWriter();
+
+        record(writer, "9q8", "2");
+        writer.flush();
+
+        ByteBuffer sketch = (ByteBuffer) bound.get(0)[2];
+        assertThat(HyperLogLog.fromBytes(sketch.array()).estimate(), is(2L));
+        writer.close();
+    }
+
+    @Test
+    public void shouldNotWriteASketchUntilItsRowHasBeenReadBack() {
+        when(upsert.bind(anyVararg())).thenReturn(mock(BoundStatement.class));
+        when(session.executeAsync(any(Statement.class))).thenReturn(CompletedResultSetFuture.success());
+        doReturn(CompletedResultSetFuture.failure(new RuntimeException("read timeout")))
+                .doReturn(CompletedResultSetFuture.success())
+                .when(session).executeAsync(read);
+        GeoTripSketchWriter writer = newWriter();
+
+        record(writer, "9q", "1");
+        writer.flush();
+        verify(upsert, never()).bind(anyVararg());
+
+        writer.flush();
+        verify(upsert, times(1)).bind(anyVararg());
+        writer.close();
+    }
+
+    private GeoTripSketchWriter newWriter() {
+        return new GeoTripSketchWriter(session, upsert, select, "instance", 5, 12, NEVER, new MetricRegistry());
+    }
+
+    private static void record(GeoTripSketchWriter writer, String geoHash, String tripId) {
+        writer.record(GeoHashEncoder.fromBase32(geoHash), geoHash.length(), Hashing.hash64(tripId));
+    }
+
+}
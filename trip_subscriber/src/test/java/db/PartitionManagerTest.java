@@ -0,0 +1,149 @@
+package db;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+
+public class PartitionManagerTest {
+
+    private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+    private static final Clock OCTOBER_2016 = Clock.fixed(Instant.parse("2016-10-18T12:00:00Z"), ZoneOffset.UTC);
+
+    private final DataSource dataSource = mock(DataSource.class);
+    private final Connection conn = mock(Connection.class);
+    private final Statement ddl = mock(Statement.class);
+    private final PreparedStatement query = mock(PreparedStatement.class);
+    private final ResultSet count = mock(ResultSet.class);
+
+    @Before
+    public void setup() throws Exception {
+        when(dataSource.getConnection()).thenReturn(conn);
+        when(conn.createStatement()).thenReturn(ddl);
+        when(conn.prepareStatement(anyString())).thenReturn(query);
+        when(ddl.executeQuery(anyString())).thenReturn(count);
+    }
+
+    @Test
+    public void shouldCreateThePartitionsOfTheCurrentAndComingMonths() throws Exception {
+        whenListed(partitions(), partitions());
+        PartitionManager manager = new PartitionManager(dataSource, 1, 12, false, NEVER, new MetricRegistry(), OCTOBER_2016);
+
+        manager.maintain();
+
+        verify(ddl).execute("CREATE TABLE IF NOT EXISTS time_trips_p2016_10 PARTITION OF time_trips " +
+                "FOR VALUES FROM (1475280000000) TO (1477958400000)");
+        verify(ddl).execute("CREATE TABLE IF NOT EXISTS time_trips_p2016_11 PARTITION OF time_trips " +
+                "FOR VALUES FROM (1477958400000) TO (1480550400000)");
+        verify(ddl).execute("CREATE TABLE IF NOT EXISTS orgn_dst_geo_trips_p2016_10 PARTITION OF orgn_dst_geo_trips " +
+                "FOR VALUES FROM (1475280000000) TO (1477958400000)");
+        verify(ddl, times(4)).execute(anyString());
+    }
+
+    @Test
+    public void shouldDetachAndDropThePartitionsOlderThanTheRetentionPeriod() throws Exception {
+        whenListed(partitions("time_trips_p2015_10", "time_trips_p2015_11", "time_trips_p2016_10"),
+                partitions("orgn_dst_geo_trips_p2016_01", "orgn_dst_geo_trips_p2016_10"));
+        PartitionManager manager = new PartitionManager(dataSource, 0, 12, true, NEVER, new MetricRegistry(), OCTOBER_2016);
+
+        manager.maintain();
+
+        verify(ddl).execute("ALTER TABLE time_trips DETACH PARTITION time_trips_p2015_10");
+        verify(ddl).execute("DROP TABLE time_trips_p2015_10");
+        verify(ddl, never()).execute("ALTER TABLE time_trips DETACH PARTITION time_trips_p2015_11");
+        verify(ddl, never()).execute("ALTER TABLE orgn_dst_geo_trips DETACH PARTITION orgn_dst_geo_trips_p2016_01");
+        verify(ddl, times(2)).execute(anyString());
+        verify(ddl).executeUpdate("DELETE FROM trip_starts WHERE start_time < 1446336000000");
+    }
+
+    @Test
+    public void shouldMoveTheRowsOfItsMonthOutOfTheDefaultPartitionIntoANewPartition() throws Exception {
+        whenListed(partitions("time_trips_default"), partitions("time_trips_default"),
+                partitions("orgn_dst_geo_trips_p2016_10"));
+        when(count.next()).thenReturn(true);
+        when(count.getLong(1)).thenReturn(3L);
+        PartitionManager manager = new PartitionManager(dataSource, 0, 12, false, NEVER, new MetricRegistry(), OCTOBER_2016);
+
+        manager.maintain();
+
+        InOrder inOrder = inOrder(ddl, conn);
+        inOrder.verify(ddl).execute("LOCK TABLE time_trips_default IN EXCLUSIVE MODE");
+        inOrder.verify(ddl).execute("CREATE TABLE time_trips_p2016_10 (LIKE time_trips INCLUDING DEFAULTS " +
+                "INCLUDING CONSTRAINTS)");
+        inOrder.verify(ddl).executeUpdate("WITH moved AS (DELETE FROM time_trips_default " +
+                "WHERE start_time >= 1475280000000 AND start_time < 1477958400000 RETURNING *) " +
+                "INSERT INTO time_trips_p2016_10 SELECT * FROM moved");
+        inOrder.verify(ddl).execute("ALTER TABLE time_trips ATTACH PARTITION time_trips_p2016_10 " +
+                "FOR VALUES FROM (1475280000000) TO (1477958400000)");
+        inOrder.verify(conn).commit();
+        // The rows of the default partition from before the retention period are deleted, the rest are counted
+        inOrder.verify(ddl).executeUpdate("DELETE FROM time_trips_default WHERE start_time < 1446336000000");
+        assertThat(manager.getDefaultRowCount(), is(3L));
+    }
+
+    @Test
+    public void shouldKeepMaintainingTheOtherPartitionsWhenOneFails() throws Exception {
+        whenListed(partitions("time_trips_p2015_09"), partitions());
+        String failing = "CREATE TABLE IF NOT EXISTS time_trips_p2016_10 PARTITION OF time_trips " +
+                "FOR VALUES FROM (1475280000000) TO (1477958400000)";
+        when(ddl.execute(failing)).thenThrow(new SQLException("updated partition constraint for default partition " +
+                "would be violated by some row"));
+        MetricRegistry metrics = new MetricRegistry();
+        PartitionManager manager = new PartitionManager(dataSource, 1, 12, false, NEVER, metrics, OCTOBER_2016);
+
+        manager.maintain();
+
+        verify(ddl).execute("CREATE TABLE IF NOT EXISTS time_trips_p2016_11 PARTITION OF time_trips " +
+                "FOR VALUES FROM (1477958400000) TO (1480550400000)");
+        verify(ddl).execute("ALTER TABLE time_trips DETACH PARTITION time_trips_p2015_09");
+        verify(ddl).execute("CREATE TABLE IF NOT EXISTS orgn_dst_geo_trips_p2016_10 PARTITION OF orgn_dst_geo_trips " +
+                "FOR VALUES FROM (1475280000000) TO (1477958400000)");
+        assertThat(metrics.meter(MetricRegistry.name(PartitionManager.class, "failures")).getCount(), is(1L));
+    }
+
+    @Test
+    public void shouldOnlyExpireMonthlyPartitions() {
+        assertThat(PartitionManager.expiredPartitions(
+                Arrays.asList("time_trips_p2015_09", "time_trips_default", "time_trips_p2016_09"), YearMonth.of(2016, 1)),
+                is(Arrays.asList("time_trips_p2015_09")));
+    }
+
+    // Every query of the partitions returns the next list
+    private void whenListed(ResultSet first, ResultSet... rest) throws Exception {
+        when(query.executeQuery()).thenReturn(first, rest);
+    }
+
+    private static ResultSet partitions(String... names) throws Exception {
+        ResultSet rows = mock(ResultSet.class);
+        Boolean[] more = new Boolean[names.length];
+        Arrays.fill(more, true);
+        if (names.length > 0) {
+            more[names.length - 1] = false;
+        }
+        when(rows.next()).thenReturn(names.length > 0, more);
+        if (names.length > 0) {
+            when(rows.getString(1)).thenReturn(names[0], Arrays.copyOfRange(names, 1, names.length));
+        }
+        return rows;
+    }
+
+}
@@ -0,0 +1,37 @@
+package db;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+
+public class SyncGeoTripWriterTest {
+
+    private final Session session = mock(Session.class);
+    private final PreparedStatement insert = mock(PreparedStatement.class);
+    private final WriteFailureListener listener = mock(WriteFailureListener.class);
+
+    @Test
+    public void shouldReportTheRowsWhichFailedToTheListener() {
+        when(insert.bind(anyVararg())).thenReturn(mock(BoundStatement.class));
+        NoHostAvailableException failure = new NoHostAvailableException(Collections.emptyMap());
+        when(session.execute(any(Statement.class))).thenThrow(failure);
+        SyncGeoTripWriter writer = new SyncGeoTripWriter(session, insert, listener, new MetricRegistry());
+
+        writer.write("9q8yy", "1");
+
+        verify(listener).onFailure(eq("9q8yy"), eq(Collections.singletonList("1")), eq(failure));
+    }
+
+}
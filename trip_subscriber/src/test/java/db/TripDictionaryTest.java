@@ -0,0 +1,149 @@
+package db;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+
+public class TripDictionaryTest {
+
+    private static final long NEVER = Long.MAX_VALUE;
+    private static final int BLOCK_START = 3 * TripDictionary.NUMBER_BLOCK_SIZE;
+
+    private final DataSource dataSource = mock(DataSource.class);
+    private final Connection conn = mock(Connection.class);
+    private final PreparedStatement nextBlock = mock(PreparedStatement.class);
+    private final PreparedStatement upsert = mock(PreparedStatement.class);
+    private final ResultSet blocks = mock(ResultSet.class);
+    private final ResultSet numbers = mock(ResultSet.class);
+    private final Array tripIds = mock(Array.class);
+    private final Array offered = mock(Array.class);
+    private final List<Integer> calledBack = new ArrayList<>();
+    private TripDictionary dictionary;
+
+    @Before
+    public void setup() throws Exception {
+        when(dataSource.getConnection()).thenReturn(conn);
+        when(conn.prepareStatement(anyString())).thenReturn(upsert);
+        when(conn.prepareStatement("SELECT nextval('trip_number_blocks')")).thenReturn(nextBlock);
+        when(conn.createArrayOf(eq("text"), any(Object[].class))).thenReturn(tripIds);
+        when(conn.createArrayOf(eq("integer"), any(Object[].class))).thenReturn(offered);
+        when(nextBlock.executeQuery()).thenReturn(blocks);
+        when(blocks.next()).thenReturn(true);
+        when(blocks.getLong(1)).thenReturn(3L);
+        when(upsert.executeQuery()).thenReturn(numbers);
+        dictionary = new TripDictionary(dataSource, 100, NEVER, new MetricRegistry());
+    }
+
+    @After
+    public void tearDown() {
+        dictionary.close();
+    }
+
+    @Test
+    public void shouldNumberTheQueuedTripsInOneStatementFromAReservedBlock() throws Exception {
+        // The table returns the numbers it was offered when the trips have none
+        whenUpserted(Arrays.asList("trip-1", "trip-2"), Arrays.asList(BLOCK_START, BLOCK_START + 1));
+
+        dictionary.numberOf("trip-1", calledBack::add);
+        dictionary.numberOf("trip-2", calledBack::add);
+        dictionary.numberOf("trip-1", calledBack::add);
+        assertThat(calledBack.isEmpty(), is(true));
+        assertThat(dictionary.getQueuedCount(), is(2));
+
+        dictionary.flush();
+
+        assertThat(calledBack, is(Arrays.asList(BLOCK_START, BLOCK_START, BLOCK_START + 1)));
+        verify(conn).createArrayOf("text", new Object[] {"trip-1", "trip-2"});
+        verify(conn).createArrayOf("integer", new Object[] {BLOCK_START, BLOCK_START + 1});
+        verify(upsert, times(1)).executeQuery();
+        verify(nextBlock, times(1)).executeQuery();
+        assertThat(dictionary.cachedNumberOf("trip-1"), is(BLOCK_START));
+        assertThat(dictionary.getQueuedCount(), is(0));
+    }
+
+    @Test
+    public void shouldKeepTheNumberATripAlreadyHas() throws Exception {
+        whenUpserted(Collections.singletonList("trip-1"), Collections.singletonList(42));
+
+        dictionary.numberOf("trip-1", calledBack::add);
+        dictionary.flush();
+
+        assertThat(calledBack, is(Collections.singletonList(42)));
+    }
+
+    @Test
+    public void shouldCallBackStraightAwayOnceATripIsCached() throws Exception {
+        whenUpserted(Collections.singletonList("trip-1"), Collections.singletonList(42));
+        dictionary.numberOf("trip-1", number -> { });
+        dictionary.flush();
+
+        dictionary.numberOf("trip-1", calledBack::add);
+
+        assertThat(calledBack, is(Collections.singletonList(42)));
+        assertThat(dictionary.getQueuedCount(), is(0));
+        verify(upsert, times(1)).executeQuery();
+    }
+
+    @Test
+    public void shouldNotCallBackWhenATripCannotBeNumbered() throws Exception {
+        when(upsert.executeQuery()).thenThrow(new SQLException("unavailable"));
+
+        dictionary.numberOf("trip-1", calledBack::add);
+        dictionary.flush();
+
+        assertThat(calledBack.isEmpty(), is(true));
+        assertThat(dictionary.cachedNumberOf("trip-1"), is(TripDictionary.NO_NUMBER));
+        assertThat(dictionary.getFailedCount(), is(1L));
+    }
+
+    @Test
+    public void shouldEvictTheLeastRecentlyUsedTripOnceFull() throws Exception {
+        dictionary.close();
+        dictionary = new TripDictionary(dataSource, 2, NEVER, new MetricRegistry());
+        whenUpserted(Arrays.asList("trip-1", "trip-2"), Arrays.asList(1, 2));
+        dictionary.numberOf("trip-1", number -> { });
+        dictionary.numberOf("trip-2", number -> { });
+        dictionary.flush();
+        dictionary.cachedNumberOf("trip-1");
+
+        whenUpserted(Collections.singletonList("trip-3"), Collections.singletonList(3));
+        dictionary.numberOf("trip-3", number -> { });
+        dictionary.flush();
+
+        assertThat(dictionary.getTripCount(), is(2));
+        assertThat(dictionary.cachedNumberOf("trip-2"), is(TripDictionary.NO_NUMBER));
+        dictionary.evict("trip-1");
+        assertThat(dictionary.getTripCount(), is(1));
+    }
+
+    // The upsert returns a row with the number of every trip
+    private void whenUpserted(List<String> trips, List<Integer> tripNumbers) throws SQLException {
+        Boolean[] more = new Boolean[trips.size()];
+        Arrays.fill(more, true);
+        more[more.length - 1] = false;
+        when(numbers.next()).thenReturn(true, more);
+        when(numbers.getString(1)).thenReturn(trips.get(0), trips.subList(1, trips.size()).toArray(new String[0]));
+        when(numbers.getInt(2)).thenReturn(tripNumbers.get(0),
+                tripNumbers.subList(1, tripNumbers.size()).toArray(new Integer[0]));
+    }
+
+}
@@ -0,0 +1,72 @@
+package db;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import geo.GeoHashEncoder;
+import org.junit.Test;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class WrittenPrefixCacheTest {
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private long now = 0;
+    private final WrittenPrefixCache cache = new WrittenPrefixCache(2, 1000, metrics, () -> now);
+
+    @Test
+    public void shouldOnlyWriteAPrefixOncePerTrip() {
+        assertThat(markWritten("1", "9q8"), is(true));
+        assertThat(markWritten("1", "9q8"), is(false));
+        assertThat(markWritten("2", "9q8"), is(true));
+    }
+
+    @Test
+    public void shouldWritePrefixesAgainOnceTheTripIsEvicted() {
+        markWritten("1", "9q8");
+        cache.evict("1");
+
+        assertThat(markWritten("1", "9q8"), is(true));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedTripWhenFull() {
+        markWritten("1", "9q8");
+        markWritten("2", "9q8");
+        markWritten("1", "9q9");
+        markWritten("3", "9q8");
+
+        assertThat(cache.size(), is(2));
+        assertThat(markWritten("1", "9q8"), is(false));
+        assertThat(markWritten("2", "9q8"), is(true));
+    }
+
+    @Test
+    public void shouldEvictIdleTrips() {
+        markWritten("1", "9q8");
+        now = 999;
+        markWritten("2", "9q8");
+        now = 1500;
+
+        assertThat(markWritten("1", "9q8"), is(true));
+        assertThat(markWritten("2", "9q8"), is(false));
+    }
+
+    @Test
+    public void shouldReportHitRatio() {
+        markWritten("1", "9");
+        markWritten("1", "9");
+        markWritten("1", "9");
+        markWritten("1", "9q");
+
+        Gauge ratio = metrics.getGauges().get(name(WrittenPrefixCache.class, "hit-ratio"));
+        assertThat(ratio.getValue(), is(0.5));
+    }
+
+    private boolean markWritten(String tripId, String geoHashPrefix) {
+        return cache.markWritten(tripId, GeoHashEncoder.fromBase32(geoHashPrefix), geoHashPrefix.length());
+    }
+
+}
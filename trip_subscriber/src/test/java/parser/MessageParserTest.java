@@ -2,6 +2,8 @@ package parser;
 
 import org.junit.Test;
 
+import java.util.Random;
+
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
@@ -65,4 +67,69 @@ public class MessageParserTest {
         MessageParser.parseMessage(msg);
     }
 
+    @Test
+    public void shouldPeekEventTypeWithoutParsing() {
+        assertThat(MessageParser.peekEventType("{\"event\":\"update\",\"tripId\":432}"), is(EventType.UPDATE));
+        assertThat(MessageParser.peekEventType("{\"tripId\":432, \"event\" : \"END\"}"), is(EventType.END));
+        assertThat(MessageParser.peekEventType("{\"event\":\"updated\",\"tripId\":432}"), nullValue());
+        assertThat(MessageParser.peekEventType("{\"tripId\":432}"), nullValue());
+    }
+
+    @Test
+    public void shouldPeekTripIdHashWithoutParsing() {
+        int hash = "432".hashCode();
+        assertThat(MessageParser.peekTripIdHash("{\"event\":\"update\",\"tripId\":432}"), is(hash));
+        assertThat(MessageParser.peekTripIdHash("{\"tripId\" : \"432\", \"event\":\"end\"}"), is(hash));
+        assertThat(MessageParser.peekTripIdHash("{\"tripId\":432 ,\"event\":\"end\"}"), is(hash));
+        assertThat(MessageParser.peekTripIdHash("{\"event\":\"end\"}"), is(0));
+    }
+
+    @Test
+    public void shouldParseIntoAReusedMessage() {
+        MessageParser parser = new MessageParser();
+        Message message = new Message();
+
+        assertThat(parser.parse("{\"event\":\"end\",\"tripId\":\"a1\",\"lat\":-33.5,\"lng\":151.25,\"fare\":12.5,\"epoch\":10}", message), nullValue());
+        assertThat(message.getFare(), is(12.5f));
+
+        assertThat(parser.parse("{\"event\":\"update\",\"tripId\":\"a\\\"2\",\"lat\":-33.5,\"lng\":151.25,\"epoch\":11}", message), nullValue());
+        assertThat(message.getEvent(), is(EventType.UPDATE));
+        assertThat(message.getTripId(), is("a\"2"));
+        assertThat(message.getLat(), is(-33.5));
+        assertThat(message.getFare(), nullValue());
+        assertThat(message.getEpoch(), is(11L));
+    }
+
+    @Test
+    public void shouldReportWhyAMessageWasRejected() {
+        MessageParser parser = new MessageParser();
+        Message message = new Message();
+
+        assertThat(parser.parse(null, message), is(ParseError.EMPTY));
+        assertThat(parser.parse("{\"event\":\"update\"", message), is(ParseError.MALFORMED_JSON));
+        assertThat(parser.parse("{\"event\":\"start\",\"tripId\":1,\"lat\":1,\"lng\":1,\"epoch\":1}", message), is(ParseError.INVALID_EVENT));
+        assertThat(parser.parse("{\"event\":\"update\",\"tripId\":1,\"lat\":1,\"lng\":1}", message), is(ParseError.MISSING_FIELD));
+        assertThat(parser.parse("{\"event\":\"update\",\"tripId\":1,\"lat\":1,\"lng\":1,\"epoch\":1,\"speed\":3}", message), is(ParseError.UNKNOWN_FIELD));
+        assertThat(parser.parse("{\"event\":\"update\",\"tripId\":1,\"lat\":\"north\",\"lng\":1,\"epoch\":1}", message), is(ParseError.INVALID_VALUE));
+        assertThat(parser.parse("{\"event\":\"end\",\"tripId\":1,\"lat\":1,\"lng\":1,\"epoch\":1}", message), is(ParseError.MISSING_FARE));
+        assertThat(parser.parse("{\"event\":\"begin\",\"tripId\":1,\"lat\":1,\"lng\":1,\"fare\":2,\"epoch\":1}", message), is(ParseError.UNEXPECTED_FARE));
+    }
+
+    @Test
+    public void shouldParseCoordinatesExactlyLikeDoubleParseDouble() {
+        MessageParser parser = new MessageParser();
+        Message message = new Message();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 10000; i++) {
+            String lat = Double.toString(random.nextDouble() * 180 - 90);
+            String lng = String.format("%.6f", random.nextDouble() * 360 - 180);
+            String msg = "{\"event\":\"update\",\"tripId\":1,\"lat\":" + lat + ",\"lng\":" + lng + ",\"epoch\":1}";
+
+            assertThat(parser.parse(msg, message), nullValue());
+            assertThat(message.getLat(), is(Double.parseDouble(lat)));
+            assertThat(message.getLng(), is(Double.parseDouble(lng)));
+        }
+    }
+
 }
@@ -30,4 +30,13 @@ public class MessageTest {
         assertThat(msg.getGeoHash().length(), is(9));
     }
 
+    @Test
+    public void shouldRecomputeGeohashWhenMessageIsReused() {
+        Message msg = new Message(EventType.UPDATE, "123", 37.7749, -122.4194, 123456789L);
+        assertThat(msg.getGeoHash(), is("9q8yyk8yt"));
+
+        msg.set(EventType.UPDATE, "123", -33.8688, 151.2093, 123456790L);
+        assertThat(msg.getGeoHash(), is("r3gx2f77b"));
+    }
+
 }
@@ -0,0 +1,129 @@
+package subscriber;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import db.MessagePersistenceService;
+import parser.EventType;
+import parser.Message;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+
+public class IngestPipelineTest {
+
+    private static final String UPDATE = "{\"event\":\"update\",\"tripId\":432, \"lat\":37.79947, \"lng\":122.511635, \"epoch\":1392864673040}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final MessagePersistenceService service = mock(MessagePersistenceService.class);
+
+    @Test
+    public void shouldDropUpdatesWhenTheBufferIsFull() throws Exception {
+        IngestPipeline pipeline = new IngestPipeline(1, 2, 0, OverflowPolicy.DROP_UPDATES, spillPath(), service, metrics, false);
+
+        pipeline.publish(UPDATE);
+        pipeline.publish(UPDATE);
+        pipeline.publish(UPDATE);
+
+        assertThat(pipeline.getQueueDepth(), is(2));
+        assertThat(pipeline.getDroppedCount(), is(1L));
+        assertThat(gauge("queue-depth").getValue(), is(2));
+    }
+
+    @Test
+    public void shouldSpillMessagesToDiskWhenTheBufferIsFull() throws Exception {
+        Path spillPath = spillPath();
+        IngestPipeline pipeline = new IngestPipeline(1, 2, 0, OverflowPolicy.SPILL, spillPath, service, metrics, false);
+
+        for (int i = 0; i < 4; i++) {
+            pipeline.publish(UPDATE);
+        }
+
+        assertThat(pipeline.getQueueDepth(), is(2));
+        assertThat(gauge("spill-depth").getValue(), is(2L));
+        assertThat(spillPath.toFile().exists(), is(true));
+    }
+
+    @Test
+    public void shouldRouteEveryEventOfATripToTheSameLane() throws Exception {
+        IngestPipeline pipeline = new IngestPipeline(8, 2, 0, OverflowPolicy.BLOCK, spillPath(), service, metrics, false);
+
+        int lane = pipeline.laneIndex(message("begin", "432"));
+        assertThat(pipeline.laneIndex(message("update", "432")), is(lane));
+        assertThat(pipeline.laneIndex(message("end", "\"432\"")), is(lane));
+    }
+
+    @Test
+    public void shouldPersistTheEventsOfEachTripInOrder() throws Exception {
+        Map<String, List<EventType>> persisted = new ConcurrentHashMap<>();
+        doAnswer(invocation -> {
+            Message message = (Message) invocation.getArguments()[0];
+            persisted.computeIfAbsent(message.getTripId(), id -> new ArrayList<>()).add(message.getEvent());
+            return null;
+        }).when(service).saveMessage(any(Message.class));
+        IngestPipeline pipeline = new IngestPipeline(4, 16, 0, OverflowPolicy.BLOCK, spillPath(), service, metrics);
+
+        List<String> events = Arrays.asList("begin", "update", "update", "end");
+        for (int i = 0; i < events.size(); i++) {
+            for (int trip = 0; trip < 50; trip++) {
+                // Move every trip to a new cell with each event, so that none of the updates are coalesced
+                pipeline.publish(message(events.get(i), String.valueOf(trip), 37.79947 + i * 0.01));
+            }
+        }
+        pipeline.shutdown();
+
+        assertThat(persisted.size(), is(50));
+        for (List<EventType> tripEvents : persisted.values()) {
+            assertThat(tripEvents, is(Arrays.asList(EventType.BEGIN, EventType.UPDATE, EventType.UPDATE, EventType.END)));
+        }
+    }
+
+    @Test
+    public void shouldPersistTheHeldUpdatesWhenCheckpointed() throws Exception {
+        IngestPipeline pipeline = new IngestPipeline(2, 16, 60000, OverflowPolicy.BLOCK, spillPath(), service, metrics);
+
+        pipeline.publish(message("begin", "432"));
+        pipeline.publish(message("update", "432", 37.80947));
+        pipeline.checkpoint();
+
+        verify(service, times(2)).saveMessage(any(Message.class));
+        pipeline.shutdown();
+    }
+
+    private static String message(String event, String tripId) {
+        return message(event, tripId, 37.79947);
+    }
+
+    private static String message(String event, String tripId, double lat) {
+        return String.format("{\"event\":\"%s\",\"tripId\":%s, \"lat\":%s, \"lng\":122.511635, %s\"epoch\":1392864673040}",
+                event, tripId, lat, event.equals("end") ? "\"fare\":43.55, " : "");
+    }
+
+    private Gauge gauge(String metric) {
+        return metrics.getGauges().get(name(IngestPipeline.class, metric));
+    }
+
+    private Path spillPath() {
+        return folder.getRoot().toPath().resolve("spill.log");
+    }
+
+}
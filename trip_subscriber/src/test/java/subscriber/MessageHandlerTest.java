@@ -1,5 +1,6 @@
 package subscriber;
 
+import com.codahale.metrics.MetricRegistry;
 import db.MessagePersistenceService;
 import org.junit.Test;
 import parser.Message;
@@ -17,14 +18,14 @@ public class MessageHandlerTest {
 
     @Test
     public void shouldCallSaveOnPersistenceServiceIfMessageIsValid() throws Exception {
-        MessageHandler handler = new MessageHandler(msg, mockService);
+        MessageHandler handler = new MessageHandler(msg, mockService, new MetricRegistry());
         handler.run();
         verify(mockService, times(1)).saveMessage(any(Message.class));
     }
 
     @Test
     public void shouldNotCallSaveOnPersistenceServiceIfMessageIsInValid() {
-        MessageHandler handler = new MessageHandler(invalidMsg, mockService);
+        MessageHandler handler = new MessageHandler(invalidMsg, mockService, new MetricRegistry());
         handler.run();
         verify(mockService, times(0)).saveMessage(any(Message.class));
     }
@@ -0,0 +1,69 @@
+package subscriber;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class MetricsHttpServerTest {
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final MetricsHttpServer server = new MetricsHttpServer(0, metrics);
+
+    @Before
+    public void startServer() throws Exception {
+        server.start();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void shouldServeTheRegistryAsJson() throws IOException {
+        metrics.meter("subscriber.IngestPipeline.received").mark(3);
+
+        HttpURLConnection connection = get("/metrics");
+
+        assertThat(connection.getResponseCode(), is(200));
+        assertThat(body(connection), containsString("\"subscriber.IngestPipeline.received\":{\"count\":3"));
+    }
+
+    @Test
+    public void shouldAnswerPings() throws IOException {
+        HttpURLConnection connection = get("/ping");
+
+        assertThat(connection.getResponseCode(), is(200));
+        assertThat(body(connection), containsString("pong"));
+    }
+
+    private HttpURLConnection get(String path) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+    }
+
+    private static String body(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package subscriber;
+
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+
+public class RingBufferTest {
+
+    @Test
+    public void shouldRoundCapacityUpToAPowerOfTwo() {
+        assertThat(new RingBuffer<String>(1).capacity(), is(2));
+        assertThat(new RingBuffer<String>(5).capacity(), is(8));
+        assertThat(new RingBuffer<String>(8).capacity(), is(8));
+    }
+
+    @Test
+    public void shouldReturnElementsInOrder() {
+        RingBuffer<String> buffer = new RingBuffer<>(4);
+        buffer.offer("a");
+        buffer.offer("b");
+
+        assertThat(buffer.size(), is(2));
+        assertThat(buffer.poll(), is("a"));
+        assertThat(buffer.poll(), is("b"));
+        assertThat(buffer.poll(), nullValue());
+    }
+
+    @Test
+    public void shouldRejectElementsWhenFullAndAcceptThemOnceSpaceIsFreed() {
+        RingBuffer<String> buffer = new RingBuffer<>(2);
+
+        assertThat(buffer.offer("a"), is(true));
+        assertThat(buffer.offer("b"), is(true));
+        assertThat(buffer.offer("c"), is(false));
+
+        buffer.poll();
+        assertThat(buffer.offer("c"), is(true));
+        assertThat(buffer.poll(), is("b"));
+        assertThat(buffer.poll(), is("c"));
+    }
+
+    @Test
+    public void shouldDeliverEveryElementExactlyOnceToConcurrentConsumers() throws Exception {
+        final int elements = 100000;
+        RingBuffer<Integer> buffer = new RingBuffer<>(64);
+        Set<Integer> consumed = ConcurrentHashMap.newKeySet();
+        AtomicInteger polled = new AtomicInteger();
+        AtomicInteger duplicates = new AtomicInteger();
+
+        Thread[] consumers = new Thread[4];
+        for (int i = 0; i < consumers.length; i++) {
+            consumers[i] = new Thread(() -> {
+                while (polled.get() < elements) {
+                    Integer element = buffer.poll();
+                    if (element != null) {
+                        polled.incrementAndGet();
+                        if (!consumed.add(element)) {
+                            duplicates.incrementAndGet();
+                        }
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            });
+            consumers[i].start();
+        }
+        for (int i = 0; i < elements; i++) {
+            while (!buffer.offer(i)) {
+                Thread.yield();
+            }
+        }
+        for (Thread consumer : consumers) {
+            consumer.join(10000);
+        }
+
+        assertThat(consumed.size(), is(elements));
+        assertThat(duplicates.get(), is(0));
+    }
+
+}
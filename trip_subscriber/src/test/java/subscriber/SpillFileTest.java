@@ -0,0 +1,41 @@
+package subscriber;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class SpillFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldReadBackAReopenedFileFromWhereItWasLeft() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("spill.log");
+        SpillFile spillFile = new SpillFile(path);
+        for (int i = 0; i < 3; i++) {
+            spillFile.append("message-" + i);
+        }
+        assertThat(spillFile.peek(), is("message-0"));
+        spillFile.remove();
+        spillFile.close();
+
+        SpillFile reopened = new SpillFile(path);
+
+        assertThat(reopened.size(), is(2L));
+        assertThat(reopened.peek(), is("message-1"));
+        reopened.remove();
+        assertThat(reopened.peek(), is("message-2"));
+        reopened.remove();
+        assertThat(Files.exists(path), is(false));
+        assertThat(Files.exists(path.resolveSibling("spill.log.position")), is(false));
+    }
+
+}
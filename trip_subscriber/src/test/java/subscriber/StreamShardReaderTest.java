@@ -0,0 +1,128 @@
+package subscriber;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Matchers;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.StreamEntry;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.StreamPendingEntry;
+import redis.clients.jedis.util.Pool;
+import util.StreamShards;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+
+public class StreamShardReaderTest {
+
+    private static final String STREAM = "trip_updates:0";
+    private static final String GROUP = "trip_subscribers";
+
+    @SuppressWarnings("unchecked")
+    private final Pool<Jedis> pool = mock(Pool.class);
+    private final Jedis jedis = mock(Jedis.class);
+    private final List<String> handedOver = new ArrayList<>();
+    private final Runnable awaitDurable = mock(Runnable.class);
+    private StreamShardReader reader;
+
+    @Before
+    public void setup() {
+        reader = new StreamShardReader(pool, STREAM, GROUP, "subscriber-0", 100, 1000, 100, 1000,
+                handedOver::add, awaitDurable, new MetricRegistry());
+    }
+
+    @Test
+    public void shouldHandOverTheMessagesReadAndAcknowledgeThemInOneBatch() {
+        whenRead(Arrays.asList(entry(1, "begin"), entry(2, "update")));
+
+        reader.readNew(jedis);
+        assertThat(handedOver, is(Arrays.asList("begin", "update")));
+        verify(jedis, never()).xack(anyString(), anyString(), Matchers.<StreamEntryID>anyVararg());
+
+        reader.acknowledge(jedis);
+        verify(jedis).xack(STREAM, GROUP, new StreamEntryID(1, 0), new StreamEntryID(2, 0));
+        assertThat(reader.getUnacknowledgedCount(), is(0));
+    }
+
+    @Test
+    public void shouldOnlyAcknowledgeTheMessagesOnceTheyAreDurable() {
+        whenRead(Collections.singletonList(entry(1, "begin")));
+
+        reader.readNew(jedis);
+        reader.acknowledge(jedis);
+
+        InOrder inOrder = inOrder(awaitDurable, jedis);
+        inOrder.verify(awaitDurable).run();
+        inOrder.verify(jedis).xack(STREAM, GROUP, new StreamEntryID(1, 0));
+    }
+
+    @Test
+    public void shouldReadThePendingMessagesUntilNoneAreLeft() {
+        whenRead(Arrays.asList(entry(1, "begin"), entry(2, "update")), Collections.singletonList(entry(3, "end")));
+
+        reader.readPending(jedis);
+
+        assertThat(handedOver, is(Arrays.asList("begin", "update", "end")));
+        assertThat(reader.getUnacknowledgedCount(), is(3));
+    }
+
+    @Test
+    public void shouldClaimTheMessagesPendingForOtherConsumersAndHandThemOverInOrder() {
+        when(jedis.xpending(eq(STREAM), eq(GROUP), any(StreamEntryID.class), any(StreamEntryID.class), anyInt(),
+                anyString())).thenReturn(Arrays.asList(
+                new StreamPendingEntry(new StreamEntryID(1, 0), "subscriber-1", 60000, 1),
+                new StreamPendingEntry(new StreamEntryID(2, 0), "subscriber-0", 60000, 1),
+                new StreamPendingEntry(new StreamEntryID(3, 0), "subscriber-1", 10, 1)));
+        whenRead(Arrays.asList(entry(1, "begin"), entry(2, "update"), entry(3, "end")));
+
+        reader.claimPending(jedis);
+        reader.readPending(jedis);
+
+        InOrder inOrder = inOrder(jedis);
+        inOrder.verify(jedis).xclaim(STREAM, GROUP, "subscriber-0", 0L, 0L, 0, false, new StreamEntryID(1, 0),
+                new StreamEntryID(3, 0));
+        inOrder.verify(jedis, atLeastOnce()).xreadGroup(eq(GROUP), eq("subscriber-0"), anyInt(), anyLong(), eq(false),
+                Matchers.<Map.Entry<String, StreamEntryID>>anyVararg());
+        assertThat(handedOver, is(Arrays.asList("begin", "update", "end")));
+    }
+
+    @Test
+    public void shouldAcknowledgeAMessageTrimmedFromTheStreamWithoutHandingItOver() {
+        whenRead(Collections.singletonList(new StreamEntry(new StreamEntryID(1, 0), null)));
+
+        reader.readNew(jedis);
+        reader.acknowledge(jedis);
+
+        assertThat(handedOver.isEmpty(), is(true));
+        verify(jedis).xack(STREAM, GROUP, new StreamEntryID(1, 0));
+    }
+
+    // Every read returns the next batch of entries, and once they have all been read, none
+    @SafeVarargs
+    private final void whenRead(List<StreamEntry>... batches) {
+        List<List<Map.Entry<String, List<StreamEntry>>>> reads = new ArrayList<>();
+        for (List<StreamEntry> batch : batches) {
+            reads.add(Collections.singletonList(new AbstractMap.SimpleImmutableEntry<>(STREAM, batch)));
+        }
+        reads.add(Collections.emptyList());
+        when(jedis.xreadGroup(eq(GROUP), eq("subscriber-0"), anyInt(), anyLong(), eq(false),
+                Matchers.<Map.Entry<String, StreamEntryID>>anyVararg()))
+                .thenReturn(reads.get(0), reads.subList(1, reads.size()).toArray(new List[0]));
+    }
+
+    private static StreamEntry entry(long id, String message) {
+        return new StreamEntry(new StreamEntryID(id, 0), Collections.singletonMap(StreamShards.MESSAGE_FIELD, message));
+    }
+
+}
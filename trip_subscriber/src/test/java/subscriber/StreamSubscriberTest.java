@@ -0,0 +1,28 @@
+package subscriber;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class StreamSubscriberTest {
+
+    @Test
+    public void shouldReadEveryShardWithExactlyOneSubscriber() {
+        assertThat(StreamSubscriber.shardsOf(8, 0, 3), is(Arrays.asList(0, 3, 6)));
+        assertThat(StreamSubscriber.shardsOf(8, 1, 3), is(Arrays.asList(1, 4, 7)));
+        assertThat(StreamSubscriber.shardsOf(8, 2, 3), is(Arrays.asList(2, 5)));
+        assertThat(StreamSubscriber.shardsOf(2, 0, 1), is(Arrays.asList(0, 1)));
+        assertThat(StreamSubscriber.shardsOf(2, 3, 4), is(Collections.<Integer>emptyList()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectASubscriberIndexBeyondTheSubscriberCount() {
+        StreamSubscriber.shardsOf(4, 2, 2);
+    }
+
+}
@@ -0,0 +1,118 @@
+package subscriber;
+
+import com.codahale.metrics.Meter;
+import db.MessagePersistenceService;
+import org.junit.Test;
+import parser.EventType;
+import parser.Message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class UpdateCoalescerTest {
+
+    private static final double LAT = 37.79947;
+    private static final double LNG = -122.511635;
+    // Roughly 11m north, in a different precision 9 cell
+    private static final double NEXT_CELL_LAT = LAT + 0.0001;
+
+    private final List<String> persisted = new ArrayList<>();
+    private final MessagePersistenceService service = new MessagePersistenceService() {
+        @Override
+        public void saveMessage(Message message) {
+            persisted.add(message.getEvent() + "@" + message.getGeoHash());
+        }
+
+        @Override
+        public boolean flush() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+    private final Meter updates = new Meter();
+    private final Meter coalesced = new Meter();
+    private long now = 0;
+    private final UpdateCoalescer coalescer = new UpdateCoalescer(service, 1000, updates, coalesced, () -> now);
+
+    @Test
+    public void shouldPassBeginAndEndThroughImmediately() {
+        coalescer.saveMessage(message(EventType.BEGIN, LAT));
+        coalescer.saveMessage(message(EventType.END, LAT));
+
+        assertThat(persisted, is(Arrays.asList(event(EventType.BEGIN, LAT), event(EventType.END, LAT))));
+    }
+
+    @Test
+    public void shouldDropUpdatesInTheLastPersistedCell() {
+        coalescer.saveMessage(message(EventType.BEGIN, LAT));
+        coalescer.saveMessage(message(EventType.UPDATE, LAT));
+        coalescer.saveMessage(message(EventType.UPDATE, LAT));
+        now = 5000;
+        coalescer.flushExpired();
+
+        assertThat(persisted.size(), is(1));
+        assertThat(coalescer.getHeldCount(), is(0));
+        assertThat(coalesced.getCount(), is(2L));
+        assertThat(updates.getCount(), is(2L));
+    }
+
+    @Test
+    public void shouldHoldNewCellsUntilTheWindowCloses() {
+        coalescer.saveMessage(message(EventType.BEGIN, LAT));
+        coalescer.saveMessage(message(EventType.UPDATE, NEXT_CELL_LAT));
+        now = 500;
+        coalescer.saveMessage(message(EventType.UPDATE, LAT));
+        coalescer.saveMessage(message(EventType.UPDATE, NEXT_CELL_LAT));
+        coalescer.flushExpired();
+
+        assertThat(persisted.size(), is(1));
+        assertThat(coalescer.getHeldCount(), is(1));
+
+        now = 1000;
+        coalescer.flushExpired();
+
+        assertThat(persisted, is(Arrays.asList(event(EventType.BEGIN, LAT), event(EventType.UPDATE, NEXT_CELL_LAT))));
+        assertThat(coalesced.getCount(), is(2L));
+    }
+
+    @Test
+    public void shouldFlushHeldUpdatesBeforeTheTripEnds() {
+        coalescer.saveMessage(message(EventType.BEGIN, LAT));
+        coalescer.saveMessage(message(EventType.UPDATE, NEXT_CELL_LAT));
+        coalescer.saveMessage(message(EventType.END, NEXT_CELL_LAT));
+
+        assertThat(persisted, is(Arrays.asList(event(EventType.BEGIN, LAT), event(EventType.UPDATE, NEXT_CELL_LAT),
+                event(EventType.END, NEXT_CELL_LAT))));
+        assertThat(coalescer.getHeldCount(), is(0));
+    }
+
+    @Test
+    public void shouldPersistHeldUpdatesOnClose() {
+        coalescer.saveMessage(message(EventType.UPDATE, LAT));
+
+        coalescer.close();
+
+        assertThat(persisted, is(Arrays.asList(event(EventType.UPDATE, LAT))));
+    }
+
+    private static Message message(EventType event, double lat) {
+        Message message = new Message(event, "432", lat, LNG, 1392864673040L);
+        if (event == EventType.END) {
+            message.setFare(43.55f);
+        }
+        return message;
+    }
+
+    private static String event(EventType event, double lat) {
+        return event + "@" + message(event, lat).getGeoHash();
+    }
+
+}
@@ -0,0 +1,159 @@
+package subscriber;
+
+import com.codahale.metrics.MetricRegistry;
+import db.MessagePersistenceService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import parser.Message;
+import store.SegmentLog;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+
+public class WriteAheadLogTest {
+
+    private static final int SEGMENT_BYTES = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MessagePersistenceService service = mock(MessagePersistenceService.class);
+    private final List<String> persisted = new CopyOnWriteArrayList<>();
+    private Path directory;
+    private IngestPipeline pipeline;
+
+    @Before
+    public void setup() throws Exception {
+        directory = folder.getRoot().toPath().resolve("wal");
+        doAnswer(invocation -> persisted.add(((Message) invocation.getArguments()[0]).getTripId()))
+                .when(service).saveMessage(any(Message.class));
+        doReturn(true).when(service).flush();
+        pipeline = new IngestPipeline(2, 16, 60000, OverflowPolicy.BLOCK, folder.getRoot().toPath().resolve("spill.log"),
+                service, new MetricRegistry());
+    }
+
+    @After
+    public void teardown() throws Exception {
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void shouldPersistTheDrainedMessagesBeforeCheckpointing() throws Exception {
+        WriteAheadLog log = newLog();
+
+        log.append(message("begin", 1));
+        log.append(message("update", 1, 37.80947));
+        assertThat(log.drain(), is(2L));
+        log.checkpoint();
+
+        // The update was held back by the coalescer until the checkpoint
+        assertThat(persisted, is(Arrays.asList("1", "1")));
+        verify(service).flush();
+        assertThat(Files.exists(directory.resolve("checkpoint")), is(true));
+        log.close();
+    }
+
+    @Test
+    public void shouldOnlyReplayTheMessagesLoggedAfterTheCheckpoint() throws Exception {
+        WriteAheadLog log = newLog();
+        log.append(message("begin", 1));
+        log.close();
+        // As if the subscriber had logged a message and crashed before persisting it
+        try (SegmentLog segments = SegmentLog.openForWriting(directory, SEGMENT_BYTES, record -> { })) {
+            segments.append(ByteBuffer.wrap(message("begin", 2).getBytes(StandardCharsets.UTF_8)));
+        }
+        persisted.clear();
+
+        WriteAheadLog reopened = newLog();
+        assertThat(reopened.drain(), is(1L));
+        reopened.close();
+
+        assertThat(persisted, is(Collections.singletonList("2")));
+    }
+
+    @Test
+    public void shouldDeleteTheSegmentsWhichHaveBeenCheckpointed() throws Exception {
+        WriteAheadLog log = newLog();
+        // Enough messages to fill several segments
+        for (int trip = 0; trip < 30; trip++) {
+            log.append(message("begin", trip));
+        }
+        long sizeBytes = log.getSizeBytes();
+        log.drain();
+        log.checkpoint();
+
+        assertThat(persisted.size(), is(30));
+        assertThat(Files.exists(directory.resolve("segment-0000000000.log")), is(false));
+        assertThat(log.getSizeBytes() < sizeBytes, is(true));
+        log.close();
+    }
+
+    @Test
+    public void shouldDrainTheMessagesAgainInsteadOfCheckpointingWhenAWriteFailed() throws Exception {
+        WriteAheadLog log = newLog();
+        for (int trip = 0; trip < 30; trip++) {
+            log.append(message("begin", trip));
+        }
+        log.drain();
+        // The lanes must be idle while the mock is stubbed again, as a stubbing may be taken by a call from a lane
+        pipeline.checkpoint();
+        doReturn(false).when(service).flush();
+
+        assertThat(log.checkpoint(), is(false));
+        assertThat(Files.exists(directory.resolve("checkpoint")), is(false));
+        assertThat(Files.exists(directory.resolve("segment-0000000000.log")), is(true));
+
+        doReturn(true).when(service).flush();
+        assertThat(log.drain(), is(30L));
+        assertThat(log.checkpoint(), is(true));
+        assertThat(persisted.size(), is(60));
+        assertThat(Files.exists(directory.resolve("segment-0000000000.log")), is(false));
+        log.close();
+    }
+
+    @Test
+    public void shouldWaitForTheGroupCommitBeforeTheMessagesAreDurable() throws Exception {
+        WriteAheadLog log = newLog();
+        log.append(message("begin", 1));
+        Thread reader = new Thread(log::awaitDurable);
+        reader.start();
+
+        reader.join(100);
+        assertThat(reader.isAlive(), is(true));
+
+        log.commit();
+        reader.join(TimeUnit.SECONDS.toMillis(5));
+        assertThat(reader.isAlive(), is(false));
+        log.close();
+    }
+
+    private WriteAheadLog newLog() throws Exception {
+        return new WriteAheadLog(directory, SEGMENT_BYTES, 10, 10000, pipeline, service, new MetricRegistry(), false);
+    }
+
+    private static String message(String event, int tripId) {
+        return message(event, tripId, 37.79947);
+    }
+
+    private static String message(String event, int tripId, double lat) {
+        return String.format("{\"event\":\"%s\",\"tripId\":%d, \"lat\":%s, \"lng\":-122.511635, \"epoch\":1392864673040}",
+                event, tripId, lat);
+    }
+
+}